@@ -342,10 +342,17 @@ public abstract class AbstractContactsProvider extends ContentProvider
             } finally {
                 // No matter what, make sure we clear out the thread-local transaction reference.
                 mTransactionHolder.set(null);
+                onTransactionFinished();
             }
         }
     }
 
+    /**
+     * Called after the current transaction has been committed or rolled back.
+     */
+    protected void onTransactionFinished() {
+    }
+
     /**
      * Gets the database helper for this contacts provider.  This is called once, during onCreate().
      * Do not call in other places.
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Directory;
+import android.provider.ContactsContract.RawContacts;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.BucketContactsColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.BucketCountsColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+
+import java.util.Objects;
+
+/**
+ * Maintains {@link Tables#BUCKET_COUNTS}, the number of contacts in each address book index
+ * bucket, so that the fast scrolling index of the contacts list doesn't need to aggregate the
+ * whole contacts table.
+ *
+ * <p>Triggers record the contacts whose bucket may have changed in
+ * {@link Tables#BUCKET_CONTACTS_STALE}.  {@link #updateStaleContacts} moves those contacts from
+ * their old buckets, as recorded in {@link Tables#BUCKET_CONTACTS}, to their current ones.
+ * Counts are only served while no contact is stale.
+ */
+public class BucketCountsManager {
+    private static final String TAG = "BucketCountsManager";
+
+    private static final boolean VERBOSE_LOGGING = Log.isLoggable(TAG, Log.VERBOSE);
+
+    /** Above this many stale contacts, recounting everything is cheaper than updating. */
+    private static final int MAX_STALE_CONTACTS_FOR_UPDATE = 1000;
+
+    /** The current buckets of the contacts listed by the contacts view. */
+    private static final String CURRENT_BUCKETS_SELECT = "SELECT "
+            + Tables.CONTACTS + "." + Contacts._ID
+                    + " AS " + BucketContactsColumns.CONTACT_ID + ","
+            + "name_raw_contact." + RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY
+                    + " AS " + BucketContactsColumns.PHONEBOOK_BUCKET_PRIMARY + ","
+            + "name_raw_contact." + RawContactsColumns.PHONEBOOK_LABEL_PRIMARY
+                    + " AS " + BucketContactsColumns.PHONEBOOK_LABEL_PRIMARY + ","
+            + "name_raw_contact." + RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE
+                    + " AS " + BucketContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + ","
+            + "name_raw_contact." + RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE
+                    + " AS " + BucketContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + ","
+            + "(" + Tables.CONTACTS + "." + Contacts._ID + " IN " + Tables.DEFAULT_DIRECTORY + ")"
+                    + " AS " + BucketContactsColumns.IN_DEFAULT_DIRECTORY
+            + " FROM " + Tables.CONTACTS
+            + " JOIN " + Tables.RAW_CONTACTS + " AS name_raw_contact ON ("
+            + Contacts.NAME_RAW_CONTACT_ID + "=name_raw_contact." + RawContacts._ID + ")";
+
+    private static final String STALE_CONTACT_IDS_SELECT =
+            "SELECT " + BucketContactsColumns.CONTACT_ID + " FROM " + Tables.BUCKET_CONTACTS_STALE;
+
+    private static final class BucketContactsQuery {
+        public static final String SELECT_STALE = "SELECT "
+                + BucketContactsColumns.PHONEBOOK_BUCKET_PRIMARY + ","
+                + BucketContactsColumns.PHONEBOOK_LABEL_PRIMARY + ","
+                + BucketContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + ","
+                + BucketContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + ","
+                + BucketContactsColumns.IN_DEFAULT_DIRECTORY
+                + " FROM " + Tables.BUCKET_CONTACTS
+                + " WHERE " + BucketContactsColumns.CONTACT_ID
+                + " IN (" + STALE_CONTACT_IDS_SELECT + ")";
+
+        public static final int BUCKET_PRIMARY = 0;
+        public static final int LABEL_PRIMARY = 1;
+        public static final int BUCKET_ALTERNATIVE = 2;
+        public static final int LABEL_ALTERNATIVE = 3;
+        public static final int IN_DEFAULT_DIRECTORY = 4;
+    }
+
+    /** Counts per bucket, in the column order of {@link Tables#BUCKET_COUNTS}. */
+    private static final String COUNTS_SELECT =
+            countsSelect(BucketCountsColumns.SORT_KEY_TYPE_PRIMARY,
+                    BucketContactsColumns.PHONEBOOK_BUCKET_PRIMARY,
+                    BucketContactsColumns.PHONEBOOK_LABEL_PRIMARY)
+            + " UNION ALL "
+            + countsSelect(BucketCountsColumns.SORT_KEY_TYPE_ALTERNATIVE,
+                    BucketContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE,
+                    BucketContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE);
+
+    private static final String STORED_COUNTS_SELECT = "SELECT "
+            + BucketCountsColumns.SORT_KEY_TYPE + ","
+            + BucketCountsColumns.BUCKET + ","
+            + BucketCountsColumns.LABEL + ","
+            + BucketCountsColumns.CONTACT_COUNT + ","
+            + BucketCountsColumns.DEFAULT_DIRECTORY_COUNT
+            + " FROM " + Tables.BUCKET_COUNTS;
+
+    private static final String CURRENT_COUNTS_SELECT = COUNTS_SELECT.replace(
+            " FROM " + Tables.BUCKET_CONTACTS, " FROM (" + CURRENT_BUCKETS_SELECT + ")");
+
+    private static String countsSelect(int sortKeyType, String bucket, String label) {
+        return "SELECT " + sortKeyType + "," + bucket + "," + label + ","
+                + "COUNT(*),"
+                + "SUM(" + BucketContactsColumns.IN_DEFAULT_DIRECTORY + ")"
+                + " FROM " + Tables.BUCKET_CONTACTS
+                + " GROUP BY " + bucket + "," + label;
+    }
+
+    /** A bucket of one of the two sort keys. */
+    private static final class BucketKey {
+        final int sortKeyType;
+        final Long bucket;
+        final String label;
+
+        BucketKey(int sortKeyType, Long bucket, String label) {
+            this.sortKeyType = sortKeyType;
+            this.bucket = bucket;
+            this.label = label;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BucketKey)) {
+                return false;
+            }
+            final BucketKey other = (BucketKey) o;
+            return sortKeyType == other.sortKeyType && Objects.equals(bucket, other.bucket)
+                    && Objects.equals(label, other.label);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sortKeyType, bucket, label);
+        }
+    }
+
+    public boolean hasStaleContacts(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (" + STALE_CONTACT_IDS_SELECT + ")",
+                null) != 0;
+    }
+
+    /**
+     * Brings the counts up to date with the contacts that have changed since the last update.
+     * Must be called in a transaction, after aggregation and visibility updates.
+     */
+    public void updateStaleContacts(SQLiteDatabase db) {
+        final long staleCount = DatabaseUtils.queryNumEntries(db, Tables.BUCKET_CONTACTS_STALE);
+        if (staleCount == 0) {
+            return;
+        }
+        if (staleCount > MAX_STALE_CONTACTS_FOR_UPDATE) {
+            rebuild(db);
+            return;
+        }
+
+        final ArrayMap<BucketKey, int[]> deltas = new ArrayMap<>();
+        addDeltas(db, deltas, -1);
+        db.execSQL("DELETE FROM " + Tables.BUCKET_CONTACTS
+                + " WHERE " + BucketContactsColumns.CONTACT_ID
+                + " IN (" + STALE_CONTACT_IDS_SELECT + ")");
+        db.execSQL("INSERT INTO " + Tables.BUCKET_CONTACTS + " " + CURRENT_BUCKETS_SELECT
+                + " WHERE " + Tables.CONTACTS + "." + Contacts._ID
+                + " IN (" + STALE_CONTACT_IDS_SELECT + ")");
+        addDeltas(db, deltas, 1);
+        db.execSQL("DELETE FROM " + Tables.BUCKET_CONTACTS_STALE);
+
+        final SQLiteStatement update = db.compileStatement("UPDATE " + Tables.BUCKET_COUNTS
+                + " SET " + BucketCountsColumns.CONTACT_COUNT + "="
+                        + BucketCountsColumns.CONTACT_COUNT + "+?,"
+                + BucketCountsColumns.DEFAULT_DIRECTORY_COUNT + "="
+                        + BucketCountsColumns.DEFAULT_DIRECTORY_COUNT + "+?"
+                + " WHERE " + BucketCountsColumns.SORT_KEY_TYPE + "=?"
+                + " AND " + BucketCountsColumns.BUCKET + " IS ?"
+                + " AND " + BucketCountsColumns.LABEL + " IS ?");
+        final SQLiteStatement insert = db.compileStatement("INSERT INTO " + Tables.BUCKET_COUNTS
+                + " (" + BucketCountsColumns.CONTACT_COUNT + ","
+                + BucketCountsColumns.DEFAULT_DIRECTORY_COUNT + ","
+                + BucketCountsColumns.SORT_KEY_TYPE + ","
+                + BucketCountsColumns.BUCKET + ","
+                + BucketCountsColumns.LABEL + ") VALUES (?,?,?,?,?)");
+        try {
+            for (int i = 0; i < deltas.size(); i++) {
+                final int[] delta = deltas.valueAt(i);
+                if (delta[0] == 0 && delta[1] == 0) {
+                    continue;
+                }
+                final BucketKey key = deltas.keyAt(i);
+                bindDelta(update, key, delta);
+                if (update.executeUpdateDelete() == 0) {
+                    bindDelta(insert, key, delta);
+                    insert.executeInsert();
+                }
+            }
+        } finally {
+            update.close();
+            insert.close();
+        }
+        if (DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " + Tables.BUCKET_COUNTS
+                + " WHERE " + BucketCountsColumns.CONTACT_COUNT + "<0"
+                + " OR " + BucketCountsColumns.DEFAULT_DIRECTORY_COUNT + "<0"
+                + " OR " + BucketCountsColumns.DEFAULT_DIRECTORY_COUNT + ">"
+                        + BucketCountsColumns.CONTACT_COUNT + ")", null) != 0) {
+            // The counts had drifted before this update; only a recount can fix them.
+            Log.w(TAG, "Address book index bucket counts have drifted, rebuilding");
+            rebuild(db);
+            return;
+        }
+        db.execSQL("DELETE FROM " + Tables.BUCKET_COUNTS
+                + " WHERE " + BucketCountsColumns.CONTACT_COUNT + "<=0");
+
+        if (VERBOSE_LOGGING) {
+            Log.v(TAG, "Updated buckets of " + staleCount + " contacts");
+        }
+    }
+
+    private static void addDeltas(SQLiteDatabase db, ArrayMap<BucketKey, int[]> deltas,
+            int delta) {
+        final Cursor cursor = db.rawQuery(BucketContactsQuery.SELECT_STALE, null);
+        try {
+            while (cursor.moveToNext()) {
+                final int inDefaultDirectory =
+                        cursor.getInt(BucketContactsQuery.IN_DEFAULT_DIRECTORY) != 0 ? delta : 0;
+                addDelta(deltas, BucketCountsColumns.SORT_KEY_TYPE_PRIMARY, cursor,
+                        BucketContactsQuery.BUCKET_PRIMARY, BucketContactsQuery.LABEL_PRIMARY,
+                        delta, inDefaultDirectory);
+                addDelta(deltas, BucketCountsColumns.SORT_KEY_TYPE_ALTERNATIVE, cursor,
+                        BucketContactsQuery.BUCKET_ALTERNATIVE,
+                        BucketContactsQuery.LABEL_ALTERNATIVE, delta, inDefaultDirectory);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void addDelta(ArrayMap<BucketKey, int[]> deltas, int sortKeyType,
+            Cursor cursor, int bucketColumn, int labelColumn, int delta,
+            int defaultDirectoryDelta) {
+        final BucketKey key = new BucketKey(sortKeyType,
+                cursor.isNull(bucketColumn) ? null : cursor.getLong(bucketColumn),
+                cursor.getString(labelColumn));
+        int[] counts = deltas.get(key);
+        if (counts == null) {
+            counts = new int[2];
+            deltas.put(key, counts);
+        }
+        counts[0] += delta;
+        counts[1] += defaultDirectoryDelta;
+    }
+
+    private static void bindDelta(SQLiteStatement statement, BucketKey key, int[] delta) {
+        statement.bindLong(1, delta[0]);
+        statement.bindLong(2, delta[1]);
+        statement.bindLong(3, key.sortKeyType);
+        if (key.bucket == null) {
+            statement.bindNull(4);
+        } else {
+            statement.bindLong(4, key.bucket);
+        }
+        if (key.label == null) {
+            statement.bindNull(5);
+        } else {
+            statement.bindString(5, key.label);
+        }
+    }
+
+    /**
+     * Recounts all contacts.  Must be called in a transaction.
+     */
+    public void rebuild(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + Tables.BUCKET_CONTACTS);
+        db.execSQL("DELETE FROM " + Tables.BUCKET_CONTACTS_STALE);
+        db.execSQL("DELETE FROM " + Tables.BUCKET_COUNTS);
+        db.execSQL("INSERT INTO " + Tables.BUCKET_CONTACTS + " " + CURRENT_BUCKETS_SELECT);
+        db.execSQL("INSERT INTO " + Tables.BUCKET_COUNTS + " " + COUNTS_SELECT);
+        Log.i(TAG, "Rebuilt address book index bucket counts");
+    }
+
+    /**
+     * Returns true if the stored counts match the counts computed from the contacts table.
+     * Contacts that are still stale are expected to make this false.
+     */
+    public boolean isConsistent(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS ("
+                + CURRENT_COUNTS_SELECT + " EXCEPT " + STORED_COUNTS_SELECT + ")", null) == 0
+                && DatabaseUtils.longForQuery(db, "SELECT EXISTS ("
+                + STORED_COUNTS_SELECT + " EXCEPT " + CURRENT_COUNTS_SELECT + ")", null) == 0;
+    }
+
+    /**
+     * Applies the pending updates, then rebuilds the counts if they have drifted from the
+     * contacts table anyway.  This compares every count with a recount of all contacts, so it's
+     * only run once per database version; drift that shows up as impossible counts is already
+     * caught by {@link #updateStaleContacts}.
+     *
+     * @return true if the counts had to be rebuilt.
+     */
+    public boolean verify(SQLiteDatabase db) {
+        db.beginTransactionNonExclusive();
+        try {
+            updateStaleContacts(db);
+            final boolean consistent = isConsistent(db);
+            if (!consistent) {
+                Log.w(TAG, "Address book index bucket counts have drifted, rebuilding");
+                rebuild(db);
+            }
+            db.setTransactionSuccessful();
+            return !consistent;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the fast scrolling index of all the contacts in the given local directory, or null
+     * if it can't be served from the stored counts for this sort order.
+     */
+    public Bundle getFastScrollingIndexExtras(SQLiteDatabase db, String sortOrder,
+            long directoryId) {
+        if (sortOrder == null) {
+            sortOrder = Contacts.SORT_KEY_PRIMARY;
+        }
+        final String[] tokens = sortOrder.trim().split("\\s+");
+        final int sortKeyType;
+        if (Contacts.SORT_KEY_PRIMARY.equals(tokens[0])) {
+            sortKeyType = BucketCountsColumns.SORT_KEY_TYPE_PRIMARY;
+        } else if (Contacts.SORT_KEY_ALTERNATIVE.equals(tokens[0])) {
+            sortKeyType = BucketCountsColumns.SORT_KEY_TYPE_ALTERNATIVE;
+        } else {
+            return null;
+        }
+        String direction = "";
+        for (int i = 1; i < tokens.length; i++) {
+            if ("COLLATE".equalsIgnoreCase(tokens[i]) && i + 1 < tokens.length) {
+                // Buckets are ordered by their index, whatever the collation.
+                i++;
+            } else if ("DESC".equalsIgnoreCase(tokens[i])) {
+                direction = " DESC";
+            } else if (!"ASC".equalsIgnoreCase(tokens[i])) {
+                return null;
+            }
+        }
+
+        final String count;
+        if (directoryId == Directory.DEFAULT) {
+            count = BucketCountsColumns.DEFAULT_DIRECTORY_COUNT;
+        } else if (directoryId == Directory.LOCAL_INVISIBLE) {
+            count = BucketCountsColumns.CONTACT_COUNT + "-"
+                    + BucketCountsColumns.DEFAULT_DIRECTORY_COUNT;
+        } else {
+            count = BucketCountsColumns.CONTACT_COUNT;
+        }
+
+        final Cursor cursor = db.rawQuery("SELECT " + BucketCountsColumns.LABEL + "," + count
+                + " FROM " + Tables.BUCKET_COUNTS
+                + " WHERE " + BucketCountsColumns.SORT_KEY_TYPE + "=" + sortKeyType
+                + " AND " + count + ">0"
+                + " ORDER BY " + BucketCountsColumns.BUCKET + direction + ","
+                + BucketCountsColumns.LABEL + direction, null);
+        try {
+            final int numLabels = cursor.getCount();
+            final String[] labels = new String[numLabels];
+            final int[] counts = new int[numLabels];
+            for (int i = 0; i < numLabels; i++) {
+                cursor.moveToNext();
+                labels[i] = cursor.getString(0);
+                counts[i] = cursor.getInt(1);
+            }
+            return FastScrollingIndexCache.buildExtraBundle(labels, counts);
+        } finally {
+            cursor.close();
+        }
+    }
+}
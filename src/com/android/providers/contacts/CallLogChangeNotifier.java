@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.CallLog.Calls;
+import android.provider.DeviceConfig;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Coalesces the call log change notifications of {@link DbModifierWithNotification}, which
+ * wake up every observer of {@link Calls#CONTENT_URI}.
+ *
+ * Changes made between {@link #startBatch} and {@link #finishBatch} on the same thread are
+ * notified once, when the outermost batch finishes.  Other changes are notified right away,
+ * unless the last notification was less than the rate limit ago, in which case a single
+ * notification is sent at the end of the rate limit window.  The rate limit can be changed with
+ * the {@link #NOTIFY_CHANGE_RATE_LIMIT_KEY} device config setting.
+ *
+ * The call log and voicemail providers write to the same table, so they share the instance
+ * returned by {@link #getInstance}.
+ *
+ * This class is thread-safe.
+ */
+public class CallLogChangeNotifier {
+    /**
+     * Device config setting for the minimum time, in milliseconds, between two notifications of
+     * changes made outside of a batch.
+     */
+    @VisibleForTesting
+    static final String NOTIFY_CHANGE_RATE_LIMIT_KEY = "call_log_notify_change_rate_limit_millis";
+
+    @VisibleForTesting
+    static final long NOTIFY_CHANGE_RATE_LIMIT_DEFAULT = 1000;
+
+    private static CallLogChangeNotifier sInstance;
+
+    private static class Batch {
+        int depth;
+        boolean changed;
+    }
+
+    private final Context mContext;
+    private volatile long mRateLimitMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadLocal<Batch> mBatch = ThreadLocal.withInitial(Batch::new);
+    private final Runnable mDelayedNotifier = this::sendNotification;
+
+    private final Object mLock = new Object();
+    private long mLastNotifyChange;
+    private boolean mNotificationPending;
+    private int mNotificationCount;
+    private int mCoalescedCount;
+
+    public static synchronized CallLogChangeNotifier getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CallLogChangeNotifier(context);
+            sInstance.startListeningToDeviceConfigUpdates();
+        }
+        return sInstance;
+    }
+
+    private CallLogChangeNotifier(Context context) {
+        mContext = context;
+        mRateLimitMillis = readRateLimit();
+    }
+
+    @VisibleForTesting
+    CallLogChangeNotifier(Context context, long rateLimitMillis) {
+        mContext = context;
+        mRateLimitMillis = rateLimitMillis;
+    }
+
+    private void startListeningToDeviceConfigUpdates() {
+        // Updating the rate limit is cheap enough to do on the calling thread.
+        DeviceConfig.addOnPropertiesChangedListener(DeviceConfig.NAMESPACE_CONTACTS_PROVIDER,
+                Runnable::run, (properties) -> {
+                    if (properties.getKeyset().contains(NOTIFY_CHANGE_RATE_LIMIT_KEY)) {
+                        mRateLimitMillis = properties.getLong(NOTIFY_CHANGE_RATE_LIMIT_KEY,
+                                NOTIFY_CHANGE_RATE_LIMIT_DEFAULT);
+                    }
+                });
+    }
+
+    private static long readRateLimit() {
+        final long token = Binder.clearCallingIdentity();
+        try {
+            return DeviceConfig.getLong(DeviceConfig.NAMESPACE_CONTACTS_PROVIDER,
+                    NOTIFY_CHANGE_RATE_LIMIT_KEY, NOTIFY_CHANGE_RATE_LIMIT_DEFAULT);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    /**
+     * Defers the notifications of the changes made on this thread until {@link #finishBatch}.
+     * Batches can be nested.
+     */
+    public void startBatch() {
+        mBatch.get().depth++;
+    }
+
+    /**
+     * Sends the deferred notification, if any, once the outermost batch finishes.
+     */
+    public void finishBatch() {
+        final Batch batch = mBatch.get();
+        if (--batch.depth > 0 || !batch.changed) {
+            return;
+        }
+        batch.changed = false;
+        sendNotification();
+    }
+
+    /**
+     * Notifies observers that the call log changed, now, later or along with other changes.
+     */
+    public void notifyChange() {
+        final Batch batch = mBatch.get();
+        if (batch.depth > 0) {
+            if (batch.changed) {
+                synchronized (mLock) {
+                    mCoalescedCount++;
+                }
+            }
+            batch.changed = true;
+            return;
+        }
+
+        synchronized (mLock) {
+            final long now = SystemClock.elapsedRealtime();
+            final long nextNotifyChange = mLastNotifyChange + mRateLimitMillis;
+            if (mLastNotifyChange != 0 && now < nextNotifyChange) {
+                if (mNotificationPending) {
+                    mCoalescedCount++;
+                } else {
+                    mNotificationPending = true;
+                    mHandler.postDelayed(mDelayedNotifier, nextNotifyChange - now);
+                }
+                return;
+            }
+        }
+        sendNotification();
+    }
+
+    private void sendNotification() {
+        synchronized (mLock) {
+            // This notification covers the pending one.
+            if (mNotificationPending) {
+                mNotificationPending = false;
+                mHandler.removeCallbacks(mDelayedNotifier);
+            }
+            mLastNotifyChange = SystemClock.elapsedRealtime();
+            mNotificationCount++;
+        }
+        DbModifierWithNotification.notifyCallLogChange(mContext);
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.printf("  sent=%d  coalesced=%d  pending=%b  rateLimit=%dms\n",
+                    mNotificationCount, mCoalescedCount, mNotificationPending, mRateLimitMillis);
+        }
+    }
+
+    @VisibleForTesting
+    int getNotificationCount() {
+        synchronized (mLock) {
+            return mNotificationCount;
+        }
+    }
+
+    /**
+     * Returns the number of notifications that were merged into another one.
+     */
+    @VisibleForTesting
+    int getCoalescedCount() {
+        synchronized (mLock) {
+            return mCoalescedCount;
+        }
+    }
+}
@@ -24,11 +24,13 @@ import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteCantOpenDatabaseException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.preference.PreferenceManager;
 import android.provider.CallLog.Calls;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Status;
 import android.provider.VoicemailContract.Voicemails;
+import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
@@ -50,7 +52,7 @@ public class CallLogDatabaseHelper {
     private static final String TAG = "CallLogDatabaseHelper";
 
     @VisibleForTesting
-    static final int DATABASE_VERSION = 11;
+    static final int DATABASE_VERSION = 13;
 
     private static final boolean DEBUG = false; // DON'T SUBMIT WITH TRUE
 
@@ -77,6 +79,24 @@ public class CallLogDatabaseHelper {
         String VOICEMAIL_STATUS = "voicemail_status";
     }
 
+    /**
+     * Columns of {@link Tables#CALLS} that are internal to the provider.
+     */
+    public interface CallsColumns {
+        /**
+         * The {@link PhoneNumberUtils#toCallerIDMinMatch min match} of {@link Calls#NUMBER}, used
+         * to find the candidate calls for a loose number comparison through an index.  Null for
+         * calls that haven't been backfilled yet; see {@link #backfillMinMatches}.
+         */
+        String MIN_MATCH = "min_match";
+    }
+
+    /** Length of the {@link CallsColumns#MIN_MATCH} of a number with enough digits. */
+    static final int MIN_MATCH_LENGTH = 7;
+
+    /** Number of calls whose min match is computed in one transaction by the backfill. */
+    private static final int MIN_MATCH_BACKFILL_BATCH_SIZE = 500;
+
     public interface DbProperties {
         String CALL_LOG_LAST_SYNCED = "call_log_last_synced";
         String CALL_LOG_LAST_SYNCED_FOR_SHADOW = "call_log_last_synced_for_shadow";
@@ -173,6 +193,7 @@ public class CallLogDatabaseHelper {
                     Calls.LOCATION + " TEXT," +
                     Calls.COMPOSER_PHOTO_URI + " TEXT," +
                     Calls.IS_PHONE_ACCOUNT_MIGRATION_PENDING + " INTEGER NOT NULL DEFAULT 0," +
+                    CallsColumns.MIN_MATCH + " TEXT," +
                     Voicemails._DATA + " TEXT," +
                     Voicemails.HAS_CONTENT + " INTEGER," +
                     Voicemails.MIME_TYPE + " TEXT," +
@@ -204,6 +225,8 @@ public class CallLogDatabaseHelper {
                     VoicemailContract.Status.SOURCE_TYPE + " TEXT" +
                     ");");
 
+            createCallsMinMatchIndex(db);
+            createCallsDateIndex(db);
         }
 
         @Override
@@ -251,6 +274,14 @@ public class CallLogDatabaseHelper {
             if (oldVersion < 11) {
                 upgradeToVersion11(db);
             }
+
+            if (oldVersion < 12) {
+                upgradeToVersion12(db);
+            }
+
+            if (oldVersion < 13) {
+                upgradeToVersion13(db);
+            }
         }
 
         @Override
@@ -532,6 +563,93 @@ public class CallLogDatabaseHelper {
         mPhoneAccountHandleMigrationUtils.migrateIccIdToSubId(db);
     }
 
+    /**
+     * Adds the {@link CallsColumns#MIN_MATCH} column.  Existing calls are backfilled in the
+     * background by {@link #backfillMinMatches}, as that needs to parse every number.
+     */
+    private void upgradeToVersion12(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE calls ADD " + CallsColumns.MIN_MATCH + " TEXT");
+        createCallsMinMatchIndex(db);
+    }
+
+    private static void createCallsMinMatchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS calls_min_match_index ON " + Tables.CALLS + " ("
+                + CallsColumns.MIN_MATCH + ");");
+    }
+
+    private void upgradeToVersion13(SQLiteDatabase db) {
+        createCallsDateIndex(db);
+    }
+
+    /**
+     * Creates the index that serves the call log in its usual order, most recent first, and
+     * the keyset pagination of {@link CallLogProvider}.
+     */
+    private static void createCallsDateIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS calls_date_index ON " + Tables.CALLS + " ("
+                + Calls.DATE + " DESC, " + Calls._ID + " DESC);");
+    }
+
+    /**
+     * Returns the value of {@link CallsColumns#MIN_MATCH} for the given number.
+     */
+    @Nullable
+    static String computeMinMatch(@Nullable String number) {
+        if (number == null) {
+            return null;
+        }
+        // Store an empty string rather than null, so that the call isn't backfilled again.
+        return TextUtils.emptyIfNull(PhoneNumberUtils.toCallerIDMinMatch(number));
+    }
+
+    /**
+     * Computes {@link CallsColumns#MIN_MATCH} for the calls that don't have it yet, one batch
+     * per transaction so that writers aren't blocked for long.
+     *
+     * @return The number of calls that were updated.
+     */
+    int backfillMinMatches() {
+        final SQLiteDatabase db = getWritableDatabase();
+        final SQLiteStatement update = db.compileStatement("UPDATE " + Tables.CALLS
+                + " SET " + CallsColumns.MIN_MATCH + "=? WHERE " + Calls._ID + "=?");
+        int count = 0;
+        try {
+            int batchCount;
+            do {
+                batchCount = 0;
+                db.beginTransaction();
+                try {
+                    final Cursor c = db.query(Tables.CALLS,
+                            new String[] {Calls._ID, Calls.NUMBER},
+                            CallsColumns.MIN_MATCH + " IS NULL AND " + Calls.NUMBER
+                                    + " IS NOT NULL",
+                            null, null, null, null,
+                            String.valueOf(MIN_MATCH_BACKFILL_BATCH_SIZE));
+                    try {
+                        while (c.moveToNext()) {
+                            update.bindString(1, computeMinMatch(c.getString(1)));
+                            update.bindLong(2, c.getLong(0));
+                            update.execute();
+                            batchCount++;
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                count += batchCount;
+            } while (batchCount == MIN_MATCH_BACKFILL_BATCH_SIZE);
+        } finally {
+            update.close();
+        }
+        if (count > 0) {
+            Log.i(TAG, "Backfilled the min match of " + count + " calls");
+        }
+        return count;
+    }
+
     @VisibleForTesting
     static boolean tableExists(SQLiteDatabase db, String table) {
         return DatabaseUtils.longForQuery(db,
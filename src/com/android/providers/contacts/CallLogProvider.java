@@ -40,6 +40,7 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.database.sqlite.SQLiteTokenizer;
 import android.net.Uri;
 import android.os.Binder;
@@ -47,6 +48,7 @@ import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelableException;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.CallLog;
@@ -65,6 +67,7 @@ import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ProviderAccessStats;
+import com.android.providers.contacts.CallLogDatabaseHelper.CallsColumns;
 import com.android.providers.contacts.CallLogDatabaseHelper.DbProperties;
 import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
 import com.android.providers.contacts.util.FileUtilities;
@@ -86,6 +89,7 @@ import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -106,6 +110,21 @@ public class CallLogProvider extends ContentProvider {
     protected static final int BACKGROUND_TASK_INITIALIZE = 0;
     private static final int BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT = 1;
     private static final int BACKGROUND_TASK_MIGRATE_PHONE_ACCOUNT_HANDLES = 2;
+    @VisibleForTesting
+    protected static final int BACKGROUND_TASK_BACKFILL_MIN_MATCH = 3;
+
+    /**
+     * Query parameters for keyset pagination: only the calls that come after the call with the
+     * given {@link Calls#DATE} and {@link Calls#_ID} in the call log's usual order, most recent
+     * first, are returned.  Unlike {@link Calls#OFFSET_PARAM_KEY}, the cost of a page doesn't
+     * depend on how deep it is.  Both must be given, and the sort order, if any, must be
+     * {@link Calls#DEFAULT_SORT_ORDER}.
+     */
+    public static final String BEFORE_DATE_PARAM_KEY = "before_date";
+    public static final String BEFORE_ID_PARAM_KEY = "before_id";
+
+    /** Sort order of the calls when paginating with {@link #BEFORE_DATE_PARAM_KEY}. */
+    private static final String KEYSET_SORT_ORDER = Calls.DATE + " DESC, " + Calls._ID + " DESC";
 
     /** Selection clause for selecting all calls that were made after a certain time */
     private static final String MORE_RECENT_THAN_SELECTION = Calls.DATE + "> ?";
@@ -169,6 +188,39 @@ public class CallLogProvider extends ContentProvider {
             Calls.ADD_FOR_ALL_USERS
     };
 
+    /**
+     * The columns inserted for a synced call: the synced columns and the ones computed by the
+     * {@link CallLogInsertionHelper}.
+     */
+    private static final String[] CALL_LOG_SYNC_INSERT_COLUMNS;
+    static {
+        final String[] computedColumns = new String[] {
+                Calls.COUNTRY_ISO,
+                Calls.GEOCODED_LOCATION,
+                Calls.CACHED_NORMALIZED_NUMBER,
+                CallsColumns.MIN_MATCH
+        };
+        CALL_LOG_SYNC_INSERT_COLUMNS = Arrays.copyOf(CALL_LOG_SYNC_PROJECTION,
+                CALL_LOG_SYNC_PROJECTION.length + computedColumns.length);
+        System.arraycopy(computedColumns, 0, CALL_LOG_SYNC_INSERT_COLUMNS,
+                CALL_LOG_SYNC_PROJECTION.length, computedColumns.length);
+    }
+
+    private static final String CALL_LOG_SYNC_INSERT = "INSERT INTO " + Tables.CALLS + "("
+            + TextUtils.join(",", CALL_LOG_SYNC_INSERT_COLUMNS) + ") VALUES ("
+            + TextUtils.join(",", Collections.nCopies(
+                    CALL_LOG_SYNC_INSERT_COLUMNS.length, "?")) + ")";
+
+    private static final String CALL_LOG_SYNC_EXISTS_QUERY = "SELECT EXISTS (SELECT 1 FROM "
+            + Tables.CALLS + " WHERE " + Calls.DATE + "=? AND " + Calls.NUMBER + "=?)";
+
+    /**
+     * Number of calls copied in each transaction when syncing entries, so that queries and
+     * inserts don't have to wait for the whole sync.
+     */
+    @VisibleForTesting
+    static final int SYNC_CHUNK_SIZE = 100;
+
     static final String[] MINIMAL_PROJECTION = new String[] { Calls._ID };
 
     private static final int CALLS = 1;
@@ -308,12 +360,21 @@ public class CallLogProvider extends ContentProvider {
     @VisibleForTesting
     protected volatile CountDownLatch mReadAccessLatch;
 
+    /**
+     * Opened once the sync of entries has completed, rather than after its first chunk like
+     * {@link #mReadAccessLatch}, so that updates and deletes can't be undone by calls that are
+     * still being copied.
+     */
+    @VisibleForTesting
+    protected volatile CountDownLatch mWriteAccessLatch;
+
     private CallLogDatabaseHelper mDbHelper;
     private DatabaseUtils.InsertHelper mCallsInserter;
     private boolean mUseStrictPhoneNumberComparation;
     private int mMinMatch;
     private VoicemailPermissions mVoicemailPermissions;
     private CallLogInsertionHelper mCallLogInsertionHelper;
+    private CallLogChangeNotifier mCallLogChangeNotifier;
     private SubscriptionManager mSubscriptionManager;
     private LocalLog mLocalLog = new LocalLog(20);
 
@@ -322,6 +383,14 @@ public class CallLogProvider extends ContentProvider {
     private final ProviderAccessStats mStats = new ProviderAccessStats();
     private final Set<PhoneAccountHandle> mMigratedPhoneAccountHandles = new HashSet<>();
 
+    /** Progress of the last sync of entries, for dump. */
+    private final Object mSyncStatsLock = new Object();
+    private long mSyncStartTime;
+    private long mSyncDurationMillis = -1;
+    private long mReadAccessDelayMillis = -1;
+    private int mSyncCopiedCount;
+    private int mSyncSkippedCount;
+
     protected boolean isShadow() {
         return false;
     }
@@ -351,8 +420,10 @@ public class CallLogProvider extends ContentProvider {
                     com.android.internal.R.integer.config_phonenumber_compare_min_match);
         mVoicemailPermissions = new VoicemailPermissions(context);
         mCallLogInsertionHelper = createCallLogInsertionHelper(context);
+        mCallLogChangeNotifier = createCallLogChangeNotifier(context);
 
         mReadAccessLatch = new CountDownLatch(1);
+        mWriteAccessLatch = new CountDownLatch(1);
 
         mTaskScheduler = new ContactsTaskScheduler(getClass().getSimpleName()) {
             @Override
@@ -381,6 +452,16 @@ public class CallLogProvider extends ContentProvider {
         return DefaultCallLogInsertionHelper.getInstance(context);
     }
 
+    @VisibleForTesting
+    protected CallLogChangeNotifier createCallLogChangeNotifier(Context context) {
+        return CallLogChangeNotifier.getInstance(context);
+    }
+
+    @VisibleForTesting
+    CallLogChangeNotifier getCallLogChangeNotifierForTest() {
+        return mCallLogChangeNotifier;
+    }
+
     @VisibleForTesting
     public void setMinMatchForTest(int minMatch) {
         mMinMatch = minMatch;
@@ -427,9 +508,11 @@ public class CallLogProvider extends ContentProvider {
 
         mStats.incrementBatchStats(callingUid);
         mApplyingBatch.set(true);
+        mCallLogChangeNotifier.startBatch();
         try {
             return super.applyBatch(operations);
         } finally {
+            mCallLogChangeNotifier.finishBatch();
             mApplyingBatch.set(false);
             mStats.finishOperation(callingUid);
         }
@@ -442,9 +525,11 @@ public class CallLogProvider extends ContentProvider {
 
         mStats.incrementBatchStats(callingUid);
         mApplyingBatch.set(true);
+        mCallLogChangeNotifier.startBatch();
         try {
             return super.bulkInsert(uri, values);
         } finally {
+            mCallLogChangeNotifier.finishBatch();
             mApplyingBatch.set(false);
             mStats.finishOperation(callingUid);
         }
@@ -508,6 +593,7 @@ public class CallLogProvider extends ContentProvider {
                 List<String> pathSegments = uri.getPathSegments();
                 String phoneNumber = pathSegments.size() >= 2 ? pathSegments.get(2) : null;
                 if (!TextUtils.isEmpty(phoneNumber)) {
+                    appendMinMatchCandidateClause(qb, phoneNumber);
                     qb.appendWhere("PHONE_NUMBERS_EQUAL(number, ?");
                     qb.appendWhere(mUseStrictPhoneNumberComparation ? ", 1)"
                             : ", 0, " + mMinMatch + ")");
@@ -524,6 +610,12 @@ public class CallLogProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URL " + uri);
         }
 
+        final String beforeDate = uri.getQueryParameter(BEFORE_DATE_PARAM_KEY);
+        final String beforeId = uri.getQueryParameter(BEFORE_ID_PARAM_KEY);
+        if (beforeDate != null || beforeId != null) {
+            sortOrder = appendKeysetClause(uri, selectionBuilder, sortOrder);
+        }
+
         final int limit = getIntParam(uri, Calls.LIMIT_PARAM_KEY, 0);
         final int offset = getIntParam(uri, Calls.OFFSET_PARAM_KEY, 0);
         String limitClause = null;
@@ -546,6 +638,71 @@ public class CallLogProvider extends ContentProvider {
         return c;
     }
 
+    /**
+     * Limits a loose number comparison to the calls with the same {@link CallsColumns#MIN_MATCH}
+     * as the number, or with none yet, so that it is done through the min match index instead
+     * of over the whole call log.  A loose comparison only matches numbers that share at least
+     * their last {@link #mMinMatch} digits, or all of them, so no call is missed as long as
+     * that's at least the length of a min match.  Strict comparisons are left alone.
+     */
+    private void appendMinMatchCandidateClause(SQLiteQueryBuilder qb, String phoneNumber) {
+        if (mUseStrictPhoneNumberComparation
+                || mMinMatch < CallLogDatabaseHelper.MIN_MATCH_LENGTH) {
+            return;
+        }
+        final String minMatch = CallLogDatabaseHelper.computeMinMatch(phoneNumber);
+        if (TextUtils.isEmpty(minMatch)) {
+            return;
+        }
+        qb.appendWhere("(" + CallsColumns.MIN_MATCH + "=");
+        qb.appendWhereEscapeString(minMatch);
+        qb.appendWhere(" OR " + CallsColumns.MIN_MATCH + " IS NULL) AND ");
+    }
+
+    /**
+     * Restricts the query to the calls after the one given by {@link #BEFORE_DATE_PARAM_KEY} and
+     * {@link #BEFORE_ID_PARAM_KEY}.  The clause is a range on the leading column of the date
+     * index, so the calls are read from where the previous page stopped.
+     *
+     * @return The sort order to use.
+     * @throws IllegalArgumentException If one of the parameters is missing or isn't a number,
+     *     or the sort order isn't the default one.
+     */
+    private String appendKeysetClause(Uri uri, SelectionBuilder selectionBuilder,
+            String sortOrder) {
+        final long beforeDate = getLongParam(uri, BEFORE_DATE_PARAM_KEY);
+        final long beforeId = getLongParam(uri, BEFORE_ID_PARAM_KEY);
+        if (sortOrder != null && !Calls.DEFAULT_SORT_ORDER.equalsIgnoreCase(sortOrder.trim())
+                && !KEYSET_SORT_ORDER.equalsIgnoreCase(sortOrder.trim())) {
+            throw new IllegalArgumentException(BEFORE_DATE_PARAM_KEY
+                    + " requires the default sort order, but got: " + sortOrder);
+        }
+        selectionBuilder.addClause(Calls.DATE + "<=" + beforeDate
+                + " AND (" + Calls.DATE + "<" + beforeDate
+                + " OR " + Calls._ID + "<" + beforeId + ")");
+        return KEYSET_SORT_ORDER;
+    }
+
+    /**
+     * Gets a long query parameter from the uri, which must be present.
+     *
+     * @throws IllegalArgumentException when the parameter is missing or not a long.
+     */
+    private long getLongParam(Uri uri, String key) {
+        String valueString = uri.getQueryParameter(key);
+        if (valueString == null) {
+            throw new IllegalArgumentException("Missing " + key + " parameter");
+        }
+
+        try {
+            return Long.parseLong(valueString);
+        } catch (NumberFormatException e) {
+            String msg = "Long required for " + key + " parameter but value '" + valueString +
+                    "' was found instead.";
+            throw new IllegalArgumentException(msg, e);
+        }
+    }
+
     /**
      * Helper method for queryInternal that appends an extra argument to the existing selection
      * arguments array.
@@ -940,7 +1097,7 @@ public class CallLogProvider extends ContentProvider {
                     " CUID=" + Binder.getCallingUid() +
                     " User=" + UserUtils.getCurrentUserHandle(getContext()));
         }
-        waitForAccess(mReadAccessLatch);
+        waitForAccess(mWriteAccessLatch);
         checkForSupportedColumns(sCallsProjectionMap, values);
         // Request that involves changing record type to voicemail requires the
         // voicemail param set in the uri.
@@ -966,6 +1123,12 @@ public class CallLogProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URL: " + uri);
         }
 
+        if (values.containsKey(Calls.NUMBER)) {
+            values = new ContentValues(values);
+            values.put(CallsColumns.MIN_MATCH,
+                    CallLogDatabaseHelper.computeMinMatch(values.getAsString(Calls.NUMBER)));
+        }
+
         int count = createDatabaseModifier(db, hasReadVoicemailPermission).update(uri, Tables.CALLS,
                 values, selectionBuilder.build(), selectionArgs);
 
@@ -986,7 +1149,7 @@ public class CallLogProvider extends ContentProvider {
                     " CUID=" + Binder.getCallingUid() +
                     " User=" + UserUtils.getCurrentUserHandle(getContext()));
         }
-        waitForAccess(mReadAccessLatch);
+        waitForAccess(mWriteAccessLatch);
         SelectionBuilder selectionBuilder = new SelectionBuilder(selection);
         checkVoicemailPermissionAndAddRestriction(uri, selectionBuilder, false /*isQuery*/);
 
@@ -1019,7 +1182,7 @@ public class CallLogProvider extends ContentProvider {
      */
     private DatabaseModifier createDatabaseModifier(SQLiteDatabase db, boolean hasReadVoicemail) {
         return new DbModifierWithNotification(Tables.CALLS, db, null, hasReadVoicemail,
-                getContext());
+                mCallLogChangeNotifier, getContext());
     }
 
     /**
@@ -1027,7 +1190,8 @@ public class CallLogProvider extends ContentProvider {
      * only.
      */
     private DatabaseModifier createDatabaseModifier(DatabaseUtils.InsertHelper insertHelper) {
-        return new DbModifierWithNotification(Tables.CALLS, insertHelper, getContext());
+        return new DbModifierWithNotification(Tables.CALLS, insertHelper,
+                mCallLogChangeNotifier, getContext());
     }
 
     private static final Integer VOICEMAIL_TYPE = new Integer(Calls.VOICEMAIL_TYPE);
@@ -1108,16 +1272,28 @@ public class CallLogProvider extends ContentProvider {
 
         // See the comment in Calls.addCall() for the logic.
 
-        if (userManager.isSystemUser()) {
-            // If it's the system user, just copy from shadow.
-            syncEntriesFrom(UserHandle.USER_SYSTEM, /* sourceIsShadow = */ true,
-                    /* forAllUsersOnly =*/ false);
-        } else {
-            // Otherwise, copy from system's real provider, as well as self's shadow.
-            syncEntriesFrom(UserHandle.USER_SYSTEM, /* sourceIsShadow = */ false,
-                    /* forAllUsersOnly =*/ true);
-            syncEntriesFrom(myUserId, /* sourceIsShadow = */ true,
-                    /* forAllUsersOnly =*/ false);
+        synchronized (mSyncStatsLock) {
+            mSyncStartTime = SystemClock.elapsedRealtime();
+            mSyncDurationMillis = -1;
+            mSyncCopiedCount = 0;
+            mSyncSkippedCount = 0;
+        }
+        try {
+            if (userManager.isSystemUser()) {
+                // If it's the system user, just copy from shadow.
+                syncEntriesFrom(UserHandle.USER_SYSTEM, /* sourceIsShadow = */ true,
+                        /* forAllUsersOnly =*/ false);
+            } else {
+                // Otherwise, copy from system's real provider, as well as self's shadow.
+                syncEntriesFrom(UserHandle.USER_SYSTEM, /* sourceIsShadow = */ false,
+                        /* forAllUsersOnly =*/ true);
+                syncEntriesFrom(myUserId, /* sourceIsShadow = */ true,
+                        /* forAllUsersOnly =*/ false);
+            }
+        } finally {
+            synchronized (mSyncStatsLock) {
+                mSyncDurationMillis = SystemClock.elapsedRealtime() - mSyncStartTime;
+            }
         }
     }
 
@@ -1273,6 +1449,10 @@ public class CallLogProvider extends ContentProvider {
     }
 
     /**
+     * Copies the entries in chunks of {@link #SYNC_CHUNK_SIZE}, each in its own transaction, and
+     * releases {@link #mReadAccessLatch} as soon as the first chunk is in.  If more chunks are
+     * copied after that, observers are notified once all of them are in.
+     *
      * @param cursor to copy call log entries from
      */
     @VisibleForTesting
@@ -1280,53 +1460,103 @@ public class CallLogProvider extends ContentProvider {
         long latestTimestamp = 0;
         final ContentValues values = new ContentValues();
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        db.beginTransaction();
-        try {
-            final String[] args = new String[2];
-            cursor.moveToPosition(-1);
-            while (cursor.moveToNext()) {
-                values.clear();
-                DatabaseUtils.cursorRowToContentValues(cursor, values);
+        boolean copiedAfterReadAccess = false;
+        cursor.moveToPosition(-1);
+        boolean hasNext = cursor.moveToNext();
+        while (hasNext) {
+            int copiedCount = 0;
+            int skippedCount = 0;
+            final SQLiteStatement exists = db.compileStatement(CALL_LOG_SYNC_EXISTS_QUERY);
+            final SQLiteStatement insert = db.compileStatement(CALL_LOG_SYNC_INSERT);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < SYNC_CHUNK_SIZE && hasNext;
+                        i++, hasNext = cursor.moveToNext()) {
+                    values.clear();
+                    DatabaseUtils.cursorRowToContentValues(cursor, values);
 
-                final String startTime = values.getAsString(Calls.DATE);
-                final String number = values.getAsString(Calls.NUMBER);
+                    final String startTime = values.getAsString(Calls.DATE);
+                    final String number = values.getAsString(Calls.NUMBER);
 
-                if (startTime == null || number == null) {
-                    continue;
-                }
+                    if (startTime == null || number == null) {
+                        skippedCount++;
+                        continue;
+                    }
 
-                if (cursor.isLast()) {
-                    try {
-                        latestTimestamp = Long.valueOf(startTime);
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Call log entry does not contain valid start time: "
-                                + startTime);
+                    if (cursor.isLast()) {
+                        try {
+                            latestTimestamp = Long.valueOf(startTime);
+                        } catch (NumberFormatException e) {
+                            Log.e(TAG, "Call log entry does not contain valid start time: "
+                                    + startTime);
+                        }
                     }
-                }
 
-                // Avoid duplicating an already existing entry (which is uniquely identified by
-                // the number, and the start time)
-                args[0] = startTime;
-                args[1] = number;
-                if (DatabaseUtils.queryNumEntries(db, Tables.CALLS,
-                        Calls.DATE + " = ? AND " + Calls.NUMBER + " = ?", args) > 0) {
-                    continue;
-                }
+                    // Avoid duplicating an already existing entry (which is uniquely identified
+                    // by the number, and the start time)
+                    exists.bindString(1, startTime);
+                    exists.bindString(2, number);
+                    if (exists.simpleQueryForLong() != 0) {
+                        skippedCount++;
+                        continue;
+                    }
 
-                db.insert(Tables.CALLS, null, values);
+                    // The synced columns don't include the computed ones, so compute them the
+                    // same way as for a call inserted here.
+                    mCallLogInsertionHelper.addComputedValues(values);
+                    values.put(CallsColumns.MIN_MATCH,
+                            CallLogDatabaseHelper.computeMinMatch(number));
+                    insert.clearBindings();
+                    for (int j = 0; j < CALL_LOG_SYNC_INSERT_COLUMNS.length; j++) {
+                        DatabaseUtils.bindObjectToProgram(insert, j + 1,
+                                values.get(CALL_LOG_SYNC_INSERT_COLUMNS[j]));
+                    }
+                    insert.executeInsert();
+                    copiedCount++;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                exists.close();
+                insert.close();
             }
 
-            if (latestTimestamp > lastSyncTime) {
-                setLastTimeSynced(latestTimestamp, forShadow);
+            synchronized (mSyncStatsLock) {
+                mSyncCopiedCount += copiedCount;
+                mSyncSkippedCount += skippedCount;
+            }
+            if (mReadAccessLatch.getCount() == 0) {
+                copiedAfterReadAccess |= copiedCount > 0;
+            } else {
+                // The rest of the calls are copied in the background; until then, queries just
+                // don't see them yet.
+                releaseReadAccess();
             }
+        }
 
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
+        // If copying a chunk fails, the sync starts over and the duplicates are skipped.
+        if (latestTimestamp > lastSyncTime) {
+            setLastTimeSynced(latestTimestamp, forShadow);
+        }
+        if (copiedAfterReadAccess) {
+            // Queries made before the last chunks were in missed them.
+            mCallLogChangeNotifier.notifyChange();
         }
         return latestTimestamp;
     }
 
+    private void releaseReadAccess() {
+        if (mReadAccessLatch.getCount() == 0) {
+            return;
+        }
+        synchronized (mSyncStatsLock) {
+            if (mReadAccessDelayMillis < 0 && mSyncStartTime != 0) {
+                mReadAccessDelayMillis = SystemClock.elapsedRealtime() - mSyncStartTime;
+            }
+        }
+        mReadAccessLatch.countDown();
+    }
+
     private static String getLastSyncTimePropertyName(boolean forShadow) {
         return forShadow
                 ? DbProperties.CALL_LOG_LAST_SYNCED_FOR_SHADOW
@@ -1373,8 +1603,13 @@ public class CallLogProvider extends ContentProvider {
                 }
                 syncEntries();
             } finally {
-                mReadAccessLatch.countDown();
+                releaseReadAccess();
+                mWriteAccessLatch.countDown();
             }
+            // Queries still find the calls that haven't been backfilled, so it can wait.
+            mTaskScheduler.scheduleTask(BACKGROUND_TASK_BACKFILL_MIN_MATCH, null);
+        } else if (task == BACKGROUND_TASK_BACKFILL_MIN_MATCH) {
+            mDbHelper.backfillMinMatches();
         } else if (task == BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT) {
             Log.i(TAG, "performBackgroundTask for unhide PhoneAccountHandles");
             adjustForNewPhoneAccountInternal((PhoneAccountHandle) arg);
@@ -1409,6 +1644,20 @@ public class CallLogProvider extends ContentProvider {
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
         mStats.dump(writer, "  ");
         writer.println();
+        synchronized (mSyncStatsLock) {
+            writer.println("Call log sync:");
+            if (mSyncStartTime == 0) {
+                writer.println("  none");
+            } else {
+                writer.printf("  copied=%d  skipped=%d  readAccessAfter=%dms  duration=%s\n",
+                        mSyncCopiedCount, mSyncSkippedCount, mReadAccessDelayMillis,
+                        mSyncDurationMillis < 0 ? "running" : mSyncDurationMillis + "ms");
+            }
+        }
+        writer.println();
+        writer.println("Call log change notifications:");
+        mCallLogChangeNotifier.dump(writer);
+        writer.println();
         writer.println("Latest call log activity:");
         mLocalLog.dump(writer);
     }
@@ -94,6 +94,44 @@ public class ContactLocaleUtils {
         Log.d(TAG, "Labels=[" + labels + "]");
     }
 
+    /**
+     * The transliterators used by an instance.  {@link Transliterator}s aren't thread-safe, so
+     * the instances returned by {@link #newInstanceForThread} get their own, while the other
+     * instances share {@link #getShared}.
+     */
+    private static final class Transliterators {
+        private static Transliterators sShared;
+
+        final HanziToPinyin hanziToPinyin;
+        private boolean mInitializedJapanese;
+        private Transliterator mJapanese;
+
+        Transliterators(HanziToPinyin hanziToPinyin) {
+            this.hanziToPinyin = hanziToPinyin;
+        }
+
+        static synchronized Transliterators getShared() {
+            if (sShared == null) {
+                sShared = new Transliterators(HanziToPinyin.getInstance());
+            }
+            return sShared;
+        }
+
+        synchronized Transliterator getJapanese() {
+            if (!mInitializedJapanese) {
+                mInitializedJapanese = true;
+                try {
+                    mJapanese = Transliterator.getInstance("Hiragana-Latin; Katakana-Latin;"
+                            + " Latin-Ascii");
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Hiragana/Katakana-Latin transliterator data"
+                            + " is missing");
+                }
+            }
+            return mJapanese;
+        }
+    }
+
     /**
      * This class is the default implementation and should be the base class
      * for other locales.
@@ -111,9 +149,11 @@ public class ContactLocaleUtils {
         private final int mAlphabeticIndexBucketCount;
         private final int mNumberBucketIndex;
         private final boolean mUsePinyinTransliterator;
+        protected final Transliterators mTransliterators;
 
-        public ContactLocaleUtilsBase(LocaleSet systemLocales) {
+        public ContactLocaleUtilsBase(LocaleSet systemLocales, Transliterators transliterators) {
             mUsePinyinTransliterator = systemLocales.shouldPreferSimplifiedChinese();
+            mTransliterators = transliterators;
 
             // Build the index buckets based on the current system locale set and
             // sDefaultLabelLocales.
@@ -233,7 +273,7 @@ public class ContactLocaleUtils {
              * buckets. b/19835686
              */
             if (mUsePinyinTransliterator) {
-                name = HanziToPinyin.getInstance().transliterate(name);
+                name = mTransliterators.hanziToPinyin.transliterate(name);
             }
             final int bucket = mAlphabeticIndex.getBucketIndex(name);
             if (bucket < 0) {
@@ -298,8 +338,8 @@ public class ContactLocaleUtils {
         private static final String JAPANESE_MISC_LABEL = "\u4ed6";
         private final int mMiscBucketIndex;
 
-        public JapaneseContactUtils(LocaleSet locales) {
-            super(locales);
+        public JapaneseContactUtils(LocaleSet locales, Transliterators transliterators) {
+            super(locales, transliterators);
             // Determine which bucket AlphabeticIndex is lumping unclassified
             // Japanese characters into by looking up the bucket index for
             // a representative Kanji/CJK unified ideograph (\u65e5 is the
@@ -385,34 +425,14 @@ public class ContactLocaleUtils {
         public Iterator<String> getNameLookupKeys(String name, int nameStyle) {
             // Hiragana and Katakana will be positively identified as Japanese.
             if (nameStyle == PhoneticNameStyle.JAPANESE) {
-                return getRomajiNameLookupKeys(name);
+                return getRomajiNameLookupKeys(name, mTransliterators);
             }
             return null;
         }
 
-        private static boolean mInitializedTransliterator;
-        private static Transliterator mJapaneseTransliterator;
-
-        private static Transliterator getJapaneseTransliterator() {
-            synchronized(JapaneseContactUtils.class) {
-                if (!mInitializedTransliterator) {
-                    mInitializedTransliterator = true;
-                    Transliterator t = null;
-                    try {
-                        t = Transliterator.getInstance("Hiragana-Latin; Katakana-Latin;"
-                                + " Latin-Ascii");
-                    } catch (IllegalArgumentException e) {
-                        Log.w(TAG, "Hiragana/Katakana-Latin transliterator data"
-                                + " is missing");
-                    }
-                    mJapaneseTransliterator = t;
-                }
-                return mJapaneseTransliterator;
-            }
-        }
-
-        public static Iterator<String> getRomajiNameLookupKeys(String name) {
-            final Transliterator t = getJapaneseTransliterator();
+        public static Iterator<String> getRomajiNameLookupKeys(String name,
+                Transliterators transliterators) {
+            final Transliterator t = transliterators.getJapanese();
             if (t == null) {
                 return null;
             }
@@ -453,23 +473,25 @@ public class ContactLocaleUtils {
      */
     private static class SimplifiedChineseContactUtils
         extends ContactLocaleUtilsBase {
-        public SimplifiedChineseContactUtils(LocaleSet locales) {
-            super(locales);
+        public SimplifiedChineseContactUtils(LocaleSet locales,
+                Transliterators transliterators) {
+            super(locales, transliterators);
         }
 
         @Override
         public Iterator<String> getNameLookupKeys(String name, int nameStyle) {
             if (nameStyle != FullNameStyle.JAPANESE &&
                     nameStyle != FullNameStyle.KOREAN) {
-                return getPinyinNameLookupKeys(name);
+                return getPinyinNameLookupKeys(name, mTransliterators);
             }
             return null;
         }
 
-        public static Iterator<String> getPinyinNameLookupKeys(String name) {
+        public static Iterator<String> getPinyinNameLookupKeys(String name,
+                Transliterators transliterators) {
             // TODO : Reduce the object allocation.
             ArraySet<String> keys = new ArraySet<>();
-            ArrayList<Token> tokens = HanziToPinyin.getInstance().getTokens(name);
+            ArrayList<Token> tokens = transliterators.hanziToPinyin.getTokens(name);
             final int tokenCount = tokens.size();
             final StringBuilder keyPinyin = new StringBuilder();
             final StringBuilder keyInitial = new StringBuilder();
@@ -509,20 +531,26 @@ public class ContactLocaleUtils {
 
     private final LocaleSet mLocales;
     private final ContactLocaleUtilsBase mUtils;
+    private final Transliterators mTransliterators;
 
     private ContactLocaleUtils(LocaleSet locales) {
+        this(locales, Transliterators.getShared());
+    }
+
+    private ContactLocaleUtils(LocaleSet locales, Transliterators transliterators) {
         if (locales == null) {
             mLocales = LocaleSet.newDefault();
         } else {
             mLocales = locales;
         }
         if (mLocales.shouldPreferJapanese()) {
-            mUtils = new JapaneseContactUtils(mLocales);
+            mUtils = new JapaneseContactUtils(mLocales, transliterators);
         } else if (mLocales.shouldPreferSimplifiedChinese()) {
-            mUtils = new SimplifiedChineseContactUtils(mLocales);
+            mUtils = new SimplifiedChineseContactUtils(mLocales, transliterators);
         } else {
-            mUtils = new ContactLocaleUtilsBase(mLocales);
+            mUtils = new ContactLocaleUtilsBase(mLocales, transliterators);
         }
+        mTransliterators = transliterators;
         Log.i(TAG, "AddressBook Labels [" + mLocales.toString() + "]: "
                 + getLabels().toString());
     }
@@ -538,6 +566,15 @@ public class ContactLocaleUtils {
         return sSingleton;
     }
 
+    /**
+     * Returns a new instance for the same locales, with its own transliterators, so that it can
+     * be used on another thread at the same time as this one.  The new instance must not be
+     * shared between threads either.
+     */
+    public ContactLocaleUtils newInstanceForThread() {
+        return new ContactLocaleUtils(mLocales, new Transliterators(HanziToPinyin.newInstance()));
+    }
+
     @VisibleForTesting
     public static ContactLocaleUtils newInstanceForTest(Locale... locales) {
         return new ContactLocaleUtils(LocaleSet.newForTest(locales));
@@ -602,11 +639,13 @@ public class ContactLocaleUtils {
             if (mLocales.shouldPreferSimplifiedChinese()) {
                 if (nameStyle == FullNameStyle.CHINESE ||
                         nameStyle == FullNameStyle.CJK) {
-                    return SimplifiedChineseContactUtils.getPinyinNameLookupKeys(name);
+                    return SimplifiedChineseContactUtils.getPinyinNameLookupKeys(name,
+                            mTransliterators);
                 }
             } else {
                 if (nameStyle == FullNameStyle.JAPANESE) {
-                    return JapaneseContactUtils.getRomajiNameLookupKeys(name);
+                    return JapaneseContactUtils.getRomajiNameLookupKeys(name,
+                            mTransliterators);
                 }
             }
         }
@@ -119,6 +119,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -155,7 +156,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      *   1700-1799 V
      * </pre>
      */
-    static final int DATABASE_VERSION = 1701;
+    static final int DATABASE_VERSION = 1703;
     private static final int MINIMUM_SUPPORTED_VERSION = 700;
 
     @VisibleForTesting
@@ -182,6 +183,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     private static final String SIMPLE_FIELD_MAX_SIZE_KEY = "simple_field_max_size";
     private static volatile Integer sSimpleFieldMaxSizeCached = null;
 
+    /** Number of raw contacts whose names are derived together when rebuilding sort keys. */
+    private static final int SORT_KEY_REBUILD_BATCH_SIZE = 2000;
+    /** Smaller batches are derived on the calling thread only. */
+    private static final int MIN_PARALLEL_SORT_KEY_REBUILD_SIZE = 200;
+    private static final int MAX_SORT_KEY_REBUILD_THREADS = 4;
+
     private static final long DEVICE_CONFIG_CACHE_EXPIRATION_MS = 1 * 60 * 60 * 1000; // 1 hour
     private static volatile long sDeviceConfigCacheExpirationElapsedTime;
 
@@ -209,6 +216,10 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String DIRECTORIES = "directories";
         public static final String DEFAULT_DIRECTORY = "default_directory";
         public static final String SEARCH_INDEX = "search_index";
+        public static final String SEARCH_INDEX_DATA = "search_index_data";
+        public static final String BUCKET_CONTACTS = "bucket_contacts";
+        public static final String BUCKET_CONTACTS_STALE = "bucket_contacts_stale";
+        public static final String BUCKET_COUNTS = "bucket_counts";
         public static final String PRE_AUTHORIZED_URIS = "pre_authorized_uris";
 
         // This list of tables contains auto-incremented sequences.
@@ -370,6 +381,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         String LOCALE = "locale";
         String DATABASE_TIME_CREATED = "database_time_created";
         String KNOWN_DIRECTORY_PACKAGES = "knownDirectoryPackages";
+        String BUCKET_COUNTS_VERIFIED_VERSION = "bucket_counts_verified_version";
     }
 
     public interface Clauses {
@@ -739,6 +751,52 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String TOKENS = "tokens";
     }
 
+    /**
+     * Per-data-row contributions to {@link Tables#SEARCH_INDEX}.  The search index row of a
+     * contact is the merge of the fragments of all its data rows.
+     */
+    public interface SearchIndexDataColumns {
+        public static final String DATA_ID = "data_id";
+        public static final String RAW_CONTACT_ID = "raw_contact_id";
+        public static final String CONTENT = "content";
+        public static final String NAME = "name";
+        public static final String TOKENS = "tokens";
+
+        public static final String CONCRETE_DATA_ID = Tables.SEARCH_INDEX_DATA + "." + DATA_ID;
+    }
+
+    /**
+     * Snapshot of the address book index buckets of each contact, as last counted into
+     * {@link Tables#BUCKET_COUNTS}.
+     */
+    public interface BucketContactsColumns {
+        public static final String CONTACT_ID = "contact_id";
+        public static final String PHONEBOOK_BUCKET_PRIMARY =
+                ContactsColumns.PHONEBOOK_BUCKET_PRIMARY;
+        public static final String PHONEBOOK_LABEL_PRIMARY =
+                ContactsColumns.PHONEBOOK_LABEL_PRIMARY;
+        public static final String PHONEBOOK_BUCKET_ALTERNATIVE =
+                ContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE;
+        public static final String PHONEBOOK_LABEL_ALTERNATIVE =
+                ContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE;
+        public static final String IN_DEFAULT_DIRECTORY = "in_default_directory";
+    }
+
+    /**
+     * Number of contacts per address book index bucket, for the primary and the alternative
+     * sort key.
+     */
+    public interface BucketCountsColumns {
+        public static final String SORT_KEY_TYPE = "sort_key_type";
+        public static final String BUCKET = "bucket";
+        public static final String LABEL = "label";
+        public static final String CONTACT_COUNT = "contact_count";
+        public static final String DEFAULT_DIRECTORY_COUNT = "default_directory_count";
+
+        public static final int SORT_KEY_TYPE_PRIMARY = 0;
+        public static final int SORT_KEY_TYPE_ALTERNATIVE = 1;
+    }
+
     public interface PreAuthorizedUris {
         public static final String _ID = BaseColumns._ID;
         public static final String URI = "uri";
@@ -830,9 +888,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private interface RawContactNameQuery {
-        public static final String RAW_SQL =
-                "SELECT "
-                        + DataColumns.MIMETYPE_ID + ","
+        public static final String COLUMNS =
+                DataColumns.MIMETYPE_ID + ","
                         + Data.IS_PRIMARY + ","
                         + Data.DATA1 + ","
                         + Data.DATA2 + ","
@@ -844,14 +901,32 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                         + Data.DATA8 + ","
                         + Data.DATA9 + ","
                         + Data.DATA10 + ","
-                        + Data.DATA11 +
+                        + Data.DATA11;
+
+        public static final String SELECTION =
+                "(" + Data.DATA1 + " NOT NULL OR " +
+                        Data.DATA8 + " NOT NULL OR " +
+                        Data.DATA9 + " NOT NULL OR " +
+                        Data.DATA10 + " NOT NULL OR " +  // Phonetic name not empty
+                        Organization.TITLE + " NOT NULL)";
+
+        public static final String RAW_SQL =
+                "SELECT " + COLUMNS +
                 " FROM " + Tables.DATA +
                 " WHERE " + Data.RAW_CONTACT_ID + "=?" +
-                        " AND (" + Data.DATA1 + " NOT NULL OR " +
-                                Data.DATA8 + " NOT NULL OR " +
-                                Data.DATA9 + " NOT NULL OR " +
-                                Data.DATA10 + " NOT NULL OR " +  // Phonetic name not empty
-                                Organization.TITLE + " NOT NULL)";
+                        " AND " + SELECTION;
+
+        /**
+         * The name data rows of all raw contacts, grouped by raw contact. Raw contacts without
+         * any are returned as a single row with a null {@link #MIMETYPE}.
+         */
+        public static final String ALL_RAW_CONTACTS_SQL =
+                "SELECT " + COLUMNS + "," + Tables.RAW_CONTACTS + "." + RawContacts._ID +
+                " FROM " + Tables.RAW_CONTACTS +
+                " LEFT OUTER JOIN " + Tables.DATA + " ON (" +
+                        Data.RAW_CONTACT_ID + "=" + Tables.RAW_CONTACTS + "." + RawContacts._ID +
+                        " AND " + SELECTION + ")" +
+                " ORDER BY " + Tables.RAW_CONTACTS + "." + RawContacts._ID;
 
         public static final int MIMETYPE = 0;
         public static final int IS_PRIMARY = 1;
@@ -869,6 +944,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final int FULL_NAME_STYLE = 11;                   // data10
         public static final int ORGANIZATION_PHONETIC_NAME_STYLE = 11;  // data10
         public static final int PHONETIC_NAME_STYLE = 12;               // data11
+        public static final int RAW_CONTACT_ID = 13;  // Only in ALL_RAW_CONTACTS_SQL
     }
 
     public final static class NameLookupType {
@@ -972,7 +1048,6 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     private int mMinMatch;
 
     private String[] mSelectionArgs1 = new String[1];
-    private NameSplitter.Name mName = new NameSplitter.Name();
     private CharArrayBuffer mCharArrayBuffer = new CharArrayBuffer(128);
     private NameSplitter mNameSplitter;
 
@@ -1581,6 +1656,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
         createDirectoriesTable(db);
         createSearchIndexTable(db, false /* we build stats table later */);
+        createBucketCountsTables(db);
 
         db.execSQL("CREATE TABLE " + Tables.DATA_USAGE_STAT + "(" +
                 DataUsageStatColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -1684,6 +1760,19 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     + SearchIndexColumns.NAME + " TEXT, "
                     + SearchIndexColumns.TOKENS + " TEXT"
                     + ")");
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.SEARCH_INDEX_DATA);
+            db.execSQL("CREATE TABLE " + Tables.SEARCH_INDEX_DATA + " ("
+                    + SearchIndexDataColumns.DATA_ID + " INTEGER PRIMARY KEY REFERENCES data(_id),"
+                    + SearchIndexDataColumns.RAW_CONTACT_ID
+                            + " INTEGER REFERENCES raw_contacts(_id) NOT NULL,"
+                    + SearchIndexDataColumns.CONTENT + " TEXT, "
+                    + SearchIndexDataColumns.NAME + " TEXT, "
+                    + SearchIndexDataColumns.TOKENS + " TEXT"
+                    + ")");
+            db.execSQL("CREATE INDEX search_index_data_raw_contact_id_index ON "
+                    + Tables.SEARCH_INDEX_DATA + " ("
+                    + SearchIndexDataColumns.RAW_CONTACT_ID
+                    + ");");
             if (rebuildSqliteStats) {
                 updateSqliteStats(db);
             }
@@ -1693,6 +1782,39 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Creates the tables behind {@link BucketCountsManager}.  All contacts start out stale, so
+     * the counts are filled in by the next update.
+     */
+    private void createBucketCountsTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.BUCKET_CONTACTS);
+        db.execSQL("CREATE TABLE " + Tables.BUCKET_CONTACTS + " ("
+                + BucketContactsColumns.CONTACT_ID + " INTEGER PRIMARY KEY,"
+                + BucketContactsColumns.PHONEBOOK_BUCKET_PRIMARY + " INTEGER,"
+                + BucketContactsColumns.PHONEBOOK_LABEL_PRIMARY + " TEXT,"
+                + BucketContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + " INTEGER,"
+                + BucketContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + " TEXT,"
+                + BucketContactsColumns.IN_DEFAULT_DIRECTORY + " INTEGER NOT NULL DEFAULT 0"
+                + ");");
+
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.BUCKET_CONTACTS_STALE);
+        db.execSQL("CREATE TABLE " + Tables.BUCKET_CONTACTS_STALE + " ("
+                + BucketContactsColumns.CONTACT_ID + " INTEGER PRIMARY KEY"
+                + ");");
+
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.BUCKET_COUNTS);
+        db.execSQL("CREATE TABLE " + Tables.BUCKET_COUNTS + " ("
+                + BucketCountsColumns.SORT_KEY_TYPE + " INTEGER NOT NULL,"
+                + BucketCountsColumns.BUCKET + " INTEGER,"
+                + BucketCountsColumns.LABEL + " TEXT,"
+                + BucketCountsColumns.CONTACT_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                + BucketCountsColumns.DEFAULT_DIRECTORY_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                + ");");
+
+        db.execSQL("INSERT INTO " + Tables.BUCKET_CONTACTS_STALE
+                + " SELECT " + Contacts._ID + " FROM " + Tables.CONTACTS);
+    }
+
     private void createContactsTriggers(SQLiteDatabase db) {
 
         // Automatically delete Data rows when a raw contact is deleted.
@@ -1703,6 +1825,9 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 + "   DELETE FROM " + Tables.DATA
                 + "     WHERE " + Data.RAW_CONTACT_ID
                                 + "=OLD." + RawContacts._ID + ";"
+                + "   DELETE FROM " + Tables.SEARCH_INDEX_DATA
+                + "     WHERE " + SearchIndexDataColumns.RAW_CONTACT_ID
+                                + "=OLD." + RawContacts._ID + ";"
                 + "   DELETE FROM " + Tables.AGGREGATION_EXCEPTIONS
                 + "     WHERE " + AggregationExceptions.RAW_CONTACT_ID1
                                 + "=OLD." + RawContacts._ID
@@ -1815,6 +1940,77 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     + insertContactsWithAccountNoDefaultGroup
                     + insertContactsWithAccountDefaultGroup
                 + " END");
+
+        createBucketCountsTriggers(db);
+    }
+
+    /**
+     * Records in {@link Tables#BUCKET_CONTACTS_STALE} every contact whose address book index
+     * bucket or default directory membership may have changed.  Triggers catch the changes made
+     * by aggregation, visibility updates and locale changes alike.
+     */
+    private void createBucketCountsTriggers(SQLiteDatabase db) {
+        final String markStale = "   INSERT OR IGNORE INTO " + Tables.BUCKET_CONTACTS_STALE
+                + " VALUES (";
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + Tables.CONTACTS + "_bucket_inserted;");
+        db.execSQL("CREATE TRIGGER " + Tables.CONTACTS + "_bucket_inserted "
+                + "   AFTER INSERT ON " + Tables.CONTACTS
+                + " BEGIN "
+                + markStale + "NEW." + Contacts._ID + ");"
+                + " END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + Tables.CONTACTS + "_bucket_deleted;");
+        db.execSQL("CREATE TRIGGER " + Tables.CONTACTS + "_bucket_deleted "
+                + "   AFTER DELETE ON " + Tables.CONTACTS
+                + " BEGIN "
+                + markStale + "OLD." + Contacts._ID + ");"
+                + " END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + Tables.CONTACTS + "_bucket_updated;");
+        db.execSQL("CREATE TRIGGER " + Tables.CONTACTS + "_bucket_updated "
+                + "   AFTER UPDATE OF " + Contacts.NAME_RAW_CONTACT_ID
+                + "   ON " + Tables.CONTACTS
+                + "   WHEN OLD." + Contacts.NAME_RAW_CONTACT_ID
+                + "     IS NOT NEW." + Contacts.NAME_RAW_CONTACT_ID
+                + " BEGIN "
+                + markStale + "NEW." + Contacts._ID + ");"
+                + " END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + Tables.RAW_CONTACTS + "_bucket_updated;");
+        db.execSQL("CREATE TRIGGER " + Tables.RAW_CONTACTS + "_bucket_updated "
+                + "   AFTER UPDATE OF "
+                +       RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY + ", "
+                +       RawContactsColumns.PHONEBOOK_LABEL_PRIMARY + ", "
+                +       RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + ", "
+                +       RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE
+                + "   ON " + Tables.RAW_CONTACTS
+                + "   WHEN NEW." + RawContacts.CONTACT_ID + " IS NOT NULL"
+                + "     AND (" + changed(RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY)
+                + "       OR " + changed(RawContactsColumns.PHONEBOOK_LABEL_PRIMARY)
+                + "       OR " + changed(RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE)
+                + "       OR " + changed(RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE) + ")"
+                + " BEGIN "
+                + markStale + "NEW." + RawContacts.CONTACT_ID + ");"
+                + " END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + Tables.DEFAULT_DIRECTORY + "_bucket_inserted;");
+        db.execSQL("CREATE TRIGGER " + Tables.DEFAULT_DIRECTORY + "_bucket_inserted "
+                + "   AFTER INSERT ON " + Tables.DEFAULT_DIRECTORY
+                + " BEGIN "
+                + markStale + "NEW." + Contacts._ID + ");"
+                + " END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + Tables.DEFAULT_DIRECTORY + "_bucket_deleted;");
+        db.execSQL("CREATE TRIGGER " + Tables.DEFAULT_DIRECTORY + "_bucket_deleted "
+                + "   AFTER DELETE ON " + Tables.DEFAULT_DIRECTORY
+                + " BEGIN "
+                + markStale + "OLD." + Contacts._ID + ");"
+                + " END");
+    }
+
+    private static String changed(String column) {
+        return "OLD." + column + " IS NOT NEW." + column;
     }
 
     private void createContactsIndexes(SQLiteDatabase db, boolean rebuildSqliteStats) {
@@ -2675,6 +2871,20 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             oldVersion = 1701;
         }
 
+        if (isUpgradeRequired(oldVersion, newVersion, 1702)) {
+            // Adds the search_index_data table and the trigger that cleans it up.
+            upgradeViewsAndTriggers = true;
+            upgradeSearchIndex = true;
+            oldVersion = 1702;
+        }
+
+        if (isUpgradeRequired(oldVersion, newVersion, 1703)) {
+            // Adds the address book index bucket count tables and their triggers.
+            createBucketCountsTables(db);
+            upgradeViewsAndTriggers = true;
+            oldVersion = 1703;
+        }
+
         // We extracted "calls" and "voicemail_status" at this point, but we can't remove them here
         // yet, until CallLogDatabaseHelper moves the data.
 
@@ -2743,6 +2953,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     private void rebuildSearchIndex(SQLiteDatabase db, boolean rebuildSqliteStats) {
         createSearchIndexTable(db, rebuildSqliteStats);
         PropertyUtils.setProperty(db, SearchIndexManager.PROPERTY_SEARCH_INDEX_VERSION, "0");
+        PropertyUtils.setProperty(db,
+                SearchIndexManager.PROPERTY_SEARCH_INDEX_REBUILD_CURSOR, "-1");
     }
 
     /**
@@ -2821,18 +3033,105 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Regenerates sort keys for all contacts.
+     * Regenerates display names, sort keys and phonebook buckets for all raw contacts.
+     *
+     * Reads the name data rows of all raw contacts in a single pass, and derives the names of
+     * {@link #SORT_KEY_REBUILD_BATCH_SIZE} raw contacts at a time, on several threads if the
+     * batch is large enough, before writing them back with the same statement.
+     *
+     * The workers share the {@link NameSplitter}, which is immutable, but each has its own
+     * {@link ContactLocaleUtils}, since bucketing a name may transliterate it, and
+     * transliterators aren't thread-safe.
      */
-    private void rebuildSortKeys(SQLiteDatabase db) {
-        Cursor cursor = db.query(Tables.RAW_CONTACTS, new String[] {RawContacts._ID},
-                null, null, null, null, null);
+    @VisibleForTesting
+    void rebuildSortKeys(SQLiteDatabase db) {
+        if (mNameSplitter == null) {
+            createNameSplitter();
+        }
+        final NameSplitter nameSplitter = mNameSplitter;
+        final ContactLocaleUtils localeUtils = ContactLocaleUtils.getInstance();
+        // The locale utils of each worker thread, created by the first parallel batch.
+        final ContactLocaleUtils[] workerLocaleUtils = new ContactLocaleUtils[
+                getSortKeyRebuildThreads() - 1];
+        final SQLiteStatement rawContactDisplayNameUpdate =
+                compileRawContactDisplayNameUpdate(db);
+        final ArrayList<RawContactDisplayName> batch =
+                new ArrayList<>(SORT_KEY_REBUILD_BATCH_SIZE);
         try {
-            while (cursor.moveToNext()) {
-                long rawContactId = cursor.getLong(0);
-                updateRawContactDisplayName(db, rawContactId);
+            RawContactDisplayName current = null;
+            final Cursor c = db.rawQuery(RawContactNameQuery.ALL_RAW_CONTACTS_SQL, null);
+            try {
+                while (c.moveToNext()) {
+                    final long rawContactId = c.getLong(RawContactNameQuery.RAW_CONTACT_ID);
+                    if (current == null || current.rawContactId != rawContactId) {
+                        if (batch.size() == SORT_KEY_REBUILD_BATCH_SIZE) {
+                            updateRawContactDisplayNames(rawContactDisplayNameUpdate, batch,
+                                    nameSplitter, localeUtils, workerLocaleUtils);
+                        }
+                        current = new RawContactDisplayName(rawContactId);
+                        batch.add(current);
+                    }
+                    if (!c.isNull(RawContactNameQuery.MIMETYPE)) {
+                        addDisplayNameCandidate(db, c, current);
+                    }
+                }
+            } finally {
+                c.close();
             }
+            updateRawContactDisplayNames(rawContactDisplayNameUpdate, batch, nameSplitter,
+                    localeUtils, workerLocaleUtils);
         } finally {
-            cursor.close();
+            rawContactDisplayNameUpdate.close();
+        }
+    }
+
+    private static int getSortKeyRebuildThreads() {
+        return Math.min(Runtime.getRuntime().availableProcessors(), MAX_SORT_KEY_REBUILD_THREADS);
+    }
+
+    /**
+     * Derives the names of {@code batch}, then writes them and clears the batch.
+     *
+     * @param localeUtils The locale utils of the calling thread.
+     * @param workerLocaleUtils The locale utils of each worker thread, filled in as needed.
+     */
+    private static void updateRawContactDisplayNames(SQLiteStatement rawContactDisplayNameUpdate,
+            List<RawContactDisplayName> batch, NameSplitter nameSplitter,
+            ContactLocaleUtils localeUtils, ContactLocaleUtils[] workerLocaleUtils) {
+        final int threads = workerLocaleUtils.length + 1;
+        if (threads < 2 || batch.size() < MIN_PARALLEL_SORT_KEY_REBUILD_SIZE) {
+            computeDisplayNames(batch, nameSplitter, localeUtils);
+        } else {
+            // Forked from a thread outside of any pool, the tasks run on the common pool. The
+            // last chunk is computed on this thread.
+            final int chunkSize = (batch.size() + threads - 1) / threads;
+            final List<ForkJoinTask<?>> tasks = new ArrayList<>(threads);
+            int from = 0;
+            for (int worker = 0; from + chunkSize < batch.size(); worker++, from += chunkSize) {
+                final List<RawContactDisplayName> chunk = batch.subList(from, from + chunkSize);
+                if (workerLocaleUtils[worker] == null) {
+                    workerLocaleUtils[worker] = localeUtils.newInstanceForThread();
+                }
+                final ContactLocaleUtils chunkLocaleUtils = workerLocaleUtils[worker];
+                tasks.add(ForkJoinTask.adapt(
+                        () -> computeDisplayNames(chunk, nameSplitter, chunkLocaleUtils)).fork());
+            }
+            computeDisplayNames(batch.subList(from, batch.size()), nameSplitter, localeUtils);
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+
+        for (RawContactDisplayName displayName : batch) {
+            executeRawContactDisplayNameUpdate(rawContactDisplayNameUpdate, displayName);
+        }
+        batch.clear();
+    }
+
+    private static void computeDisplayNames(List<RawContactDisplayName> displayNames,
+            NameSplitter nameSplitter, ContactLocaleUtils localeUtils) {
+        for (RawContactDisplayName displayName : displayNames) {
+            computeDisplayName(displayName, nameSplitter, localeUtils);
         }
     }
 
@@ -3885,6 +4184,10 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DELETE FROM " + Tables.AGGREGATION_EXCEPTIONS + ";");
         db.execSQL("DELETE FROM " + Tables.DIRECTORIES + ";");
         db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX + ";");
+        db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX_DATA + ";");
+        db.execSQL("DELETE FROM " + Tables.BUCKET_CONTACTS + ";");
+        db.execSQL("DELETE FROM " + Tables.BUCKET_CONTACTS_STALE + ";");
+        db.execSQL("DELETE FROM " + Tables.BUCKET_COUNTS + ";");
         db.execSQL("DELETE FROM " + Tables.DELETED_CONTACTS + ";");
         db.execSQL("DELETE FROM " + Tables.MIMETYPES + ";");
         db.execSQL("DELETE FROM " + Tables.PACKAGES + ";");
@@ -3900,13 +4203,21 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public NameSplitter createNameSplitter(Locale locale) {
-        mNameSplitter = new NameSplitter(
+        mNameSplitter = newNameSplitter(locale);
+        return mNameSplitter;
+    }
+
+    /**
+     * Returns a new name splitter for the given locale, without making it the default one of
+     * this helper, so it can be called from any thread.
+     */
+    public NameSplitter newNameSplitter(Locale locale) {
+        return new NameSplitter(
                 mContext.getString(com.android.internal.R.string.common_name_prefixes),
                 mContext.getString(com.android.internal.R.string.common_last_name_prefixes),
                 mContext.getString(com.android.internal.R.string.common_name_suffixes),
                 mContext.getString(com.android.internal.R.string.common_name_conjunctions),
                 locale);
-        return mNameSplitter;
     }
 
     /**
@@ -4798,6 +5109,33 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * The display name of a raw contact: the best name data row found so far, then the display
+     * names, sort keys and phonebook buckets derived from it.
+     */
+    private static final class RawContactDisplayName {
+        final long rawContactId;
+
+        int displayNameSource = DisplayNameSources.UNDEFINED;
+        NameSplitter.Name name;
+        String displayName;
+        String phoneticName;
+        int phoneticNameStyle = PhoneticNameStyle.UNDEFINED;
+
+        String displayNamePrimary;
+        String displayNameAlternative;
+        String sortKeyPrimary;
+        String sortKeyAlternative;
+        int phonebookBucketPrimary;
+        String phonebookLabelPrimary;
+        int phonebookBucketAlternative;
+        String phonebookLabelAlternative;
+
+        RawContactDisplayName(long rawContactId) {
+            this.rawContactId = rawContactId;
+        }
+    }
+
     /**
      * Updates a raw contact display name based on data rows, e.g. structured name,
      * organization, email etc.
@@ -4807,112 +5145,125 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             createNameSplitter();
         }
 
-        int bestDisplayNameSource = DisplayNameSources.UNDEFINED;
-        NameSplitter.Name bestName = null;
-        String bestDisplayName = null;
-        String bestPhoneticName = null;
-        int bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
-
+        final RawContactDisplayName displayName = new RawContactDisplayName(rawContactId);
         mSelectionArgs1[0] = String.valueOf(rawContactId);
         Cursor c = db.rawQuery(RawContactNameQuery.RAW_SQL, mSelectionArgs1);
         try {
             while (c.moveToNext()) {
-                int mimeType = c.getInt(RawContactNameQuery.MIMETYPE);
-                int source = getDisplayNameSourceForMimeTypeId(mimeType);
-
-                if (source == DisplayNameSources.STRUCTURED_NAME) {
-                    final String given = c.getString(RawContactNameQuery.GIVEN_NAME);
-                    final String middle = c.getString(RawContactNameQuery.MIDDLE_NAME);
-                    final String family = c.getString(RawContactNameQuery.FAMILY_NAME);
-                    final String suffix = c.getString(RawContactNameQuery.SUFFIX);
-                    final String prefix = c.getString(RawContactNameQuery.PREFIX);
-                    if (TextUtils.isEmpty(given) && TextUtils.isEmpty(middle)
-                            && TextUtils.isEmpty(family) && TextUtils.isEmpty(suffix)
-                            && TextUtils.isEmpty(prefix)) {
-                        // Every non-phonetic name component is empty. Therefore, lets lower the
-                        // source score to STRUCTURED_PHONETIC_NAME.
-                        source = DisplayNameSources.STRUCTURED_PHONETIC_NAME;
-                    }
-                }
+                addDisplayNameCandidate(db, c, displayName);
+            }
+        } finally {
+            c.close();
+        }
 
-                if (source < bestDisplayNameSource || source == DisplayNameSources.UNDEFINED) {
-                    continue;
-                }
+        computeDisplayName(displayName, mNameSplitter, ContactLocaleUtils.getInstance());
 
-                if (source == bestDisplayNameSource
-                        && c.getInt(RawContactNameQuery.IS_PRIMARY) == 0) {
-                    continue;
-                }
+        final SQLiteStatement rawContactDisplayNameUpdate =
+                compileRawContactDisplayNameUpdate(db);
+        try {
+            executeRawContactDisplayNameUpdate(rawContactDisplayNameUpdate, displayName);
+        } finally {
+            rawContactDisplayNameUpdate.close();
+        }
+    }
 
-                if (mimeType == getMimeTypeIdForStructuredName(db)) {
-                    NameSplitter.Name name;
-                    if (bestName != null) {
-                        name = new NameSplitter.Name();
-                    } else {
-                        name = mName;
-                        name.clear();
-                    }
-                    name.prefix = c.getString(RawContactNameQuery.PREFIX);
-                    name.givenNames = c.getString(RawContactNameQuery.GIVEN_NAME);
-                    name.middleName = c.getString(RawContactNameQuery.MIDDLE_NAME);
-                    name.familyName = c.getString(RawContactNameQuery.FAMILY_NAME);
-                    name.suffix = c.getString(RawContactNameQuery.SUFFIX);
-                    name.fullNameStyle = c.isNull(RawContactNameQuery.FULL_NAME_STYLE)
-                            ? FullNameStyle.UNDEFINED
-                            : c.getInt(RawContactNameQuery.FULL_NAME_STYLE);
-                    name.phoneticFamilyName = c.getString(RawContactNameQuery.PHONETIC_FAMILY_NAME);
-                    name.phoneticMiddleName = c.getString(RawContactNameQuery.PHONETIC_MIDDLE_NAME);
-                    name.phoneticGivenName = c.getString(RawContactNameQuery.PHONETIC_GIVEN_NAME);
-                    name.phoneticNameStyle = c.isNull(RawContactNameQuery.PHONETIC_NAME_STYLE)
-                            ? PhoneticNameStyle.UNDEFINED
-                            : c.getInt(RawContactNameQuery.PHONETIC_NAME_STYLE);
-                    if (!name.isEmpty()) {
-                        bestDisplayNameSource = source;
-                        bestName = name;
-                    }
-                } else if (mimeType == getMimeTypeIdForOrganization(db)) {
-                    mCharArrayBuffer.sizeCopied = 0;
-                    c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
-                    if (mCharArrayBuffer.sizeCopied != 0) {
-                        bestDisplayNameSource = source;
-                        bestDisplayName = new String(mCharArrayBuffer.data, 0,
-                                mCharArrayBuffer.sizeCopied);
-                        bestPhoneticName = c.getString(
-                                RawContactNameQuery.ORGANIZATION_PHONETIC_NAME);
-                        bestPhoneticNameStyle =
-                                c.isNull(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE)
-                                   ? PhoneticNameStyle.UNDEFINED
-                                   : c.getInt(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE);
-                    } else {
-                        c.copyStringToBuffer(RawContactNameQuery.TITLE, mCharArrayBuffer);
-                        if (mCharArrayBuffer.sizeCopied != 0) {
-                            bestDisplayNameSource = source;
-                            bestDisplayName = new String(mCharArrayBuffer.data, 0,
-                                    mCharArrayBuffer.sizeCopied);
-                            bestPhoneticName = null;
-                            bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
-                        }
-                    }
-                } else {
-                    // Display name is at DATA1 in all other types.
-                    // This is ensured in the constructor.
-
-                    mCharArrayBuffer.sizeCopied = 0;
-                    c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
-                    if (mCharArrayBuffer.sizeCopied != 0) {
-                        bestDisplayNameSource = source;
-                        bestDisplayName = new String(mCharArrayBuffer.data, 0,
-                                mCharArrayBuffer.sizeCopied);
-                        bestPhoneticName = null;
-                        bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
-                    }
-                }
+    /**
+     * Keeps the name data row at the current position of {@code c}, a {@link RawContactNameQuery}
+     * cursor, if it's a better source for the display name than the one found so far.
+     */
+    private void addDisplayNameCandidate(SQLiteDatabase db, Cursor c, RawContactDisplayName d) {
+        int mimeType = c.getInt(RawContactNameQuery.MIMETYPE);
+        int source = getDisplayNameSourceForMimeTypeId(mimeType);
+
+        if (source == DisplayNameSources.STRUCTURED_NAME) {
+            final String given = c.getString(RawContactNameQuery.GIVEN_NAME);
+            final String middle = c.getString(RawContactNameQuery.MIDDLE_NAME);
+            final String family = c.getString(RawContactNameQuery.FAMILY_NAME);
+            final String suffix = c.getString(RawContactNameQuery.SUFFIX);
+            final String prefix = c.getString(RawContactNameQuery.PREFIX);
+            if (TextUtils.isEmpty(given) && TextUtils.isEmpty(middle)
+                    && TextUtils.isEmpty(family) && TextUtils.isEmpty(suffix)
+                    && TextUtils.isEmpty(prefix)) {
+                // Every non-phonetic name component is empty. Therefore, lets lower the
+                // source score to STRUCTURED_PHONETIC_NAME.
+                source = DisplayNameSources.STRUCTURED_PHONETIC_NAME;
             }
+        }
 
-        } finally {
-            c.close();
+        if (source < d.displayNameSource || source == DisplayNameSources.UNDEFINED) {
+            return;
+        }
+
+        if (source == d.displayNameSource
+                && c.getInt(RawContactNameQuery.IS_PRIMARY) == 0) {
+            return;
         }
 
+        if (mimeType == getMimeTypeIdForStructuredName(db)) {
+            final NameSplitter.Name name = new NameSplitter.Name();
+            name.prefix = c.getString(RawContactNameQuery.PREFIX);
+            name.givenNames = c.getString(RawContactNameQuery.GIVEN_NAME);
+            name.middleName = c.getString(RawContactNameQuery.MIDDLE_NAME);
+            name.familyName = c.getString(RawContactNameQuery.FAMILY_NAME);
+            name.suffix = c.getString(RawContactNameQuery.SUFFIX);
+            name.fullNameStyle = c.isNull(RawContactNameQuery.FULL_NAME_STYLE)
+                    ? FullNameStyle.UNDEFINED
+                    : c.getInt(RawContactNameQuery.FULL_NAME_STYLE);
+            name.phoneticFamilyName = c.getString(RawContactNameQuery.PHONETIC_FAMILY_NAME);
+            name.phoneticMiddleName = c.getString(RawContactNameQuery.PHONETIC_MIDDLE_NAME);
+            name.phoneticGivenName = c.getString(RawContactNameQuery.PHONETIC_GIVEN_NAME);
+            name.phoneticNameStyle = c.isNull(RawContactNameQuery.PHONETIC_NAME_STYLE)
+                    ? PhoneticNameStyle.UNDEFINED
+                    : c.getInt(RawContactNameQuery.PHONETIC_NAME_STYLE);
+            if (!name.isEmpty()) {
+                d.displayNameSource = source;
+                d.name = name;
+            }
+        } else if (mimeType == getMimeTypeIdForOrganization(db)) {
+            mCharArrayBuffer.sizeCopied = 0;
+            c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
+            if (mCharArrayBuffer.sizeCopied != 0) {
+                d.displayNameSource = source;
+                d.displayName = new String(mCharArrayBuffer.data, 0,
+                        mCharArrayBuffer.sizeCopied);
+                d.phoneticName = c.getString(
+                        RawContactNameQuery.ORGANIZATION_PHONETIC_NAME);
+                d.phoneticNameStyle =
+                        c.isNull(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE)
+                           ? PhoneticNameStyle.UNDEFINED
+                           : c.getInt(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE);
+            } else {
+                c.copyStringToBuffer(RawContactNameQuery.TITLE, mCharArrayBuffer);
+                if (mCharArrayBuffer.sizeCopied != 0) {
+                    d.displayNameSource = source;
+                    d.displayName = new String(mCharArrayBuffer.data, 0,
+                            mCharArrayBuffer.sizeCopied);
+                    d.phoneticName = null;
+                    d.phoneticNameStyle = PhoneticNameStyle.UNDEFINED;
+                }
+            }
+        } else {
+            // Display name is at DATA1 in all other types.
+            // This is ensured in the constructor.
+
+            mCharArrayBuffer.sizeCopied = 0;
+            c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
+            if (mCharArrayBuffer.sizeCopied != 0) {
+                d.displayNameSource = source;
+                d.displayName = new String(mCharArrayBuffer.data, 0,
+                        mCharArrayBuffer.sizeCopied);
+                d.phoneticName = null;
+                d.phoneticNameStyle = PhoneticNameStyle.UNDEFINED;
+            }
+        }
+    }
+
+    /**
+     * Derives the display names, sort keys and phonebook buckets of {@code d} from its best name
+     * data row. Doesn't access the database, so it may run on any thread.
+     */
+    private static void computeDisplayName(RawContactDisplayName d, NameSplitter nameSplitter,
+            ContactLocaleUtils localeUtils) {
         String displayNamePrimary;
         String displayNameAlternative;
         String sortNamePrimary;
@@ -4921,39 +5272,39 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         String sortKeyAlternative = null;
         int displayNameStyle = FullNameStyle.UNDEFINED;
 
-        if (bestDisplayNameSource == DisplayNameSources.STRUCTURED_NAME
-                || bestDisplayNameSource == DisplayNameSources.STRUCTURED_PHONETIC_NAME) {
-            displayNameStyle = bestName.fullNameStyle;
+        if (d.displayNameSource == DisplayNameSources.STRUCTURED_NAME
+                || d.displayNameSource == DisplayNameSources.STRUCTURED_PHONETIC_NAME) {
+            displayNameStyle = d.name.fullNameStyle;
             if (displayNameStyle == FullNameStyle.CJK
                     || displayNameStyle == FullNameStyle.UNDEFINED) {
-                displayNameStyle = mNameSplitter.getAdjustedFullNameStyle(displayNameStyle);
-                bestName.fullNameStyle = displayNameStyle;
+                displayNameStyle = nameSplitter.getAdjustedFullNameStyle(displayNameStyle);
+                d.name.fullNameStyle = displayNameStyle;
             }
 
-            displayNamePrimary = mNameSplitter.join(bestName, true, true);
-            displayNameAlternative = mNameSplitter.join(bestName, false, true);
+            displayNamePrimary = nameSplitter.join(d.name, true, true);
+            displayNameAlternative = nameSplitter.join(d.name, false, true);
 
-            if (TextUtils.isEmpty(bestName.prefix)) {
+            if (TextUtils.isEmpty(d.name.prefix)) {
                 sortNamePrimary = displayNamePrimary;
                 sortNameAlternative = displayNameAlternative;
             } else {
-                sortNamePrimary = mNameSplitter.join(bestName, true, false);
-                sortNameAlternative = mNameSplitter.join(bestName, false, false);
+                sortNamePrimary = nameSplitter.join(d.name, true, false);
+                sortNameAlternative = nameSplitter.join(d.name, false, false);
             }
 
-            bestPhoneticName = mNameSplitter.joinPhoneticName(bestName);
-            bestPhoneticNameStyle = bestName.phoneticNameStyle;
+            d.phoneticName = nameSplitter.joinPhoneticName(d.name);
+            d.phoneticNameStyle = d.name.phoneticNameStyle;
         } else {
-            displayNamePrimary = displayNameAlternative = bestDisplayName;
-            sortNamePrimary = sortNameAlternative = bestDisplayName;
+            displayNamePrimary = displayNameAlternative = d.displayName;
+            sortNamePrimary = sortNameAlternative = d.displayName;
         }
 
-        if (bestPhoneticName != null) {
+        if (d.phoneticName != null) {
             if (displayNamePrimary == null) {
-                displayNamePrimary = bestPhoneticName;
+                displayNamePrimary = d.phoneticName;
             }
             if (displayNameAlternative == null) {
-                displayNameAlternative = bestPhoneticName;
+                displayNameAlternative = d.phoneticName;
             }
             /* Phonetic names disregard name order so displayNamePrimary and displayNameAlternative
                are the same.
@@ -4961,22 +5312,22 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                of contacts in the list. Otherwise, the deduced primary name is used.
             */
             sortKeyPrimary = sortKeyAlternative = sortNamePrimary;
-            if (bestPhoneticNameStyle == PhoneticNameStyle.UNDEFINED) {
-                bestPhoneticNameStyle = mNameSplitter.guessPhoneticNameStyle(bestPhoneticName);
+            if (d.phoneticNameStyle == PhoneticNameStyle.UNDEFINED) {
+                d.phoneticNameStyle = nameSplitter.guessPhoneticNameStyle(d.phoneticName);
             }
-            if (bestPhoneticNameStyle == PhoneticNameStyle.JAPANESE) {
-                sortKeyPrimary = sortKeyAlternative = bestPhoneticName;
+            if (d.phoneticNameStyle == PhoneticNameStyle.JAPANESE) {
+                sortKeyPrimary = sortKeyAlternative = d.phoneticName;
             }
         } else {
-            bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
+            d.phoneticNameStyle = PhoneticNameStyle.UNDEFINED;
             if (displayNameStyle == FullNameStyle.UNDEFINED) {
-                displayNameStyle = mNameSplitter.guessFullNameStyle(bestDisplayName);
+                displayNameStyle = nameSplitter.guessFullNameStyle(d.displayName);
                 if (displayNameStyle == FullNameStyle.UNDEFINED
                         || displayNameStyle == FullNameStyle.CJK) {
-                    displayNameStyle = mNameSplitter.getAdjustedNameStyleBasedOnPhoneticNameStyle(
-                            displayNameStyle, bestPhoneticNameStyle);
+                    displayNameStyle = nameSplitter.getAdjustedNameStyleBasedOnPhoneticNameStyle(
+                            displayNameStyle, d.phoneticNameStyle);
                 }
-                displayNameStyle = mNameSplitter.getAdjustedFullNameStyle(displayNameStyle);
+                displayNameStyle = nameSplitter.getAdjustedFullNameStyle(displayNameStyle);
             }
             if (displayNameStyle == FullNameStyle.CHINESE ||
                     displayNameStyle == FullNameStyle.CJK) {
@@ -4989,18 +5340,24 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             sortKeyAlternative = sortNameAlternative;
         }
 
-        final ContactLocaleUtils localeUtils = ContactLocaleUtils.getInstance();
-        int phonebookBucketPrimary = TextUtils.isEmpty(sortKeyPrimary)
+        d.displayNamePrimary = displayNamePrimary;
+        d.displayNameAlternative = displayNameAlternative;
+        d.sortKeyPrimary = sortKeyPrimary;
+        d.sortKeyAlternative = sortKeyAlternative;
+
+        d.phonebookBucketPrimary = TextUtils.isEmpty(sortKeyPrimary)
                 ? localeUtils.getNumberBucketIndex()
                 : localeUtils.getBucketIndex(sortKeyPrimary);
-        String phonebookLabelPrimary = localeUtils.getBucketLabel(phonebookBucketPrimary);
+        d.phonebookLabelPrimary = localeUtils.getBucketLabel(d.phonebookBucketPrimary);
 
-        int phonebookBucketAlternative = TextUtils.isEmpty(sortKeyAlternative)
+        d.phonebookBucketAlternative = TextUtils.isEmpty(sortKeyAlternative)
                 ? localeUtils.getNumberBucketIndex()
                 : localeUtils.getBucketIndex(sortKeyAlternative);
-        String phonebookLabelAlternative = localeUtils.getBucketLabel(phonebookBucketAlternative);
+        d.phonebookLabelAlternative = localeUtils.getBucketLabel(d.phonebookBucketAlternative);
+    }
 
-        final SQLiteStatement rawContactDisplayNameUpdate = db.compileStatement(
+    private static SQLiteStatement compileRawContactDisplayNameUpdate(SQLiteDatabase db) {
+        return db.compileStatement(
                     "UPDATE " + Tables.RAW_CONTACTS +
                     " SET " +
                             RawContacts.DISPLAY_NAME_SOURCE + "=?," +
@@ -5015,19 +5372,22 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                             RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + "=?," +
                             RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + "=?" +
                     " WHERE " + RawContacts._ID + "=?");
+    }
 
-        rawContactDisplayNameUpdate.bindLong(1, bestDisplayNameSource);
-        bindString(rawContactDisplayNameUpdate, 2, displayNamePrimary);
-        bindString(rawContactDisplayNameUpdate, 3, displayNameAlternative);
-        bindString(rawContactDisplayNameUpdate, 4, bestPhoneticName);
-        rawContactDisplayNameUpdate.bindLong(5, bestPhoneticNameStyle);
-        bindString(rawContactDisplayNameUpdate, 6, sortKeyPrimary);
-        bindString(rawContactDisplayNameUpdate, 7, phonebookLabelPrimary);
-        rawContactDisplayNameUpdate.bindLong(8, phonebookBucketPrimary);
-        bindString(rawContactDisplayNameUpdate, 9, sortKeyAlternative);
-        bindString(rawContactDisplayNameUpdate, 10, phonebookLabelAlternative);
-        rawContactDisplayNameUpdate.bindLong(11, phonebookBucketAlternative);
-        rawContactDisplayNameUpdate.bindLong(12, rawContactId);
+    private static void executeRawContactDisplayNameUpdate(
+            SQLiteStatement rawContactDisplayNameUpdate, RawContactDisplayName d) {
+        rawContactDisplayNameUpdate.bindLong(1, d.displayNameSource);
+        bindString(rawContactDisplayNameUpdate, 2, d.displayNamePrimary);
+        bindString(rawContactDisplayNameUpdate, 3, d.displayNameAlternative);
+        bindString(rawContactDisplayNameUpdate, 4, d.phoneticName);
+        rawContactDisplayNameUpdate.bindLong(5, d.phoneticNameStyle);
+        bindString(rawContactDisplayNameUpdate, 6, d.sortKeyPrimary);
+        bindString(rawContactDisplayNameUpdate, 7, d.phonebookLabelPrimary);
+        rawContactDisplayNameUpdate.bindLong(8, d.phonebookBucketPrimary);
+        bindString(rawContactDisplayNameUpdate, 9, d.sortKeyAlternative);
+        bindString(rawContactDisplayNameUpdate, 10, d.phonebookLabelAlternative);
+        rawContactDisplayNameUpdate.bindLong(11, d.phonebookBucketAlternative);
+        rawContactDisplayNameUpdate.bindLong(12, d.rawContactId);
         rawContactDisplayNameUpdate.execute();
     }
 
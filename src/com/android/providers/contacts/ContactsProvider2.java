@@ -63,8 +63,6 @@ import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.AsyncTask;
@@ -134,6 +132,7 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.LongArray;
 import android.util.SparseArray;
 
 import com.android.common.content.ProjectionMap;
@@ -268,6 +267,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private static final int BACKGROUND_TASK_CLEANUP_DANGLING_CONTACTS = 13;
     @VisibleForTesting
     protected static final int BACKGROUND_TASK_MIGRATE_PHONE_ACCOUNT_HANDLES = 14;
+    private static final int BACKGROUND_TASK_UPDATE_BUCKET_COUNTS = 15;
+    private static final int BACKGROUND_TASK_VERIFY_BUCKET_COUNTS = 16;
+
+    // Background task lanes, besides ContactsTaskScheduler.DEFAULT_LANE.
+    private static final String BACKGROUND_LANE_DIRECTORIES = "directories";
+    private static final String BACKGROUND_LANE_PHOTOS = "photos";
 
     protected static final int STATUS_NORMAL = 0;
     protected static final int STATUS_UPGRADING = 1;
@@ -1499,6 +1504,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private LegacyApiSupport mLegacyApiSupport;
     private GlobalSearchSupport mGlobalSearchSupport;
     private SearchIndexManager mSearchIndexManager;
+    private BucketCountsManager mBucketCountsManager;
 
     private int mProviderStatus = STATUS_NORMAL;
     private boolean mProviderStatusUpdateNeeded;
@@ -1527,6 +1533,45 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private FastScrollingIndexCache mFastScrollingIndexCache;
 
+    /**
+     * ID of the account the query running on this thread is restricted to, or
+     * {@link FastScrollingIndexCache#ALL_ACCOUNTS}.  Fast scrolling index cache entries are
+     * tagged with it.
+     */
+    private final ThreadLocal<Long> mQueryAccountId = new ThreadLocal<>();
+
+    /**
+     * Above this number of raw contacts changed in a transaction, don't bother finding out which
+     * accounts the changes could affect; just invalidate the whole fast scrolling index cache.
+     */
+    private static final int MAX_RAW_CONTACTS_FOR_ACCOUNT_INVALIDATION = 500;
+
+    /**
+     * Above this number of raw contacts changed in a transaction, don't bother finding out which
+     * contacts the changes could affect; just invalidate the whole phone lookup cache.
+     */
+    private static final int MAX_RAW_CONTACTS_FOR_PHONE_LOOKUP_INVALIDATION = 500;
+
+    /**
+     * Maximum number of missing photo file IDs whose references are cleared with one set of
+     * statements.
+     */
+    private static final int PHOTO_CLEANUP_BATCH_SIZE = 500;
+
+    /**
+     * Maximum size, in bytes, of a photo written through {@link #openAssetFile}.  Larger photos
+     * are rejected rather than read into memory.
+     */
+    private static final int MAX_PHOTO_INPUT_BYTES = 20 * 1024 * 1024;
+
+    private final PhoneLookupCache mPhoneLookupCache = new PhoneLookupCache();
+
+    private final LookupKeyCache mLookupKeyCache = new LookupKeyCache();
+
+    /** Processes the photos written through {@link #openAssetFile}. */
+    private final PhotoProcessingExecutor mPhotoProcessingExecutor =
+            new PhotoProcessingExecutor();
+
     // Stats about FastScrollingIndex.
     private int mFastScrollingIndexCacheRequestCount;
     private int mFastScrollingIndexCacheMissCount;
@@ -1637,8 +1682,22 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mTaskScheduler = new ContactsTaskScheduler(getClass().getSimpleName()) {
             @Override
             public void onPerformTask(int taskId, Object arg) {
+                if (!DEFAULT_LANE.equals(getLane(taskId))) {
+                    // Tasks in the other lanes must not overtake BACKGROUND_TASK_INITIALIZE.
+                    waitForAccess(mReadAccessLatch);
+                }
                 performBackgroundTask(taskId, arg);
             }
+
+            @Override
+            protected String getLane(int taskId) {
+                return getBackgroundTaskLane(taskId);
+            }
+
+            @Override
+            protected int getPriority(int taskId) {
+                return getBackgroundTaskPriority(taskId);
+            }
         };
 
         // Set up the sub-provider for handling profiles.
@@ -1665,6 +1724,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         scheduleBackgroundTask(BACKGROUND_TASK_CLEANUP_PHOTOS);
         scheduleBackgroundTask(BACKGROUND_TASK_CLEAN_DELETE_LOG);
         scheduleBackgroundTask(BACKGROUND_TASK_CLEANUP_DANGLING_CONTACTS);
+        scheduleBackgroundTask(BACKGROUND_TASK_VERIFY_BUCKET_COUNTS);
 
         ContactsPackageMonitor.start(getContext());
 
@@ -1714,6 +1774,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 createPhotoPriorityResolver(context), mNameSplitter);
         mProfileAggregator.setEnabled(ContactsProperties.aggregate_contacts().orElse(true));
         mSearchIndexManager = new SearchIndexManager(this);
+        mBucketCountsManager = new BucketCountsManager();
         mContactsPhotoStore = new PhotoStore(getContext().getFilesDir(), mContactsHelper);
         mProfilePhotoStore =
                 new PhotoStore(new File(getContext().getFilesDir(), "profile"), mProfileHelper);
@@ -1761,6 +1822,40 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 new DataRowHandlerForIdentity(context, dbHelper, contactAggregator));
     }
 
+    /**
+     * Creates a private set of the data row handlers that contribute to the search index.
+     * Handlers keep per-instance scratch state, so a thread that tokenizes data rows
+     * concurrently with the provider's own handlers needs its own instances.
+     */
+    /* package */ ArrayMap<String, DataRowHandler> createSearchIndexDataRowHandlers() {
+        final Context context = getContext();
+        final NameSplitter nameSplitter =
+                mContactsHelper.newNameSplitter(mCurrentLocales.getPrimaryLocale());
+        // Name lookup keys are transliterated, so each worker needs its own locale utils.
+        final ContactLocaleUtils localeUtils =
+                ContactLocaleUtils.getInstance().newInstanceForThread();
+        final ArrayMap<String, DataRowHandler> handlerMap = new ArrayMap<>();
+        handlerMap.put(Email.CONTENT_ITEM_TYPE,
+                new DataRowHandlerForEmail(context, mContactsHelper, mContactAggregator));
+        handlerMap.put(Im.CONTENT_ITEM_TYPE,
+                new DataRowHandlerForIm(context, mContactsHelper, mContactAggregator));
+        handlerMap.put(Organization.CONTENT_ITEM_TYPE,
+                new DataRowHandlerForOrganization(context, mContactsHelper, mContactAggregator));
+        handlerMap.put(Phone.CONTENT_ITEM_TYPE,
+                new DataRowHandlerForPhoneNumber(context, mContactsHelper, mContactAggregator));
+        handlerMap.put(Nickname.CONTENT_ITEM_TYPE,
+                new DataRowHandlerForNickname(context, mContactsHelper, mContactAggregator));
+        handlerMap.put(StructuredName.CONTENT_ITEM_TYPE,
+                new DataRowHandlerForStructuredName(context, mContactsHelper, mContactAggregator,
+                        nameSplitter, new StructuredNameLookupBuilder(nameSplitter, localeUtils)));
+        handlerMap.put(StructuredPostal.CONTENT_ITEM_TYPE,
+                new DataRowHandlerForStructuredPostal(context, mContactsHelper, mContactAggregator,
+                        new PostalSplitter(mCurrentLocales.getPrimaryLocale())));
+        handlerMap.put(Note.CONTENT_ITEM_TYPE,
+                new DataRowHandlerForNote(context, mContactsHelper, mContactAggregator));
+        return handlerMap;
+    }
+
     @VisibleForTesting
     PhotoPriorityResolver createPhotoPriorityResolver(Context context) {
         return new PhotoPriorityResolver(context);
@@ -1781,6 +1876,41 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mTaskScheduler.scheduleTask(task, arg);
     }
 
+    /**
+     * Tasks that may run concurrently with the database upgrade and locale tasks get their own
+     * lanes, so that e.g. a slow directory rescan doesn't hold up photo cleanup.
+     *
+     * Account updates stay in the default lane: they delete the raw contacts of removed
+     * accounts and update the aggregate data and search index of the contacts they belonged to,
+     * which must not interleave with the locale change, the aggregation upgrade or the search
+     * index rebuild walking over all raw contacts.
+     */
+    private static String getBackgroundTaskLane(int task) {
+        switch (task) {
+            case BACKGROUND_TASK_RESCAN_DIRECTORY:
+                return BACKGROUND_LANE_DIRECTORIES;
+            case BACKGROUND_TASK_CLEANUP_PHOTOS:
+                return BACKGROUND_LANE_PHOTOS;
+            default:
+                return ContactsTaskScheduler.DEFAULT_LANE;
+        }
+    }
+
+    /**
+     * Housekeeping tasks yield to the tasks that the provider status depends on.
+     */
+    private static int getBackgroundTaskPriority(int task) {
+        switch (task) {
+            case BACKGROUND_TASK_CLEAN_DELETE_LOG:
+            case BACKGROUND_TASK_CLEANUP_DANGLING_CONTACTS:
+            case BACKGROUND_TASK_UPDATE_BUCKET_COUNTS:
+            case BACKGROUND_TASK_VERIFY_BUCKET_COUNTS:
+                return ContactsTaskScheduler.PRIORITY_LOW;
+            default:
+                return ContactsTaskScheduler.PRIORITY_DEFAULT;
+        }
+    }
+
     protected void performBackgroundTask(int task, Object arg) {
         // Make sure we operate on the contacts db by default.
         switchToContactMode();
@@ -1818,7 +1948,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 switchToContactMode();
 
                 updateContactsAccountCount(accounts);
-                updateDirectoriesInBackground(accountsChanged);
+                if (accountsChanged) {
+                    mPhoneLookupCache.invalidateAll();
+                    mLookupKeyCache.invalidateAll();
+                }
+                // Directory scans share a lane, as they must not run concurrently.
+                scheduleBackgroundTask(BACKGROUND_TASK_RESCAN_DIRECTORY, accountsChanged);
                 break;
             }
 
@@ -1849,17 +1984,21 @@ public class ContactsProvider2 extends AbstractContactsProvider
             }
 
             case BACKGROUND_TASK_RESCAN_DIRECTORY: {
-                updateDirectoriesInBackground(true);
+                updateDirectoriesInBackground(arg == null || (Boolean) arg);
                 break;
             }
 
             case BACKGROUND_TASK_UPDATE_LOCALE: {
                 updateLocaleInBackground();
+                mPhoneLookupCache.invalidateAll();
+                mLookupKeyCache.invalidateAll();
                 break;
             }
 
             case BACKGROUND_TASK_CHANGE_LOCALE: {
                 changeLocaleInBackground();
+                mPhoneLookupCache.invalidateAll();
+                mLookupKeyCache.invalidateAll();
                 break;
             }
 
@@ -1867,6 +2006,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 if (isAggregationUpgradeNeeded()) {
                     upgradeAggregationAlgorithmInBackground();
                     invalidateFastScrollingIndexCache();
+                    mPhoneLookupCache.invalidateAll();
+                    mLookupKeyCache.invalidateAll();
                 }
                 break;
             }
@@ -1914,6 +2055,31 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 }
                 break;
             }
+
+            case BACKGROUND_TASK_UPDATE_BUCKET_COUNTS: {
+                final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    mBucketCountsManager.updateStaleContacts(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                break;
+            }
+
+            case BACKGROUND_TASK_VERIFY_BUCKET_COUNTS: {
+                // The recount is only worth it after an upgrade, which may have changed how the
+                // counts are maintained.
+                final ContactsDatabaseHelper dbHelper = mDbHelper.get();
+                final String version = String.valueOf(ContactsDatabaseHelper.DATABASE_VERSION);
+                if (!version.equals(dbHelper.getProperty(
+                        DbProperties.BUCKET_COUNTS_VERIFIED_VERSION, null))) {
+                    mBucketCountsManager.verify(dbHelper.getWritableDatabase());
+                    dbHelper.setProperty(DbProperties.BUCKET_COUNTS_VERIFIED_VERSION, version);
+                }
+                break;
+            }
         }
     }
 
@@ -2061,75 +2227,38 @@ public class ContactsProvider2 extends AbstractContactsProvider
     protected void cleanupPhotoStore() {
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
 
-        // Assemble the set of photo store file IDs that are in use, and send those to the photo
-        // store.  Any photos that aren't in that set will be deleted, and any photos that no
-        // longer exist in the photo store will be returned for us to clear out in the DB.
+        // Assemble the sorted photo store file IDs that are in use, and send those to the photo
+        // store.  Any photos that aren't in use will be deleted, and any photos that no longer
+        // exist in the photo store will be returned for us to clear out in the DB.
         long photoMimeTypeId = mDbHelper.get().getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
-        Cursor c = db.query(Views.DATA, new String[] {Data._ID, Photo.PHOTO_FILE_ID},
-                DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId + " AND "
-                        + Photo.PHOTO_FILE_ID + " IS NOT NULL", null, null, null, null);
-        Set<Long> usedPhotoFileIds = Sets.newHashSet();
-        Map<Long, Long> photoFileIdToDataId = Maps.newHashMap();
-        try {
-            while (c.moveToNext()) {
-                long dataId = c.getLong(0);
-                long photoFileId = c.getLong(1);
-                usedPhotoFileIds.add(photoFileId);
-                photoFileIdToDataId.put(photoFileId, dataId);
-            }
-        } finally {
-            c.close();
-        }
+        final LongArray photoFileIds = new LongArray();
+        queryPhotoFileIds(db, "SELECT " + Photo.PHOTO_FILE_ID + " FROM " + Tables.DATA
+                + " WHERE " + DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId
+                + " AND " + Photo.PHOTO_FILE_ID + " IS NOT NULL", photoFileIds);
 
         // Also query for all social stream item photos.
-        c = db.query(Tables.STREAM_ITEM_PHOTOS + " JOIN " + Tables.STREAM_ITEMS
+        queryPhotoFileIds(db, "SELECT " + StreamItemPhotos.PHOTO_FILE_ID
+                + " FROM " + Tables.STREAM_ITEM_PHOTOS + " JOIN " + Tables.STREAM_ITEMS
                 + " ON " + StreamItemPhotos.STREAM_ITEM_ID + "=" + StreamItemsColumns.CONCRETE_ID,
-                new String[] {
-                        StreamItemPhotosColumns.CONCRETE_ID,
-                        StreamItemPhotosColumns.CONCRETE_STREAM_ITEM_ID,
-                        StreamItemPhotos.PHOTO_FILE_ID
-                },
-                null, null, null, null, null);
-        Map<Long, Long> photoFileIdToStreamItemPhotoId = Maps.newHashMap();
-        Map<Long, Long> streamItemPhotoIdToStreamItemId = Maps.newHashMap();
-        try {
-            while (c.moveToNext()) {
-                long streamItemPhotoId = c.getLong(0);
-                long streamItemId = c.getLong(1);
-                long photoFileId = c.getLong(2);
-                usedPhotoFileIds.add(photoFileId);
-                photoFileIdToStreamItemPhotoId.put(photoFileId, streamItemPhotoId);
-                streamItemPhotoIdToStreamItemId.put(streamItemPhotoId, streamItemId);
-            }
-        } finally {
-            c.close();
-        }
+                photoFileIds);
 
         // Run the photo store cleanup.
-        Set<Long> missingPhotoIds = mPhotoStore.get().cleanup(usedPhotoFileIds);
+        final long[] missingPhotoFileIds =
+                mPhotoStore.get().cleanup(sortAndRemoveDuplicates(photoFileIds.toArray()));
 
         // If any of the keys we're using no longer exist, clean them up.  We need to do these
         // using internal APIs or direct DB access to avoid permission errors.
-        if (!missingPhotoIds.isEmpty()) {
+        if (missingPhotoFileIds.length > 0) {
             try {
                 // Need to set the db listener because we need to run onCommit afterwards.
                 // Make sure to use the proper listener depending on the current mode.
                 db.beginTransactionWithListener(inProfileMode() ? mProfileProvider : this);
-                for (long missingPhotoId : missingPhotoIds) {
-                    if (photoFileIdToDataId.containsKey(missingPhotoId)) {
-                        long dataId = photoFileIdToDataId.get(missingPhotoId);
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.putNull(Photo.PHOTO_FILE_ID);
-                        updateData(ContentUris.withAppendedId(Data.CONTENT_URI, dataId),
-                                updateValues, null, null, /* callerIsSyncAdapter =*/false);
-                    }
-                    if (photoFileIdToStreamItemPhotoId.containsKey(missingPhotoId)) {
-                        // For missing photos that were in stream item photos, just delete the
-                        // stream item photo.
-                        long streamItemPhotoId = photoFileIdToStreamItemPhotoId.get(missingPhotoId);
-                        db.delete(Tables.STREAM_ITEM_PHOTOS, StreamItemPhotos._ID + "=?",
-                                new String[] {String.valueOf(streamItemPhotoId)});
-                    }
+                for (int start = 0; start < missingPhotoFileIds.length;
+                        start += PHOTO_CLEANUP_BATCH_SIZE) {
+                    final int end = Math.min(start + PHOTO_CLEANUP_BATCH_SIZE,
+                            missingPhotoFileIds.length);
+                    clearMissingPhotoReferences(db, photoMimeTypeId,
+                            Arrays.copyOfRange(missingPhotoFileIds, start, end));
                 }
                 db.setTransactionSuccessful();
             } catch (Exception e) {
@@ -2137,8 +2266,89 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 Log.e(TAG, "Failed to clean up outdated photo references", e);
             } finally {
                 db.endTransaction();
+                onTransactionFinished();
+            }
+        }
+    }
+
+    /**
+     * Adds the photo file IDs in the first column of the query results to the array.
+     */
+    private static void queryPhotoFileIds(SQLiteDatabase db, String sql, LongArray photoFileIds) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            while (c.moveToNext()) {
+                photoFileIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Sorts the array in place and returns its distinct values in ascending order.
+     */
+    private static long[] sortAndRemoveDuplicates(long[] values) {
+        Arrays.sort(values);
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (count == 0 || values[i] != values[count - 1]) {
+                values[count++] = values[i];
+            }
+        }
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Clears the references to photo files that no longer exist in the photo store: photo data
+     * rows lose their photo file ID, the same way an update through {@link #updateData} would
+     * do it, and stream item photos are deleted.
+     */
+    private void clearMissingPhotoReferences(SQLiteDatabase db, long photoMimeTypeId,
+            long[] missingPhotoFileIds) {
+        final StringBuilder sb = new StringBuilder(" IN (");
+        for (int i = 0; i < missingPhotoFileIds.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(missingPhotoFileIds[i]);
+        }
+        sb.append(')');
+        final String inMissingPhotoFileIds = sb.toString();
+
+        // Like non-sync adapter updates, leave read-only rows alone.
+        final String dataSelection = DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId
+                + " AND " + Photo.PHOTO_FILE_ID + inMissingPhotoFileIds
+                + " AND " + Data.IS_READ_ONLY + "=0";
+        final ArraySet<Long> rawContactIds = new ArraySet<>();
+        Cursor c = db.query(Tables.DATA, new String[] {Data.RAW_CONTACT_ID}, dataSelection,
+                null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                rawContactIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        if (!rawContactIds.isEmpty()) {
+            final ContentValues values = new ContentValues();
+            values.putNull(Photo.PHOTO_FILE_ID);
+            db.update(Tables.DATA, values, dataSelection, null);
+
+            final TransactionContext txContext = mTransactionContext.get();
+            final AbstractContactAggregator aggregator = mAggregator.get();
+            for (int i = 0; i < rawContactIds.size(); i++) {
+                final long rawContactId = rawContactIds.valueAt(i);
+                txContext.markRawContactDirtyAndChanged(rawContactId,
+                        /* isSyncAdapter =*/ false);
+                aggregator.updatePhotoId(db, rawContactId);
             }
         }
+
+        // For missing photos that were in stream item photos, just delete the stream item photo.
+        db.delete(Tables.STREAM_ITEM_PHOTOS,
+                StreamItemPhotos.PHOTO_FILE_ID + inMissingPhotoFileIds, null);
     }
 
     @VisibleForTesting
@@ -2158,6 +2368,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
               .get()
               .getWritableDatabase()
               .delete(Tables.CONTACTS, danglingContactsSelection, /* selectionArgs= */ null);
+      if (danglingContactsCount > 0) {
+        mPhoneLookupCache.invalidateAll();
+        mLookupKeyCache.invalidateAll();
+      }
       LogFields.Builder logBuilder =
           LogFields.Builder.aLogFields()
               .setTaskType(LogUtils.TaskType.DANGLING_CONTACTS_CLEANUP_TASK)
@@ -2224,6 +2438,21 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return mContactDirectoryManager;
     }
 
+    @VisibleForTesting
+    public SearchIndexManager getSearchIndexManagerForTest() {
+        return mSearchIndexManager;
+    }
+
+    @VisibleForTesting
+    BucketCountsManager getBucketCountsManagerForTest() {
+        return mBucketCountsManager;
+    }
+
+    @VisibleForTesting
+    public AbstractContactAggregator getContactAggregatorForTest() {
+        return mContactAggregator;
+    }
+
     @VisibleForTesting
     protected Locale getLocale() {
         return Locale.getDefault();
@@ -2243,6 +2472,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
         invalidateFastScrollingIndexCache();
         mContactsHelper.wipeData();
         mProfileHelper.wipeData();
+        mPhoneLookupCache.invalidateAll();
+        mLookupKeyCache.invalidateAll();
         mContactsPhotoStore.clear();
         mProfilePhotoStore.clear();
         mProviderStatus = STATUS_NO_ACCOUNTS_NO_CONTACTS;
@@ -2766,8 +2997,14 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             // Need to rebuild the fast-indxer bundle.
             invalidateFastScrollingIndexCache();
+            mTransactionContext.get().invalidatePhoneLookupCache();
         }
 
+        invalidateLookupKeyCacheInTransaction();
+        invalidateFastScrollingIndexCacheInTransaction();
+        invalidatePhoneLookupCacheInTransaction();
+        mBucketCountsManager.updateStaleContacts(db);
+
         updateSearchIndexInTransaction();
 
         if (mProviderStatusUpdateNeeded) {
@@ -2776,6 +3013,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    @Override
+    protected void onTransactionFinished() {
+        mPhoneLookupCache.onTransactionFinished();
+        mLookupKeyCache.onTransactionFinished();
+    }
+
     @Override
     public void onRollback() {
         onRollbackTransactionInternal(false);
@@ -2796,8 +3039,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private void updateSearchIndexInTransaction() {
         Set<Long> staleContacts = mTransactionContext.get().getStaleSearchIndexContactIds();
         Set<Long> staleRawContacts = mTransactionContext.get().getStaleSearchIndexRawContactIds();
-        if (!staleContacts.isEmpty() || !staleRawContacts.isEmpty()) {
-            mSearchIndexManager.updateIndexForRawContacts(staleContacts, staleRawContacts);
+        Map<Long, Long> staleDataRows = mTransactionContext.get().getStaleSearchIndexDataRows();
+        if (!staleContacts.isEmpty() || !staleRawContacts.isEmpty() || !staleDataRows.isEmpty()) {
+            mSearchIndexManager.updateIndexForRawContacts(
+                    staleContacts, staleRawContacts, staleDataRows);
             mTransactionContext.get().clearSearchIndexUpdates();
         }
     }
@@ -2808,6 +3053,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
+        // Phone lookups first, the aggregator matches phone numbers through them.
+        ((DataRowHandlerForPhoneNumber) getDataRowHandler(Phone.CONTENT_ITEM_TYPE))
+                .flushPhoneLookupUpdates(db, mTransactionContext.get());
+        updateStaleDerivedFields(db);
+
         for (long rawContactId : mTransactionContext.get().getInsertedRawContactIds()) {
             mDbHelper.get().updateRawContactDisplayName(db, rawContactId);
             mAggregator.get().onRawContactInsert(mTransactionContext.get(), db, rawContactId);
@@ -2846,6 +3096,56 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mTransactionContext.get().clearExceptSearchIndexUpdates();
     }
 
+    /**
+     * Flushes the changes deferred by the current transaction, if this thread is in one, so that
+     * a query run by a later operation of a batch, such as an assert, sees the derived fields of
+     * the earlier ones.
+     */
+    private void flushTransactionalChangesBeforeQuery() {
+        final ContactsTransaction transaction = getCurrentTransaction();
+        if (transaction != null && transaction.hasDbInTransaction(
+                inProfileMode() ? PROFILE_DB_TAG : CONTACTS_DB_TAG)) {
+            flushTransactionalChanges();
+        }
+    }
+
+    /**
+     * Recomputes the derived fields that data row handlers marked as stale during the
+     * transaction, once per raw contact. The has-phone-number flags are updated with a single
+     * statement.
+     */
+    private void updateStaleDerivedFields(SQLiteDatabase db) {
+        final TransactionContext txContext = mTransactionContext.get();
+        final ArrayMap<Long, Integer> staleDerivedFields = txContext.getStaleDerivedFields();
+        if (staleDerivedFields.isEmpty()) {
+            return;
+        }
+
+        final ArraySet<Long> hasPhoneNumberRawContacts = new ArraySet<>();
+        for (int i = 0; i < staleDerivedFields.size(); i++) {
+            if ((staleDerivedFields.valueAt(i)
+                    & TransactionContext.DERIVED_FIELD_HAS_PHONE_NUMBER) != 0) {
+                hasPhoneNumberRawContacts.add(staleDerivedFields.keyAt(i));
+            }
+        }
+        if (!hasPhoneNumberRawContacts.isEmpty()) {
+            mAggregator.get().updateHasPhoneNumber(db, hasPhoneNumberRawContacts);
+        }
+
+        for (int i = 0; i < staleDerivedFields.size(); i++) {
+            final long rawContactId = staleDerivedFields.keyAt(i);
+            final int fields = staleDerivedFields.valueAt(i);
+            if ((fields & TransactionContext.DERIVED_FIELD_DISPLAY_NAME) != 0) {
+                mDbHelper.get().updateRawContactDisplayName(db, rawContactId);
+                mAggregator.get().updateDisplayNameForRawContact(db, rawContactId);
+            }
+            if ((fields & TransactionContext.DERIVED_FIELD_AGGREGATION) != 0) {
+                mAggregator.get().triggerAggregation(txContext, rawContactId);
+            }
+        }
+        staleDerivedFields.clear();
+    }
+
     /**
      * Appends comma separated IDs.
      * @param ids Should not be empty
@@ -2965,7 +3265,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case RAW_CONTACTS:
             case PROFILE_RAW_CONTACTS: {
-                invalidateFastScrollingIndexCache();
+                mTransactionContext.get().invalidateFastScrollingIndex();
                 id = insertRawContact(uri, values, callerIsSyncAdapter);
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 break;
@@ -2973,7 +3273,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case RAW_CONTACTS_ID_DATA:
             case PROFILE_RAW_CONTACTS_ID_DATA: {
-                invalidateFastScrollingIndexCache();
+                mTransactionContext.get().invalidateFastScrollingIndex();
                 int segment = match == RAW_CONTACTS_ID_DATA ? 1 : 2;
                 values.put(Data.RAW_CONTACT_ID, uri.getPathSegments().get(segment));
                 id = insertData(values, callerIsSyncAdapter);
@@ -2990,7 +3290,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case DATA:
             case PROFILE_DATA: {
-                invalidateFastScrollingIndexCache();
+                mTransactionContext.get().invalidateFastScrollingIndex();
                 id = insertData(values, callerIsSyncAdapter);
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 break;
@@ -3974,7 +4274,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case DATA:
             case PROFILE_DATA: {
-                invalidateFastScrollingIndexCache();
+                mTransactionContext.get().invalidateFastScrollingIndex();
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 return deleteData(appendAccountToSelection(
                         uri, selection), selectionArgs, callerIsSyncAdapter);
@@ -3986,7 +4286,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case CALLABLES_ID:
             case POSTALS_ID:
             case PROFILE_DATA_ID: {
-                invalidateFastScrollingIndexCache();
+                mTransactionContext.get().invalidateFastScrollingIndex();
                 long dataId = ContentUris.parseId(uri);
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 mSelectionArgs1[0] = String.valueOf(dataId);
@@ -4142,6 +4442,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mProviderStatusUpdateNeeded = true;
 
         int result = ContactsTableUtil.deleteContact(db, contactId);
+        mTransactionContext.get().invalidatePhoneLookupCacheForContact(contactId);
 
         // Now purge the local raw contacts
         deleteRawContactsImmediately(db, localRawContactIds);
@@ -4176,6 +4477,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // of raw contacts.
         final boolean contactIsSingleton =
                 ContactsTableUtil.deleteContactIfSingleton(db, rawContactId) == 1;
+        mTransactionContext.get().invalidatePhoneLookupCacheForContact(contactId);
         final int count;
 
         if (callerIsSyncAdapter || rawContactIsLocal(rawContactId)) {
@@ -4399,7 +4701,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case RAW_CONTACTS_ID_DATA:
             case PROFILE_RAW_CONTACTS_ID_DATA: {
-                invalidateFastScrollingIndexCache();
+                mTransactionContext.get().invalidateFastScrollingIndex();
                 int segment = match == RAW_CONTACTS_ID_DATA ? 1 : 2;
                 final String rawContactId = uri.getPathSegments().get(segment);
                 String selectionWithId = (Data.RAW_CONTACT_ID + "=" + rawContactId + " ")
@@ -4411,7 +4713,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case DATA:
             case PROFILE_DATA: {
-                invalidateFastScrollingIndexCache();
+                mTransactionContext.get().invalidateFastScrollingIndex();
                 count = updateData(uri, values, appendAccountToSelection(uri, selection),
                         selectionArgs, callerIsSyncAdapter);
                 if (count > 0) {
@@ -4425,7 +4727,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case EMAILS_ID:
             case CALLABLES_ID:
             case POSTALS_ID: {
-                invalidateFastScrollingIndexCache();
+                mTransactionContext.get().invalidateFastScrollingIndex();
                 count = updateData(uri, values, selection, selectionArgs, callerIsSyncAdapter);
                 if (count > 0) {
                     mSyncToNetwork |= !callerIsSyncAdapter;
@@ -4968,6 +5270,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             if (values.containsKey(RawContacts.SOURCE_ID)) {
                 aggregator.updateLookupKeyForRawContact(db, rawContactId);
+                mTransactionContext.get().invalidateLookupKeyCache();
             }
             if (requestUndoDelete && previousDeleted == 1) {
                 // Note before the accounts refactoring, we used to use the *old* account here,
@@ -5153,6 +5456,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         int rslt = db.update(Tables.CONTACTS, values, Contacts._ID + "=?",
                 mSelectionArgs1);
+        mTransactionContext.get().invalidatePhoneLookupCacheForContact(contactId);
 
         return rslt;
     }
@@ -5713,6 +6017,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         // Query the profile DB if appropriate.
         if (mapsToProfileDb(uri)) {
             switchToProfileMode();
+            flushTransactionalChangesBeforeQuery();
             return mProfileProvider.query(uri, projection, selection, selectionArgs, sortOrder,
                     cancellationSignal);
         }
@@ -5721,6 +6026,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         try {
             // Otherwise proceed with a normal query against the contacts DB.
             switchToContactMode();
+            flushTransactionalChangesBeforeQuery();
 
             return queryDirectoryIfNecessary(uri, projection, selection, selectionArgs, sortOrder,
                     cancellationSignal);
@@ -6220,6 +6526,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         String having = null;
         String limit = getLimit(uri);
         boolean snippetDeferred = false;
+        mQueryAccountId.set(FastScrollingIndexCache.ALL_ACCOUNTS);
 
         // The expression used in bundleLetterCountExtras() to get count.
         String addressBookIndexerCountExpression = null;
@@ -7208,67 +7515,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
                     String number =
                             uri.getPathSegments().size() > 1 ? uri.getLastPathSegment() : "";
-                    String numberE164 = PhoneNumberUtils.formatNumberToE164(
-                            number, mDbHelper.get().getCurrentCountryIso());
-                    String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-                    mDbHelper.get().buildPhoneLookupAndContactQuery(
-                            qb, normalizedNumber, numberE164);
-                    qb.setProjectionMap(sPhoneLookupProjectionMap);
-
-                    // removeNonStarMatchesFromCursor() requires the cursor to contain
-                    // PhoneLookup.NUMBER. Therefore, if the projection explicitly omits it, extend
-                    // the projection.
-                    String[] projectionWithNumber = projection;
-                    if (projection != null
-                            && !ArrayUtils.contains(projection,PhoneLookup.NUMBER)) {
-                        projectionWithNumber = ArrayUtils.appendElement(
-                                String.class, projection, PhoneLookup.NUMBER);
-                    }
-
-                    // Peek at the results of the first query (which attempts to use fully
-                    // normalized and internationalized numbers for comparison).  If no results
-                    // were returned, fall back to using the SQLite function
-                    // phone_number_compare_loose.
-                    qb.setStrict(true);
-                    boolean foundResult = false;
-                    Cursor cursor = doQuery(db, qb, projectionWithNumber, selection, selectionArgs,
-                            sortOrder, groupBy, null, limit, cancellationSignal);
-
-                    try {
-                        if (cursor.getCount() > 0) {
-                            foundResult = true;
-                            cursor = PhoneLookupWithStarPrefix
-                                    .removeNonStarMatchesFromCursor(number, cursor);
-                            if (!mDbHelper.get().getUseStrictPhoneNumberComparisonForTest()) {
-                                cursor = PhoneLookupWithStarPrefix.removeNoMatchPhoneNumber(number,
-                                        cursor, mDbHelper.get().getCurrentCountryIso());
-                            }
-                            return cursor;
-                        }
-
-                        // Use the fall-back lookup method.
-                        qb = new SQLiteQueryBuilder();
-                        qb.setProjectionMap(sPhoneLookupProjectionMap);
-                        qb.setStrict(true);
-
-                        // use the raw number instead of the normalized number because
-                        // phone_number_compare_loose in SQLite works only with non-normalized
-                        // numbers
-                        mDbHelper.get().buildFallbackPhoneLookupAndContactQuery(qb, number);
-
-                        Cursor fallbackCursor = doQuery(db, qb, projectionWithNumber,
-                                selection, selectionArgs, sortOrder, groupBy, having, limit,
+                    if (inProfileMode()) {
+                        return queryPhoneLookup(db, number, projection, sortOrder, limit,
                                 cancellationSignal);
-                        fallbackCursor = PhoneLookupWithStarPrefix.removeNonStarMatchesFromCursor(
-                                number, fallbackCursor);
-                        return PhoneLookupWithStarPrefix.removeNoMatchPhoneNumber(number,
-                                fallbackCursor, mDbHelper.get().getCurrentCountryIso());
-                    } finally {
-                        if (!foundResult) {
-                            // We'll be returning a different cursor, so close this one.
-                            cursor.close();
-                        }
                     }
+                    return queryPhoneLookupWithCache(db, uri, number, projection, sortOrder,
+                            limit, cancellationSignal);
                 }
                 break;
             }
@@ -7505,9 +7757,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
                         having, limit, cancellationSignal);
 
         if (readBooleanQueryParameter(uri, Contacts.EXTRA_ADDRESS_BOOK_INDEX, false)) {
+            // The stored bucket counts cover whole local directories only.
+            final boolean useBucketCounts = match == CONTACTS && TextUtils.isEmpty(selection)
+                    && TextUtils.isEmpty(getAccountWithDataSetFromUri(uri).getAccountName());
             bundleFastScrollingIndexExtras(cursor, uri, db, qb, selection,
                     selectionArgs, sortOrder, addressBookIndexerCountExpression,
-                    cancellationSignal);
+                    useBucketCounts, directoryId, cancellationSignal);
         }
         if (snippetDeferred) {
             cursor = addDeferredSnippetingExtra(cursor);
@@ -7558,6 +7813,124 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return c;
     }
 
+    /**
+     * Serves a {@link PhoneLookup} query from {@link #mPhoneLookupCache} if possible, or runs it
+     * and caches the result.
+     */
+    private Cursor queryPhoneLookupWithCache(SQLiteDatabase db, Uri uri, String number,
+            String[] projection, String sortOrder, String limit,
+            CancellationSignal cancellationSignal) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+
+        // Entries are invalidated by min match, so both lookup queries must use the same one.
+        final String minMatch = PhoneNumberUtils.toCallerIDMinMatch(
+                PhoneNumberUtils.normalizeNumber(number));
+        if (minMatch == null || !minMatch.equals(PhoneNumberUtils.toCallerIDMinMatch(number))) {
+            return queryPhoneLookup(db, number, projection, sortOrder, limit, cancellationSignal);
+        }
+
+        final String key = PhoneLookupCache.buildCacheKey(minMatch, uri, projection, sortOrder,
+                mDbHelper.get().getCurrentCountryIso(),
+                mDbHelper.get().getUseStrictPhoneNumberComparisonParameter(),
+                mDbHelper.get().getMinMatchParameter());
+        Cursor cursor = mPhoneLookupCache.get(key);
+        final boolean hit = cursor != null;
+        if (!hit) {
+            final int generation = mPhoneLookupCache.getGeneration();
+
+            // The cache needs the contact IDs to invalidate the entry.
+            String[] queryProjection = projection;
+            String[] columnNames = projection;
+            if (projection != null) {
+                if (!ArrayUtils.contains(projection, PhoneLookup._ID)) {
+                    queryProjection = ArrayUtils.appendElement(
+                            String.class, projection, PhoneLookup._ID);
+                }
+                // See queryPhoneLookup().
+                if (!ArrayUtils.contains(projection, PhoneLookup.NUMBER)) {
+                    columnNames = ArrayUtils.appendElement(
+                            String.class, projection, PhoneLookup.NUMBER);
+                }
+            }
+
+            final Cursor result = queryPhoneLookup(db, number, queryProjection, sortOrder, limit,
+                    cancellationSignal);
+            if (columnNames == null) {
+                columnNames = result.getColumnNames();
+            }
+            cursor = mPhoneLookupCache.put(key, minMatch, generation, result, columnNames);
+        }
+        cursor.setNotificationUri(
+                getContext().getContentResolver(), ContactsContract.AUTHORITY_URI);
+        mPhoneLookupCache.recordLatency(hit, SystemClock.elapsedRealtimeNanos() - start);
+        return cursor;
+    }
+
+    private Cursor queryPhoneLookup(SQLiteDatabase db, String number, String[] projection,
+            String sortOrder, String limit, CancellationSignal cancellationSignal) {
+        String numberE164 = PhoneNumberUtils.formatNumberToE164(
+                number, mDbHelper.get().getCurrentCountryIso());
+        String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        mDbHelper.get().buildPhoneLookupAndContactQuery(
+                qb, normalizedNumber, numberE164);
+        qb.setProjectionMap(sPhoneLookupProjectionMap);
+
+        // removeNonStarMatchesFromCursor() requires the cursor to contain
+        // PhoneLookup.NUMBER. Therefore, if the projection explicitly omits it, extend
+        // the projection.
+        String[] projectionWithNumber = projection;
+        if (projection != null
+                && !ArrayUtils.contains(projection,PhoneLookup.NUMBER)) {
+            projectionWithNumber = ArrayUtils.appendElement(
+                    String.class, projection, PhoneLookup.NUMBER);
+        }
+
+        // Peek at the results of the first query (which attempts to use fully
+        // normalized and internationalized numbers for comparison).  If no results
+        // were returned, fall back to using the SQLite function
+        // phone_number_compare_loose.
+        qb.setStrict(true);
+        boolean foundResult = false;
+        Cursor cursor = doQuery(db, qb, projectionWithNumber, null, null, sortOrder, null, null,
+                limit, cancellationSignal);
+
+        try {
+            if (cursor.getCount() > 0) {
+                foundResult = true;
+                cursor = PhoneLookupWithStarPrefix
+                        .removeNonStarMatchesFromCursor(number, cursor);
+                if (!mDbHelper.get().getUseStrictPhoneNumberComparisonForTest()) {
+                    cursor = PhoneLookupWithStarPrefix.removeNoMatchPhoneNumber(number,
+                            cursor, mDbHelper.get().getCurrentCountryIso());
+                }
+                return cursor;
+            }
+
+            // Use the fall-back lookup method.
+            qb = new SQLiteQueryBuilder();
+            qb.setProjectionMap(sPhoneLookupProjectionMap);
+            qb.setStrict(true);
+
+            // use the raw number instead of the normalized number because
+            // phone_number_compare_loose in SQLite works only with non-normalized
+            // numbers
+            mDbHelper.get().buildFallbackPhoneLookupAndContactQuery(qb, number);
+
+            Cursor fallbackCursor = doQuery(db, qb, projectionWithNumber, null, null,
+                    sortOrder, null, null, limit, cancellationSignal);
+            fallbackCursor = PhoneLookupWithStarPrefix.removeNonStarMatchesFromCursor(
+                    number, fallbackCursor);
+            return PhoneLookupWithStarPrefix.removeNoMatchPhoneNumber(number,
+                    fallbackCursor, mDbHelper.get().getCurrentCountryIso());
+        } finally {
+            if (!foundResult) {
+                // We'll be returning a different cursor, so close this one.
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Handles {@link Directory#ENTERPRISE_CONTENT_URI}.
      */
@@ -7970,15 +8343,149 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mFastScrollingIndexCache.invalidate();
     }
 
+    /**
+     * Invalidates the fast scrolling indexes that the data changes of the current transaction
+     * could affect.  An index restricted to one account counts contacts by their display name,
+     * which may come from a raw contact of another account, so the affected accounts are those of
+     * all the raw contacts joined into the changed contacts.  Aggregation can move raw contacts of
+     * any account between contacts, so if it ran, everything is invalidated.
+     */
+    private void invalidateFastScrollingIndexCacheInTransaction() {
+        final TransactionContext txContext = mTransactionContext.get();
+        if (txContext.isFastScrollingIndexStale()) {
+            final Set<Long> rawContactIds = txContext.getFastScrollingIndexRawContactIds();
+            Set<Long> accountIds = null;
+            if (!inProfileMode() && !txContext.hasAggregatedRawContacts()
+                    && rawContactIds.size() <= MAX_RAW_CONTACTS_FOR_ACCOUNT_INVALIDATION) {
+                accountIds = getAccountIdsOfJoinedRawContacts(rawContactIds);
+            }
+            if (accountIds == null) {
+                invalidateFastScrollingIndexCache();
+            } else {
+                mFastScrollingIndexCache.invalidateAccounts(accountIds);
+            }
+        }
+        txContext.clearFastScrollingIndexUpdates();
+    }
+
+    /**
+     * Lookup keys may resolve to different contacts once raw contacts have been aggregated or
+     * their lookup keys have changed.  Must be called before the fast scrolling index updates
+     * are cleared, as they track aggregation.
+     */
+    private void invalidateLookupKeyCacheInTransaction() {
+        final TransactionContext txContext = mTransactionContext.get();
+        if (!inProfileMode()
+                && (txContext.hasAggregatedRawContacts() || txContext.isLookupKeyCacheStale())) {
+            mLookupKeyCache.invalidateInTransaction();
+        }
+        txContext.clearLookupKeyCacheUpdates();
+    }
+
+    private void invalidatePhoneLookupCacheInTransaction() {
+        final TransactionContext txContext = mTransactionContext.get();
+        if (!inProfileMode()) {
+            final Set<String> minMatches = txContext.getStalePhoneLookupMinMatches();
+            final Set<Long> contactIds = txContext.getStalePhoneLookupContactIds();
+            final Set<Long> rawContactIds = txContext.getPhoneLookupRawContactIds();
+            final boolean all = txContext.isPhoneLookupCacheStale()
+                    || rawContactIds.size() > MAX_RAW_CONTACTS_FOR_PHONE_LOOKUP_INVALIDATION;
+            if (all || !minMatches.isEmpty() || !contactIds.isEmpty()
+                    || !rawContactIds.isEmpty()) {
+                // This also stops the cache from taking new entries until the transaction is
+                // finished, so it can't get any entries the query below would miss.
+                mPhoneLookupCache.invalidateInTransaction(minMatches, contactIds, all);
+                if (!all && !rawContactIds.isEmpty() && !mPhoneLookupCache.isEmpty()) {
+                    // The contacts the raw contacts belong to now.  The contacts they were
+                    // removed from have been reported by the aggregator.
+                    mPhoneLookupCache.invalidateInTransaction(Collections.<String>emptySet(),
+                            getContactIdsOfRawContacts(rawContactIds), false);
+                }
+            }
+        }
+        txContext.clearPhoneLookupCacheUpdates();
+    }
+
+    private Set<Long> getContactIdsOfRawContacts(Set<Long> rawContactIds) {
+        final ArraySet<Long> contactIds = new ArraySet<>();
+        final SQLiteDatabase db = mDbHelper.get().getReadableDatabase();
+        mSb.setLength(0);
+        mSb.append("SELECT DISTINCT " + RawContacts.CONTACT_ID + " FROM " + Tables.RAW_CONTACTS
+                + " WHERE " + RawContacts._ID + " IN (");
+        appendIds(mSb, rawContactIds);
+        mSb.append(") AND " + RawContacts.CONTACT_ID + " NOT NULL");
+        final Cursor cursor = db.rawQuery(mSb.toString(), null);
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return contactIds;
+    }
+
+    /**
+     * Returns the account IDs of all the raw contacts joined into the same contacts as the given
+     * raw contacts, or null if some of the given raw contacts don't exist anymore.
+     */
+    private Set<Long> getAccountIdsOfJoinedRawContacts(Set<Long> rawContactIds) {
+        final ArraySet<Long> accountIds = new ArraySet<>();
+        if (rawContactIds.isEmpty()) {
+            return accountIds;
+        }
+
+        final SQLiteDatabase db = mDbHelper.get().getReadableDatabase();
+        final ArraySet<Long> contactIds = new ArraySet<>();
+        mSb.setLength(0);
+        mSb.append("SELECT " + RawContacts.CONTACT_ID + "," + RawContactsColumns.ACCOUNT_ID
+                + " FROM " + Tables.RAW_CONTACTS + " WHERE " + RawContacts._ID + " IN (");
+        appendIds(mSb, rawContactIds);
+        mSb.append(")");
+        Cursor cursor = db.rawQuery(mSb.toString(), null);
+        try {
+            if (cursor.getCount() != rawContactIds.size()) {
+                return null;
+            }
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) {
+                    contactIds.add(cursor.getLong(0));
+                }
+                accountIds.add(cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!contactIds.isEmpty()) {
+            mSb.setLength(0);
+            mSb.append("SELECT DISTINCT " + RawContactsColumns.ACCOUNT_ID
+                    + " FROM " + Tables.RAW_CONTACTS + " WHERE " + RawContacts.CONTACT_ID
+                    + " IN (");
+            appendIds(mSb, contactIds);
+            mSb.append(")");
+            cursor = db.rawQuery(mSb.toString(), null);
+            try {
+                while (cursor.moveToNext()) {
+                    accountIds.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return accountIds;
+    }
+
     /**
      * Add the "fast scrolling index" bundle, generated by {@link #getFastScrollingIndexExtras},
      * to a cursor as extras.  It first checks {@link FastScrollingIndexCache} to see if we
-     * already have a cached result.
+     * already have a cached result.  If {@code useBucketCounts} is true, a cache miss is served
+     * from {@link BucketCountsManager} when its counts are up to date.
      */
     private void bundleFastScrollingIndexExtras(Cursor cursor, Uri queryUri,
             final SQLiteDatabase db, SQLiteQueryBuilder qb, String selection,
             String[] selectionArgs, String sortOrder, String countExpression,
-            CancellationSignal cancellationSignal) {
+            boolean useBucketCounts, long directoryId, CancellationSignal cancellationSignal) {
 
         if (!(cursor instanceof AbstractCursor)) {
             Log.w(TAG, "Unable to bundle extras.  Cursor is not AbstractCursor.");
@@ -8011,8 +8518,20 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 // Not in the cache.  Generate and put.
                 final long start = System.currentTimeMillis();
 
-                b = getFastScrollingIndexExtras(db, qb, selection, selectionArgs,
-                        sortOrder, countExpression, cancellationSignal);
+                b = null;
+                if (useBucketCounts) {
+                    if (mBucketCountsManager.hasStaleContacts(db)) {
+                        // Changed outside of a provider transaction, e.g. by a locale change.
+                        scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_BUCKET_COUNTS);
+                    } else {
+                        b = mBucketCountsManager.getFastScrollingIndexExtras(
+                                db, sortOrder, directoryId);
+                    }
+                }
+                if (b == null) {
+                    b = getFastScrollingIndexExtras(db, qb, selection, selectionArgs,
+                            sortOrder, countExpression, cancellationSignal);
+                }
 
                 final long end = System.currentTimeMillis();
                 final int time = (int) (end - start);
@@ -8020,8 +8539,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 if (VERBOSE_LOGGING) {
                     Log.v(TAG, "getLetterCountExtraBundle took " + time + "ms");
                 }
+                final Long accountId = mQueryAccountId.get();
                 mFastScrollingIndexCache.put(queryUri, selection, selectionArgs, sortOrder,
-                        countExpression, b);
+                        countExpression, b, accountId == null || inProfileMode()
+                                ? FastScrollingIndexCache.ALL_ACCOUNTS : accountId);
             }
         }
         ((AbstractCursor) cursor).setExtras(b);
@@ -8133,6 +8654,51 @@ public class ContactsProvider2 extends AbstractContactsProvider
      * key.
      */
     public long lookupContactIdByLookupKey(SQLiteDatabase db, String lookupKey) {
+        if (inProfileMode()) {
+            return resolveContactIdByLookupKey(db, lookupKey);
+        }
+
+        final LookupKeyCache.ContactVersionReader versionReader =
+                id -> getContactVersion(db, id);
+        long contactId = mLookupKeyCache.get(lookupKey, versionReader);
+        if (contactId == LookupKeyCache.NOT_FOUND) {
+            final int generation = mLookupKeyCache.getGeneration();
+            contactId = resolveContactIdByLookupKey(db, lookupKey);
+            // Don't cache what a transaction that could still be rolled back sees.
+            if (contactId != -1 && !db.inTransaction()) {
+                mLookupKeyCache.put(lookupKey, generation, contactId,
+                        versionReader.getContactVersion(contactId));
+            }
+        }
+        return contactId;
+    }
+
+    private interface ContactVersionQuery {
+        String[] COLUMNS = {Contacts.CONTACT_LAST_UPDATED_TIMESTAMP};
+        String SELECTION = Contacts._ID + "=?";
+
+        int CONTACT_LAST_UPDATED_TIMESTAMP = 0;
+    }
+
+    /**
+     * Returns the version of a contact for {@link #mLookupKeyCache}, or
+     * {@link LookupKeyCache#NOT_FOUND} if it doesn't exist.
+     */
+    private long getContactVersion(SQLiteDatabase db, long contactId) {
+        Cursor c = db.query(Tables.CONTACTS, ContactVersionQuery.COLUMNS,
+                ContactVersionQuery.SELECTION, new String[] {String.valueOf(contactId)},
+                null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                return c.getLong(ContactVersionQuery.CONTACT_LAST_UPDATED_TIMESTAMP);
+            }
+            return LookupKeyCache.NOT_FOUND;
+        } finally {
+            c.close();
+        }
+    }
+
+    private long resolveContactIdByLookupKey(SQLiteDatabase db, String lookupKey) {
         ContactLookupKey key = new ContactLookupKey();
         ArrayList<LookupKeySegment> segments = key.parse(lookupKey);
 
@@ -8483,6 +9049,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
     public void appendSearchIndexJoin(StringBuilder sb, String filter,
             boolean snippetNeeded, String startMatch, String endMatch, String ellipsis,
             int maxTokens, boolean deferSnippeting) {
+        if (!inProfileMode() && mSearchIndexManager.isRebuildInProgress()) {
+            appendSearchIndexFallbackJoin(sb, filter, snippetNeeded);
+            return;
+        }
+
         boolean isEmailAddress = false;
         String emailAddress = null;
         boolean isPhoneNumber = false;
@@ -8634,6 +9205,34 @@ public class ContactsProvider2 extends AbstractContactsProvider
         sb.append(" ON (" + Contacts._ID + "=" + SNIPPET_CONTACT_ID + ")");
     }
 
+    /**
+     * Used instead of the search index while it is being rebuilt: matches the filter against
+     * the beginning of any word of the data rows themselves.  Slower and less thorough than the
+     * full-text search, but returns sensible results with a partially built index.
+     */
+    private void appendSearchIndexFallbackJoin(StringBuilder sb, String filter,
+            boolean snippetNeeded) {
+        final char escapeChar = '\\';
+        final StringBuilder escapedFilter = new StringBuilder();
+        DbQueryUtils.escapeLikeValue(escapedFilter, filter, escapeChar);
+
+        final String SNIPPET_CONTACT_ID = "snippet_contact_id";
+        sb.append(" JOIN (SELECT " + RawContacts.CONTACT_ID + " AS " + SNIPPET_CONTACT_ID);
+        if (snippetNeeded) {
+            sb.append(", NULL AS " + SearchSnippets.SNIPPET);
+        }
+        sb.append(" FROM " + Tables.DATA_JOIN_RAW_CONTACTS);
+        sb.append(" WHERE (" + Data.DATA1 + " LIKE ");
+        DatabaseUtils.appendEscapedSQLString(sb, escapedFilter + "%");
+        sb.append(" ESCAPE '" + escapeChar + "' OR " + Data.DATA1 + " LIKE ");
+        DatabaseUtils.appendEscapedSQLString(sb, "% " + escapedFilter + "%");
+        sb.append(" ESCAPE '" + escapeChar + "')");
+        // Omit results in "Other Contacts".
+        sb.append(" AND " + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY);
+        sb.append(" GROUP BY " + RawContacts.CONTACT_ID + ")");
+        sb.append(" ON (" + Contacts._ID + "=" + SNIPPET_CONTACT_ID + ")");
+    }
+
     private static String sanitizeMatch(String filter) {
         return filter.replace("'", "").replace("*", "").replace("-", "").replace("\"", "");
     }
@@ -8863,6 +9462,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 sb.setLength(0);
                 sb.append("(1=2)");
             } else {
+                mQueryAccountId.set(accountId);
                 sb.append(
                         " AND (" + Contacts._ID + " IN (" +
                         "SELECT " + RawContacts.CONTACT_ID + " FROM " + Tables.RAW_CONTACTS +
@@ -8909,6 +9509,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 // No such account.
                 qb.appendWhere("(1=2)");
             } else {
+                mQueryAccountId.set(accountId);
                 qb.appendWhere(
                         "(" + RawContactsColumns.ACCOUNT_ID + "=" + accountId.toString() + ")");
             }
@@ -9487,7 +10088,13 @@ public class ContactsProvider2 extends AbstractContactsProvider
         try {
             ParcelFileDescriptor[] pipeFds = ParcelFileDescriptor.createPipe();
             PipeMonitor pipeMonitor = new PipeMonitor(rawContactId, dataId, pipeFds[0]);
-            pipeMonitor.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Object[]) null);
+            if (!mPhotoProcessingExecutor.execute(pipeMonitor)) {
+                Log.e(TAG, "Too many photos being processed, rejecting write for raw contact "
+                        + rawContactId);
+                IoUtils.closeQuietly(pipeFds[0]);
+                IoUtils.closeQuietly(pipeFds[1]);
+                return null;
+            }
             return new AssetFileDescriptor(pipeFds[1], 0, AssetFileDescriptor.UNKNOWN_LENGTH);
         } catch (IOException ioe) {
             Log.e(TAG, "Could not create temp image file in mode " + mode);
@@ -9496,11 +10103,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
     }
 
     /**
-     * Async task that monitors the given file descriptor (the read end of a pipe) for
+     * Task that monitors the given file descriptor (the read end of a pipe) for
      * the writer finishing.  If the data from the pipe contains a valid image, the image
      * is either inserted into the given raw contact or updated in the given data row.
+     * Runs on the {@link PhotoProcessingExecutor}.
      */
-    private class PipeMonitor extends AsyncTask<Object, Object, Object> {
+    private class PipeMonitor implements Runnable {
         private final ParcelFileDescriptor mDescriptor;
         private final long mRawContactId;
         private final long mDataId;
@@ -9511,14 +10119,18 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         @Override
-        protected Object doInBackground(Object... params) {
+        public void run() {
             AutoCloseInputStream is = new AutoCloseInputStream(mDescriptor);
             try {
-                Bitmap b = BitmapFactory.decodeStream(is);
-                if (b != null) {
+                // Read the whole image first, so that it can be downsampled while decoding.
+                byte[] bytes = is.readNBytes(MAX_PHOTO_INPUT_BYTES + 1);
+                if (bytes.length > MAX_PHOTO_INPUT_BYTES) {
+                    Log.e(TAG, "Photo for raw contact " + mRawContactId + " is larger than "
+                            + MAX_PHOTO_INPUT_BYTES + " bytes, dropping it");
+                } else if (bytes.length > 0) {
                     waitForAccess(mWriteAccessLatch);
-                    PhotoProcessor processor =
-                            new PhotoProcessor(b, getMaxDisplayPhotoDim(), getMaxThumbnailDim());
+                    PhotoProcessor processor = new PhotoProcessor(
+                            bytes, getMaxDisplayPhotoDim(), getMaxThumbnailDim());
 
                     // Store the compressed photo in the photo store.
                     PhotoStore photoStore = ContactsContract.isProfileId(mRawContactId)
@@ -9562,11 +10174,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
                 }
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                Log.e(TAG, "Could not process photo for raw contact " + mRawContactId, e);
             } finally {
                 IoUtils.closeQuietly(is);
             }
-            return null;
         }
     }
 
@@ -9835,6 +10446,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
             super(splitter);
         }
 
+        public StructuredNameLookupBuilder(NameSplitter splitter,
+                ContactLocaleUtils localeUtils) {
+            super(splitter, localeUtils);
+        }
+
         @Override
         protected void insertNameLookup(long rawContactId, long dataId, int lookupType,
                 String name) {
@@ -10355,8 +10971,29 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 safeDiv(mFastScrollingIndexCacheMissCount * 100,
                         mFastScrollingIndexCacheRequestCount),
                 safeDiv(mTotalTimeFastScrollingIndexGenerate, mFastScrollingIndexCacheMissCount));
+        if (mFastScrollingIndexCache != null) {
+            mFastScrollingIndexCache.dump(pw);
+        }
         pw.println();
 
+        pw.print("PhoneLookup stats:\n");
+        mPhoneLookupCache.dump(pw);
+        pw.println();
+
+        pw.print("LookupKey stats:\n");
+        mLookupKeyCache.dump(pw);
+        pw.println();
+
+        pw.print("Photo processing stats:\n");
+        mPhotoProcessingExecutor.dump(pw);
+        PhotoProcessor.dumpStats(pw);
+        pw.println();
+
+        if (mTaskScheduler != null) {
+            mTaskScheduler.dump(pw);
+            pw.println();
+        }
+
         if (mContactsHelper != null) {
             mContactsHelper.dump(pw);
         }
@@ -19,22 +19,39 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
 /**
- * Runs tasks in a worker thread, which is created on-demand and shuts down after a timeout.
+ * Runs tasks in worker threads, which are created on-demand and shut down after a timeout.
+ *
+ * <p>Each task runs in a named lane, chosen by {@link #getLane}.  Every lane has its own worker
+ * thread, so tasks in different lanes don't wait for each other, while tasks in the same lane run
+ * one at a time.  Within a lane, tasks run by {@link #getPriority} and then in scheduling order.
+ * Scheduling a task that is already pending in its lane with an equal argument is a no-op.
  */
 public abstract class ContactsTaskScheduler {
     private static final String TAG = "ContactsTaskScheduler";
 
     public static final boolean VERBOSE_LOGGING = AbstractContactsProvider.VERBOSE_LOGGING;
 
+    /** The lane of all tasks, unless {@link #getLane} is overridden. */
+    public static final String DEFAULT_LANE = "default";
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_DEFAULT = 0;
+    public static final int PRIORITY_HIGH = 1;
+
     private static final int SHUTDOWN_TIMEOUT_SECONDS = 60;
 
     private final AtomicInteger mThreadSequenceNumber = new AtomicInteger();
@@ -47,10 +64,10 @@ public abstract class ContactsTaskScheduler {
     private final String mName;
 
     @GuardedBy("mLock")
-    private HandlerThread mThread;
+    private final ArrayMap<String, Lane> mLanes = new ArrayMap<>();
 
     @GuardedBy("mLock")
-    private MyHandler mHandler;
+    private long mTaskSequenceNumber;
 
     private final int mShutdownTimeoutSeconds;
 
@@ -64,29 +81,172 @@ public abstract class ContactsTaskScheduler {
         mShutdownTimeoutSeconds = shutdownTimeoutSeconds;
     }
 
-    private class MyHandler extends Handler {
-        public MyHandler(Looper looper) {
-            super(looper);
+    private static final class PendingTask implements Comparable<PendingTask> {
+        final int taskId;
+        final Object arg;
+        final int priority;
+        final long sequenceNumber;
+        final long scheduledTime;
+
+        PendingTask(int taskId, Object arg, int priority, long sequenceNumber) {
+            this.taskId = taskId;
+            this.arg = arg;
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.scheduledTime = SystemClock.elapsedRealtime();
+        }
+
+        boolean isSameTask(int taskId, Object arg) {
+            return this.taskId == taskId && Objects.equals(this.arg, arg);
         }
 
         @Override
-        public void handleMessage(Message msg) {
+        public int compareTo(PendingTask other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+
+    /**
+     * Counts durations in power-of-ten millisecond buckets.
+     */
+    private static final class LatencyHistogram {
+        private static final long[] UPPER_BOUNDS_MS = {1, 10, 100, 1000, 10000};
+        private static final String[] LABELS = {"<1ms", "<10ms", "<100ms", "<1s", "<10s", ">=10s"};
+
+        private final int[] mCounts = new int[LABELS.length];
+
+        void add(long durationMs) {
+            int i = 0;
+            while (i < UPPER_BOUNDS_MS.length && durationMs >= UPPER_BOUNDS_MS[i]) {
+                i++;
+            }
+            mCounts[i]++;
+        }
+
+        void dump(PrintWriter pw, String title) {
+            pw.print("    ");
+            pw.print(title);
+            pw.print(":");
+            for (int i = 0; i < LABELS.length; i++) {
+                pw.print(" ");
+                pw.print(LABELS[i]);
+                pw.print("=");
+                pw.print(mCounts[i]);
+            }
+            pw.println();
+        }
+    }
+
+    /**
+     * A worker thread with its own queue of pending tasks.
+     */
+    private class Lane {
+        final String name;
+
+        @GuardedBy("mLock")
+        final PriorityQueue<PendingTask> pendingTasks = new PriorityQueue<>();
+
+        @GuardedBy("mLock")
+        HandlerThread thread;
+
+        @GuardedBy("mLock")
+        MyHandler handler;
+
+        @GuardedBy("mLock")
+        int maxQueueDepth;
+
+        @GuardedBy("mLock")
+        int executedCount;
+
+        @GuardedBy("mLock")
+        int deduplicatedCount;
+
+        @GuardedBy("mLock")
+        final LatencyHistogram waitTimes = new LatencyHistogram();
+
+        @GuardedBy("mLock")
+        final LatencyHistogram runTimes = new LatencyHistogram();
+
+        final Runnable quitter = () -> {
+            synchronized (mLock) {
+                stopThread(/* joinOnlyForTest=*/ false);
+            }
+        };
+
+        Lane(String name) {
+            this.name = name;
+        }
+
+        private void stopThread(boolean joinOnlyForTest) {
+            synchronized (mLock) {
+                if (VERBOSE_LOGGING) {
+                    Log.v(TAG, "[" + mName + "] " + thread + " stopping...");
+                }
+                if (thread != null) {
+                    thread.quit();
+                    if (joinOnlyForTest) {
+                        try {
+                            thread.join();
+                        } catch (InterruptedException ignore) {
+                        }
+                    }
+                }
+                thread = null;
+                handler = null;
+            }
+        }
+
+        /** Runs the next pending task.  Called once on the worker thread per queued task. */
+        void performNextTask() {
+            final PendingTask task;
+            synchronized (mLock) {
+                task = pendingTasks.poll();
+                if (task == null) {
+                    return;
+                }
+                waitTimes.add(SystemClock.elapsedRealtime() - task.scheduledTime);
+            }
             if (VERBOSE_LOGGING) {
-                Log.v(TAG, "[" + mName + "] " + mThread + " dispatching " + msg.what);
+                Log.v(TAG, "[" + mName + "] " + Thread.currentThread() + " dispatching "
+                        + task.taskId);
+            }
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                onPerformTask(task.taskId, task.arg);
+            } finally {
+                synchronized (mLock) {
+                    executedCount++;
+                    runTimes.add(SystemClock.elapsedRealtime() - start);
+                }
             }
-            onPerformTask(msg.what, msg.obj);
         }
     }
 
-    private final Runnable mQuitter = () -> {
-        synchronized (mLock) {
-            stopThread(/* joinOnlyForTest=*/ false);
+    private static class MyHandler extends Handler {
+        private final Lane mLane;
+
+        public MyHandler(Looper looper, Lane lane) {
+            super(looper);
+            mLane = lane;
         }
-    };
+
+        @Override
+        public void handleMessage(Message msg) {
+            mLane.performNextTask();
+        }
+    }
 
     private boolean isRunning() {
         synchronized (mLock) {
-            return mThread != null;
+            for (int i = 0; i < mLanes.size(); i++) {
+                if (mLanes.valueAt(i).thread != null) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
@@ -99,51 +259,72 @@ public abstract class ContactsTaskScheduler {
     /** Schedule a task with an argument. */
     @VisibleForTesting
     public void scheduleTask(int taskId, Object arg) {
+        final String laneName = getLane(taskId);
         synchronized (mLock) {
-            if (!isRunning()) {
-                mThread = new HandlerThread("Worker-" + mThreadSequenceNumber.incrementAndGet());
-                mThread.start();
-                mHandler = new MyHandler(mThread.getLooper());
+            Lane lane = mLanes.get(laneName);
+            if (lane == null) {
+                lane = new Lane(laneName);
+                mLanes.put(laneName, lane);
+            }
+            if (lane.thread == null) {
+                final String threadName = DEFAULT_LANE.equals(laneName)
+                        ? "Worker-" : "Worker-" + laneName + "-";
+                lane.thread = new HandlerThread(
+                        threadName + mThreadSequenceNumber.incrementAndGet());
+                lane.thread.start();
+                lane.handler = new MyHandler(lane.thread.getLooper(), lane);
 
                 if (VERBOSE_LOGGING) {
-                    Log.v(TAG, "[" + mName + "] " + mThread + " started.");
+                    Log.v(TAG, "[" + mName + "] " + lane.thread + " started.");
                 }
             }
-            if (arg == null) {
-                mHandler.sendEmptyMessage(taskId);
+
+            boolean pending = false;
+            for (PendingTask task : lane.pendingTasks) {
+                if (task.isSameTask(taskId, arg)) {
+                    pending = true;
+                    break;
+                }
+            }
+            if (pending) {
+                lane.deduplicatedCount++;
             } else {
-                mHandler.sendMessage(mHandler.obtainMessage(taskId, arg));
+                lane.pendingTasks.add(
+                        new PendingTask(taskId, arg, getPriority(taskId), mTaskSequenceNumber++));
+                lane.maxQueueDepth = Math.max(lane.maxQueueDepth, lane.pendingTasks.size());
+                lane.handler.sendEmptyMessage(0);
             }
 
             // Schedule thread shutdown.
-            mHandler.removeCallbacks(mQuitter);
-            mHandler.postDelayed(mQuitter, mShutdownTimeoutSeconds * 1000);
+            lane.handler.removeCallbacks(lane.quitter);
+            lane.handler.postDelayed(lane.quitter, mShutdownTimeoutSeconds * 1000);
         }
     }
 
     public abstract void onPerformTask(int taskId, Object arg);
 
-    @VisibleForTesting
-    public void shutdownForTest() {
-        stopThread(/* joinOnlyForTest=*/ true);
+    /**
+     * Returns the name of the lane the given task runs in.  Tasks that must not run concurrently
+     * have to share a lane.
+     */
+    protected String getLane(int taskId) {
+        return DEFAULT_LANE;
     }
 
-    private void stopThread(boolean joinOnlyForTest) {
+    /**
+     * Returns the priority of the given task among the pending tasks of its lane.  Tasks with a
+     * higher priority run first.
+     */
+    protected int getPriority(int taskId) {
+        return PRIORITY_DEFAULT;
+    }
+
+    @VisibleForTesting
+    public void shutdownForTest() {
         synchronized (mLock) {
-            if (VERBOSE_LOGGING) {
-                Log.v(TAG, "[" + mName + "] " + mThread + " stopping...");
-            }
-            if (mThread != null) {
-                mThread.quit();
-                if (joinOnlyForTest) {
-                    try {
-                        mThread.join();
-                    } catch (InterruptedException ignore) {
-                    }
-                }
+            for (int i = 0; i < mLanes.size(); i++) {
+                mLanes.valueAt(i).stopThread(/* joinOnlyForTest=*/ true);
             }
-            mThread = null;
-            mHandler = null;
         }
     }
 
@@ -156,4 +337,21 @@ public abstract class ContactsTaskScheduler {
     public boolean isRunningForTest() {
         return isRunning();
     }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.print("Task scheduler ");
+            pw.print(mName);
+            pw.println(":");
+            for (int i = 0; i < mLanes.size(); i++) {
+                final Lane lane = mLanes.valueAt(i);
+                pw.printf("  %s: running=%b  depth=%d  max depth=%d  executed=%d"
+                        + "  deduplicated=%d\n",
+                        lane.name, lane.thread != null, lane.pendingTasks.size(),
+                        lane.maxQueueDepth, lane.executedCount, lane.deduplicatedCount);
+                lane.waitTimes.dump(pw, "wait");
+                lane.runTimes.dump(pw, "run");
+            }
+        }
+    }
 }
@@ -144,7 +144,7 @@ public abstract class DataRowHandler {
         }
 
         if (containsSearchableColumns(values)) {
-            txContext.invalidateSearchIndexForRawContact(rawContactId);
+            txContext.invalidateSearchIndexForDataRow(rawContactId, dataId);
         }
 
         return dataId;
@@ -170,7 +170,7 @@ public abstract class DataRowHandler {
         }
 
         if (containsSearchableColumns(values)) {
-            txContext.invalidateSearchIndexForRawContact(rawContactId);
+            txContext.invalidateSearchIndexForDataRow(rawContactId, dataId);
         }
 
         txContext.markRawContactDirtyAndChanged(rawContactId, callerIsSyncAdapter);
@@ -327,7 +327,7 @@ public abstract class DataRowHandler {
         }
 
         if (hasSearchableData()) {
-            txContext.invalidateSearchIndexForRawContact(rawContactId);
+            txContext.invalidateSearchIndexForDataRow(rawContactId, dataId);
         }
 
         return count;
@@ -368,14 +368,28 @@ public abstract class DataRowHandler {
         return 0;
     }
 
+    /**
+     * Marks the display name of the raw contact as stale. It's recomputed when the transactional
+     * changes are flushed, once per raw contact. New raw contacts get their display name then
+     * anyway.
+     */
     protected void fixRawContactDisplayName(SQLiteDatabase db, TransactionContext txContext,
             long rawContactId) {
         if (!isNewRawContact(txContext, rawContactId)) {
-            mDbHelper.updateRawContactDisplayName(db, rawContactId);
-            mContactAggregator.updateDisplayNameForRawContact(db, rawContactId);
+            txContext.invalidateDerivedFields(rawContactId,
+                    TransactionContext.DERIVED_FIELD_DISPLAY_NAME);
         }
     }
 
+    /**
+     * Marks the {@link ContactsContract.Contacts#HAS_PHONE_NUMBER} flag of the contact of the raw
+     * contact as stale. It's recomputed when the transactional changes are flushed.
+     */
+    protected void fixHasPhoneNumber(TransactionContext txContext, long rawContactId) {
+        txContext.invalidateDerivedFields(rawContactId,
+                TransactionContext.DERIVED_FIELD_HAS_PHONE_NUMBER);
+    }
+
     private boolean isNewRawContact(TransactionContext txContext, long rawContactId) {
         return txContext.isNewRawContact(rawContactId);
     }
@@ -416,8 +430,13 @@ public abstract class DataRowHandler {
         return values;
     }
 
+    /**
+     * Schedules the aggregation of the raw contact according to its aggregation mode, when the
+     * transactional changes are flushed.
+     */
     public void triggerAggregation(TransactionContext txContext, long rawContactId) {
-        mContactAggregator.triggerAggregation(txContext, rawContactId);
+        txContext.invalidateDerivedFields(rawContactId,
+                TransactionContext.DERIVED_FIELD_AGGREGATION);
     }
 
     /**
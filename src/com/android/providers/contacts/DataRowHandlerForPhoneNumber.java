@@ -19,16 +19,21 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 
 import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.SearchIndexManager.IndexBuilder;
+import com.android.providers.contacts.TransactionContext.PhoneLookupUpdate;
 import com.android.providers.contacts.aggregation.AbstractContactAggregator;
 
+import java.util.ArrayList;
+
 /**
  * Handler for phone number data rows.
  */
@@ -54,8 +59,9 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
         if (values.containsKey(Phone.NUMBER)) {
             final String number = values.getAsString(Phone.NUMBER);
             final String normalizedNumber = values.getAsString(Phone.NORMALIZED_NUMBER);
-            updatePhoneLookup(db, rawContactId, dataId, number, normalizedNumber);
-            mContactAggregator.updateHasPhoneNumber(db, rawContactId);
+            txContext.updatePhoneLookup(dataId, rawContactId, number, normalizedNumber,
+                    /* newDataRow =*/ true);
+            fixHasPhoneNumber(txContext, rawContactId);
             fixRawContactDisplayName(db, txContext, rawContactId);
 
             triggerAggregation(txContext, rawContactId);
@@ -76,10 +82,9 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
         if (values.containsKey(Phone.NUMBER)) {
             long dataId = c.getLong(DataUpdateQuery._ID);
             long rawContactId = c.getLong(DataUpdateQuery.RAW_CONTACT_ID);
-            updatePhoneLookup(db, rawContactId, dataId,
-                    values.getAsString(Phone.NUMBER),
-                    values.getAsString(Phone.NORMALIZED_NUMBER));
-            mContactAggregator.updateHasPhoneNumber(db, rawContactId);
+            txContext.updatePhoneLookup(dataId, rawContactId, values.getAsString(Phone.NUMBER),
+                    values.getAsString(Phone.NORMALIZED_NUMBER), /* newDataRow =*/ false);
+            fixHasPhoneNumber(txContext, rawContactId);
             fixRawContactDisplayName(db, txContext, rawContactId);
 
             triggerAggregation(txContext, rawContactId);
@@ -112,36 +117,170 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
 
         int count = super.delete(db, txContext, c);
 
-        updatePhoneLookup(db, rawContactId, dataId, null, null);
-        mContactAggregator.updateHasPhoneNumber(db, rawContactId);
+        txContext.updatePhoneLookup(dataId, rawContactId, null, null, /* newDataRow =*/ false);
+        fixHasPhoneNumber(txContext, rawContactId);
         fixRawContactDisplayName(db, txContext, rawContactId);
         triggerAggregation(txContext, rawContactId);
         return count;
     }
 
-    private void updatePhoneLookup(SQLiteDatabase db, long rawContactId, long dataId,
-            String number, String numberE164) {
-        mSelectionArgs1[0] = String.valueOf(dataId);
-        db.delete(Tables.PHONE_LOOKUP, PhoneLookupColumns.DATA_ID + "=?", mSelectionArgs1);
-        if (number != null) {
-            String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-            if (!TextUtils.isEmpty(normalizedNumber)) {
-                ContentValues phoneValues = new ContentValues();
-                phoneValues.put(PhoneLookupColumns.RAW_CONTACT_ID, rawContactId);
-                phoneValues.put(PhoneLookupColumns.DATA_ID, dataId);
-                phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, normalizedNumber);
-                phoneValues.put(PhoneLookupColumns.MIN_MATCH,
-                        PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
-                db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
-
-                if (numberE164 != null && !numberE164.equals(normalizedNumber)) {
-                    phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, numberE164);
-                    phoneValues.put(PhoneLookupColumns.MIN_MATCH,
-                            PhoneNumberUtils.toCallerIDMinMatch(numberE164));
-                    db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
+    /**
+     * Applies the phone_lookup updates recorded in the transaction. The rows of each data row
+     * whose number changed are replaced using the same compiled statements, and the cached
+     * lookups of both the old and the new numbers are invalidated. Data rows whose rows are
+     * already up to date are skipped.
+     */
+    public void flushPhoneLookupUpdates(SQLiteDatabase db, TransactionContext txContext) {
+        final ArrayMap<Long, PhoneLookupUpdate> updates = txContext.getPhoneLookupUpdates();
+        if (updates.isEmpty()) {
+            return;
+        }
+
+        final ArrayMap<Long, PhoneLookupRows> currentRows = queryPhoneLookupRows(db, updates);
+        final SQLiteStatement phoneLookupDelete = db.compileStatement(
+                "DELETE FROM " + Tables.PHONE_LOOKUP +
+                " WHERE " + PhoneLookupColumns.DATA_ID + "=?");
+        final SQLiteStatement phoneLookupInsert = db.compileStatement(
+                "INSERT INTO " + Tables.PHONE_LOOKUP + "("
+                        + PhoneLookupColumns.RAW_CONTACT_ID + ","
+                        + PhoneLookupColumns.DATA_ID + ","
+                        + PhoneLookupColumns.NORMALIZED_NUMBER + ","
+                        + PhoneLookupColumns.MIN_MATCH +
+                ") VALUES (?,?,?,?)");
+        try {
+            for (int i = 0; i < updates.size(); i++) {
+                final long dataId = updates.keyAt(i);
+                final PhoneLookupUpdate update = updates.valueAt(i);
+
+                String normalizedNumber = null;
+                String numberE164 = null;
+                if (update.number != null) {
+                    normalizedNumber = PhoneNumberUtils.normalizeNumber(update.number);
+                    if (TextUtils.isEmpty(normalizedNumber)) {
+                        normalizedNumber = null;
+                    } else if (update.numberE164 != null
+                            && !update.numberE164.equals(normalizedNumber)) {
+                        numberE164 = update.numberE164;
+                    }
+                }
+
+                final PhoneLookupRows rows = currentRows.get(dataId);
+                if (rows != null) {
+                    if (rows.matches(update.rawContactId, normalizedNumber, numberE164)) {
+                        continue;
+                    }
+                    for (int j = 0; j < rows.minMatches.size(); j++) {
+                        txContext.invalidatePhoneLookupCacheForMinMatch(rows.minMatches.get(j));
+                    }
+                    phoneLookupDelete.bindLong(1, dataId);
+                    phoneLookupDelete.execute();
+                }
+
+                if (normalizedNumber != null) {
+                    insertPhoneLookup(phoneLookupInsert, txContext, update.rawContactId, dataId,
+                            normalizedNumber);
+                    if (numberE164 != null) {
+                        insertPhoneLookup(phoneLookupInsert, txContext, update.rawContactId,
+                                dataId, numberE164);
+                    }
+                }
+            }
+        } finally {
+            phoneLookupDelete.close();
+            phoneLookupInsert.close();
+        }
+        updates.clear();
+    }
+
+    private static void insertPhoneLookup(SQLiteStatement phoneLookupInsert,
+            TransactionContext txContext, long rawContactId, long dataId, String number) {
+        final String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
+        phoneLookupInsert.bindLong(1, rawContactId);
+        phoneLookupInsert.bindLong(2, dataId);
+        phoneLookupInsert.bindString(3, number);
+        phoneLookupInsert.bindString(4, minMatch);
+        phoneLookupInsert.executeInsert();
+        txContext.invalidatePhoneLookupCacheForMinMatch(minMatch);
+    }
+
+    private interface PhoneLookupQuery {
+        String[] COLUMNS = new String[] {
+                PhoneLookupColumns.DATA_ID,
+                PhoneLookupColumns.RAW_CONTACT_ID,
+                PhoneLookupColumns.NORMALIZED_NUMBER,
+                PhoneLookupColumns.MIN_MATCH,
+        };
+
+        int DATA_ID = 0;
+        int RAW_CONTACT_ID = 1;
+        int NORMALIZED_NUMBER = 2;
+        int MIN_MATCH = 3;
+    }
+
+    /**
+     * The current phone_lookup rows of a data row.
+     */
+    private static final class PhoneLookupRows {
+        long rawContactId;
+        boolean sameRawContact = true;
+        final ArrayList<String> numbers = new ArrayList<>(2);
+        final ArrayList<String> minMatches = new ArrayList<>(2);
+
+        /**
+         * Returns whether the rows are the ones that would be inserted for the given numbers.
+         */
+        boolean matches(long rawContactId, String normalizedNumber, String numberE164) {
+            if (!sameRawContact || this.rawContactId != rawContactId
+                    || normalizedNumber == null) {
+                return false;
+            }
+            if (numberE164 == null) {
+                return numbers.size() == 1 && normalizedNumber.equals(numbers.get(0));
+            }
+            return numbers.size() == 2 && numbers.contains(normalizedNumber)
+                    && numbers.contains(numberE164);
+        }
+    }
+
+    /**
+     * Returns the current phone_lookup rows of the data rows that existed before the
+     * transaction, by data id.
+     */
+    private ArrayMap<Long, PhoneLookupRows> queryPhoneLookupRows(SQLiteDatabase db,
+            ArrayMap<Long, PhoneLookupUpdate> updates) {
+        final ArrayMap<Long, PhoneLookupRows> rowsByDataId = new ArrayMap<>();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < updates.size(); i++) {
+            if (!updates.valueAt(i).newDataRow) {
+                sb.append(updates.keyAt(i)).append(',');
+            }
+        }
+        if (sb.length() == 0) {
+            return rowsByDataId;
+        }
+        sb.setLength(sb.length() - 1);
+
+        final Cursor c = db.query(Tables.PHONE_LOOKUP, PhoneLookupQuery.COLUMNS,
+                PhoneLookupColumns.DATA_ID + " IN (" + sb + ")", null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final long dataId = c.getLong(PhoneLookupQuery.DATA_ID);
+                final long rawContactId = c.getLong(PhoneLookupQuery.RAW_CONTACT_ID);
+                PhoneLookupRows rows = rowsByDataId.get(dataId);
+                if (rows == null) {
+                    rows = new PhoneLookupRows();
+                    rows.rawContactId = rawContactId;
+                    rowsByDataId.put(dataId, rows);
+                } else if (rows.rawContactId != rawContactId) {
+                    rows.sameRawContact = false;
                 }
+                rows.numbers.add(c.getString(PhoneLookupQuery.NORMALIZED_NUMBER));
+                rows.minMatches.add(c.getString(PhoneLookupQuery.MIN_MATCH));
             }
+        } finally {
+            c.close();
         }
+        return rowsByDataId;
     }
 
     @Override
@@ -51,6 +51,8 @@ import java.util.Set;
  * generates necessary notifications after the modification operation is performed.
  * The class generates notifications for both voicemail as well as call log URI depending on which
  * of then got affected by the change.
+ * Call log notifications go through a {@link CallLogChangeNotifier}, and those of a bulk
+ * operation are sent once, when it finishes.
  */
 public class DbModifierWithNotification implements DatabaseModifier {
 
@@ -72,27 +74,44 @@ public class DbModifierWithNotification implements DatabaseModifier {
     private final Uri mBaseUri;
     private final boolean mIsCallsTable;
     private final VoicemailNotifier mVoicemailNotifier;
+    private final CallLogChangeNotifier mCallLogChangeNotifier;
 
     private boolean mIsBulkOperation = false;
+    private boolean mCallLogChanged = false;
 
     private static VoicemailNotifier sVoicemailNotifierForTest;
 
     public DbModifierWithNotification(String tableName, SQLiteDatabase db, Context context) {
-        this(tableName, db, null, context);
+        this(tableName, db, (CallLogChangeNotifier) null, context);
+    }
+
+    public DbModifierWithNotification(String tableName, SQLiteDatabase db,
+            CallLogChangeNotifier callLogChangeNotifier, Context context) {
+        this(tableName, db, null, true /* hasReadVoicemail */, callLogChangeNotifier, context);
     }
 
     public DbModifierWithNotification(String tableName, InsertHelper insertHelper,
             Context context) {
-        this(tableName, null, insertHelper, context);
+        this(tableName, insertHelper, null, context);
     }
 
-    private DbModifierWithNotification(String tableName, SQLiteDatabase db,
-            InsertHelper insertHelper, Context context) {
-        this(tableName, db, insertHelper, true /* hasReadVoicemail */, context);
+    public DbModifierWithNotification(String tableName, InsertHelper insertHelper,
+            CallLogChangeNotifier callLogChangeNotifier, Context context) {
+        this(tableName, null, insertHelper, true /* hasReadVoicemail */, callLogChangeNotifier,
+                context);
     }
 
     public DbModifierWithNotification(String tableName, SQLiteDatabase db,
             InsertHelper insertHelper, boolean hasReadVoicemailPermission, Context context) {
+        this(tableName, db, insertHelper, hasReadVoicemailPermission, null, context);
+    }
+
+    /**
+     * @param callLogChangeNotifier notifier of the call log changes; if null, the shared one
+     */
+    public DbModifierWithNotification(String tableName, SQLiteDatabase db,
+            InsertHelper insertHelper, boolean hasReadVoicemailPermission,
+            CallLogChangeNotifier callLogChangeNotifier, Context context) {
         mTableName = tableName;
         mDb = db;
         mHasReadVoicemailPermission = hasReadVoicemailPermission;
@@ -103,6 +122,10 @@ public class DbModifierWithNotification implements DatabaseModifier {
         mIsCallsTable = mTableName.equals(Tables.CALLS);
         mVoicemailNotifier = sVoicemailNotifierForTest != null ? sVoicemailNotifierForTest
                 : new VoicemailNotifier(mContext, mBaseUri);
+        if (callLogChangeNotifier == null && mIsCallsTable) {
+            callLogChangeNotifier = CallLogChangeNotifier.getInstance(mContext);
+        }
+        mCallLogChangeNotifier = callLogChangeNotifier;
     }
 
     @Override
@@ -117,7 +140,7 @@ public class DbModifierWithNotification implements DatabaseModifier {
                     packagesModified);
         }
         if (rowId > 0 && mIsCallsTable) {
-            notifyCallLogChange(mContext);
+            notifyCallLogChange();
         }
         return rowId;
     }
@@ -134,11 +157,19 @@ public class DbModifierWithNotification implements DatabaseModifier {
                     ContentUris.withAppendedId(mBaseUri, rowId), packagesModified);
         }
         if (rowId > 0 && mIsCallsTable) {
-            notifyCallLogChange(mContext);
+            notifyCallLogChange();
         }
         return rowId;
     }
 
+    private void notifyCallLogChange() {
+        if (mIsBulkOperation) {
+            mCallLogChanged = true;
+        } else {
+            mCallLogChangeNotifier.notifyChange();
+        }
+    }
+
     public static void notifyCallLogChange(Context context) {
         context.getContentResolver().notifyChange(Calls.CONTENT_URI, null, false);
 
@@ -218,7 +249,7 @@ public class DbModifierWithNotification implements DatabaseModifier {
             notifyVoicemailChange(mBaseUri, packagesModified);
         }
         if (count > 0 && mIsCallsTable) {
-            notifyCallLogChange(mContext);
+            notifyCallLogChange();
         }
         if (hasMarkedRead) {
             // A "New" voicemail has been marked as read by the server. This voicemail is no longer
@@ -309,7 +340,7 @@ public class DbModifierWithNotification implements DatabaseModifier {
             notifyVoicemailChange(mBaseUri, packagesModified);
         }
         if (count > 0 && mIsCallsTable) {
-            notifyCallLogChange(mContext);
+            notifyCallLogChange();
         }
         return count;
     }
@@ -331,6 +362,10 @@ public class DbModifierWithNotification implements DatabaseModifier {
         mDb.endTransaction();
         mIsBulkOperation = false;
         mVoicemailNotifier.sendNotification();
+        if (mCallLogChanged) {
+            mCallLogChanged = false;
+            mCallLogChangeNotifier.notifyChange();
+        }
     }
 
     /**
@@ -24,33 +24,75 @@ import android.text.TextUtils;
 
 import com.android.i18n.phonenumbers.NumberParseException;
 import com.android.i18n.phonenumbers.PhoneNumberUtil;
+import com.android.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
 import com.android.i18n.phonenumbers.Phonenumber.PhoneNumber;
 import com.android.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.CallLogDatabaseHelper.CallsColumns;
 
 import com.google.android.collect.Sets;
 
 import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Default implementation of {@link CallLogInsertionHelper}.
  * <p>
  * It added the country ISO abbreviation and the geocoded location.
  * It checks for legacy unknown numbers and updates number presentation.
+ * It adds the min match of the number, used to filter calls by number.
  * <p>
  * It uses {@link PhoneNumberOfflineGeocoder} to compute the geocoded location of a phone number.
+ * <p>
+ * Each number is parsed once for both its geocoded location and its E.164 form, and the
+ * results for recent numbers are cached, since the same numbers tend to come up again and
+ * again.  The cache is direct-mapped: each (number, country) pair has a single slot, and a
+ * pair that maps to an occupied slot replaces the entry in it.  The entries are immutable, so
+ * the cache doesn't need a lock.  The locale of the geocoded locations is fixed for the
+ * lifetime of the helper.
  */
 /*package*/ class DefaultCallLogInsertionHelper implements CallLogInsertionHelper {
     private static DefaultCallLogInsertionHelper sInstance;
 
     private static final Set<String> LEGACY_UNKNOWN_NUMBERS = Sets.newHashSet("-1", "-2", "-3");
 
+    /** Number of entries of {@link #mNumberCache}; must be a power of two. */
+    @VisibleForTesting
+    static final int NUMBER_CACHE_SIZE = 128;
+
     private final CountryMonitor mCountryMonitor;
-    private PhoneNumberUtil mPhoneNumberUtil;
-    private PhoneNumberOfflineGeocoder mPhoneNumberOfflineGeocoder;
+    private volatile PhoneNumberUtil mPhoneNumberUtil;
+    private volatile PhoneNumberOfflineGeocoder mPhoneNumberOfflineGeocoder;
     private final Locale mLocale;
 
+    /**
+     * The values computed for a number.
+     */
+    private static final class ComputedNumber {
+        final String number;
+        final String countryIso;
+        final String geocodedLocation;
+        final String normalizedNumber;
+
+        ComputedNumber(String number, String countryIso, String geocodedLocation,
+                String normalizedNumber) {
+            this.number = number;
+            this.countryIso = countryIso;
+            this.geocodedLocation = geocodedLocation;
+            this.normalizedNumber = normalizedNumber;
+        }
+
+        boolean matches(String number, String countryIso) {
+            return Objects.equals(this.number, number)
+                    && Objects.equals(this.countryIso, countryIso);
+        }
+    }
+
+    private final AtomicReferenceArray<ComputedNumber> mNumberCache =
+            new AtomicReferenceArray<>(NUMBER_CACHE_SIZE);
+
     public static synchronized DefaultCallLogInsertionHelper getInstance(Context context) {
         if (sInstance == null) {
             sInstance = new DefaultCallLogInsertionHelper(context);
@@ -80,11 +122,13 @@ import java.util.Set;
         // Insert the current country code, so we know the country the number belongs to.
         String countryIso = getCurrentCountryIso();
         values.put(Calls.COUNTRY_ISO, countryIso);
-        // Insert the geocoded location, so that we do not need to compute it on the fly.
-        values.put(Calls.GEOCODED_LOCATION,
-                getGeocodedLocationFor(values.getAsString(Calls.NUMBER), countryIso));
 
         final String number = values.getAsString(Calls.NUMBER);
+        final ComputedNumber computedNumber = getComputedNumber(number, countryIso);
+
+        // Insert the geocoded location, so that we do not need to compute it on the fly.
+        values.put(Calls.GEOCODED_LOCATION, computedNumber.geocodedLocation);
+
         if (LEGACY_UNKNOWN_NUMBERS.contains(number)) {
             values.put(Calls.NUMBER_PRESENTATION, Calls.PRESENTATION_UNKNOWN);
             values.put(Calls.NUMBER, "");
@@ -93,22 +137,28 @@ import java.util.Set;
         // Check for a normalized number; if not present attempt to determine one now.
         if (!values.containsKey(Calls.CACHED_NORMALIZED_NUMBER) &&
                 !TextUtils.isEmpty(number)) {
-            String normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            String normalizedNumber = computedNumber.normalizedNumber;
             if (!TextUtils.isEmpty(normalizedNumber)) {
                 values.put(Calls.CACHED_NORMALIZED_NUMBER, normalizedNumber);
             }
         }
+
+        values.put(CallsColumns.MIN_MATCH,
+                CallLogDatabaseHelper.computeMinMatch(values.getAsString(Calls.NUMBER)));
     }
 
     private String getCurrentCountryIso() {
         return mCountryMonitor.getCountryIso();
     }
 
-    private synchronized PhoneNumberUtil getPhoneNumberUtil() {
-        if (mPhoneNumberUtil == null) {
-            mPhoneNumberUtil = PhoneNumberUtil.getInstance();
+    // Racing threads get the same singleton, so these getters don't need a lock.
+    private PhoneNumberUtil getPhoneNumberUtil() {
+        PhoneNumberUtil phoneNumberUtil = mPhoneNumberUtil;
+        if (phoneNumberUtil == null) {
+            phoneNumberUtil = PhoneNumberUtil.getInstance();
+            mPhoneNumberUtil = phoneNumberUtil;
         }
-        return mPhoneNumberUtil;
+        return phoneNumberUtil;
     }
 
     private PhoneNumber parsePhoneNumber(String number, String countryIso) {
@@ -119,21 +169,51 @@ import java.util.Set;
         }
     }
 
-    private synchronized PhoneNumberOfflineGeocoder getPhoneNumberOfflineGeocoder() {
-        if (mPhoneNumberOfflineGeocoder == null) {
-            mPhoneNumberOfflineGeocoder = PhoneNumberOfflineGeocoder.getInstance();
+    private PhoneNumberOfflineGeocoder getPhoneNumberOfflineGeocoder() {
+        PhoneNumberOfflineGeocoder geocoder = mPhoneNumberOfflineGeocoder;
+        if (geocoder == null) {
+            geocoder = PhoneNumberOfflineGeocoder.getInstance();
+            mPhoneNumberOfflineGeocoder = geocoder;
         }
-        return mPhoneNumberOfflineGeocoder;
+        return geocoder;
     }
 
     @Override
     public String getGeocodedLocationFor(String number, String countryIso) {
+        return getComputedNumber(number, countryIso).geocodedLocation;
+    }
+
+    /**
+     * Returns the values computed for the number, from the cache if possible.
+     */
+    private ComputedNumber getComputedNumber(String number, String countryIso) {
+        int hash = Objects.hashCode(number) * 31 + Objects.hashCode(countryIso);
+        final int slot = (hash ^ (hash >>> 16)) & (NUMBER_CACHE_SIZE - 1);
+        ComputedNumber computedNumber = mNumberCache.get(slot);
+        if (computedNumber == null || !computedNumber.matches(number, countryIso)) {
+            computedNumber = computeNumber(number, countryIso);
+            mNumberCache.set(slot, computedNumber);
+        }
+        return computedNumber;
+    }
+
+    /**
+     * Parses the number once to compute both its geocoded location and, the same way as
+     * {@link PhoneNumberUtils#formatNumberToE164}, its E.164 form.
+     */
+    private ComputedNumber computeNumber(String number, String countryIso) {
+        String geocodedLocation = null;
+        String normalizedNumber = null;
         PhoneNumber structuredPhoneNumber = parsePhoneNumber(number, countryIso);
         if (structuredPhoneNumber != null) {
-            return getPhoneNumberOfflineGeocoder().getDescriptionForNumber(
+            geocodedLocation = getPhoneNumberOfflineGeocoder().getDescriptionForNumber(
                     structuredPhoneNumber, mLocale);
-        } else {
-            return null;
+            final PhoneNumberUtil phoneNumberUtil = getPhoneNumberUtil();
+            if (phoneNumberUtil.isValidNumber(structuredPhoneNumber)) {
+                normalizedNumber = phoneNumberUtil.format(structuredPhoneNumber,
+                        PhoneNumberFormat.E164);
+            }
         }
+        return new ComputedNumber(number, countryIso, geocodedLocation, normalizedNumber);
     }
 }
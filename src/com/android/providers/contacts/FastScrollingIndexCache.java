@@ -24,67 +24,134 @@ import android.os.Bundle;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
 import android.provider.ContactsContract.Contacts;
-import android.text.TextUtils;
+import android.util.AtomicFile;
 import android.util.Log;
 
-import com.google.android.collect.Maps;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Cache for the "fast scrolling index".
  *
  * It's a cache from "keys" and "bundles" (see {@link #mCache} for what they are).  The cache
- * content is also persisted in the shared preferences, so it'll survive even if the process
- * is killed or the device reboots.
+ * content is also persisted in a file, so it'll survive even if the process is killed or the
+ * device reboots.
  *
- * All the content will be invalidated when the provider detects an operation that could potentially
- * change the index.
+ * Each entry is tagged with the account its query was restricted to, if any.  The provider
+ * invalidates all the content when it detects an operation that could potentially change any
+ * index, or only the entries depending on the accounts an operation touched (see
+ * {@link #invalidateAccounts}).
  *
- * There's no maximum number for cached entries.  It's okay because we store keys and values in
- * a compact form in both the in-memory cache and the preferences.  Also the query in question
- * (the query for contact lists) has relatively low number of variations.
+ * The number of entries is bounded; the least recently used entries are evicted first.  Filter
+ * queries in particular produce one entry per filter string.
+ *
+ * The file is only written or deleted on a background thread, and a burst of changes, including
+ * invalidations, results in a single write.  If the process dies before that write, the file
+ * still has the content from before the changes.
  *
  * This class is thread-safe.
  */
 public class FastScrollingIndexCache {
     private static final String TAG = "LetterCountCache";
 
+    /**
+     * Shared preferences key the cache used to be persisted under.  Only used to clean it up.
+     */
+    private static final String LEGACY_PREFERENCE_KEY = "LetterCountCache";
+
     @VisibleForTesting
-    static final String PREFERENCE_KEY = "LetterCountCache";
+    static final String FILE_NAME = "fast_scrolling_index_cache";
 
     /**
-     * Separator used for in-memory structure.
+     * Header of the cache file, followed by {@link #FILE_VERSION}.  Bump the version whenever the
+     * file format changes; files with any other version are discarded.
      */
-    private static final String SEPARATOR = "\u0001";
-    private static final Pattern SEPARATOR_PATTERN = Pattern.compile(SEPARATOR);
+    private static final int FILE_MAGIC = 0x46534943; // "FSIC"
+    private static final int FILE_VERSION = 2;
+
+    /** Sanity limits for lengths read from the file, so that corruption can't exhaust memory. */
+    private static final int MAX_STRING_BYTES = 1 << 20;
+    private static final int MAX_TITLES = 1 << 16;
 
     /**
-     * Separator used for serializing values for preferences.
+     * Separator used for building keys.
      */
-    private static final String SAVE_SEPARATOR = "\u0002";
-    private static final Pattern SAVE_SEPARATOR_PATTERN = Pattern.compile(SAVE_SEPARATOR);
+    private static final String SEPARATOR = "\u0001";
+
+    @VisibleForTesting
+    static final int DEFAULT_CAPACITY = 64;
+
+    /** Account ID of entries whose query isn't restricted to an account. */
+    public static final long ALL_ACCOUNTS = -1;
 
-    private final SharedPreferences mPrefs;
+    private final AtomicFile mFile;
 
-    private boolean mPreferenceLoaded;
+    private final int mCapacity;
+
+    private boolean mFileLoaded;
 
     /**
-     * In-memory cache.
-     *
-     * It's essentially a map from keys, which are query parameters passed to {@link #get}, to
-     * values, which are {@link Bundle}s that will be appended to a {@link Cursor} as extras.
+     * In-memory cache, in access order.
      *
-     * However, in order to save memory, we store stringified keys and values in the cache.
-     * Key strings are generated by {@link #buildCacheKey} and values are generated by
-     * {@link #buildCacheValue}.
-     *
-     * We store those strings joined with {@link #SAVE_SEPARATOR} as the separator when saving
-     * to shared preferences.
+     * It's a map from keys, which are query parameters passed to {@link #get}, to values, which
+     * hold {@link Bundle}s that will be appended to a {@link Cursor} as extras.  Key strings are
+     * generated by {@link #buildCacheKey}, and bundles are kept parsed so that a hit is only a map
+     * lookup.
+     */
+    private final LinkedHashMap<String, Entry> mCache;
+
+    private static final class Entry {
+        final Bundle bundle;
+        final long accountId;
+
+        Entry(Bundle bundle, long accountId) {
+            this.bundle = bundle;
+            this.accountId = accountId;
+        }
+    }
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private int mInvalidationCount;
+
+    /**
+     * Incremented on every {@link #invalidate}, so that a save that raced with it doesn't bring
+     * the discarded content back.
      */
-    private final Map<String, String> mCache = Maps.newHashMap();
+    private int mGeneration;
+
+    /** Whether a save has been scheduled but hasn't taken a snapshot of {@link #mCache} yet. */
+    private boolean mSaveScheduled;
+
+    private final Executor mSaveExecutor =
+            new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, "FastScrollingIndexSaver"));
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
 
     private static FastScrollingIndexCache sSingleton;
 
@@ -93,7 +160,11 @@ public class FastScrollingIndexCache {
             final StrictMode.ThreadPolicy old = StrictMode.allowThreadDiskReads();
             try {
                 SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                sSingleton = new FastScrollingIndexCache(prefs);
+                if (prefs.contains(LEGACY_PREFERENCE_KEY)) {
+                    prefs.edit().remove(LEGACY_PREFERENCE_KEY).apply();
+                }
+                sSingleton = new FastScrollingIndexCache(
+                        new File(context.getFilesDir(), FILE_NAME), DEFAULT_CAPACITY);
             } finally {
                 StrictMode.setThreadPolicy(old);
             }
@@ -102,14 +173,29 @@ public class FastScrollingIndexCache {
     }
 
     @VisibleForTesting
-    static synchronized FastScrollingIndexCache getInstanceForTest(
-            SharedPreferences prefs) {
-        sSingleton = new FastScrollingIndexCache(prefs);
+    static synchronized FastScrollingIndexCache getInstanceForTest(File file) {
+        return getInstanceForTest(file, DEFAULT_CAPACITY);
+    }
+
+    @VisibleForTesting
+    static synchronized FastScrollingIndexCache getInstanceForTest(File file, int capacity) {
+        sSingleton = new FastScrollingIndexCache(file, capacity);
         return sSingleton;
     }
 
-    private FastScrollingIndexCache(SharedPreferences prefs) {
-        mPrefs = prefs;
+    private FastScrollingIndexCache(File file, int capacity) {
+        mFile = new AtomicFile(file);
+        mCapacity = capacity;
+        mCache = new LinkedHashMap<String, Entry>(16, 0.75f, /* accessOrder =*/ true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > mCapacity) {
+                    mEvictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
     }
 
     /**
@@ -145,22 +231,6 @@ public class FastScrollingIndexCache {
         return sb.toString();
     }
 
-    @VisibleForTesting
-    static String buildCacheValue(String[] titles, int[] counts) {
-        final StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < titles.length; i++) {
-            if (i > 0) {
-                appendIfNotNull(sb, SEPARATOR);
-            }
-            appendIfNotNull(sb, titles[i]);
-            appendIfNotNull(sb, SEPARATOR);
-            appendIfNotNull(sb, Integer.toString(counts[i]));
-        }
-
-        return sb.toString();
-    }
-
     /**
      * Creates and returns a {@link Bundle} that is appended to a {@link Cursor} as extras.
      */
@@ -171,61 +241,27 @@ public class FastScrollingIndexCache {
         return bundle;
     }
 
-    @VisibleForTesting
-    static Bundle buildExtraBundleFromValue(String value) {
-        final String[] values;
-        if (TextUtils.isEmpty(value)) {
-            values = new String[0];
-        } else {
-            values = SEPARATOR_PATTERN.split(value);
-        }
-
-        if ((values.length) % 2 != 0) {
-            return null; // malformed
-        }
-
-        try {
-            final int numTitles = values.length / 2;
-            final String[] titles = new String[numTitles];
-            final int[] counts = new int[numTitles];
-
-            for (int i = 0; i < numTitles; i++) {
-                titles[i] = values[i * 2];
-                counts[i] = Integer.parseInt(values[i * 2 + 1]);
-            }
-
-            return buildExtraBundle(titles, counts);
-        } catch (RuntimeException e) {
-            Log.w(TAG, "Failed to parse cached value", e);
-            return null; // malformed
-        }
-    }
-
     public Bundle get(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
             String countExpression) {
         synchronized (mCache) {
             ensureLoaded();
             final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder,
                     countExpression);
-            final String value = mCache.get(key);
+            final Entry value = mCache.get(key);
             if (value == null) {
+                mMissCount++;
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
                     Log.v(TAG, "Miss: " + key);
                 }
                 return null;
             }
 
-            final Bundle b = buildExtraBundleFromValue(value);
-            if (b == null) {
-                // Value was malformed for whatever reason.
-                mCache.remove(key);
-                save();
-            } else {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "Hit:  " + key);
-                }
+            mHitCount++;
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Hit:  " + key);
             }
-            return b;
+            // Callers attach the bundle to a cursor, so don't hand out the cached instance.
+            return new Bundle(value.bundle);
         }
     }
 
@@ -235,14 +271,24 @@ public class FastScrollingIndexCache {
      */
     public void put(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
             String countExpression, Bundle bundle) {
+        put(queryUri, selection, selectionArgs, sortOrder, countExpression, bundle,
+                ALL_ACCOUNTS);
+    }
+
+    /**
+     * Put a {@link Bundle} computed by a query restricted to the raw contacts of the given
+     * account, or {@link #ALL_ACCOUNTS}, into the cache.
+     */
+    public void put(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
+            String countExpression, Bundle bundle, long accountId) {
         synchronized (mCache) {
             ensureLoaded();
             final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder,
                     countExpression);
-            mCache.put(key, buildCacheValue(
+            mCache.put(key, new Entry(buildExtraBundle(
                     bundle.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES),
-                    bundle.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS)));
-            save();
+                    bundle.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS)), accountId));
+            scheduleSave();
 
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.v(TAG, "Put: " + key);
@@ -252,9 +298,11 @@ public class FastScrollingIndexCache {
 
     public void invalidate() {
         synchronized (mCache) {
-            mPrefs.edit().remove(PREFERENCE_KEY).commit();
             mCache.clear();
-            mPreferenceLoaded = true;
+            mGeneration++;
+            mInvalidationCount++;
+            mFileLoaded = true;
+            scheduleSave();
 
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.v(TAG, "Invalidated");
@@ -263,64 +311,215 @@ public class FastScrollingIndexCache {
     }
 
     /**
-     * Store the cache to the preferences.
-     *
-     * We concatenate all key+value pairs into one string and save it.
+     * Invalidates the entries that could have been changed by a write to the raw contacts of the
+     * given accounts: the entries restricted to one of these accounts, and all the entries that
+     * aren't restricted to an account.
      */
-    private void save() {
-        final StringBuilder sb = new StringBuilder();
-        for (String key : mCache.keySet()) {
-            if (sb.length() > 0) {
-                appendIfNotNull(sb, SAVE_SEPARATOR);
+    public void invalidateAccounts(Set<Long> accountIds) {
+        synchronized (mCache) {
+            ensureLoaded();
+            final Iterator<Entry> it = mCache.values().iterator();
+            while (it.hasNext()) {
+                final long accountId = it.next().accountId;
+                if (accountId == ALL_ACCOUNTS || accountIds.contains(accountId)) {
+                    it.remove();
+                }
+            }
+            mGeneration++;
+            mInvalidationCount++;
+            scheduleSave();
+
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Invalidated accounts " + accountIds);
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mCache) {
+            pw.printf("  cache: size=%d/%d  hit=%d  miss=%d  evicted=%d  invalidated=%d\n",
+                    mCache.size(), mCapacity, mHitCount, mMissCount, mEvictionCount,
+                    mInvalidationCount);
+        }
+    }
+
+    /**
+     * Schedules the cache to be written to the file.  A burst of puts and invalidations results
+     * in a single write, since the write takes a snapshot of whatever the cache contains when it
+     * starts.
+     */
+    private void scheduleSave() {
+        if (!mSaveScheduled) {
+            mSaveScheduled = true;
+            mSaveExecutor.execute(mSaveRunnable);
+        }
+    }
+
+    /**
+     * Writes the current cache content to the file, replacing it atomically, or deletes the file
+     * if the cache is empty.
+     */
+    @VisibleForTesting
+    void flush() {
+        final Map<String, Entry> snapshot;
+        final int generation;
+        synchronized (mCache) {
+            mSaveScheduled = false;
+            // Copied in access order, so that loading the file restores the LRU order.
+            snapshot = new LinkedHashMap<>(mCache);
+            generation = mGeneration;
+        }
+
+        if (snapshot.isEmpty()) {
+            // A put after the snapshot schedules another save, which writes the file again.
+            mFile.delete();
+            return;
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            writeVarint(out, snapshot.size());
+            for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+                final Bundle value = entry.getValue().bundle;
+                final String[] titles =
+                        value.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
+                final int[] counts = value.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS);
+                writeString(out, entry.getKey());
+                // ALL_ACCOUNTS is stored as 0.
+                writeVarint(out, entry.getValue().accountId + 1);
+                writeVarint(out, titles.length);
+                for (int i = 0; i < titles.length; i++) {
+                    writeString(out, titles[i]);
+                    // Zigzag encoding, so that negative counts stay small too.
+                    writeVarint(out, (counts[i] << 1) ^ (counts[i] >> 31));
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save", e);
+            mFile.failWrite(fos);
+            return;
+        }
+
+        synchronized (mCache) {
+            if (generation == mGeneration) {
+                mFile.finishWrite(fos);
+            } else {
+                // Invalidated while we were writing; drop the stale content.
+                mFile.failWrite(fos);
             }
-            appendIfNotNull(sb, key);
-            appendIfNotNull(sb, SAVE_SEPARATOR);
-            appendIfNotNull(sb, mCache.get(key));
         }
-        mPrefs.edit().putString(PREFERENCE_KEY, sb.toString()).apply();
     }
 
     private void ensureLoaded() {
-        if (mPreferenceLoaded) return;
+        if (mFileLoaded) return;
 
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
             Log.v(TAG, "Loading...");
         }
 
         // Even when we fail to load, don't retry loading again.
-        mPreferenceLoaded = true;
+        mFileLoaded = true;
 
         boolean successfullyLoaded = false;
+        DataInputStream in = null;
         try {
-            final String savedValue = mPrefs.getString(PREFERENCE_KEY, null);
-
-            if (!TextUtils.isEmpty(savedValue)) {
-
-                final String[] keysAndValues = SAVE_SEPARATOR_PATTERN.split(savedValue);
-
-                if ((keysAndValues.length % 2) != 0) {
-                    return; // malformed
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return; // unknown format
+            }
+            final int numEntries = readVarint(in);
+            for (int i = 0; i < numEntries; i++) {
+                final String key = readString(in);
+                final long accountId = readVarLong(in) - 1;
+                final int numTitles = readVarint(in);
+                if (numTitles < 0 || numTitles > MAX_TITLES) {
+                    throw new IOException("Malformed title count: " + numTitles);
+                }
+                final String[] titles = new String[numTitles];
+                final int[] counts = new int[numTitles];
+                for (int j = 0; j < numTitles; j++) {
+                    titles[j] = readString(in);
+                    final int encoded = readVarint(in);
+                    counts[j] = (encoded >>> 1) ^ -(encoded & 1);
                 }
 
-                for (int i = 1; i < keysAndValues.length; i += 2) {
-                    final String key = keysAndValues[i - 1];
-                    final String value = keysAndValues[i];
-
-                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Loaded: " + key);
-                    }
-
-                    mCache.put(key, value);
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "Loaded: " + key);
                 }
+
+                mCache.put(key, new Entry(buildExtraBundle(titles, counts), accountId));
             }
             successfullyLoaded = true;
-        } catch (RuntimeException e) {
-            Log.w(TAG, "Failed to load from preferences", e);
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet.
+            successfullyLoaded = true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to load from file", e);
             // But don't crash apps!
         } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
             if (!successfullyLoaded) {
                 invalidate();
             }
         }
     }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        writeVarint(out, value & 0xffffffffL);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        final long value = readVarLong(in);
+        if ((value & ~0xffffffffL) != 0) {
+            throw new IOException("Malformed varint");
+        }
+        return (int) value;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = readVarint(in);
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Malformed string length: " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 }
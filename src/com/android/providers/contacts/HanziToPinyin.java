@@ -95,6 +95,14 @@ public class HanziToPinyin {
         }
     }
 
+    /**
+     * Returns a new instance with its own transliterators.  {@link Transliterator}s aren't
+     * thread-safe, so threads that transliterate in parallel can't share {@link #getInstance}.
+     */
+    public static HanziToPinyin newInstance() {
+        return new HanziToPinyin();
+    }
+
     private void tokenize(char character, Token token) {
         token.source = Character.toString(character);
 
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.provider.ContactsContract.Contacts;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of the contact IDs lookup keys resolve to.  Launchers, widgets and shortcuts
+ * resolve the same {@link Contacts#CONTENT_LOOKUP_URI lookup URIs} over and over, and resolving
+ * a key may take up to three queries (see {@link ContactsProvider2#lookupContactIdByLookupKey}).
+ *
+ * Each entry records the version of the contact the key resolved to, i.e. its
+ * {@link Contacts#CONTACT_LAST_UPDATED_TIMESTAMP}.  An entry is only used if the contact still
+ * exists and still has that version, which catches the contact being deleted or its raw contacts
+ * changing.  A key may also start resolving to a different contact when raw contacts are
+ * aggregated or their source IDs change, so {@link ContactsProvider2} invalidates the whole
+ * cache when that happens.
+ *
+ * Like {@link PhoneLookupCache}, the cache doesn't take new entries between
+ * {@link #invalidateInTransaction} and {@link #onTransactionFinished}, nor if there was an
+ * invalidation while the key was being resolved (see {@link #getGeneration}).
+ *
+ * The number of entries is bounded; the least recently used entries are evicted first.
+ *
+ * This class is thread-safe.
+ */
+public class LookupKeyCache {
+    /** Returned by {@link #get} and {@link ContactVersionReader} if there's no contact. */
+    public static final long NOT_FOUND = -1;
+
+    @VisibleForTesting
+    static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Reads the current version of a contact.
+     */
+    public interface ContactVersionReader {
+        /**
+         * Returns the version of the contact, or {@link #NOT_FOUND} if it doesn't exist.
+         */
+        long getContactVersion(long contactId);
+    }
+
+    private final int mCapacity;
+
+    /** In-memory cache from lookup key to contact, in access order. */
+    private final LinkedHashMap<String, Entry> mCache;
+
+    private static final class Entry {
+        final long contactId;
+        final long version;
+
+        Entry(long contactId, long version) {
+            this.contactId = contactId;
+            this.version = version;
+        }
+    }
+
+    private int mGeneration;
+    private boolean mInvalidationPending;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mStaleCount;
+    private int mEvictionCount;
+    private int mInvalidationCount;
+
+    public LookupKeyCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @VisibleForTesting
+    LookupKeyCache(int capacity) {
+        mCapacity = capacity;
+        mCache = new LinkedHashMap<String, Entry>(16, 0.75f, /* accessOrder =*/ true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > mCapacity) {
+                    mEvictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached contact ID for the lookup key if the contact still has the version it
+     * had when the key was resolved, or {@link #NOT_FOUND} otherwise.
+     */
+    public long get(String lookupKey, ContactVersionReader versionReader) {
+        final Entry entry;
+        synchronized (mCache) {
+            entry = mCache.get(lookupKey);
+            if (entry == null) {
+                mMissCount++;
+                return NOT_FOUND;
+            }
+        }
+
+        // Read the version outside of the lock, as it queries the database.
+        final long version = versionReader.getContactVersion(entry.contactId);
+
+        synchronized (mCache) {
+            if (version != NOT_FOUND && version == entry.version) {
+                mHitCount++;
+                return entry.contactId;
+            }
+            if (mCache.get(lookupKey) == entry) {
+                mCache.remove(lookupKey);
+            }
+            mStaleCount++;
+            mMissCount++;
+            return NOT_FOUND;
+        }
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the key has been
+     * resolved.
+     */
+    public int getGeneration() {
+        synchronized (mCache) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Caches the contact the lookup key resolved to, unless the cache has been invalidated since
+     * {@code generation} was obtained.
+     *
+     * @param version the version of the contact, read after resolving the key
+     */
+    public void put(String lookupKey, int generation, long contactId, long version) {
+        if (contactId == NOT_FOUND || version == NOT_FOUND) {
+            return;
+        }
+        synchronized (mCache) {
+            if (generation == mGeneration && !mInvalidationPending) {
+                mCache.put(lookupKey, new Entry(contactId, version));
+            }
+        }
+    }
+
+    /**
+     * Removes all entries and stops caching until {@link #onTransactionFinished} is called.  Must
+     * be called from within the transaction making the changes.
+     */
+    public void invalidateInTransaction() {
+        synchronized (mCache) {
+            mInvalidationPending = true;
+            mGeneration++;
+            mInvalidationCount += mCache.size();
+            mCache.clear();
+        }
+    }
+
+    /**
+     * Resumes caching after the transaction that called {@link #invalidateInTransaction} has
+     * been committed or rolled back.
+     */
+    public void onTransactionFinished() {
+        synchronized (mCache) {
+            if (mInvalidationPending) {
+                mInvalidationPending = false;
+                mGeneration++;
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.  Must be called after committing changes made outside of
+     * provider transactions.
+     */
+    public void invalidateAll() {
+        synchronized (mCache) {
+            mGeneration++;
+            mInvalidationCount += mCache.size();
+            mCache.clear();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mCache) {
+            final int lookups = mHitCount + mMissCount;
+            pw.printf("  cache: size=%d/%d  hit=%d  miss=%d (stale=%d)  hit rate=%d%%"
+                    + "  evicted=%d  invalidated=%d\n",
+                    mCache.size(), mCapacity, mHitCount, mMissCount, mStaleCount,
+                    lookups == 0 ? 0 : mHitCount * 100L / lookups, mEvictionCount,
+                    mInvalidationCount);
+        }
+    }
+}
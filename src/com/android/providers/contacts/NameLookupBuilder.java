@@ -33,6 +33,7 @@ public abstract class NameLookupBuilder {
     private static final int MAX_NAME_TOKENS = 4;
 
     private final NameSplitter mSplitter;
+    private final ContactLocaleUtils mLocaleUtils;
     private String[][] mNicknameClusters = new String[MAX_NAME_TOKENS][];
     private StringBuilder mStringBuilder = new StringBuilder();
     private String[] mNames = new String[NameSplitter.MAX_TOKENS];
@@ -73,7 +74,16 @@ public abstract class NameLookupBuilder {
     };
 
     public NameLookupBuilder(NameSplitter splitter) {
+        this(splitter, null);
+    }
+
+    /**
+     * @param localeUtils The locale utils to compute shorthand name lookup keys with, or null
+     *     for the current {@link ContactLocaleUtils#getInstance}.
+     */
+    public NameLookupBuilder(NameSplitter splitter, ContactLocaleUtils localeUtils) {
         mSplitter = splitter;
+        mLocaleUtils = localeUtils;
     }
 
     /**
@@ -284,8 +294,9 @@ public abstract class NameLookupBuilder {
      * Chinese, Romaji for Japanese).
      */
     public void appendNameShorthandLookup(IndexBuilder builder, String name, int fullNameStyle) {
-        Iterator<String> it =
-                ContactLocaleUtils.getInstance().getNameLookupKeys(name, fullNameStyle);
+        final ContactLocaleUtils localeUtils =
+                mLocaleUtils != null ? mLocaleUtils : ContactLocaleUtils.getInstance();
+        Iterator<String> it = localeUtils.getNameLookupKeys(name, fullNameStyle);
         if (it != null) {
             while (it.hasNext()) {
                 builder.appendName(it.next());
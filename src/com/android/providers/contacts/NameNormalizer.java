@@ -29,45 +29,50 @@ import java.util.Locale;
  */
 public class NameNormalizer {
 
-    private static final Object sCollatorLock = new Object();
+    /**
+     * Collators are not safe for concurrent use, and names are normalized both on query threads
+     * and by the search index rebuild workers, so each thread gets its own collators.
+     */
+    private static final ThreadLocal<Collators> sCollators = new ThreadLocal<>();
+
+    private static final class Collators {
+        final Locale locale;
+        final RuleBasedCollator compressingCollator;
+        final RuleBasedCollator complexityCollator;
 
-    private static Locale sCollatorLocale;
+        Collators(Locale locale) {
+            this.locale = locale;
 
-    private static RuleBasedCollator sCachedCompressingCollator;
-    private static RuleBasedCollator sCachedComplexityCollator;
+            compressingCollator = (RuleBasedCollator) Collator.getInstance(locale);
+            compressingCollator.setStrength(Collator.PRIMARY);
+            compressingCollator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+
+            complexityCollator = (RuleBasedCollator) Collator.getInstance(locale);
+            complexityCollator.setStrength(Collator.SECONDARY);
+        }
+    }
 
     /**
-     * Ensure that the cached collators are for the current locale.
+     * Ensure that the calling thread's cached collators are for the current locale.
      */
-    private static void ensureCollators() {
+    private static Collators getCollators() {
         final Locale locale = Locale.getDefault();
-        if (locale.equals(sCollatorLocale)) {
-            return;
+        Collators collators = sCollators.get();
+        if (collators == null || !locale.equals(collators.locale)) {
+            collators = new Collators(locale);
+            sCollators.set(collators);
         }
-        sCollatorLocale = locale;
-
-        sCachedCompressingCollator = (RuleBasedCollator) Collator.getInstance(locale);
-        sCachedCompressingCollator.setStrength(Collator.PRIMARY);
-        sCachedCompressingCollator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
-
-        sCachedComplexityCollator = (RuleBasedCollator) Collator.getInstance(locale);
-        sCachedComplexityCollator.setStrength(Collator.SECONDARY);
+        return collators;
     }
 
     @VisibleForTesting
     static RuleBasedCollator getCompressingCollator() {
-        synchronized (sCollatorLock) {
-            ensureCollators();
-            return sCachedCompressingCollator;
-        }
+        return getCollators().compressingCollator;
     }
 
     @VisibleForTesting
     static RuleBasedCollator getComplexityCollator() {
-        synchronized (sCollatorLock) {
-            ensureCollators();
-            return sCachedComplexityCollator;
-        }
+        return getCollators().complexityCollator;
     }
 
     /**
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory cache of {@link PhoneLookup} results.  Caller ID looks up the same few numbers over
+ * and over, and every lookup may run two queries and filter their results in Java.
+ *
+ * Each entry is tagged with the min match of the number it was looked up with (see
+ * {@link PhoneNumberUtils#toCallerIDMinMatch}) and with the contacts it returned.  The lookup
+ * queries only consider phone_lookup rows with that min match, so an entry is invalidated when a
+ * phone number with the same min match is added, changed or removed, or when one of its contacts
+ * changes.  Changes that can affect any contact, e.g. visibility changes, invalidate everything.
+ *
+ * {@link ContactsProvider2} applies invalidations while the writing transaction commits, but a
+ * concurrent reader may still see the previous content of the database until the commit is
+ * complete.  So results are not cached between {@link #invalidateInTransaction} and
+ * {@link #onTransactionFinished}, nor if there was an invalidation while they were being queried
+ * (see {@link #getGeneration}).
+ *
+ * The number of entries is bounded; the least recently used entries are evicted first.
+ *
+ * This class is thread-safe.
+ */
+public class PhoneLookupCache {
+    /**
+     * Separator used for building keys.
+     */
+    private static final String SEPARATOR = "\u0001";
+
+    @VisibleForTesting
+    static final int DEFAULT_CAPACITY = 128;
+
+    /** Results with more rows than this aren't cached. */
+    @VisibleForTesting
+    static final int MAX_ROWS = 16;
+
+    /** Number of recent lookups the latency percentiles are computed over. */
+    private static final int LATENCY_SAMPLES = 1024;
+
+    private final int mCapacity;
+
+    /**
+     * In-memory cache, in access order.  Keys are generated by {@link #buildCacheKey} and start
+     * with the min match of the number.
+     */
+    private final LinkedHashMap<String, Entry> mCache;
+
+    private static final class Entry {
+        final String minMatch;
+        final long[] contactIds;
+        final String[] columnNames;
+        final Object[][] rows;
+
+        Entry(String minMatch, long[] contactIds, String[] columnNames, Object[][] rows) {
+            this.minMatch = minMatch;
+            this.contactIds = contactIds;
+            this.columnNames = columnNames;
+            this.rows = rows;
+        }
+
+        boolean containsContact(Set<Long> contactIds) {
+            for (long contactId : this.contactIds) {
+                if (contactIds.contains(contactId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The most recent lookup latencies, in a ring buffer.
+     */
+    private static final class LatencySamples {
+        private final long[] mSamplesUs = new long[LATENCY_SAMPLES];
+        private int mCount;
+
+        void add(long latencyUs) {
+            mSamplesUs[mCount % LATENCY_SAMPLES] = latencyUs;
+            mCount++;
+        }
+
+        long getPercentile(int percentile) {
+            final int size = Math.min(mCount, LATENCY_SAMPLES);
+            if (size == 0) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(mSamplesUs, size);
+            Arrays.sort(sorted);
+            return sorted[(size * percentile - 1) / 100];
+        }
+    }
+
+    private int mGeneration;
+    private boolean mInvalidationPending;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private int mInvalidationCount;
+    private final LatencySamples mHitLatencies = new LatencySamples();
+    private final LatencySamples mMissLatencies = new LatencySamples();
+
+    public PhoneLookupCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @VisibleForTesting
+    PhoneLookupCache(int capacity) {
+        mCapacity = capacity;
+        mCache = new LinkedHashMap<String, Entry>(16, 0.75f, /* accessOrder =*/ true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > mCapacity) {
+                    mEvictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Builds a key from the min match of the looked up number and everything else the result
+     * depends on, including the phone number comparison settings.
+     */
+    public static String buildCacheKey(String minMatch, Uri uri, String[] projection,
+            String sortOrder, String countryIso, String strictComparison,
+            String minMatchLength) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(minMatch);
+        sb.append(SEPARATOR);
+        sb.append(uri);
+        sb.append(SEPARATOR);
+        if (projection != null) {
+            for (String column : projection) {
+                sb.append(column);
+                sb.append(SEPARATOR);
+            }
+        }
+        sb.append(SEPARATOR);
+        sb.append(sortOrder);
+        sb.append(SEPARATOR);
+        sb.append(countryIso);
+        sb.append(SEPARATOR);
+        sb.append(strictComparison);
+        sb.append(SEPARATOR);
+        sb.append(minMatchLength);
+        return sb.toString();
+    }
+
+    /**
+     * Returns a new cursor with the cached result for the key, or null if there's none.
+     */
+    public Cursor get(String key) {
+        final Entry entry;
+        synchronized (mCache) {
+            entry = mCache.get(key);
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+        return newCursor(entry);
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the result has been
+     * queried.
+     */
+    public int getGeneration() {
+        synchronized (mCache) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Copies and closes {@code cursor}, and caches the copy unless it's too large or the cache
+     * has been invalidated since {@code generation} was obtained.
+     *
+     * @param columnNames the columns of the returned cursor.  They must all be in {@code cursor},
+     *     which must also contain {@link PhoneLookup#_ID}.
+     * @return a cursor with the same rows as {@code cursor}
+     */
+    public Cursor put(String key, String minMatch, int generation, Cursor cursor,
+            String[] columnNames) {
+        final Entry entry;
+        try {
+            final int contactIdIndex = cursor.getColumnIndexOrThrow(PhoneLookup._ID);
+            final int[] columnIndexes = new int[columnNames.length];
+            for (int i = 0; i < columnNames.length; i++) {
+                columnIndexes[i] = cursor.getColumnIndexOrThrow(columnNames[i]);
+            }
+
+            final long[] contactIds = new long[cursor.getCount()];
+            final Object[][] rows = new Object[cursor.getCount()][];
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                final int position = cursor.getPosition();
+                contactIds[position] = cursor.getLong(contactIdIndex);
+                rows[position] = new Object[columnIndexes.length];
+                for (int i = 0; i < columnIndexes.length; i++) {
+                    rows[position][i] = getValue(cursor, columnIndexes[i]);
+                }
+            }
+            entry = new Entry(minMatch, contactIds, columnNames, rows);
+        } finally {
+            cursor.close();
+        }
+
+        if (entry.rows.length <= MAX_ROWS) {
+            synchronized (mCache) {
+                if (generation == mGeneration && !mInvalidationPending) {
+                    mCache.put(key, entry);
+                }
+            }
+        }
+        return newCursor(entry);
+    }
+
+    private static Object getValue(Cursor cursor, int columnIndex) {
+        switch (cursor.getType(columnIndex)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(columnIndex);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(columnIndex);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(columnIndex);
+            default:
+                return cursor.getString(columnIndex);
+        }
+    }
+
+    private static Cursor newCursor(Entry entry) {
+        final MatrixCursor cursor = new MatrixCursor(entry.columnNames, entry.rows.length);
+        for (Object[] row : entry.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Removes the entries for the given min matches and contacts, or all entries if {@code all}
+     * is true, and stops caching until {@link #onTransactionFinished} is called.  Must be
+     * called from within the transaction making the changes.
+     */
+    public void invalidateInTransaction(Set<String> minMatches, Set<Long> contactIds,
+            boolean all) {
+        synchronized (mCache) {
+            mInvalidationPending = true;
+            mGeneration++;
+            if (all) {
+                mInvalidationCount += mCache.size();
+                mCache.clear();
+                return;
+            }
+            final Iterator<Entry> it = mCache.values().iterator();
+            while (it.hasNext()) {
+                final Entry entry = it.next();
+                if (minMatches.contains(entry.minMatch) || entry.containsContact(contactIds)) {
+                    it.remove();
+                    mInvalidationCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Resumes caching after the transaction that called {@link #invalidateInTransaction} has
+     * been committed or rolled back.
+     */
+    public void onTransactionFinished() {
+        synchronized (mCache) {
+            if (mInvalidationPending) {
+                mInvalidationPending = false;
+                mGeneration++;
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.  Must be called after committing changes made outside of
+     * provider transactions.
+     */
+    public void invalidateAll() {
+        synchronized (mCache) {
+            mGeneration++;
+            mInvalidationCount += mCache.size();
+            mCache.clear();
+        }
+    }
+
+    public boolean isEmpty() {
+        synchronized (mCache) {
+            return mCache.isEmpty();
+        }
+    }
+
+    /**
+     * Records the time a phone lookup took, including the cache lookup.
+     */
+    public void recordLatency(boolean hit, long latencyNanos) {
+        synchronized (mCache) {
+            (hit ? mHitLatencies : mMissLatencies).add(latencyNanos / 1000);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mCache) {
+            final int lookups = mHitCount + mMissCount;
+            pw.printf("  cache: size=%d/%d  hit=%d  miss=%d  hit rate=%d%%  evicted=%d"
+                    + "  invalidated=%d\n",
+                    mCache.size(), mCapacity, mHitCount, mMissCount,
+                    lookups == 0 ? 0 : mHitCount * 100L / lookups, mEvictionCount,
+                    mInvalidationCount);
+            pw.printf("  latency: hit p50=%dus p99=%dus  miss p50=%dus p99=%dus\n",
+                    mHitLatencies.getPercentile(50), mHitLatencies.getPercentile(99),
+                    mMissLatencies.getPercentile(50), mMissLatencies.getPercentile(99));
+        }
+    }
+}
@@ -19,18 +19,14 @@ import com.android.i18n.phonenumbers.Phonenumber;
 import com.android.internal.annotations.VisibleForTesting;
 
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
-import android.util.Log;
 
 /**
  * Helper class for PHONE_LOOKUP's that involve numbers with "*" prefixes.
  */
 /* package-protected */ final class PhoneLookupWithStarPrefix {
-    private static final String TAG = "PhoneLookupWSP";
-
     /**
      * Returns a cursor with a subset of the rows passed into this function. If {@param number}
      * starts with a "*" then only rows from {@param cursor} that have a number equal to
@@ -59,41 +55,27 @@ import android.util.Log;
             }
 
             final String queryPhoneNumberNormalized = normalizeNumberWithStar(number);
-            if (!queryPhoneNumberNormalized.startsWith("*")
-                    && !matchingNumberStartsWithStar(cursor)) {
+            final boolean queryStartsWithStar = queryPhoneNumberNormalized.startsWith("*");
+
+            // Normalize each matching number once, rather than once per pass.
+            final String[] matchingNumbersNormalized = normalizeMatchingNumbers(cursor);
+            if (!queryStartsWithStar && !anyStartsWithStar(matchingNumbersNormalized)) {
                 cursor.moveToPosition(-1);
                 unreturnedCursor = null;
                 return cursor;
             }
 
-            final MatrixCursor matrixCursor = new MatrixCursor(cursor.getColumnNames());
-
-            // Close cursors that we don't return.
-            Cursor unreturnedMatrixCursor = matrixCursor;
-
-            try {
-                cursor.moveToPosition(-1);
-                while (cursor.moveToNext()) {
-                    final int numberIndex = cursor.getColumnIndex(PhoneLookup.NUMBER);
-                    final String matchingNumberNormalized
-                            = normalizeNumberWithStar(cursor.getString(numberIndex));
-                    if (!matchingNumberNormalized.startsWith("*")
-                            && !queryPhoneNumberNormalized.startsWith("*")
-                            || matchingNumberNormalized.equals(queryPhoneNumberNormalized)) {
-                        // Copy row from cursor into matrixCursor
-                        final MatrixCursor.RowBuilder b = matrixCursor.newRow();
-                        for (int column = 0; column < cursor.getColumnCount(); column++) {
-                            b.add(cursor.getColumnName(column), cursorValue(cursor, column));
-                        }
-                    }
-                }
-                unreturnedMatrixCursor = null;
-                return matrixCursor;
-            } finally {
-                if (unreturnedMatrixCursor != null) {
-                    unreturnedMatrixCursor.close();
+            final int[] positionMap = new int[matchingNumbersNormalized.length];
+            int count = 0;
+            for (int position = 0; position < matchingNumbersNormalized.length; position++) {
+                final String matchingNumberNormalized = matchingNumbersNormalized[position];
+                if (!startsWithStar(matchingNumberNormalized) && !queryStartsWithStar
+                        || queryPhoneNumberNormalized.equals(matchingNumberNormalized)) {
+                    positionMap[count++] = position;
                 }
             }
+            unreturnedCursor = null;
+            return filterCursor(cursor, positionMap, count);
         } finally {
             if (unreturnedCursor != null) {
                 unreturnedCursor.close();
@@ -118,46 +100,57 @@ import android.util.Log;
     }
 
     /**
-     * @return whether {@param cursor} contain any numbers that start with "*"
+     * @return the numbers of {@param cursor} normalized with
+     * {@link #normalizeNumberWithStar}, indexed by position
      */
-    private static boolean matchingNumberStartsWithStar(Cursor cursor) {
+    private static String[] normalizeMatchingNumbers(Cursor cursor) {
+        final String[] numbers = new String[cursor.getCount()];
+        final int numberIndex = cursor.getColumnIndex(PhoneLookup.NUMBER);
         cursor.moveToPosition(-1);
         while (cursor.moveToNext()) {
-            final int numberIndex = cursor.getColumnIndex(PhoneLookup.NUMBER);
-            final String phoneNumber = normalizeNumberWithStar(cursor.getString(numberIndex));
-            if (phoneNumber != null && phoneNumber.startsWith("*")) {
+            numbers[cursor.getPosition()] = normalizeNumberWithStar(cursor.getString(numberIndex));
+        }
+        return numbers;
+    }
+
+    /**
+     * @return whether any of {@param phoneNumbers} start with "*"
+     */
+    private static boolean anyStartsWithStar(String[] phoneNumbers) {
+        for (String phoneNumber : phoneNumbers) {
+            if (startsWithStar(phoneNumber)) {
                 return true;
             }
         }
         return false;
     }
 
-    private static Object cursorValue(Cursor cursor, int column) {
-        switch(cursor.getType(column)) {
-            case Cursor.FIELD_TYPE_BLOB:
-                return cursor.getBlob(column);
-            case Cursor.FIELD_TYPE_INTEGER:
-                return cursor.getInt(column);
-            case Cursor.FIELD_TYPE_FLOAT:
-                return cursor.getFloat(column);
-            case Cursor.FIELD_TYPE_STRING:
-                return cursor.getString(column);
-            case Cursor.FIELD_TYPE_NULL:
-                return null;
-            default:
-                Log.d(TAG, "Invalid value in cursor: " + cursor.getType(column));
-                return null;
+    private static boolean startsWithStar(String phoneNumber) {
+        return phoneNumber != null && phoneNumber.startsWith("*");
+    }
+
+    /**
+     * Returns {@param cursor} if all of its rows are in {@param positionMap}, or a cursor with
+     * only those rows otherwise. Either way, the returned cursor is positioned before the first
+     * row.
+     */
+    private static Cursor filterCursor(Cursor cursor, int[] positionMap, int count) {
+        if (count == cursor.getCount()) {
+            cursor.moveToPosition(-1);
+            return cursor;
         }
+        return new FilteringCursorWrapper(cursor, positionMap, count);
     }
 
     /**
      * Check each phone number in the given cursor to detemine if it's a match with the given phone
-     * number. Return the matching ones in a new cursor.
+     * number. Return the matching ones in a cursor that wraps the given one.
      * @param number phone number to be match
-     * @param cursor contains a series of number s to be match
+     * @param cursor contains a series of number s to be match. This function takes ownership of
+     *               the cursor. It must contain PhoneLookup.NUMBER.
      * @param defaultCountryIso The lowercase two letter ISO 3166-1 country code. It is recommended
      *                         to pass in {@link TelephonyManager#getNetworkCountryIso()}.
-     * @return A new cursor with all matching phone numbers.
+     * @return A cursor with all matching phone numbers, that the calling context owns.
      */
     public static Cursor removeNoMatchPhoneNumber(String number, Cursor cursor,
             String defaultCountryIso) {
@@ -165,20 +158,18 @@ import android.util.Log;
             return cursor;
         }
 
-        final MatrixCursor matrixCursor = new MatrixCursor(cursor.getColumnNames());
+        final int numberIndex = cursor.getColumnIndex(PhoneLookup.NUMBER);
+        final int[] positionMap = new int[cursor.getCount()];
+        int count = 0;
 
         cursor.moveToPosition(-1);
         while (cursor.moveToNext()) {
-            final int numberIndex = cursor.getColumnIndex(PhoneLookup.NUMBER);
             final String numberToMatch = cursor.getString(numberIndex);
             if (PhoneNumberUtils.areSamePhoneNumber(number, numberToMatch, defaultCountryIso)) {
-                final MatrixCursor.RowBuilder b = matrixCursor.newRow();
-                for (int column = 0; column < cursor.getColumnCount(); column++) {
-                    b.add(cursor.getColumnName(column), cursorValue(cursor, column));
-                }
+                positionMap[count++] = cursor.getPosition();
             }
         }
 
-        return matrixCursor;
+        return filterCursor(cursor, positionMap, count);
     }
 }
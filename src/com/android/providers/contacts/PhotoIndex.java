@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License
+ */
+package com.android.providers.contacts;
+
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compact on-disk index of the photos in a {@link PhotoStore}, memory-mapped so that it can be
+ * used right away at startup and doesn't need an object per photo.
+ *
+ * The file starts with a header (magic, version, number of records, flags), followed by
+ * fixed-width records sorted by photo file ID: the ID, the file size, the dimensions and flags.
+ * Photo file IDs are allocated in increasing order, so new records are almost always appended.
+ * Removed photos are only flagged as deleted, and deleted records are dropped once they
+ * outnumber the live ones.
+ *
+ * The header also has a dirty flag, which {@link PhotoStore} sets before it changes the photo
+ * directory and clears once the change is synced, so that it only needs to look at the
+ * directory at startup if the previous process didn't get that far.
+ *
+ * All changes go straight to the mapping, so the index survives the process being killed, but
+ * it isn't synced; {@link PhotoStore} checks it against the database and rebuilds it if needed.
+ *
+ * This class is not thread-safe.
+ */
+final class PhotoIndex {
+    private static final String TAG = "PhotoIndex";
+
+    private static final int MAGIC = 0x50494458; // "PIDX"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_COUNT = 8;
+    @VisibleForTesting
+    static final int HEADER_FLAGS = 12;
+    @VisibleForTesting
+    static final int HEADER_SIZE = 16;
+
+    private static final int RECORD_ID = 0;
+    private static final int RECORD_SIZE = 8;
+    private static final int RECORD_WIDTH = 12;
+    private static final int RECORD_HEIGHT = 16;
+    private static final int RECORD_FLAGS = 20;
+    @VisibleForTesting
+    static final int RECORD_LENGTH = 24;
+
+    private static final int FLAG_DELETED = 1;
+
+    @VisibleForTesting
+    static final int HEADER_FLAG_DIRTY = 1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    /** Number of records the mapping has room for. */
+    private int mCapacity;
+
+    /** Number of records, including deleted ones. */
+    private int mRecordCount;
+    private int mLiveCount;
+    private long mTotalSize;
+    private boolean mDirty;
+
+    PhotoIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Maps the index file and checks its consistency.  If the file is missing or inconsistent,
+     * it's replaced with an empty index.
+     *
+     * @return whether the existing index could be used
+     */
+    boolean load() {
+        close();
+        mDirty = false;
+        try {
+            final boolean exists = mFile.exists();
+            map(0);
+            if (exists && validate()) {
+                return true;
+            }
+            if (exists) {
+                Log.w(TAG, "Rebuilding inconsistent photo index " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not load photo index " + mFile, e);
+        }
+        clear();
+        return false;
+    }
+
+    private void close() {
+        mBuffer = null;
+        mCapacity = 0;
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                // Ignore, the file is reopened anyway.
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    private boolean validate() {
+        if (mBuffer.getInt(HEADER_MAGIC) != MAGIC || mBuffer.getInt(HEADER_VERSION) != VERSION) {
+            return false;
+        }
+        final int recordCount = mBuffer.getInt(HEADER_RECORD_COUNT);
+        if (recordCount < 0 || recordCount > mCapacity) {
+            return false;
+        }
+
+        int liveCount = 0;
+        long totalSize = 0;
+        long previousId = 0;
+        for (int i = 0; i < recordCount; i++) {
+            final int offset = offset(i);
+            final long id = mBuffer.getLong(offset + RECORD_ID);
+            final int size = mBuffer.getInt(offset + RECORD_SIZE);
+            if (id <= previousId || size < 0) {
+                return false;
+            }
+            previousId = id;
+            if (!isDeleted(i)) {
+                liveCount++;
+                totalSize += size;
+            }
+        }
+        mRecordCount = recordCount;
+        mLiveCount = liveCount;
+        mTotalSize = totalSize;
+        mDirty = (mBuffer.getInt(HEADER_FLAGS) & HEADER_FLAG_DIRTY) != 0;
+        return true;
+    }
+
+    /**
+     * Maps the file with room for at least {@code minCapacity} records, keeping its content.
+     */
+    private void map(int minCapacity) throws IOException {
+        if (mRandomAccessFile == null) {
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        }
+        final long length = mRandomAccessFile.length();
+        int capacity = (int) Math.max(0, (length - HEADER_SIZE) / RECORD_LENGTH);
+        if (capacity < minCapacity || capacity < INITIAL_CAPACITY) {
+            capacity = Math.max(INITIAL_CAPACITY, Math.max(minCapacity, capacity * 2));
+            mRandomAccessFile.setLength(HEADER_SIZE + (long) capacity * RECORD_LENGTH);
+        }
+        mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_LENGTH);
+        mCapacity = capacity;
+    }
+
+    /**
+     * Removes all records.  The dirty flag is kept.
+     */
+    void clear() {
+        mRecordCount = 0;
+        mLiveCount = 0;
+        mTotalSize = 0;
+        if (mBuffer != null) {
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(HEADER_MAGIC, MAGIC);
+        mBuffer.putInt(HEADER_VERSION, VERSION);
+        mBuffer.putInt(HEADER_RECORD_COUNT, mRecordCount);
+        mBuffer.putInt(HEADER_FLAGS, mDirty ? HEADER_FLAG_DIRTY : 0);
+    }
+
+    /**
+     * Returns whether the photo directory may have changes that haven't been synced, as last set
+     * with {@link #setDirty}, possibly by a previous process.
+     */
+    boolean isDirty() {
+        return mDirty;
+    }
+
+    void setDirty(boolean dirty) {
+        if (mDirty == dirty) {
+            return;
+        }
+        mDirty = dirty;
+        if (mBuffer != null) {
+            mBuffer.putInt(HEADER_FLAGS, dirty ? HEADER_FLAG_DIRTY : 0);
+        }
+    }
+
+    /**
+     * Adds the photo, or replaces the record of a photo with the same ID.
+     */
+    void put(long id, int size, int width, int height) {
+        int index = find(id);
+        if (index >= 0) {
+            if (!isDeleted(index)) {
+                mLiveCount--;
+                mTotalSize -= getSize(index);
+            }
+        } else {
+            index = -(index + 1);
+            ensureCapacity(mRecordCount + 1);
+            if (index < mRecordCount) {
+                // Only happens if an ID is reused, e.g. after a rolled back insert.
+                final byte[] tail = new byte[(mRecordCount - index) * RECORD_LENGTH];
+                mBuffer.position(offset(index));
+                mBuffer.get(tail);
+                mBuffer.position(offset(index + 1));
+                mBuffer.put(tail);
+            }
+            mRecordCount++;
+        }
+
+        final int offset = offset(index);
+        mBuffer.putLong(offset + RECORD_ID, id);
+        mBuffer.putInt(offset + RECORD_SIZE, size);
+        mBuffer.putInt(offset + RECORD_WIDTH, width);
+        mBuffer.putInt(offset + RECORD_HEIGHT, height);
+        mBuffer.putInt(offset + RECORD_FLAGS, 0);
+        mBuffer.putInt(HEADER_RECORD_COUNT, mRecordCount);
+        mLiveCount++;
+        mTotalSize += size;
+    }
+
+    /**
+     * Removes the photo.
+     *
+     * @return whether the index had the photo
+     */
+    boolean remove(long id) {
+        final int index = find(id);
+        if (index < 0 || isDeleted(index)) {
+            return false;
+        }
+        mBuffer.putInt(offset(index) + RECORD_FLAGS, FLAG_DELETED);
+        mLiveCount--;
+        mTotalSize -= getSize(index);
+        if (mRecordCount - mLiveCount > Math.max(mLiveCount, INITIAL_CAPACITY)) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Drops the deleted records.
+     */
+    private void compact() {
+        final byte[] record = new byte[RECORD_LENGTH];
+        int count = 0;
+        for (int i = 0; i < mRecordCount; i++) {
+            if (isDeleted(i)) {
+                continue;
+            }
+            if (count != i) {
+                mBuffer.position(offset(i));
+                mBuffer.get(record);
+                mBuffer.position(offset(count));
+                mBuffer.put(record);
+            }
+            count++;
+        }
+        mRecordCount = count;
+        mBuffer.putInt(HEADER_RECORD_COUNT, mRecordCount);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mCapacity) {
+            return;
+        }
+        try {
+            final boolean mapped = mBuffer != null;
+            map(capacity);
+            if (!mapped) {
+                // The file couldn't be mapped when it was loaded.
+                writeHeader();
+            }
+        } catch (IOException e) {
+            // The store can't work without its index.
+            throw new IllegalStateException("Could not grow photo index " + mFile, e);
+        }
+    }
+
+    /**
+     * Returns the position of the record of the photo, or {@code -(insertion point + 1)} if
+     * there is none.  The record may be flagged as deleted.
+     */
+    private int find(long id) {
+        int low = 0;
+        int high = mRecordCount - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final long middleId = mBuffer.getLong(offset(middle) + RECORD_ID);
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Returns the file size of the photo, or -1 if the index doesn't have it.
+     */
+    long getFileSize(long id) {
+        final int index = find(id);
+        return index < 0 || isDeleted(index) ? -1 : getSize(index);
+    }
+
+    /**
+     * Returns the IDs of all photos, in ascending order.
+     */
+    long[] getIds() {
+        final long[] ids = new long[mLiveCount];
+        int count = 0;
+        for (int i = 0; i < mRecordCount; i++) {
+            if (!isDeleted(i)) {
+                ids[count++] = mBuffer.getLong(offset(i) + RECORD_ID);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the highest photo file ID, or 0 if the index is empty.
+     */
+    long getMaxId() {
+        for (int i = mRecordCount - 1; i >= 0; i--) {
+            if (!isDeleted(i)) {
+                return mBuffer.getLong(offset(i) + RECORD_ID);
+            }
+        }
+        return 0;
+    }
+
+    int getCount() {
+        return mLiveCount;
+    }
+
+    long getTotalSize() {
+        return mTotalSize;
+    }
+
+    private int getSize(int index) {
+        return mBuffer.getInt(offset(index) + RECORD_SIZE);
+    }
+
+    private boolean isDeleted(int index) {
+        return (mBuffer.getInt(offset(index) + RECORD_FLAGS) & FLAG_DELETED) != 0;
+    }
+
+    private static int offset(int index) {
+        return HEADER_SIZE + index * RECORD_LENGTH;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.os.AsyncTask;
+import android.os.Process;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the processing of photos written through {@link ContactsProvider2#openAssetFile} on a
+ * few dedicated background threads, rather than on the shared
+ * {@link AsyncTask#THREAD_POOL_EXECUTOR}, so that a sync adapter writing hundreds of photos
+ * doesn't compete with everything else in the process.
+ *
+ * The number of tasks that are queued or running is bounded: {@link #execute} rejects a task
+ * right away when there is no room, so that a binder thread is never held up by a backlog of
+ * photos.  The task is never run on the caller's thread instead, since the caller only starts
+ * writing the photo once it gets the file descriptor back.
+ *
+ * This class is thread-safe.
+ */
+public class PhotoProcessingExecutor {
+    @VisibleForTesting
+    static final int THREAD_COUNT = 2;
+
+    @VisibleForTesting
+    static final int MAX_PENDING_TASKS = 32;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Semaphore mPermits;
+    private final int mMaxPendingTasks;
+
+    private final Object mStatsLock = new Object();
+    private int mExecutedCount;
+    private int mRejectedCount;
+
+    public PhotoProcessingExecutor() {
+        this(THREAD_COUNT, MAX_PENDING_TASKS);
+    }
+
+    @VisibleForTesting
+    PhotoProcessingExecutor(int threadCount, int maxPendingTasks) {
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "PhotoProcessor"));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mPermits = new Semaphore(maxPendingTasks);
+        mMaxPendingTasks = maxPendingTasks;
+    }
+
+    /**
+     * Runs the task on one of the photo processing threads, unless too many tasks are pending.
+     *
+     * @return Whether the task was accepted; false if there was no room.
+     */
+    public boolean execute(Runnable task) {
+        if (!mPermits.tryAcquire()) {
+            synchronized (mStatsLock) {
+                mRejectedCount++;
+            }
+            return false;
+        }
+
+        synchronized (mStatsLock) {
+            mExecutedCount++;
+        }
+        mExecutor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                mPermits.release();
+            }
+        });
+        return true;
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mStatsLock) {
+            pw.printf("  executor: pending=%d/%d  executed=%d  rejected=%d\n",
+                    mMaxPendingTasks - mPermits.availablePermits(), mMaxPendingTasks,
+                    mExecutedCount, mRejectedCount);
+        }
+    }
+}
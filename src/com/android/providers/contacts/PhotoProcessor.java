@@ -22,6 +22,7 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.sysprop.ContactsProperties;
 
 import com.android.providers.contacts.util.MemoryUtils;
@@ -29,6 +30,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 /**
  * Class that converts a bitmap (or byte array representing a bitmap) into a display
@@ -96,6 +98,18 @@ import java.io.IOException;
         public static final int LARGE_RAM_THRESHOLD = 640 * 1024 * 1024;
     }
 
+    private static final int STAT_DECODE = 0;
+    private static final int STAT_SCALE = 1;
+    private static final int STAT_COMPRESS = 2;
+    private static final String[] STAT_NAMES = {"decode", "scale", "compress"};
+
+    /** Number of operations and time spent in them, by stat, for dumpsys.  Guarded by itself. */
+    private static final int[] sStatCounts = new int[STAT_NAMES.length];
+    private static final long[] sStatTimesNanos = new long[STAT_NAMES.length];
+
+    /** Number of photos decoded at a reduced size.  Guarded by {@link #sStatCounts}. */
+    private static int sSampledDecodeCount;
+
     private final int mMaxDisplayPhotoDim;
     private final int mMaxThumbnailPhotoDim;
     private final boolean mForceCropToSquare;
@@ -124,8 +138,7 @@ import java.io.IOException;
      */
     public PhotoProcessor(byte[] originalBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim)
             throws IOException {
-        this(BitmapFactory.decodeByteArray(originalBytes, 0, originalBytes.length),
-                maxDisplayPhotoDim, maxThumbnailPhotoDim, false);
+        this(originalBytes, maxDisplayPhotoDim, maxThumbnailPhotoDim, false);
     }
 
     /**
@@ -161,10 +174,53 @@ import java.io.IOException;
      */
     public PhotoProcessor(byte[] originalBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim,
             boolean forceCropToSquare) throws IOException {
-        this(BitmapFactory.decodeByteArray(originalBytes, 0, originalBytes.length),
+        this(decodeSampled(originalBytes, maxDisplayPhotoDim, forceCropToSquare),
                 maxDisplayPhotoDim, maxThumbnailPhotoDim, forceCropToSquare);
     }
 
+    /**
+     * Decodes the given image, skipping pixels as long as the decoded bitmap is still large
+     * enough to be scaled down to the display photo.  This is much cheaper than decoding a
+     * large image at full size only to scale it down afterwards.
+     *
+     * @return The decoded bitmap, or null if the bytes can't be decoded.
+     */
+    private static Bitmap decodeSampled(byte[] bytes, int maxDim, boolean forceCropToSquare) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize =
+                getSampleSize(options.outWidth, options.outHeight, maxDim, forceCropToSquare);
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        synchronized (sStatCounts) {
+            if (options.inSampleSize > 1) {
+                sSampledDecodeCount++;
+            }
+        }
+        recordTime(STAT_DECODE, start);
+        return bitmap;
+    }
+
+    /**
+     * Returns the largest power of two the given image can be subsampled by during decoding
+     * without going below the given maximum dimension.
+     *
+     * @param forceCropToSquare Whether the image will be cropped to a square, in which case its
+     *     shorter side is the one scaled down to the maximum dimension.
+     */
+    @VisibleForTesting
+    static int getSampleSize(int width, int height, int maxDim, boolean forceCropToSquare) {
+        final int scaledSide = forceCropToSquare
+                ? Math.min(width, height) : Math.max(width, height);
+        int sampleSize = 1;
+        while (scaledSide / (sampleSize * 2) >= maxDim) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     /**
      * Processes the original image, producing a scaled-down display photo and thumbnail photo.
      * @throws IOException If bitmap decoding or scaling fails.
@@ -173,8 +229,10 @@ import java.io.IOException;
         if (mOriginal == null) {
             throw new IOException("Invalid image file");
         }
+        final long start = SystemClock.elapsedRealtimeNanos();
         mDisplayPhoto = getNormalizedBitmap(mOriginal, mMaxDisplayPhotoDim, mForceCropToSquare);
         mThumbnailPhoto = getNormalizedBitmap(mOriginal,mMaxThumbnailPhotoDim, mForceCropToSquare);
+        recordTime(STAT_SCALE, start);
     }
 
     /**
@@ -243,11 +301,13 @@ import java.io.IOException;
      * Helper method to compress the given bitmap as a JPEG and return the resulting byte array.
      */
     private byte[] getCompressedBytes(Bitmap b, int quality) throws IOException {
+        final long start = SystemClock.elapsedRealtimeNanos();
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
         final boolean compressed = b.compress(Bitmap.CompressFormat.JPEG, quality, baos);
         baos.flush();
         baos.close();
         byte[] result = baos.toByteArray();
+        recordTime(STAT_COMPRESS, start);
 
         if (!compressed) {
             throw new IOException("Unable to compress image");
@@ -318,4 +378,30 @@ import java.io.IOException;
     public static int getMaxDisplayPhotoSize() {
         return sMaxDisplayPhotoDim;
     }
+
+    private static void recordTime(int stat, long startNanos) {
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - startNanos;
+        synchronized (sStatCounts) {
+            sStatCounts[stat]++;
+            sStatTimesNanos[stat] += elapsed;
+        }
+    }
+
+    /**
+     * Dumps the time spent decoding, scaling and compressing photos.
+     */
+    public static void dumpStats(PrintWriter pw) {
+        synchronized (sStatCounts) {
+            for (int i = 0; i < STAT_NAMES.length; i++) {
+                final long totalMillis = sStatTimesNanos[i] / 1000000;
+                pw.printf("  %s: count=%d  total time=%dms  avg time=%dms", STAT_NAMES[i],
+                        sStatCounts[i], totalMillis,
+                        sStatCounts[i] == 0 ? 0 : totalMillis / sStatCounts[i]);
+                if (i == STAT_DECODE) {
+                    pw.printf("  sampled=%d", sSampledDecodeCount);
+                }
+                pw.println();
+            }
+        }
+    }
 }
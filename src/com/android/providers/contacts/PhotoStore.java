@@ -16,12 +16,15 @@
 package com.android.providers.contacts;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.provider.ContactsContract.PhotoFiles;
-import android.util.ArrayMap;
-import android.util.ArraySet;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
+import android.util.LongArray;
 
 import com.android.providers.contacts.ContactsDatabaseHelper.PhotoFilesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
@@ -29,29 +32,64 @@ import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.Map;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Photo storage system that stores the files directly onto the hard disk
  * in the specified directory.
+ *
+ * The photo_files row of a photo is inserted in the caller's transaction, and the file is
+ * written into a temp file through a {@link FileChannel} and renamed into place before
+ * {@link #insert} returns, so the photo survives the process dying as soon as the row is
+ * committed.  Syncing the files to disk is left to a background writer, so that inserts inside a
+ * transaction don't wait for the disk: it syncs all the photos inserted since its last pass, then
+ * the directory once for all of them.
+ *
+ * The photos that have been written are recorded in a memory-mapped {@link PhotoIndex} next to
+ * the directory, so that lookups don't need an object per photo.  If the index is missing or
+ * doesn't match the photo_files table, {@link #initialize} rebuilds it from the table and the
+ * directory listing.
+ *
+ * The index is flagged as dirty before the directory is changed, and the flag is cleared once
+ * the writer has synced all changes, so a clean startup doesn't look at the directory at all.
+ * If the flag is still set at startup, the previous process didn't finish its changes:
+ * {@link #initialize} then deletes the files that aren't in the index, such as the temp files of
+ * interrupted writes and the files of rolled back inserts.  If the device lost power before the
+ * writer synced a photo, the file can be missing or truncated although its row was committed;
+ * if the flag made it to disk, {@link #initialize} then removes the row, and the photo store
+ * cleanup clears the references to the photo.  The flag itself isn't synced, so that setting it
+ * doesn't make the caller wait for the disk.
  */
 public class PhotoStore {
 
     private static final Object MKDIRS_LOCK = new Object();
 
+    /** Suffix of the files photos are written to before they are renamed into place. */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** Syncs the photos and directories of all photo stores. */
+    private static final ExecutorService sWriter =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "PhotoStoreWriter"));
+
     private final String TAG = PhotoStore.class.getSimpleName();
 
     // Directory name under the root directory for photo storage.
     private final String DIRECTORY = "photos";
 
-    /** Map of keys to entries in the directory. */
-    private final Map<Long, Entry> mEntries;
+    // File name under the root directory for the photo index.
+    private static final String INDEX_FILE = "photos.index";
 
-    /** Total amount of space currently used by the photo store in bytes. */
-    private long mTotalSize = 0;
+    /** Index of the photos in the directory.  Guarded by itself. */
+    private final PhotoIndex mIndex;
 
     /** The file path for photo storage. */
     private final File mStorePath;
@@ -62,6 +100,21 @@ public class PhotoStore {
     /** The database to use for storing metadata for the photo files. */
     private SQLiteDatabase mDb;
 
+    /** IDs of the photos written since the writer last synced them.  Guarded by {@link #mIndex}. */
+    private final LongArray mUnsyncedIds = new LongArray();
+
+    /**
+     * Number of changes to the directory so far, so that the writer can tell whether its sync
+     * covered all of them.  Guarded by {@link #mIndex}.
+     */
+    private long mChangeCount;
+
+    /** Number of times the directory was listed, for tests. */
+    private int mDirectoryListCount;
+
+    /** Whether a sync is queued on the writer but hasn't started yet. */
+    private final AtomicBoolean mSyncScheduled = new AtomicBoolean();
+
     /**
      * Constructs an instance of the PhotoStore under the specified directory.
      * @param rootDirectory The root directory of the storage.
@@ -78,7 +131,7 @@ public class PhotoStore {
             }
         }
         mDatabaseHelper = databaseHelper;
-        mEntries = new ArrayMap<Long, Entry>();
+        mIndex = new PhotoIndex(new File(rootDirectory, INDEX_FILE));
         initialize();
     }
 
@@ -86,53 +139,203 @@ public class PhotoStore {
      * Clears the photo storage. Deletes all files from disk.
      */
     public void clear() {
-        File[] files = mStorePath.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                cleanupFile(file);
+        flush();
+        markDirty();
+        String[] names = listDirectory();
+        if (names != null) {
+            for (String name : names) {
+                cleanupFile(new File(mStorePath, name));
             }
         }
         if (mDb == null) {
             mDb = mDatabaseHelper.getWritableDatabase();
         }
         mDb.delete(Tables.PHOTO_FILES, null, null);
-        mEntries.clear();
-        mTotalSize = 0;
+        synchronized (mIndex) {
+            mIndex.clear();
+        }
+        scheduleSync();
+    }
+
+    @VisibleForTesting
+    int getDirectoryListCountForTest() {
+        return mDirectoryListCount;
     }
 
     @VisibleForTesting
     public long getTotalSize() {
-        return mTotalSize;
+        synchronized (mIndex) {
+            return mIndex.getTotalSize();
+        }
     }
 
     /**
      * Returns the entry with the specified key if it exists, null otherwise.
      */
     public Entry get(long key) {
-        return mEntries.get(key);
+        final long size;
+        synchronized (mIndex) {
+            size = mIndex.getFileSize(key);
+        }
+        return size < 0 ? null
+                : new Entry(key, size, getFileForPhotoFileId(key).getAbsolutePath());
     }
 
     /**
-     * Initializes the PhotoStore by scanning for all files currently in the
-     * specified root directory.
+     * Initializes the PhotoStore from its index, or rebuilds the index if it's missing or
+     * doesn't match the photo_files table.
      */
     public final void initialize() {
-        File[] files = mStorePath.listFiles();
-        if (files == null) {
+        // Get a reference to the database.
+        mDb = mDatabaseHelper.getWritableDatabase();
+
+        // Let syncs queued by a previous instance for the same directory finish first.
+        flush();
+
+        synchronized (mIndex) {
+            if (mIndex.load() && isIndexConsistent()) {
+                if (mIndex.isDirty()) {
+                    // The rows still match the index, but the previous process didn't finish
+                    // its changes to the directory.
+                    reconcileWithDirectory();
+                }
+                return;
+            }
+            Log.i(TAG, "Rebuilding photo index");
+            mIndex.clear();
+        }
+        rebuildIndex();
+    }
+
+    /**
+     * Deletes the files in the root directory that aren't photos of the index, such as the temp
+     * files of interrupted writes and the files of rolled back inserts, and removes the photos
+     * whose file is missing or doesn't have the size of the photo.  The remaining photos are
+     * synced again, since they may only have been written to the page cache.  Must be called
+     * with {@link #mIndex} locked.
+     */
+    private void reconcileWithDirectory() {
+        String[] names = listDirectory();
+        if (names == null) {
+            return;
+        }
+        int removed = 0;
+        final LongArray fileIds = new LongArray(names.length);
+        for (String name : names) {
+            long id;
+            try {
+                id = Long.parseLong(name);
+            } catch (NumberFormatException nfe) {
+                id = -1;
+            }
+            if (id < 0 || mIndex.getFileSize(id) < 0) {
+                cleanupFile(new File(mStorePath, name));
+                removed++;
+            } else {
+                fileIds.add(id);
+            }
+        }
+        final long[] sortedFileIds = fileIds.toArray();
+        Arrays.sort(sortedFileIds);
+
+        final LongArray damagedIds = new LongArray(0);
+        for (long id : mIndex.getIds()) {
+            if (Arrays.binarySearch(sortedFileIds, id) < 0
+                    || getFileForPhotoFileId(id).length() != mIndex.getFileSize(id)) {
+                damagedIds.add(id);
+            } else {
+                mUnsyncedIds.add(id);
+            }
+        }
+        for (int k = 0; k < damagedIds.size(); k++) {
+            remove(damagedIds.get(k));
+        }
+        if (removed > 0 || damagedIds.size() > 0) {
+            Log.d(TAG, "initialize removed " + removed + " files not in the index and "
+                    + damagedIds.size() + " photos without a complete file");
+        }
+        scheduleSync();
+    }
+
+    /**
+     * Returns whether the index has as many photos as the photo_files table, and the same
+     * highest photo file ID.
+     */
+    private boolean isIndexConsistent() {
+        Cursor c = mDb.rawQuery("SELECT COUNT(*), MAX(" + PhotoFiles._ID + ") FROM "
+                + Tables.PHOTO_FILES, null);
+        try {
+            return c.moveToFirst() && c.getInt(0) == mIndex.getCount()
+                    && c.getLong(1) == mIndex.getMaxId();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the photo_files table, reconciling it with the files in the root
+     * directory: files left over from interrupted writes and files without a photo_files row
+     * are deleted, and so are rows without a file.  The sizes and dimensions of the photos come
+     * from the rows, so the files don't have to be opened.
+     */
+    private void rebuildIndex() {
+        String[] names = listDirectory();
+        if (names == null) {
             return;
         }
-        for (File file : files) {
+        markDirty();
+        final LongArray fileIds = new LongArray(names.length);
+        for (String name : names) {
             try {
-                Entry entry = new Entry(file);
-                putEntry(entry.id, entry);
+                fileIds.add(Long.parseLong(name));
             } catch (NumberFormatException nfe) {
-                // Not a valid photo store entry - delete the file.
-                cleanupFile(file);
+                // Not a valid photo store entry, e.g. an interrupted write - delete the file.
+                cleanupFile(new File(mStorePath, name));
+            }
+        }
+        final long[] sortedFileIds = fileIds.toArray();
+        Arrays.sort(sortedFileIds);
+
+        final LongArray rowsWithoutFile = new LongArray(0);
+        Cursor c = mDb.query(Tables.PHOTO_FILES,
+                new String[] {PhotoFiles._ID, PhotoFiles.FILESIZE, PhotoFiles.WIDTH,
+                        PhotoFiles.HEIGHT},
+                null, null, null, null, PhotoFiles._ID);
+        int i = 0;
+        try {
+            while (c.moveToNext()) {
+                final long id = c.getLong(0);
+                while (i < sortedFileIds.length && sortedFileIds[i] < id) {
+                    cleanupFile(getFileForPhotoFileId(sortedFileIds[i++]));
+                }
+                if (i < sortedFileIds.length && sortedFileIds[i] == id) {
+                    i++;
+                    synchronized (mIndex) {
+                        mIndex.put(id, c.getInt(1), c.getInt(2), c.getInt(3));
+                    }
+                } else {
+                    rowsWithoutFile.add(id);
+                }
             }
+        } finally {
+            c.close();
+        }
+        while (i < sortedFileIds.length) {
+            cleanupFile(getFileForPhotoFileId(sortedFileIds[i++]));
         }
 
-        // Get a reference to the database.
-        mDb = mDatabaseHelper.getWritableDatabase();
+        if (rowsWithoutFile.size() > 0) {
+            Log.d(TAG, "initialize removing " + rowsWithoutFile.size() + " rows without a file");
+            for (int k = 0; k < rowsWithoutFile.size(); k++) {
+                deleteRow(rowsWithoutFile.get(k));
+            }
+        }
+        scheduleSync();
+    }
+
+    private String[] listDirectory() {
+        mDirectoryListCount++;
+        return mStorePath.list();
     }
 
     /**
@@ -140,27 +343,49 @@ public class PhotoStore {
      * entries in the store (all other entries are deleted).
      *
      * If an entry in the keys in use does not exist in the photo store, that key
-     * will be returned in the result set - the caller should take steps to clean
+     * will be returned in the result - the caller should take steps to clean
      * up those references, as the underlying photo entries do not exist.
      *
-     * @param keysInUse The set of all keys that are in use in the photo store.
-     * @return The set of the keys in use that refer to non-existent entries.
+     * Both the keys in use and the keys in the store are sorted, so they are compared in a
+     * single merge pass without boxing them into sets.
+     *
+     * @param keysInUse All keys that are in use in the photo store, in ascending order and
+     *     without duplicates.
+     * @return The keys in use that refer to non-existent entries, in ascending order.
      */
-    public Set<Long> cleanup(Set<Long> keysInUse) {
-        Set<Long> keysToRemove = new ArraySet<>();
-        keysToRemove.addAll(mEntries.keySet());
-        keysToRemove.removeAll(keysInUse);
-        if (!keysToRemove.isEmpty()) {
+    public long[] cleanup(long[] keysInUse) {
+        final long[] keys = getSortedKeys();
+        final LongArray keysToRemove = new LongArray(0);
+        final LongArray missingKeys = new LongArray(0);
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < keysInUse.length) {
+            if (j == keysInUse.length || (i < keys.length && keys[i] < keysInUse[j])) {
+                keysToRemove.add(keys[i++]);
+            } else if (i == keys.length || keysInUse[j] < keys[i]) {
+                missingKeys.add(keysInUse[j++]);
+            } else {
+                i++;
+                j++;
+            }
+        }
+
+        if (keysToRemove.size() > 0) {
             Log.d(TAG, "cleanup removing " + keysToRemove.size() + " entries");
-            for (long key : keysToRemove) {
-                remove(key);
+            for (int k = 0; k < keysToRemove.size(); k++) {
+                remove(keysToRemove.get(k));
             }
         }
+        return missingKeys.toArray();
+    }
 
-        Set<Long> missingKeys = new ArraySet<>();
-        missingKeys.addAll(keysInUse);
-        missingKeys.removeAll(mEntries.keySet());
-        return missingKeys;
+    /**
+     * Returns the keys of all entries, in ascending order.
+     */
+    private long[] getSortedKeys() {
+        synchronized (mIndex) {
+            return mIndex.getIds();
+        }
     }
 
     /**
@@ -178,6 +403,10 @@ public class PhotoStore {
      * Inserts the photo in the given photo processor into the photo store.  If the display photo
      * is already thumbnail-sized or smaller, this will do nothing (and will return 0) unless
      * allowSmallImageStorage is specified.
+     *
+     * The file is written before this returns, but synced to disk in the background; see the
+     * class comment.
+     *
      * @param photoProcessor A photo processor containing the photo data to insert.
      * @param allowSmallImageStorage Whether thumbnail-sized or smaller photos should still be
      *     stored in the file store.
@@ -190,16 +419,8 @@ public class PhotoStore {
         int height = displayPhoto.getHeight();
         int thumbnailDim = photoProcessor.getMaxThumbnailPhotoDim();
         if (allowSmallImageStorage || width > thumbnailDim || height > thumbnailDim) {
-            // Write the photo to a temp file, create the DB record for tracking it, and rename the
-            // temp file to match.
-            File file = null;
             try {
-                // Write the display photo to a temp file.
                 byte[] photoBytes = photoProcessor.getDisplayPhotoBytes();
-                file = File.createTempFile("img", null, mStorePath);
-                FileOutputStream fos = new FileOutputStream(file);
-                fos.write(photoBytes);
-                fos.close();
 
                 // Create the DB entry.
                 ContentValues values = new ContentValues();
@@ -207,25 +428,140 @@ public class PhotoStore {
                 values.put(PhotoFiles.WIDTH, width);
                 values.put(PhotoFiles.FILESIZE, photoBytes.length);
                 long id = mDb.insert(Tables.PHOTO_FILES, null, values);
-                if (id != 0) {
-                    // Rename the temp file.
-                    File target = getFileForPhotoFileId(id);
-                    if (file.renameTo(target)) {
-                        Entry entry = new Entry(target);
-                        putEntry(entry.id, entry);
+                if (id > 0) {
+                    markDirty();
+                    if (writeFile(id, photoBytes)) {
+                        synchronized (mIndex) {
+                            mIndex.put(id, photoBytes.length, width, height);
+                            mUnsyncedIds.add(id);
+                        }
+                        scheduleSync();
                         return id;
                     }
+                    deleteRow(id);
                 }
             } catch (IOException e) {
-                // Write failed - will delete the file below.
+                // Compression failed.
+                Log.e(TAG, "Could not compress photo", e);
             }
+        }
+        return 0;
+    }
 
-            // If anything went wrong, clean up the file before returning.
-            if (file != null) {
-                cleanupFile(file);
+    /**
+     * Writes the photo to a temp file and renames it into place.  The file isn't synced; see
+     * {@link #syncPhotos}.
+     * @return Whether the photo file is in place.
+     */
+    private boolean writeFile(long id, byte[] bytes) {
+        final File file = getFileForPhotoFileId(id);
+        final File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write photo " + id, e);
+            cleanupFile(tempFile);
+            return false;
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.e(TAG, "Could not rename photo " + id);
+            cleanupFile(tempFile);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Flags the index as dirty before the directory is changed.
+     */
+    private void markDirty() {
+        synchronized (mIndex) {
+            mIndex.setDirty(true);
+            mChangeCount++;
+        }
+    }
+
+    /**
+     * Queues a sync on the writer after the directory was changed, unless one is already queued
+     * and will cover the change.
+     */
+    private void scheduleSync() {
+        synchronized (mIndex) {
+            mChangeCount++;
+        }
+        if (mSyncScheduled.compareAndSet(false, true)) {
+            sWriter.execute(this::syncPhotos);
+        }
+    }
+
+    /**
+     * Syncs the data of all photos written before this started, then the directory to make
+     * their renames and deletions durable.  Clears the dirty flag of the index if there were no
+     * changes in the meantime.  Runs on the writer thread.
+     */
+    private void syncPhotos() {
+        // Changes from now on need another sync.
+        mSyncScheduled.set(false);
+        final long[] ids;
+        final long changeCount;
+        synchronized (mIndex) {
+            ids = mUnsyncedIds.toArray();
+            mUnsyncedIds.clear();
+            changeCount = mChangeCount;
+        }
+        for (long id : ids) {
+            try {
+                syncFile(getFileForPhotoFileId(id).getPath(), true);
+            } catch (ErrnoException e) {
+                // The photo may have been removed since it was written.
+                if (e.errno != OsConstants.ENOENT) {
+                    Log.w(TAG, "Could not sync photo " + id, e);
+                }
+            }
+        }
+        try {
+            syncFile(mStorePath.getPath(), false);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Could not sync photo directory", e);
+            return;
+        }
+        synchronized (mIndex) {
+            if (mChangeCount == changeCount) {
+                mIndex.setDirty(false);
+            }
+        }
+    }
+
+    private static void syncFile(String path, boolean dataOnly) throws ErrnoException {
+        final FileDescriptor fd = Os.open(path, OsConstants.O_RDONLY, 0);
+        try {
+            if (dataOnly) {
+                Os.fdatasync(fd);
+            } else {
+                Os.fsync(fd);
+            }
+        } finally {
+            Os.close(fd);
+        }
+    }
+
+    /**
+     * Waits for the syncs queued so far by any photo store to complete.
+     */
+    @VisibleForTesting
+    static void flush() {
+        try {
+            sWriter.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Can't happen; the task does nothing.
         }
-        return 0;
     }
 
     private void cleanupFile(File file) {
@@ -239,8 +575,10 @@ public class PhotoStore {
      * Removes the specified photo file from the store if it exists.
      */
     public void remove(long id) {
+        markDirty();
         cleanupFile(getFileForPhotoFileId(id));
         removeEntry(id);
+        scheduleSync();
     }
 
     /**
@@ -250,31 +588,18 @@ public class PhotoStore {
         return new File(mStorePath, String.valueOf(id));
     }
 
-    /**
-     * Puts the entry with the specified photo file ID into the store.
-     * @param id The photo file ID to identify the entry by.
-     * @param entry The entry to store.
-     */
-    private void putEntry(long id, Entry entry) {
-        if (!mEntries.containsKey(id)) {
-            mTotalSize += entry.size;
-        } else {
-            Entry oldEntry = mEntries.get(id);
-            mTotalSize += (entry.size - oldEntry.size);
-        }
-        mEntries.put(id, entry);
-    }
-
     /**
      * Removes the entry identified by the given photo file ID from the store, removing
      * the associated photo file entry from the database.
      */
     private void removeEntry(long id) {
-        Entry entry = mEntries.get(id);
-        if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(id);
+        synchronized (mIndex) {
+            mIndex.remove(id);
         }
+        deleteRow(id);
+    }
+
+    private void deleteRow(long id) {
         mDb.delete(ContactsDatabaseHelper.Tables.PHOTO_FILES, PhotoFilesColumns.CONCRETE_ID + "=?",
                 new String[]{String.valueOf(id)});
     }
@@ -294,5 +619,11 @@ public class PhotoStore {
             size = file.length();
             path = file.getAbsolutePath();
         }
+
+        public Entry(long id, long size, String path) {
+            this.id = id;
+            this.size = size;
+            this.path = path;
+        }
     }
 }
@@ -17,31 +17,45 @@ package com.android.providers.contacts;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
 import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.LongArray;
 
 import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.MimetypesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexDataColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.util.CappedStringBuilder;
 
 import com.google.android.collect.Lists;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
@@ -55,19 +69,50 @@ public class SearchIndexManager {
     private static final int MAX_STRING_BUILDER_SIZE = 1024 * 10;
 
     public static final String PROPERTY_SEARCH_INDEX_VERSION = "search_index";
+    public static final String PROPERTY_SEARCH_INDEX_REBUILD_CURSOR =
+            "search_index_rebuild_cursor";
     private static final String ROW_ID_KEY = "rowid";
     private static final int SEARCH_INDEX_VERSION = 2;
 
+    /** Number of contacts indexed per transaction during a full rebuild. */
+    private static final int REBUILD_CHUNK_SIZE = 500;
+
+    /** Number of contacts handed to a worker thread at a time during a full rebuild. */
+    private static final int CONTACTS_PER_REBUILD_BATCH = 25;
+
+    /** Upper bound on the number of threads tokenizing data rows during a full rebuild. */
+    private static final int MAX_REBUILD_THREADS = 8;
+
     private static final class ContactIndexQuery {
         public static final String[] COLUMNS = {
                 Data.CONTACT_ID,
                 MimetypesColumns.MIMETYPE,
+                DataColumns.CONCRETE_ID,
+                Data.RAW_CONTACT_ID,
                 Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA5,
                 Data.DATA6, Data.DATA7, Data.DATA8, Data.DATA9, Data.DATA10, Data.DATA11,
                 Data.DATA12, Data.DATA13, Data.DATA14
         };
 
+        public static final int CONTACT_ID = 0;
         public static final int MIMETYPE = 1;
+        public static final int DATA_ID = 2;
+        public static final int RAW_CONTACT_ID = 3;
+        public static final int FIRST_DATA_COLUMN = 4;
+    }
+
+    private static final class FragmentMergeQuery {
+        public static final String[] COLUMNS = {
+                RawContacts.CONTACT_ID,
+                Tables.SEARCH_INDEX_DATA + "." + SearchIndexDataColumns.CONTENT,
+                Tables.SEARCH_INDEX_DATA + "." + SearchIndexDataColumns.NAME,
+                Tables.SEARCH_INDEX_DATA + "." + SearchIndexDataColumns.TOKENS,
+        };
+
+        public static final int CONTACT_ID = 0;
+        public static final int CONTENT = 1;
+        public static final int NAME = 2;
+        public static final int TOKENS = 3;
     }
 
     public static class IndexBuilder {
@@ -229,6 +274,33 @@ public class SearchIndexManager {
             }
         }
 
+        /**
+         * Merges a fragment previously produced by another builder for a single data row.
+         * Appending the fragments of all data rows of a contact in index order produces the
+         * same content, name and tokens as appending the data rows themselves.
+         */
+        void appendFragment(String content, String name, String tokens) {
+            if (content != null) {
+                for (String element : content.split("\n", -1)) {
+                    mSbElementContent.append(element);
+                    commit();
+                }
+            }
+            if (name != null) {
+                for (String normalizedName : name.split(" ", -1)) {
+                    if (mSbName.length() != 0) {
+                        mSbName.append(' ');
+                    }
+                    mSbName.append(normalizedName);
+                }
+            }
+            if (tokens != null) {
+                for (String token : tokens.split(" ", -1)) {
+                    appendToken(token);
+                }
+            }
+        }
+
         /**
          * Normalize a name and add to {@link #mSbName}
          */
@@ -244,58 +316,190 @@ public class SearchIndexManager {
     private final ContactsDatabaseHelper mDbHelper;
     private StringBuilder mSb = new StringBuilder();
     private IndexBuilder mIndexBuilder = new IndexBuilder();
+    private IndexBuilder mFragmentBuilder = new IndexBuilder();
     private ContentValues mValues = new ContentValues();
     private String[] mSelectionArgs1 = new String[1];
+    private volatile Boolean mRebuildInProgress;
+    private int mMaxRebuildThreads = MAX_REBUILD_THREADS;
 
     public SearchIndexManager(ContactsProvider2 contactsProvider) {
         this.mContactsProvider = contactsProvider;
         mDbHelper = (ContactsDatabaseHelper) mContactsProvider.getDatabaseHelper();
     }
 
+    /**
+     * Rebuilds the search index if its version is out of date, or unconditionally if
+     * {@code force} is true.
+     *
+     * <p>The rebuild proceeds in ranges of {@link #REBUILD_CHUNK_SIZE} contact IDs, each
+     * committed in its own transaction so that other writers can get the database in between.
+     * The last contact ID indexed is persisted in {@link #PROPERTY_SEARCH_INDEX_REBUILD_CURSOR},
+     * so an interrupted rebuild resumes where it left off.  Until the rebuild completes,
+     * {@link #isRebuildInProgress} returns true and filter queries should not rely on the index.
+     */
     public void updateIndex(boolean force) {
         if (force) {
             setSearchIndexVersion(0);
+            setRebuildCursor(-1);
         } else {
             if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
+                mRebuildInProgress = false;
                 return;
             }
         }
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        db.beginTransaction();
-        try {
-            // We do a version check again, because the version might have been modified after
-            // the first check.  We need to do the check again in a transaction to make sure.
-            if (getSearchIndexVersion() != SEARCH_INDEX_VERSION) {
-                rebuildIndex(db);
-                setSearchIndexVersion(SEARCH_INDEX_VERSION);
-                db.setTransactionSuccessful();
-            }
-        } finally {
-            db.endTransaction();
-        }
-    }
+        mRebuildInProgress = true;
 
-    private void rebuildIndex(SQLiteDatabase db) {
-        mContactsProvider.setProviderStatus(ContactsProvider2.STATUS_UPGRADING);
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         final long start = SystemClock.elapsedRealtime();
+        final RebuildPipeline pipeline = new RebuildPipeline();
         int count = 0;
+        int chunks = 0;
+        boolean done = false;
         try {
-            mDbHelper.createSearchIndexTable(db, true);
-            count = buildAndInsertIndex(db, null);
+            while (!done) {
+                db.beginTransaction();
+                try {
+                    // We check the version again in every transaction, because the index might
+                    // have been rebuilt by someone else since the last chunk.
+                    if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
+                        done = true;
+                    } else {
+                        long cursor = getRebuildCursor();
+                        if (cursor == -1) {
+                            // Starting from scratch.
+                            mDbHelper.createSearchIndexTable(db, true);
+                            cursor = 0;
+                        }
+                        final long upperBound = getRebuildChunkUpperBound(db, cursor);
+                        if (upperBound == -1) {
+                            setSearchIndexVersion(SEARCH_INDEX_VERSION);
+                            setRebuildCursor(-1);
+                            done = true;
+                        } else {
+                            count += rebuildIndexForContactRange(
+                                    db, pipeline, cursor, upperBound);
+                            setRebuildCursor(upperBound);
+                            chunks++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
         } finally {
-            mContactsProvider.setProviderStatus(ContactsProvider2.STATUS_NORMAL);
+            pipeline.shutdown();
+        }
+        mRebuildInProgress = false;
 
+        if (chunks > 0) {
             final long end = SystemClock.elapsedRealtime();
             Log.i(TAG, "Rebuild contact search index in " + (end - start) + "ms, "
-                    + count + " contacts");
+                    + count + " contacts, " + chunks + " chunks");
+        }
+    }
+
+    /**
+     * Limits the number of threads tokenizing data rows during the next full rebuilds.
+     */
+    @VisibleForTesting
+    void setMaxRebuildThreadsForTest(int maxRebuildThreads) {
+        mMaxRebuildThreads = maxRebuildThreads;
+    }
+
+    /**
+     * Returns whether the search index is currently incomplete because it is being rebuilt.
+     * Only reads the version property the first time; after that, {@link #updateIndex} keeps
+     * the answer up to date.
+     */
+    public boolean isRebuildInProgress() {
+        if (mRebuildInProgress == null) {
+            mRebuildInProgress = getSearchIndexVersion() != SEARCH_INDEX_VERSION;
+        }
+        return mRebuildInProgress;
+    }
+
+    /**
+     * Makes the next {@link #isRebuildInProgress} read the version property again, for tests
+     * that change it directly.
+     */
+    @VisibleForTesting
+    void reloadRebuildStateForTest() {
+        mRebuildInProgress = null;
+    }
+
+    /**
+     * Returns the highest contact ID in the next chunk of contacts after {@code cursor}, or -1
+     * if there are no contacts left to index.
+     */
+    private long getRebuildChunkUpperBound(SQLiteDatabase db, long cursor) {
+        mSelectionArgs1[0] = String.valueOf(cursor);
+        final Cursor c = db.rawQuery("SELECT MAX(" + Contacts._ID + ") FROM"
+                + " (SELECT " + Contacts._ID + " FROM " + Tables.CONTACTS
+                + " WHERE " + Contacts._ID + ">?"
+                + " ORDER BY " + Contacts._ID
+                + " LIMIT " + REBUILD_CHUNK_SIZE + ")", mSelectionArgs1);
+        try {
+            if (c.moveToFirst() && !c.isNull(0)) {
+                return c.getLong(0);
+            }
+            return -1;
+        } finally {
+            c.close();
         }
     }
 
-    public void updateIndexForRawContacts(Set<Long> contactIds, Set<Long> rawContactIds) {
+    /**
+     * Rebuilds the search index and fragments of contacts with IDs in
+     * ({@code fromContactId}, {@code toContactId}].  Rows written for these contacts by
+     * incremental updates since the rebuild started are replaced.
+     */
+    private int rebuildIndexForContactRange(SQLiteDatabase db, RebuildPipeline pipeline,
+            long fromContactId, long toContactId) {
+        final String range = " BETWEEN " + (fromContactId + 1) + " AND " + toContactId;
+        db.delete(Tables.SEARCH_INDEX, ROW_ID_KEY + range, null);
+        db.delete(Tables.SEARCH_INDEX_DATA, SearchIndexDataColumns.RAW_CONTACT_ID + " IN"
+                + " (SELECT " + RawContacts._ID + " FROM " + Tables.RAW_CONTACTS
+                + " WHERE " + RawContacts.CONTACT_ID + range + ")", null);
+        return pipeline.buildAndInsertIndex(db, RawContacts.CONTACT_ID + range);
+    }
+
+    /**
+     * Brings the search index up to date after a transaction.
+     *
+     * <p>Only the fragments of the data rows in {@code dataRows} (and of every data row of
+     * the raw contacts in {@code rawContactIds}) are re-tokenized, along with the raw contacts
+     * of the affected contacts that a rebuild in progress hasn't reached yet.  The index rows of
+     * the affected contacts are then re-assembled from the stored fragments.
+     *
+     * @param contactIds contacts whose index row needs to be re-assembled
+     * @param rawContactIds raw contacts whose fragments all need to be recomputed
+     * @param dataRows map from data id to raw contact id of the data rows whose fragment
+     *     needs to be recomputed
+     */
+    public void updateIndexForRawContacts(Set<Long> contactIds, Set<Long> rawContactIds,
+            Map<Long, Long> dataRows) {
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "Updating search index for " + contactIds.size() +
-                    " contacts / " + rawContactIds.size() + " raw contacts");
+                    " contacts / " + rawContactIds.size() + " raw contacts / " +
+                    dataRows.size() + " data rows");
+        }
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        // Recompute the fragments of the modified data rows.
+        if (!rawContactIds.isEmpty()) {
+            final String ids = TextUtils.join(",", rawContactIds);
+            db.delete(Tables.SEARCH_INDEX_DATA,
+                    SearchIndexDataColumns.RAW_CONTACT_ID + " IN (" + ids + ")", null);
+            buildAndInsertFragments(db, Data.RAW_CONTACT_ID + " IN (" + ids + ")");
+        }
+        if (!dataRows.isEmpty()) {
+            final String ids = TextUtils.join(",", dataRows.keySet());
+            db.delete(Tables.SEARCH_INDEX_DATA,
+                    SearchIndexDataColumns.DATA_ID + " IN (" + ids + ")", null);
+            buildAndInsertFragments(db, DataColumns.CONCRETE_ID + " IN (" + ids + ")");
         }
+
         StringBuilder sb = new StringBuilder();
         sb.append("(");
         if (!contactIds.isEmpty()) {
@@ -304,19 +508,19 @@ public class SearchIndexManager {
             sb.append(TextUtils.join(",", contactIds));
             sb.append(')');
         }
-        if (!rawContactIds.isEmpty()) {
+        if (!rawContactIds.isEmpty() || !dataRows.isEmpty()) {
             if (!contactIds.isEmpty()) {
                 sb.append(" OR ");
             }
-            // Select all raw contacts that belong to the same contact as all raw contacts
-            // in rawContactIds. For every raw contact in rawContactIds that we are updating
-            // the index for, we need to rebuild the search index for all raw contacts belonging
-            // to the same contact, because we can only update the search index on a per-contact
-            // basis.
+            // Select all raw contacts that belong to the same contact as the modified raw
+            // contacts. The search index itself is per-contact, so its row has to be
+            // re-assembled from the fragments of all raw contacts belonging to the same contact.
+            final ArraySet<Long> modifiedRawContactIds = new ArraySet<>(rawContactIds);
+            modifiedRawContactIds.addAll(dataRows.values());
             sb.append(RawContacts.CONTACT_ID + " IN " +
                     "(SELECT " + RawContacts.CONTACT_ID + " FROM " + Tables.RAW_CONTACTS +
                     " WHERE " + RawContactsColumns.CONCRETE_ID + " IN (");
-            sb.append(TextUtils.join(",", rawContactIds));
+            sb.append(TextUtils.join(",", modifiedRawContactIds));
             sb.append("))");
         }
 
@@ -325,8 +529,20 @@ public class SearchIndexManager {
         // The selection to select raw_contacts.
         final String rawContactsSelection = sb.toString();
 
+        // A rebuild in progress has only indexed the raw contacts of contacts up to its cursor,
+        // but aggregation may have moved a raw contact from a contact above the cursor into one
+        // below it, which the rebuild won't revisit, so tokenize the raw contacts that don't have
+        // any fragments yet.
+        if (isRebuildInProgress()) {
+            buildAndInsertFragments(db, Data.RAW_CONTACT_ID + " IN"
+                    + " (SELECT " + RawContactsColumns.CONCRETE_ID + " FROM " + Tables.RAW_CONTACTS
+                    + " WHERE " + rawContactsSelection
+                    + " AND NOT EXISTS (SELECT 1 FROM " + Tables.SEARCH_INDEX_DATA
+                    + " WHERE " + SearchIndexDataColumns.RAW_CONTACT_ID + "="
+                    + RawContactsColumns.CONCRETE_ID + "))");
+        }
+
         // Remove affected search_index rows.
-        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         final int deleted = db.delete(Tables.SEARCH_INDEX,
                 ROW_ID_KEY + " IN (SELECT " +
                     RawContacts.CONTACT_ID +
@@ -335,15 +551,19 @@ public class SearchIndexManager {
                     ")"
                 , null);
 
-        // Then rebuild index for them.
-        final int count = buildAndInsertIndex(db, rawContactsSelection);
+        // Then re-assemble the index for them from the fragments.
+        final int count = mergeAndInsertIndex(db, rawContactsSelection);
 
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "Updated search index for " + count + " contacts");
         }
     }
 
-    private int buildAndInsertIndex(SQLiteDatabase db, String selection) {
+    /**
+     * Returns the ORDER BY clause that determines in which order the data rows of a contact
+     * contribute to its search index row.
+     */
+    private String getIndexOrderBy() {
         mSb.setLength(0);
         mSb.append(Data.CONTACT_ID + ", ");
         mSb.append("(CASE WHEN " + DataColumns.MIMETYPE_ID + "=");
@@ -360,16 +580,331 @@ public class SearchIndexManager {
         mSb.append(" THEN -1");
         mSb.append(" ELSE " + DataColumns.MIMETYPE_ID);
         mSb.append(" END), " + Data.IS_SUPER_PRIMARY + ", " + DataColumns.CONCRETE_ID);
+        return mSb.toString();
+    }
+
+    /**
+     * Full rebuild pipeline.  The thread owning the transaction reads the data rows grouped by
+     * contact and copies them into batches, a pool of workers tokenizes the batches, each with
+     * its own {@link IndexBuilder}s and data row handlers, and the owning thread writes the
+     * results back in read order through precompiled statements.
+     */
+    private final class RebuildPipeline {
+        private final ExecutorService mExecutor;
+        private final int mMaxPendingBatches;
+        private final ThreadLocal<ArrayMap<String, DataRowHandler>> mWorkerHandlers =
+                new ThreadLocal<>();
+        private final ThreadLocal<IndexBuilder> mWorkerIndexBuilder = new ThreadLocal<>();
+        private final ThreadLocal<IndexBuilder> mWorkerFragmentBuilder = new ThreadLocal<>();
+
+        RebuildPipeline() {
+            final int threadCount = Math.max(1, Math.min(
+                    Runtime.getRuntime().availableProcessors(), mMaxRebuildThreads));
+            mExecutor = Executors.newFixedThreadPool(threadCount, r -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "SearchIndexRebuild"));
+            mMaxPendingBatches = threadCount * 2;
+        }
+
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+
+        /**
+         * Tokenizes every data row matching {@code selection}, storing the fragment of each row
+         * and the merged search index row of each contact.
+         *
+         * @return the number of contacts indexed
+         */
+        int buildAndInsertIndex(SQLiteDatabase db, String selection) {
+            final ArrayDeque<Future<RebuildBatch>> pending = new ArrayDeque<>();
+            final SQLiteStatement insertIndex = db.compileStatement(
+                    "INSERT INTO " + Tables.SEARCH_INDEX + " ("
+                    + ROW_ID_KEY + ","
+                    + SearchIndexColumns.CONTACT_ID + ","
+                    + SearchIndexColumns.CONTENT + ","
+                    + SearchIndexColumns.NAME + ","
+                    + SearchIndexColumns.TOKENS
+                    + ") VALUES (?,?,?,?,?)");
+            final SQLiteStatement insertFragment = db.compileStatement(
+                    "INSERT INTO " + Tables.SEARCH_INDEX_DATA + " ("
+                    + SearchIndexDataColumns.DATA_ID + ","
+                    + SearchIndexDataColumns.RAW_CONTACT_ID + ","
+                    + SearchIndexDataColumns.CONTENT + ","
+                    + SearchIndexDataColumns.NAME + ","
+                    + SearchIndexDataColumns.TOKENS
+                    + ") VALUES (?,?,?,?,?)");
+            final Cursor cursor = db.query(Tables.DATA_JOIN_MIMETYPE_RAW_CONTACTS,
+                    ContactIndexQuery.COLUMNS, selection, null, null, null, getIndexOrderBy());
+            int count = 0;
+            try {
+                RebuildBatch batch = new RebuildBatch();
+                long currentContactId = -1;
+                while (cursor.moveToNext()) {
+                    final long contactId = cursor.getLong(ContactIndexQuery.CONTACT_ID);
+                    if (contactId != currentContactId) {
+                        if (batch.mContactCount == CONTACTS_PER_REBUILD_BATCH) {
+                            count += submit(batch, pending, insertIndex, insertFragment);
+                            batch = new RebuildBatch();
+                        }
+                        currentContactId = contactId;
+                        batch.mContactCount++;
+                    }
+                    final String mimetype = cursor.getString(ContactIndexQuery.MIMETYPE);
+                    batch.addRow(cursor,
+                            mContactsProvider.getDataRowHandler(mimetype).hasSearchableData());
+                }
+                if (batch.mContactCount > 0) {
+                    count += submit(batch, pending, insertIndex, insertFragment);
+                }
+                while (!pending.isEmpty()) {
+                    count += write(pending.removeFirst(), insertIndex, insertFragment);
+                }
+            } finally {
+                for (Future<RebuildBatch> future : pending) {
+                    future.cancel(true);
+                }
+                cursor.close();
+                insertIndex.close();
+                insertFragment.close();
+            }
+            return count;
+        }
+
+        private int submit(final RebuildBatch batch, ArrayDeque<Future<RebuildBatch>> pending,
+                SQLiteStatement insertIndex, SQLiteStatement insertFragment) {
+            int count = 0;
+            // Don't let the reader run too far ahead of the workers.
+            while (pending.size() >= mMaxPendingBatches) {
+                count += write(pending.removeFirst(), insertIndex, insertFragment);
+            }
+            pending.addLast(mExecutor.submit(new Callable<RebuildBatch>() {
+                @Override
+                public RebuildBatch call() {
+                    tokenize(batch);
+                    return batch;
+                }
+            }));
+            return count;
+        }
+
+        /**
+         * Runs on a worker thread.
+         */
+        private void tokenize(RebuildBatch batch) {
+            ArrayMap<String, DataRowHandler> handlers = mWorkerHandlers.get();
+            IndexBuilder indexBuilder = mWorkerIndexBuilder.get();
+            IndexBuilder fragmentBuilder = mWorkerFragmentBuilder.get();
+            if (handlers == null) {
+                handlers = mContactsProvider.createSearchIndexDataRowHandlers();
+                indexBuilder = new IndexBuilder();
+                fragmentBuilder = new IndexBuilder();
+                mWorkerHandlers.set(handlers);
+                mWorkerIndexBuilder.set(indexBuilder);
+                mWorkerFragmentBuilder.set(fragmentBuilder);
+            }
+
+            final MatrixCursor rows = batch.mRows;
+            fragmentBuilder.setCursor(rows);
+            indexBuilder.reset();
+            long currentContactId = -1;
+            rows.moveToPosition(-1);
+            while (rows.moveToNext()) {
+                final long contactId = rows.getLong(ContactIndexQuery.CONTACT_ID);
+                if (contactId != currentContactId) {
+                    if (currentContactId != -1) {
+                        batch.addContact(currentContactId, indexBuilder);
+                    }
+                    currentContactId = contactId;
+                    indexBuilder.reset();
+                }
+                final DataRowHandler handler =
+                        handlers.get(rows.getString(ContactIndexQuery.MIMETYPE));
+                if (handler == null || !handler.hasSearchableData()) {
+                    continue;
+                }
+                fragmentBuilder.reset();
+                handler.appendSearchableData(fragmentBuilder);
+                fragmentBuilder.commit();
+                batch.addFragment(rows.getLong(ContactIndexQuery.DATA_ID),
+                        rows.getLong(ContactIndexQuery.RAW_CONTACT_ID), fragmentBuilder);
+                indexBuilder.appendFragment(fragmentBuilder.getContent(),
+                        fragmentBuilder.getName(), fragmentBuilder.getTokens());
+            }
+            if (currentContactId != -1) {
+                batch.addContact(currentContactId, indexBuilder);
+            }
+        }
+
+        /**
+         * Waits for a batch to be tokenized and inserts the results.  Runs on the thread owning
+         * the transaction.
+         */
+        private int write(Future<RebuildBatch> future, SQLiteStatement insertIndex,
+                SQLiteStatement insertFragment) {
+            final RebuildBatch batch;
+            try {
+                batch = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Search index rebuild interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Search index rebuild failed", e.getCause());
+            }
+
+            final int fragmentCount = batch.mFragmentIds.size();
+            for (int i = 0; i < fragmentCount; i++) {
+                final int offset = i * 3;
+                insertFragment.bindLong(1, batch.mFragmentIds.get(i));
+                insertFragment.bindLong(2, batch.mFragmentRawContactIds.get(i));
+                bindStringOrNull(insertFragment, 3, batch.mFragmentValues.get(offset));
+                bindStringOrNull(insertFragment, 4, batch.mFragmentValues.get(offset + 1));
+                bindStringOrNull(insertFragment, 5, batch.mFragmentValues.get(offset + 2));
+                insertFragment.executeInsert();
+            }
+
+            final int contactCount = batch.mContactIds.size();
+            for (int i = 0; i < contactCount; i++) {
+                final int offset = i * 3;
+                final long contactId = batch.mContactIds.get(i);
+                insertIndex.bindLong(1, contactId);
+                insertIndex.bindLong(2, contactId);
+                bindStringOrNull(insertIndex, 3, batch.mContactValues.get(offset));
+                bindStringOrNull(insertIndex, 4, batch.mContactValues.get(offset + 1));
+                bindStringOrNull(insertIndex, 5, batch.mContactValues.get(offset + 2));
+                insertIndex.executeInsert();
+            }
+            return contactCount;
+        }
+    }
+
+    /**
+     * The data rows of a run of contacts, copied off the database cursor so that they can be
+     * tokenized on a worker thread, and the resulting index and fragment rows.
+     */
+    private static final class RebuildBatch {
+        final MatrixCursor mRows = new MatrixCursor(ContactIndexQuery.COLUMNS);
+        int mContactCount;
+
+        final LongArray mContactIds = new LongArray();
+        /** Content, name and tokens of each contact in {@link #mContactIds}. */
+        final ArrayList<String> mContactValues = new ArrayList<>();
+        final LongArray mFragmentIds = new LongArray();
+        final LongArray mFragmentRawContactIds = new LongArray();
+        /** Content, name and tokens of each data row in {@link #mFragmentIds}. */
+        final ArrayList<String> mFragmentValues = new ArrayList<>();
+
+        /**
+         * Copies the current row of {@code cursor}.  The data columns of rows without searchable
+         * data are not needed: the row only tells that the contact exists.
+         */
+        void addRow(Cursor cursor, boolean searchable) {
+            final int columnCount = searchable
+                    ? ContactIndexQuery.COLUMNS.length : ContactIndexQuery.FIRST_DATA_COLUMN;
+            final Object[] row = new Object[ContactIndexQuery.COLUMNS.length];
+            for (int i = 0; i < columnCount; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = cursor.getString(i);
+                        break;
+                }
+            }
+            if (!searchable) {
+                // Make sure worker threads don't look up a handler for a custom mimetype.
+                row[ContactIndexQuery.MIMETYPE] = null;
+            }
+            mRows.addRow(row);
+        }
+
+        void addContact(long contactId, IndexBuilder builder) {
+            mContactIds.add(contactId);
+            mContactValues.add(builder.getContent());
+            mContactValues.add(builder.getName());
+            mContactValues.add(builder.getTokens());
+        }
 
+        void addFragment(long dataId, long rawContactId, IndexBuilder builder) {
+            mFragmentIds.add(dataId);
+            mFragmentRawContactIds.add(rawContactId);
+            mFragmentValues.add(builder.getContent());
+            mFragmentValues.add(builder.getName());
+            mFragmentValues.add(builder.getTokens());
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Tokenizes the data rows matching {@code selection} and stores their fragments.
+     */
+    private int buildAndInsertFragments(SQLiteDatabase db, String selection) {
         int count = 0;
         Cursor cursor = db.query(Tables.DATA_JOIN_MIMETYPE_RAW_CONTACTS, ContactIndexQuery.COLUMNS,
-                selection, null, null, null, mSb.toString());
-        mIndexBuilder.setCursor(cursor);
+                selection, null, null, null, null);
+        mFragmentBuilder.setCursor(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                if (buildFragment(cursor, mFragmentBuilder)) {
+                    insertFragmentRow(db, cursor.getLong(ContactIndexQuery.DATA_ID),
+                            cursor.getLong(ContactIndexQuery.RAW_CONTACT_ID), mFragmentBuilder);
+                    count++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    /**
+     * Builds the search index fragment of the data row the cursor is positioned on.
+     *
+     * @return false if the row has no searchable data
+     */
+    private boolean buildFragment(Cursor cursor, IndexBuilder builder) {
+        String mimetype = cursor.getString(ContactIndexQuery.MIMETYPE);
+        DataRowHandler dataRowHandler = mContactsProvider.getDataRowHandler(mimetype);
+        if (!dataRowHandler.hasSearchableData()) {
+            return false;
+        }
+        builder.reset();
+        dataRowHandler.appendSearchableData(builder);
+        builder.commit();
+        return true;
+    }
+
+    /**
+     * Re-assembles the search index rows of the contacts owning the raw contacts matching
+     * {@code rawContactsSelection} from the stored fragments, without re-tokenizing anything.
+     */
+    private int mergeAndInsertIndex(SQLiteDatabase db, String rawContactsSelection) {
+        int count = 0;
+        Cursor cursor = db.query(Tables.DATA_JOIN_RAW_CONTACTS
+                + " LEFT OUTER JOIN " + Tables.SEARCH_INDEX_DATA + " ON ("
+                + DataColumns.CONCRETE_ID + "=" + SearchIndexDataColumns.CONCRETE_DATA_ID + ")",
+                FragmentMergeQuery.COLUMNS, rawContactsSelection, null, null, null,
+                getIndexOrderBy());
         mIndexBuilder.reset();
         try {
             long currentContactId = -1;
             while (cursor.moveToNext()) {
-                long contactId = cursor.getLong(0);
+                long contactId = cursor.getLong(FragmentMergeQuery.CONTACT_ID);
                 if (contactId != currentContactId) {
                     if (currentContactId != -1) {
                         insertIndexRow(db, currentContactId, mIndexBuilder);
@@ -378,12 +913,9 @@ public class SearchIndexManager {
                     currentContactId = contactId;
                     mIndexBuilder.reset();
                 }
-                String mimetype = cursor.getString(ContactIndexQuery.MIMETYPE);
-                DataRowHandler dataRowHandler = mContactsProvider.getDataRowHandler(mimetype);
-                if (dataRowHandler.hasSearchableData()) {
-                    dataRowHandler.appendSearchableData(mIndexBuilder);
-                    mIndexBuilder.commit();
-                }
+                mIndexBuilder.appendFragment(cursor.getString(FragmentMergeQuery.CONTENT),
+                        cursor.getString(FragmentMergeQuery.NAME),
+                        cursor.getString(FragmentMergeQuery.TOKENS));
             }
             if (currentContactId != -1) {
                 insertIndexRow(db, currentContactId, mIndexBuilder);
@@ -404,6 +936,26 @@ public class SearchIndexManager {
         mValues.put(ROW_ID_KEY, contactId);
         db.insert(Tables.SEARCH_INDEX, null, mValues);
     }
+
+    private void insertFragmentRow(SQLiteDatabase db, long dataId, long rawContactId,
+            IndexBuilder builder) {
+        mValues.clear();
+        mValues.put(SearchIndexDataColumns.DATA_ID, dataId);
+        mValues.put(SearchIndexDataColumns.RAW_CONTACT_ID, rawContactId);
+        mValues.put(SearchIndexDataColumns.CONTENT, builder.getContent());
+        mValues.put(SearchIndexDataColumns.NAME, builder.getName());
+        mValues.put(SearchIndexDataColumns.TOKENS, builder.getTokens());
+        db.insert(Tables.SEARCH_INDEX_DATA, null, mValues);
+    }
+
+    private long getRebuildCursor() {
+        return Long.parseLong(mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_REBUILD_CURSOR, "-1"));
+    }
+
+    private void setRebuildCursor(long contactId) {
+        mDbHelper.setProperty(PROPERTY_SEARCH_INDEX_REBUILD_CURSOR, String.valueOf(contactId));
+    }
+
     private int getSearchIndexVersion() {
         return Integer.parseInt(mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_VERSION, "0"));
     }
@@ -31,6 +31,14 @@ import java.util.Set;
  */
 public class TransactionContext  {
 
+    /**
+     * Kinds of fields derived from the data rows of a raw contact, whose recomputation is
+     * deferred to {@link ContactsProvider2#flushTransactionalChanges}.
+     */
+    public static final int DERIVED_FIELD_HAS_PHONE_NUMBER = 1;
+    public static final int DERIVED_FIELD_DISPLAY_NAME = 1 << 1;
+    public static final int DERIVED_FIELD_AGGREGATION = 1 << 2;
+
     private final boolean mForProfile;
     /** Map from raw contact id to account Id */
     private ArrayMap<Long, Long> mInsertedRawContactsAccounts;
@@ -44,7 +52,43 @@ public class TransactionContext  {
     private ArraySet<Long> mChangedRawContacts;
     private ArraySet<Long> mStaleSearchIndexRawContacts;
     private ArraySet<Long> mStaleSearchIndexContacts;
+    /** Map from data id to raw contact id, for data rows whose search index fragment is stale */
+    private ArrayMap<Long, Long> mStaleSearchIndexDataRows;
     private ArrayMap<Long, Object> mUpdatedSyncStates;
+    /** Raw contacts changed in the transaction, for fast scrolling index invalidation */
+    private ArraySet<Long> mFastScrollingIndexRawContacts;
+    private boolean mFastScrollingIndexStale;
+    private boolean mRawContactsAggregated;
+    /** Raw contacts changed in the transaction, for phone lookup cache invalidation */
+    private ArraySet<Long> mPhoneLookupRawContacts;
+    private ArraySet<Long> mStalePhoneLookupContacts;
+    private ArraySet<String> mStalePhoneLookupMinMatches;
+    private boolean mPhoneLookupCacheStale;
+    private boolean mLookupKeyCacheStale;
+    /** Map from raw contact id to the DERIVED_FIELD_* flags of its stale derived fields */
+    private ArrayMap<Long, Integer> mStaleDerivedFields;
+    /** Map from data id to the pending update of its phone_lookup rows */
+    private ArrayMap<Long, PhoneLookupUpdate> mPhoneLookupUpdates;
+
+    /**
+     * A pending replacement of the phone_lookup rows of a phone data row.
+     */
+    public static final class PhoneLookupUpdate {
+        public final long rawContactId;
+        /** The new number, or null if the rows are only deleted */
+        public final String number;
+        public final String numberE164;
+        /** Whether the data row was inserted since the last flush, so it has no rows yet */
+        public final boolean newDataRow;
+
+        PhoneLookupUpdate(long rawContactId, String number, String numberE164,
+                boolean newDataRow) {
+            this.rawContactId = rawContactId;
+            this.number = number;
+            this.numberE164 = numberE164;
+            this.newDataRow = newDataRow;
+        }
+    }
 
     public TransactionContext(boolean forProfile) {
         mForProfile = forProfile;
@@ -82,6 +126,86 @@ public class TransactionContext  {
             mChangedRawContacts = new ArraySet<>();
         }
         mChangedRawContacts.add(rawContactId);
+
+        if (mFastScrollingIndexRawContacts == null) {
+            mFastScrollingIndexRawContacts = new ArraySet<>();
+        }
+        mFastScrollingIndexRawContacts.add(rawContactId);
+
+        if (mPhoneLookupRawContacts == null) mPhoneLookupRawContacts = new ArraySet<>();
+        mPhoneLookupRawContacts.add(rawContactId);
+    }
+
+    /**
+     * Marks the cached fast scrolling indexes depending on the raw contacts changed in this
+     * transaction as stale.
+     */
+    public void invalidateFastScrollingIndex() {
+        mFastScrollingIndexStale = true;
+    }
+
+    /**
+     * Called by the aggregator when it (re-)aggregates raw contacts, which can move raw contacts
+     * of any account between contacts.
+     */
+    public void rawContactsAggregated() {
+        mRawContactsAggregated = true;
+    }
+
+    /**
+     * Marks the cached phone lookups of numbers with the given min match as stale.
+     */
+    public void invalidatePhoneLookupCacheForMinMatch(String minMatch) {
+        if (mStalePhoneLookupMinMatches == null) mStalePhoneLookupMinMatches = new ArraySet<>();
+        mStalePhoneLookupMinMatches.add(minMatch);
+    }
+
+    /**
+     * Marks the cached phone lookups returning the given contact as stale.
+     */
+    public void invalidatePhoneLookupCacheForContact(long contactId) {
+        if (mStalePhoneLookupContacts == null) mStalePhoneLookupContacts = new ArraySet<>();
+        mStalePhoneLookupContacts.add(contactId);
+    }
+
+    /**
+     * Marks all the cached phone lookups as stale.
+     */
+    public void invalidatePhoneLookupCache() {
+        mPhoneLookupCacheStale = true;
+    }
+
+    /**
+     * Marks the cached lookup key resolutions as stale, e.g. because the lookup key of a raw
+     * contact changed.
+     */
+    public void invalidateLookupKeyCache() {
+        mLookupKeyCacheStale = true;
+    }
+
+    /**
+     * Marks the given derived fields of a raw contact as stale, so that they are recomputed
+     * once when the transactional changes are flushed, however many data rows changed.
+     *
+     * @param fields DERIVED_FIELD_* flags
+     */
+    public void invalidateDerivedFields(long rawContactId, int fields) {
+        if (mStaleDerivedFields == null) mStaleDerivedFields = new ArrayMap<>();
+        final Integer staleFields = mStaleDerivedFields.get(rawContactId);
+        mStaleDerivedFields.put(rawContactId, staleFields == null ? fields : staleFields | fields);
+    }
+
+    /**
+     * Records that the phone_lookup rows of a data row must be replaced with the rows of the
+     * given number when the transactional changes are flushed. Replaces any pending update of
+     * the same data row.
+     */
+    public void updatePhoneLookup(long dataId, long rawContactId, String number,
+            String numberE164, boolean newDataRow) {
+        if (mPhoneLookupUpdates == null) mPhoneLookupUpdates = new ArrayMap<>();
+        final PhoneLookupUpdate previous = mPhoneLookupUpdates.get(dataId);
+        mPhoneLookupUpdates.put(dataId, new PhoneLookupUpdate(rawContactId, number, numberE164,
+                newDataRow || previous != null && previous.newDataRow));
     }
 
     public void syncStateUpdated(long rowId, Object data) {
@@ -94,6 +218,11 @@ public class TransactionContext  {
         mStaleSearchIndexRawContacts.add(rawContactId);
     }
 
+    public void invalidateSearchIndexForDataRow(long rawContactId, long dataId) {
+        if (mStaleSearchIndexDataRows == null) mStaleSearchIndexDataRows = new ArrayMap<>();
+        mStaleSearchIndexDataRows.put(dataId, rawContactId);
+    }
+
     public void invalidateSearchIndexForContact(long contactId) {
         if (mStaleSearchIndexContacts == null) mStaleSearchIndexContacts = new ArraySet<>();
         mStaleSearchIndexContacts.add(contactId);
@@ -124,11 +253,68 @@ public class TransactionContext  {
         return mStaleSearchIndexRawContacts;
     }
 
+    public ArrayMap<Long, Long> getStaleSearchIndexDataRows() {
+        if (mStaleSearchIndexDataRows == null) mStaleSearchIndexDataRows = new ArrayMap<>();
+        return mStaleSearchIndexDataRows;
+    }
+
     public Set<Long> getStaleSearchIndexContactIds() {
         if (mStaleSearchIndexContacts == null) mStaleSearchIndexContacts = new ArraySet<>();
         return mStaleSearchIndexContacts;
     }
 
+    public boolean isFastScrollingIndexStale() {
+        return mFastScrollingIndexStale;
+    }
+
+    public Set<Long> getFastScrollingIndexRawContactIds() {
+        if (mFastScrollingIndexRawContacts == null) {
+            mFastScrollingIndexRawContacts = new ArraySet<>();
+        }
+        return mFastScrollingIndexRawContacts;
+    }
+
+    public Set<Long> getPhoneLookupRawContactIds() {
+        if (mPhoneLookupRawContacts == null) mPhoneLookupRawContacts = new ArraySet<>();
+        return mPhoneLookupRawContacts;
+    }
+
+    public Set<Long> getStalePhoneLookupContactIds() {
+        if (mStalePhoneLookupContacts == null) mStalePhoneLookupContacts = new ArraySet<>();
+        return mStalePhoneLookupContacts;
+    }
+
+    public Set<String> getStalePhoneLookupMinMatches() {
+        if (mStalePhoneLookupMinMatches == null) mStalePhoneLookupMinMatches = new ArraySet<>();
+        return mStalePhoneLookupMinMatches;
+    }
+
+    public boolean isPhoneLookupCacheStale() {
+        return mPhoneLookupCacheStale;
+    }
+
+    /**
+     * Returns a map from raw contact id to the DERIVED_FIELD_* flags of its stale derived
+     * fields.
+     */
+    public ArrayMap<Long, Integer> getStaleDerivedFields() {
+        if (mStaleDerivedFields == null) mStaleDerivedFields = new ArrayMap<>();
+        return mStaleDerivedFields;
+    }
+
+    public ArrayMap<Long, PhoneLookupUpdate> getPhoneLookupUpdates() {
+        if (mPhoneLookupUpdates == null) mPhoneLookupUpdates = new ArrayMap<>();
+        return mPhoneLookupUpdates;
+    }
+
+    public boolean hasAggregatedRawContacts() {
+        return mRawContactsAggregated;
+    }
+
+    public boolean isLookupKeyCacheStale() {
+        return mLookupKeyCacheStale;
+    }
+
     public Set<Entry<Long, Object>> getUpdatedSyncStates() {
         if (mUpdatedSyncStates == null) mUpdatedSyncStates = new ArrayMap<>();
         return mUpdatedSyncStates.entrySet();
@@ -151,15 +337,38 @@ public class TransactionContext  {
         mDirtyRawContacts = null;
         mChangedRawContacts = null;
         mBackupIdChangedRawContacts = null;
+        mStaleDerivedFields = null;
+        mPhoneLookupUpdates = null;
     }
 
     public void clearSearchIndexUpdates() {
         mStaleSearchIndexRawContacts = null;
         mStaleSearchIndexContacts = null;
+        mStaleSearchIndexDataRows = null;
+    }
+
+    public void clearFastScrollingIndexUpdates() {
+        mFastScrollingIndexRawContacts = null;
+        mFastScrollingIndexStale = false;
+        mRawContactsAggregated = false;
+    }
+
+    public void clearPhoneLookupCacheUpdates() {
+        mPhoneLookupRawContacts = null;
+        mStalePhoneLookupContacts = null;
+        mStalePhoneLookupMinMatches = null;
+        mPhoneLookupCacheStale = false;
+    }
+
+    public void clearLookupKeyCacheUpdates() {
+        mLookupKeyCacheStale = false;
     }
 
     public void clearAll() {
         clearExceptSearchIndexUpdates();
         clearSearchIndexUpdates();
+        clearFastScrollingIndexUpdates();
+        clearPhoneLookupCacheUpdates();
+        clearLookupKeyCacheUpdates();
     }
 }
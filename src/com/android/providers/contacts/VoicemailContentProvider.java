@@ -26,9 +26,12 @@ import android.annotation.Nullable;
 import android.app.AppOpsManager;
 import android.content.AttributionSource;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Binder;
@@ -51,6 +54,7 @@ import com.android.providers.contacts.util.UserUtils;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -71,6 +75,7 @@ public class VoicemailContentProvider extends ContentProvider
     private ContactsTaskScheduler mTaskScheduler;
 
     private VoicemailPermissions mVoicemailPermissions;
+    private CallLogChangeNotifier mCallLogChangeNotifier;
     private VoicemailTable.Delegate mVoicemailContentTable;
     private VoicemailTable.Delegate mVoicemailStatusTable;
 
@@ -97,8 +102,10 @@ public class VoicemailContentProvider extends ContentProvider
         setAppOps(AppOpsManager.OP_ADD_VOICEMAIL, AppOpsManager.OP_ADD_VOICEMAIL);
 
         mVoicemailPermissions = new VoicemailPermissions(context);
+        mCallLogChangeNotifier = createCallLogChangeNotifier(context);
         mVoicemailContentTable = new VoicemailContentTable(Tables.CALLS, context,
-                getDatabaseHelper(context), this, createCallLogInsertionHelper(context));
+                getDatabaseHelper(context), this, createCallLogInsertionHelper(context),
+                mCallLogChangeNotifier);
         mVoicemailStatusTable = new VoicemailStatusTable(Tables.VOICEMAIL_STATUS, context,
                 getDatabaseHelper(context), this);
 
@@ -154,6 +161,16 @@ public class VoicemailContentProvider extends ContentProvider
         return DefaultCallLogInsertionHelper.getInstance(context);
     }
 
+    @VisibleForTesting
+    /*package*/ CallLogChangeNotifier createCallLogChangeNotifier(Context context) {
+        return CallLogChangeNotifier.getInstance(context);
+    }
+
+    @VisibleForTesting
+    /*package*/ CallLogChangeNotifier getCallLogChangeNotifierForTest() {
+        return mCallLogChangeNotifier;
+    }
+
     @VisibleForTesting
     /*package*/ CallLogDatabaseHelper getDatabaseHelper(Context context) {
         return CallLogDatabaseHelper.getInstance(context);
@@ -190,7 +207,24 @@ public class VoicemailContentProvider extends ContentProvider
     @Override
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
         UriData uriData = checkPermissionsAndCreateUriDataForWrite(uri, values);
-        return getTableDelegate(uriData).bulkInsert(uriData, values);
+        // The call log changes of the batch are notified once, when it finishes.
+        mCallLogChangeNotifier.startBatch();
+        try {
+            return getTableDelegate(uriData).bulkInsert(uriData, values);
+        } finally {
+            mCallLogChangeNotifier.finishBatch();
+        }
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        mCallLogChangeNotifier.startBatch();
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            mCallLogChangeNotifier.finishBatch();
+        }
     }
 
     @Override
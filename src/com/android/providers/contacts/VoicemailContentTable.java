@@ -35,6 +35,7 @@ import android.util.ArraySet;
 import android.util.Log;
 
 import com.android.common.content.ProjectionMap;
+import com.android.providers.contacts.CallLogDatabaseHelper.CallsColumns;
 import com.android.providers.contacts.VoicemailContentProvider.UriData;
 import com.android.providers.contacts.util.CloseUtils;
 
@@ -92,14 +93,17 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
     private final Context mContext;
     private final VoicemailTable.DelegateHelper mDelegateHelper;
     private final CallLogInsertionHelper mCallLogInsertionHelper;
+    private final CallLogChangeNotifier mCallLogChangeNotifier;
 
     public VoicemailContentTable(String tableName, Context context, CallLogDatabaseHelper dbHelper,
             VoicemailTable.DelegateHelper contentProviderHelper,
-            CallLogInsertionHelper callLogInsertionHelper) {
+            CallLogInsertionHelper callLogInsertionHelper,
+            CallLogChangeNotifier callLogChangeNotifier) {
         mTableName = tableName;
         mContext = context;
         mDbHelper = dbHelper;
         mDelegateHelper = contentProviderHelper;
+        mCallLogChangeNotifier = callLogChangeNotifier;
         mVoicemailProjectionMap = new ProjectionMap.Builder()
                 .add(Voicemails._ID)
                 .add(Voicemails.NUMBER)
@@ -291,6 +295,11 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
         // URI that include message Id. I think we do want to support bulk update.
         String combinedClause = concatenateClauses(selection, uriData.getWhereClause(),
                 getCallTypeClause());
+        if (values.containsKey(Voicemails.NUMBER)) {
+            values = new ContentValues(values);
+            values.put(CallsColumns.MIN_MATCH,
+                    CallLogDatabaseHelper.computeMinMatch(values.getAsString(Voicemails.NUMBER)));
+        }
         return createDatabaseModifier(db).update(uriData.getUri(), mTableName, values, combinedClause,
                 selectionArgs);
     }
@@ -328,7 +337,7 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
     }
 
     private DatabaseModifier createDatabaseModifier(SQLiteDatabase db) {
-        return new DbModifierWithNotification(mTableName, db, mContext);
+        return new DbModifierWithNotification(mTableName, db, mCallLogChangeNotifier, mContext);
     }
 
 }
@@ -38,6 +38,7 @@ import com.android.providers.contacts.NameSplitter;
 import com.android.providers.contacts.PhotoPriorityResolver;
 import com.android.providers.contacts.ReorderingCursorWrapper;
 import com.android.providers.contacts.TransactionContext;
+import com.android.providers.contacts.aggregation.util.CandidateHitCache;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
 import com.android.providers.contacts.aggregation.util.ContactAggregatorHelper;
 import com.android.providers.contacts.aggregation.util.ContactMatcher;
@@ -141,6 +142,11 @@ public abstract class AbstractContactAggregator {
     // suggestion lookup, ignore the remaining results.
     protected static final int FIRST_LETTER_SUGGESTION_HIT_LIMIT = 100;
 
+    // If at least this many raw contacts are marked for aggregation in a transaction, the
+    // candidate hits for all of them are prefetched with a few bulk queries.
+    @VisibleForTesting
+    static final int BATCH_AGGREGATION_THRESHOLD = 100;
+
     protected final ContactsProvider2 mContactsProvider;
     protected final ContactsDatabaseHelper mDbHelper;
     protected PhotoPriorityResolver mPhotoPriorityResolver;
@@ -170,6 +176,13 @@ public abstract class AbstractContactAggregator {
 
     protected ArrayMap<Long, Integer> mRawContactsMarkedForAggregation = new ArrayMap<>();
 
+    private int mBatchAggregationThreshold = BATCH_AGGREGATION_THRESHOLD;
+
+    /**
+     * Candidate hits of the current batched aggregation pass, null outside of such a pass.
+     */
+    protected CandidateHitCache mCandidateHitCache;
+
     protected String[] mSelectionArgs1 = new String[1];
     protected String[] mSelectionArgs2 = new String[2];
     protected String[] mSelectionArgs3 = new String[3];
@@ -400,6 +413,11 @@ public abstract class AbstractContactAggregator {
         mEnabled = enabled;
     }
 
+    @VisibleForTesting
+    public final void setBatchAggregationThresholdForTest(int threshold) {
+        mBatchAggregationThreshold = threshold;
+    }
+
     public final boolean isEnabled() {
         return mEnabled;
     }
@@ -426,6 +444,7 @@ public abstract class AbstractContactAggregator {
         if (markedCount == 0) {
             return;
         }
+        txContext.rawContactsAggregated();
 
         final long start = System.currentTimeMillis();
         if (DEBUG_LOGGING) {
@@ -479,9 +498,19 @@ public abstract class AbstractContactAggregator {
             Log.d(TAG, "aggregateInTransaction: initial query done.");
         }
 
-        for (int i = 0; i < actualCount; i++) {
-            aggregateContact(txContext, db, rawContactIds[i], accountIds[i], contactIds[i],
-                    mCandidates);
+        if (actualCount >= mBatchAggregationThreshold) {
+            mCandidateHitCache = prefetchCandidateHits(db, rawContactIds, actualCount);
+            if (DEBUG_LOGGING) {
+                Log.d(TAG, "aggregateInTransaction: candidate hits prefetched.");
+            }
+        }
+        try {
+            for (int i = 0; i < actualCount; i++) {
+                aggregateContact(txContext, db, rawContactIds[i], accountIds[i], contactIds[i],
+                        mCandidates);
+            }
+        } finally {
+            mCandidateHitCache = null;
         }
 
         long elapsedTime = System.currentTimeMillis() - start;
@@ -644,6 +673,31 @@ public abstract class AbstractContactAggregator {
         return contactId;
     }
 
+    /**
+     * Loads the candidate hits of all the given raw contacts for a batched aggregation pass.
+     * Returns null if the aggregator doesn't support batched aggregation, in which case the
+     * candidates are looked up one raw contact at a time.
+     */
+    protected CandidateHitCache prefetchCandidateHits(SQLiteDatabase db, long[] rawContactIds,
+            int count) {
+        return null;
+    }
+
+    /**
+     * Returns whether the contact of a prefetched candidate is currently in the default
+     * directory, which is what the candidate lookup queries filter on.
+     */
+    protected final boolean isCandidateInDefaultDirectory(SQLiteDatabase db,
+            long candidateRawContactId) {
+        final long contactId = mCandidateHitCache.getContactId(candidateRawContactId);
+        Boolean inDefaultDirectory = mCandidateHitCache.isContactInDefaultDirectory(contactId);
+        if (inDefaultDirectory == null) {
+            inDefaultDirectory = mDbHelper.isContactInDefaultDirectory(db, contactId);
+            mCandidateHitCache.setContactInDefaultDirectory(contactId, inDefaultDirectory);
+        }
+        return inDefaultDirectory;
+    }
+
     protected final long insertContact(SQLiteDatabase db, long rawContactId) {
         mSelectionArgs1[0] = String.valueOf(rawContactId);
         computeAggregateData(db, mRawContactsQueryByRawContactId, mSelectionArgs1, mContactInsert);
@@ -670,6 +724,7 @@ public abstract class AbstractContactAggregator {
         if (!mEnabled) {
             return;
         }
+        txContext.rawContactsAggregated();
 
         MatchCandidateList candidates = new MatchCandidateList();
 
@@ -703,6 +758,10 @@ public abstract class AbstractContactAggregator {
         mContactUpdate.execute();
 
         mDbHelper.updateContactVisible(txContext, contactId);
+        if (mCandidateHitCache != null) {
+            mCandidateHitCache.invalidateContact(contactId);
+        }
+        txContext.invalidatePhoneLookupCacheForContact(contactId);
         updateAggregatedStatusUpdate(contactId);
     }
 
@@ -897,6 +956,9 @@ public abstract class AbstractContactAggregator {
         mContactIdUpdate.bindLong(1, contactId);
         mContactIdUpdate.bindLong(2, rawContactId);
         mContactIdUpdate.execute();
+        if (mCandidateHitCache != null) {
+            mCandidateHitCache.setContactId(rawContactId, contactId);
+        }
     }
 
     /**
@@ -922,6 +984,9 @@ public abstract class AbstractContactAggregator {
         mContactIdAndMarkAggregatedUpdate.bindLong(1, contactId);
         mContactIdAndMarkAggregatedUpdate.bindLong(2, rawContactId);
         mContactIdAndMarkAggregatedUpdate.execute();
+        if (mCandidateHitCache != null) {
+            mCandidateHitCache.setContactId(rawContactId, contactId);
+        }
     }
 
     private void setPresenceContactId(long rawContactId, long contactId) {
@@ -1815,29 +1880,34 @@ public abstract class AbstractContactAggregator {
 
 
     /**
-     * Updates the {@link Contacts#HAS_PHONE_NUMBER} flag for the aggregate contact containing the
-     * specified raw contact.
+     * Updates the {@link Contacts#HAS_PHONE_NUMBER} flag for the aggregate contacts containing
+     * the specified raw contacts, with a single statement.
+     *
+     * @param rawContactIds Should not be empty
      */
-    public final void updateHasPhoneNumber(SQLiteDatabase db, long rawContactId) {
-
-        long contactId = mDbHelper.getContactId(rawContactId);
-        if (contactId == 0) {
-            return;
-        }
-
-        final SQLiteStatement hasPhoneNumberUpdate = db.compileStatement(
-                "UPDATE " + Tables.CONTACTS +
+    public final void updateHasPhoneNumber(SQLiteDatabase db, Set<Long> rawContactIds) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("UPDATE " + Tables.CONTACTS +
                 " SET " + Contacts.HAS_PHONE_NUMBER + "="
-                        + "(SELECT (CASE WHEN COUNT(*)=0 THEN 0 ELSE 1 END)"
+                        + "EXISTS (SELECT 1"
                         + " FROM " + Tables.DATA_JOIN_RAW_CONTACTS
                         + " WHERE " + DataColumns.MIMETYPE_ID + "=?"
                                 + " AND " + Phone.NUMBER + " NOT NULL"
-                                + " AND " + RawContacts.CONTACT_ID + "=?)" +
-                " WHERE " + Contacts._ID + "=?");
+                                + " AND " + RawContacts.CONTACT_ID + "="
+                                        + Tables.CONTACTS + "." + Contacts._ID + ")" +
+                " WHERE " + Contacts._ID + " IN ("
+                        + "SELECT " + RawContacts.CONTACT_ID
+                        + " FROM " + Tables.RAW_CONTACTS
+                        + " WHERE " + RawContacts._ID + " IN (");
+        for (long rawContactId : rawContactIds) {
+            sb.append(rawContactId).append(',');
+        }
+        sb.setLength(sb.length() - 1);
+        sb.append("))");
+
+        final SQLiteStatement hasPhoneNumberUpdate = db.compileStatement(sb.toString());
         try {
             hasPhoneNumberUpdate.bindLong(1, mDbHelper.getMimeTypeId(Phone.CONTENT_ITEM_TYPE));
-            hasPhoneNumberUpdate.bindLong(2, contactId);
-            hasPhoneNumberUpdate.bindLong(3, contactId);
             hasPhoneNumberUpdate.execute();
         } finally {
             hasPhoneNumberUpdate.close();
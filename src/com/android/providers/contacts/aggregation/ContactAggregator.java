@@ -40,6 +40,7 @@ import com.android.providers.contacts.TransactionContext;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
 import com.android.providers.contacts.aggregation.util.ContactMatcher;
 import com.android.providers.contacts.aggregation.util.MatchScore;
+import com.android.providers.contacts.aggregation.util.ParallelNameScorer;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.google.android.collect.Sets;
 
@@ -217,6 +218,7 @@ public class ContactAggregator extends AbstractContactAggregator {
             if (currentContactContentsCount == 0) {
                 // Delete a previous aggregate if it only contained this raw contact
                 ContactsTableUtil.deleteContact(db, currentContactId);
+                txContext.invalidatePhoneLookupCacheForContact(currentContactId);
 
                 mAggregatedPresenceDelete.bindLong(1, currentContactId);
                 mAggregatedPresenceDelete.execute();
@@ -878,24 +880,49 @@ public class ContactAggregator extends AbstractContactAggregator {
         final Cursor c = db.query(ContactNameLookupQuery.TABLE, ContactNameLookupQuery.COLUMNS,
                 selection, null, null, null, null, limit);
 
+        final int count;
+        final long[] contactIds;
+        final String[] names;
+        final int[] nameTypes;
         try {
-            while (c.moveToNext()) {
-                Long contactId = c.getLong(ContactNameLookupQuery.CONTACT_ID);
-                String name = c.getString(ContactNameLookupQuery.NORMALIZED_NAME);
-                int nameType = c.getInt(ContactNameLookupQuery.NAME_TYPE);
-
-                // Note the N^2 complexity of the following fragment. This is not a huge concern
-                // since the number of candidates is very small and in general secondary hits
-                // in the absence of primary hits are rare.
-                for (int i = 0; i < candidates.mCount; i++) {
-                    NameMatchCandidate candidate = candidates.mList.get(i);
-                    matcher.matchName(contactId, candidate.mLookupType, candidate.mName,
-                            nameType, name, algorithm);
-                }
+            count = c.getCount();
+            contactIds = new long[count];
+            names = new String[count];
+            nameTypes = new int[count];
+            for (int row = 0; c.moveToNext(); row++) {
+                contactIds[row] = c.getLong(ContactNameLookupQuery.CONTACT_ID);
+                names[row] = c.getString(ContactNameLookupQuery.NORMALIZED_NAME);
+                nameTypes[row] = c.getInt(ContactNameLookupQuery.NAME_TYPE);
             }
         } finally {
             c.close();
         }
+
+        // Note the N^2 complexity of the following fragment. This is not a huge concern
+        // since the number of candidates is very small and in general secondary hits
+        // in the absence of primary hits are rare. When there are many rows, the name
+        // distances are computed on a fork-join pool.
+        ParallelNameScorer.score(matcher, count, candidates.mCount,
+                new ParallelNameScorer.Scorer<ContactMatcher>() {
+                    @Override
+                    public ContactMatcher newMatcher() {
+                        return new ContactMatcher();
+                    }
+
+                    @Override
+                    public void scoreRow(ContactMatcher rowMatcher, int row) {
+                        for (int i = 0; i < candidates.mCount; i++) {
+                            NameMatchCandidate candidate = candidates.mList.get(i);
+                            rowMatcher.matchName(contactIds[row], candidate.mLookupType,
+                                    candidate.mName, nameTypes[row], names[row], algorithm);
+                        }
+                    }
+
+                    @Override
+                    public void merge(ContactMatcher target, ContactMatcher partial) {
+                        target.merge(partial);
+                    }
+                });
     }
 
     /**
@@ -44,9 +44,12 @@ import com.android.providers.contacts.ContactsProvider2;
 import com.android.providers.contacts.NameSplitter;
 import com.android.providers.contacts.PhotoPriorityResolver;
 import com.android.providers.contacts.TransactionContext;
+import com.android.providers.contacts.aggregation.util.CandidateHitCache;
+import com.android.providers.contacts.aggregation.util.CandidateHitCache.Hit;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
 import com.android.providers.contacts.aggregation.util.ContactAggregatorHelper;
 import com.android.providers.contacts.aggregation.util.MatchScore;
+import com.android.providers.contacts.aggregation.util.ParallelNameScorer;
 import com.android.providers.contacts.aggregation.util.RawContactMatcher;
 import com.android.providers.contacts.aggregation.util.RawContactMatchingCandidates;
 import com.android.providers.contacts.database.ContactsTableUtil;
@@ -71,6 +74,11 @@ public class ContactAggregator2 extends AbstractContactAggregator {
     private static final int KEEP_INTACT = 0;
     private static final int RE_AGGREGATE = -1;
 
+    // Kinds of prefetched candidate hits.
+    private static final int HIT_KIND_NAME = 0;
+    private static final int HIT_KIND_EMAIL = 1;
+    private static final int HIT_KIND_PHONE = 2;
+
     private final RawContactMatcher mMatcher = new RawContactMatcher();
 
     /**
@@ -380,6 +388,7 @@ public class ContactAggregator2 extends AbstractContactAggregator {
                 if (currentRcCount == 0) {
                     // Delete a contact if it doesn't contain anything
                     ContactsTableUtil.deleteContact(db, cid);
+                    txContext.invalidatePhoneLookupCacheForContact(cid);
                     mAggregatedPresenceDelete.bindLong(1, cid);
                     mAggregatedPresenceDelete.execute();
                 } else {
@@ -752,26 +761,56 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         final Cursor c = db.query(ContactNameLookupQuery.TABLE, ContactNameLookupQuery.COLUMNS,
                 selection, null, null, null, null, limit);
 
+        final int count;
+        final long[] rawContactIds;
+        final long[] contactIds;
+        final long[] accountIds;
+        final String[] names;
+        final int[] nameTypes;
         try {
-            while (c.moveToNext()) {
-                Long rawContactId = c.getLong(ContactNameLookupQuery.RAW_CONTACT_ID);
-                Long contactId = c.getLong(ContactNameLookupQuery.CONTACT_ID);
-                Long accountId = c.getLong(ContactNameLookupQuery.ACCOUNT_ID);
-                String name = c.getString(ContactNameLookupQuery.NORMALIZED_NAME);
-                int nameType = c.getInt(ContactNameLookupQuery.NAME_TYPE);
-
-                // Note the N^2 complexity of the following fragment. This is not a huge concern
-                // since the number of candidates is very small and in general secondary hits
-                // in the absence of primary hits are rare.
-                for (int i = 0; i < candidates.mCount; i++) {
-                    NameMatchCandidate candidate = candidates.mList.get(i);
-                    matcher.matchName(rawContactId, contactId, accountId, candidate.mLookupType,
-                            candidate.mName, nameType, name, algorithm);
-                }
+            count = c.getCount();
+            rawContactIds = new long[count];
+            contactIds = new long[count];
+            accountIds = new long[count];
+            names = new String[count];
+            nameTypes = new int[count];
+            for (int row = 0; c.moveToNext(); row++) {
+                rawContactIds[row] = c.getLong(ContactNameLookupQuery.RAW_CONTACT_ID);
+                contactIds[row] = c.getLong(ContactNameLookupQuery.CONTACT_ID);
+                accountIds[row] = c.getLong(ContactNameLookupQuery.ACCOUNT_ID);
+                names[row] = c.getString(ContactNameLookupQuery.NORMALIZED_NAME);
+                nameTypes[row] = c.getInt(ContactNameLookupQuery.NAME_TYPE);
             }
         } finally {
             c.close();
         }
+
+        // Note the N^2 complexity of the following fragment. This is not a huge concern
+        // since the number of candidates is very small and in general secondary hits
+        // in the absence of primary hits are rare. When there are many rows, the name
+        // distances are computed on a fork-join pool.
+        ParallelNameScorer.score(matcher, count, candidates.mCount,
+                new ParallelNameScorer.Scorer<RawContactMatcher>() {
+                    @Override
+                    public RawContactMatcher newMatcher() {
+                        return new RawContactMatcher();
+                    }
+
+                    @Override
+                    public void scoreRow(RawContactMatcher rowMatcher, int row) {
+                        for (int i = 0; i < candidates.mCount; i++) {
+                            NameMatchCandidate candidate = candidates.mList.get(i);
+                            rowMatcher.matchName(rawContactIds[row], contactIds[row],
+                                    accountIds[row], candidate.mLookupType, candidate.mName,
+                                    nameTypes[row], names[row], algorithm);
+                        }
+                    }
+
+                    @Override
+                    public void merge(RawContactMatcher target, RawContactMatcher partial) {
+                        target.merge(partial);
+                    }
+                });
     }
 
     private interface PhotoFileQuery {
@@ -866,14 +905,32 @@ public class ContactAggregator2 extends AbstractContactAggregator {
      */
     private void updateMatchScores(SQLiteDatabase db, long rawContactId,
             MatchCandidateList candidates, RawContactMatcher matcher) {
+        final CandidateHitCache cache = mCandidateHitCache;
         //update primary score
         updateMatchScoresBasedOnExceptions(db, rawContactId, matcher);
-        updateMatchScoresBasedOnNameMatches(db, rawContactId, matcher);
+        // Names are matched exactly against at most PRIMARY_HIT_LIMIT hits, which is too little
+        // work to hand to ParallelNameScorer.
+        if (cache == null || !updateMatchScoresBasedOnPrefetchedHits(db, rawContactId,
+                cache.getNameHits(rawContactId), PRIMARY_HIT_LIMIT, matcher,
+                HIT_KIND_NAME)) {
+            updateMatchScoresBasedOnNameMatches(db, rawContactId, matcher);
+        }
         // update scores only if the raw contact doesn't have structured name
-        if (rawContactWithoutName(db, rawContactId)) {
-            updateMatchScoresBasedOnIdentityMatch(db, rawContactId, matcher);
-            updateMatchScoresBasedOnEmailMatches(db, rawContactId, matcher);
-            updateMatchScoresBasedOnPhoneMatches(db, rawContactId, matcher);
+        final Boolean withoutName = cache != null ? cache.isWithoutName(rawContactId) : null;
+        if (withoutName != null ? withoutName : rawContactWithoutName(db, rawContactId)) {
+            if (cache == null || cache.mayHaveIdentityMatches(rawContactId)) {
+                updateMatchScoresBasedOnIdentityMatch(db, rawContactId, matcher);
+            }
+            if (cache == null || !updateMatchScoresBasedOnPrefetchedHits(db, rawContactId,
+                    cache.getEmailHits(rawContactId), SECONDARY_HIT_LIMIT, matcher,
+                    HIT_KIND_EMAIL)) {
+                updateMatchScoresBasedOnEmailMatches(db, rawContactId, matcher);
+            }
+            if (cache == null || !updateMatchScoresBasedOnPrefetchedHits(db, rawContactId,
+                    cache.getPhoneHits(rawContactId), SECONDARY_HIT_LIMIT, matcher,
+                    HIT_KIND_PHONE)) {
+                updateMatchScoresBasedOnPhoneMatches(db, rawContactId, matcher);
+            }
             final List<Long> secondaryRawContactIds = matcher.prepareSecondaryMatchCandidates();
             if (secondaryRawContactIds != null
                     && secondaryRawContactIds.size() <= SECONDARY_HIT_LIMIT) {
@@ -882,6 +939,190 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         }
     }
 
+    /**
+     * Same as the name, email and phone lookup queries, but served from the hits prefetched for
+     * a batched aggregation pass. The queries only return candidates in the default directory
+     * and stop after {@code limit} rows, so the prefetched hits can only stand in for them if no
+     * more than that many hits pass the filter. Returns false, without touching the matcher, if
+     * that is not the case.
+     */
+    private boolean updateMatchScoresBasedOnPrefetchedHits(SQLiteDatabase db, long rawContactId,
+            List<Hit> hits, int limit, RawContactMatcher matcher, int kind) {
+        if (hits == null) {
+            return false;
+        }
+        final ArrayList<Hit> visibleHits = new ArrayList<>(hits.size());
+        for (Hit hit : hits) {
+            if (isCandidateInDefaultDirectory(db, hit.rawContactId)) {
+                if (visibleHits.size() == limit) {
+                    return false;
+                }
+                visibleHits.add(hit);
+            }
+        }
+
+        for (Hit hit : visibleHits) {
+            final long rId = hit.rawContactId;
+            if (rId == rawContactId) {
+                continue;
+            }
+            final long contactId = mCandidateHitCache.getContactId(rId);
+            final long accountId = mCandidateHitCache.getAccountId(rId);
+            switch (kind) {
+                case HIT_KIND_NAME:
+                    matcher.matchName(rId, contactId, accountId, hit.nameTypeA, hit.name,
+                            hit.nameTypeB, hit.name, RawContactMatcher.MATCHING_ALGORITHM_EXACT);
+                    if (hit.nameTypeA == NameLookupType.NICKNAME &&
+                            hit.nameTypeB == NameLookupType.NICKNAME) {
+                        matcher.updateScoreWithNicknameMatch(rId, contactId, accountId);
+                    }
+                    break;
+                case HIT_KIND_EMAIL:
+                    matcher.updateScoreWithEmailMatch(rId, contactId, accountId);
+                    break;
+                case HIT_KIND_PHONE:
+                    matcher.updateScoreWithPhoneNumberMatch(rId, contactId, accountId);
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Loads the name, email and phone hits of all the given raw contacts with one query each,
+     * along with what is needed to decide whether they have a structured name or identity data.
+     */
+    @Override
+    protected CandidateHitCache prefetchCandidateHits(SQLiteDatabase db, long[] rawContactIds,
+            int count) {
+        final CandidateHitCache cache = new CandidateHitCache(rawContactIds, count);
+
+        // Note: don't use selection args for the IDs, see aggregateInTransaction().
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(rawContactIds[i]);
+        }
+        final String ids = sb.toString();
+
+        Cursor c = queryBatchHits(db, BatchNameLookupMatchQuery.TABLE,
+                BatchNameLookupMatchQuery.COLUMNS,
+                "nameA." + NameLookupColumns.RAW_CONTACT_ID + " IN (" + ids + ")", null);
+        try {
+            while (c.moveToNext()) {
+                final long rawContactId = c.getLong(BatchNameLookupMatchQuery.RAW_CONTACT_ID_A);
+                final long rId = readCandidate(c, cache);
+                cache.addNameHit(rawContactId, rId, c.getString(BatchNameLookupMatchQuery.NAME),
+                        c.getInt(BatchNameLookupMatchQuery.NAME_TYPE_A),
+                        c.getInt(BatchNameLookupMatchQuery.NAME_TYPE_B));
+            }
+        } finally {
+            c.close();
+        }
+
+        mSelectionArgs1[0] = String.valueOf(mMimeTypeIdEmail);
+        c = queryBatchHits(db, EmailLookupQuery.TABLE, BatchLookupQuery.COLUMNS,
+                "dataA." + Data.RAW_CONTACT_ID + " IN (" + ids + ")"
+                        + BatchLookupQuery.EMAIL_SELECTION,
+                mSelectionArgs1);
+        try {
+            while (c.moveToNext()) {
+                final long rawContactId = c.getLong(BatchLookupQuery.RAW_CONTACT_ID_A);
+                cache.addEmailHit(rawContactId, readCandidate(c, cache));
+            }
+        } finally {
+            c.close();
+        }
+
+        final String useStrictPhoneNumberComparison =
+                mDbHelper.getUseStrictPhoneNumberComparisonParameter();
+        if (useStrictPhoneNumberComparison.equals("1")) {
+            mSelectionArgs1[0] = useStrictPhoneNumberComparison;
+            c = queryBatchHits(db, PhoneLookupQuery.TABLE, BatchLookupQuery.COLUMNS,
+                    "dataA." + Data.RAW_CONTACT_ID + " IN (" + ids + ")"
+                            + BatchLookupQuery.PHONE_SELECTION,
+                    mSelectionArgs1);
+        } else {
+            mSelectionArgs2[0] = useStrictPhoneNumberComparison;
+            mSelectionArgs2[1] = mDbHelper.getMinMatchParameter();
+            c = queryBatchHits(db, PhoneLookupQuery.TABLE, BatchLookupQuery.COLUMNS,
+                    "dataA." + Data.RAW_CONTACT_ID + " IN (" + ids + ")"
+                            + BatchLookupQuery.PHONE_SELECTION_MIN_MATCH,
+                    mSelectionArgs2);
+        }
+        try {
+            while (c.moveToNext()) {
+                final long rawContactId = c.getLong(BatchLookupQuery.RAW_CONTACT_ID_A);
+                cache.addPhoneHit(rawContactId, readCandidate(c, cache));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.query(NullNameRawContactsIdsQuery.TABLE, NullNameRawContactsIdsQuery.COLUMNS,
+                RawContacts._ID + " IN (" + ids + ")", null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                cache.addExactName(c.getLong(NullNameRawContactsIdsQuery.RAW_CONTACT_ID),
+                        TextUtils.isEmpty(c.getString(NullNameRawContactsIdsQuery.NAME)));
+            }
+        } finally {
+            c.close();
+        }
+
+        mSelectionArgs1[0] = String.valueOf(mMimeTypeIdIdentity);
+        c = db.query(true, Tables.DATA, new String[] {Data.RAW_CONTACT_ID},
+                Data.RAW_CONTACT_ID + " IN (" + ids + ")"
+                        + " AND " + DataColumns.MIMETYPE_ID + "=?"
+                        + " AND " + Identity.NAMESPACE + " NOT NULL"
+                        + " AND " + Identity.IDENTITY + " NOT NULL",
+                mSelectionArgs1, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                cache.addRawContactWithIdentity(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return cache;
+    }
+
+    /**
+     * Runs one of the batch lookup queries, returning at most one row more than
+     * {@link CandidateHitCache#MAX_HITS_PER_RAW_CONTACT} for each raw contact of the batch.  That
+     * extra row is enough for the cache to know that the raw contact has too many hits and needs
+     * the per-contact query, without the join producing all of them.
+     */
+    private static Cursor queryBatchHits(SQLiteDatabase db, String table, String[] columns,
+            String selection, String[] selectionArgs) {
+        final StringBuilder sb = new StringBuilder("SELECT * FROM (SELECT ");
+        for (String column : columns) {
+            sb.append(column).append(", ");
+        }
+        // Both batch queries have the raw contact of the batch in the same column.
+        sb.append("ROW_NUMBER() OVER (PARTITION BY ")
+                .append(columns[BatchLookupQuery.RAW_CONTACT_ID_A])
+                .append(") AS hit_number FROM ").append(table)
+                .append(" WHERE ").append(selection)
+                .append(") WHERE hit_number <= ")
+                .append(CandidateHitCache.MAX_HITS_PER_RAW_CONTACT + 1);
+        return db.rawQuery(sb.toString(), selectionArgs);
+    }
+
+    /**
+     * Records the contact, account and visibility of the candidate of a batch lookup row and
+     * returns its raw contact ID.
+     */
+    private static long readCandidate(Cursor c, CandidateHitCache cache) {
+        final long rId = c.getLong(BatchLookupQuery.RAW_CONTACT_ID);
+        cache.putRawContact(rId, c.getLong(BatchLookupQuery.CONTACT_ID),
+                c.getLong(BatchLookupQuery.ACCOUNT_ID),
+                c.getInt(BatchLookupQuery.IN_DEFAULT_DIRECTORY) != 0);
+        return rId;
+    }
+
     private void updateMatchScoresForSuggestionsBasedOnDataMatches(SQLiteDatabase db,
             MatchCandidateList candidates, RawContactMatcher matcher,
             ArrayList<AggregationSuggestionParameter> parameters) {
@@ -1057,6 +1298,61 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         int ACCOUNT_ID = 2;
     }
 
+    /**
+     * Columns of the email and phone lookup queries when run for a whole batch of raw contacts.
+     * The filter on the default directory is left out because it can change during the
+     * aggregation pass; it is returned as a column instead.
+     */
+    protected interface BatchLookupQuery {
+        String EMAIL_SELECTION = " AND dataA." + DataColumns.MIMETYPE_ID + "=?1"
+                + " AND dataA." + Email.DATA + " NOT NULL"
+                + " AND dataB." + DataColumns.MIMETYPE_ID + "=?1";
+
+        String PHONE_SELECTION = " AND PHONE_NUMBERS_EQUAL(dataA." + Phone.NUMBER + ", "
+                + "dataB." + Phone.NUMBER + ",?)";
+
+        String PHONE_SELECTION_MIN_MATCH = " AND PHONE_NUMBERS_EQUAL(dataA." + Phone.NUMBER + ", "
+                + "dataB." + Phone.NUMBER + ",?,?)";
+
+        String[] COLUMNS = new String[] {
+                RawContactsColumns.CONCRETE_ID,
+                RawContacts.CONTACT_ID,
+                RawContactsColumns.ACCOUNT_ID,
+                RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY,
+                "dataA." + Data.RAW_CONTACT_ID,
+        };
+
+        int RAW_CONTACT_ID = 0;
+        int CONTACT_ID = 1;
+        int ACCOUNT_ID = 2;
+        int IN_DEFAULT_DIRECTORY = 3;
+        int RAW_CONTACT_ID_A = 4;
+    }
+
+    /**
+     * {@link NameLookupMatchQuery} for a whole batch of raw contacts. The leading columns are
+     * the same as {@link BatchLookupQuery}'s.
+     */
+    protected interface BatchNameLookupMatchQuery {
+        String TABLE = NameLookupMatchQuery.TABLE;
+
+        String[] COLUMNS = new String[] {
+                RawContactsColumns.CONCRETE_ID,
+                RawContacts.CONTACT_ID,
+                RawContactsColumns.ACCOUNT_ID,
+                RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY,
+                "nameA." + NameLookupColumns.RAW_CONTACT_ID,
+                "nameA." + NameLookupColumns.NORMALIZED_NAME,
+                "nameA." + NameLookupColumns.NAME_TYPE,
+                "nameB." + NameLookupColumns.NAME_TYPE,
+        };
+
+        int RAW_CONTACT_ID_A = 4;
+        int NAME = 5;
+        int NAME_TYPE_A = 6;
+        int NAME_TYPE_B = 7;
+    }
+
     protected interface NullNameRawContactsIdsQuery {
         final String TABLE =  Tables.RAW_CONTACTS + " LEFT OUTER JOIN " +  Tables.NAME_LOOKUP
                 + " ON "+ RawContacts._ID + " = " + NameLookupColumns.RAW_CONTACT_ID
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Name, email and phone hits prefetched for all the raw contacts of a batched aggregation pass,
+ * together with the contact and account of every raw contact those hits point at.
+ * <p>
+ * The hits themselves only depend on data that doesn't change while aggregating.  The contact
+ * ids and default directory membership do change, so the aggregator has to report every contact
+ * id it assigns and every contact whose visibility it recomputes.
+ */
+public class CandidateHitCache {
+
+    /**
+     * If a raw contact has more hits of a single kind than this, they are not kept and the
+     * aggregator falls back to querying them.  The prefetch queries return at most one hit more
+     * than this per raw contact.
+     */
+    public static final int MAX_HITS_PER_RAW_CONTACT = 100;
+
+    /**
+     * A row of one of the candidate lookup queries.
+     */
+    public static final class Hit {
+        public final long rawContactId;
+        public final String name;
+        public final int nameTypeA;
+        public final int nameTypeB;
+
+        Hit(long rawContactId, String name, int nameTypeA, int nameTypeB) {
+            this.rawContactId = rawContactId;
+            this.name = name;
+            this.nameTypeA = nameTypeA;
+            this.nameTypeB = nameTypeB;
+        }
+    }
+
+    private static final class HitTable {
+        private final ArrayMap<Long, ArrayList<Hit>> mHits = new ArrayMap<>();
+        private final ArraySet<Long> mOverflow = new ArraySet<>();
+
+        void add(long rawContactId, Hit hit) {
+            if (mOverflow.contains(rawContactId)) {
+                return;
+            }
+            ArrayList<Hit> hits = mHits.get(rawContactId);
+            if (hits == null) {
+                hits = new ArrayList<>();
+                mHits.put(rawContactId, hits);
+            } else if (hits.size() >= MAX_HITS_PER_RAW_CONTACT) {
+                mHits.remove(rawContactId);
+                mOverflow.add(rawContactId);
+                return;
+            }
+            hits.add(hit);
+        }
+
+        List<Hit> get(long rawContactId) {
+            if (mOverflow.contains(rawContactId)) {
+                return null;
+            }
+            final List<Hit> hits = mHits.get(rawContactId);
+            return hits != null ? hits : new ArrayList<Hit>();
+        }
+    }
+
+    private final ArraySet<Long> mRawContactIds;
+    private final HitTable mNameHits = new HitTable();
+    private final HitTable mEmailHits = new HitTable();
+    private final HitTable mPhoneHits = new HitTable();
+    private final ArraySet<Long> mRawContactsWithIdentity = new ArraySet<>();
+    private final ArrayMap<Long, Boolean> mRawContactsWithoutName = new ArrayMap<>();
+    private final ArraySet<Long> mRawContactsWithAmbiguousName = new ArraySet<>();
+
+    private final ArrayMap<Long, long[]> mContactAndAccountIds = new ArrayMap<>();
+    private final ArrayMap<Long, Boolean> mContactsInDefaultDirectory = new ArrayMap<>();
+
+    /**
+     * @param rawContactIds the raw contacts the hits are going to be prefetched for
+     */
+    public CandidateHitCache(long[] rawContactIds, int count) {
+        mRawContactIds = new ArraySet<>(count);
+        for (int i = 0; i < count; i++) {
+            mRawContactIds.add(rawContactIds[i]);
+        }
+    }
+
+    /**
+     * Returns true if the hits of the given raw contact have been prefetched.
+     */
+    public boolean contains(long rawContactId) {
+        return mRawContactIds.contains(rawContactId);
+    }
+
+    public void addNameHit(long rawContactId, long candidateRawContactId, String name,
+            int nameTypeA, int nameTypeB) {
+        mNameHits.add(rawContactId, new Hit(candidateRawContactId, name, nameTypeA, nameTypeB));
+    }
+
+    public void addEmailHit(long rawContactId, long candidateRawContactId) {
+        mEmailHits.add(rawContactId, new Hit(candidateRawContactId, null, 0, 0));
+    }
+
+    public void addPhoneHit(long rawContactId, long candidateRawContactId) {
+        mPhoneHits.add(rawContactId, new Hit(candidateRawContactId, null, 0, 0));
+    }
+
+    /**
+     * Returns all the name hits of the raw contact, including the ones pointing back at the
+     * raw contact itself, or null if they are not available.
+     */
+    public List<Hit> getNameHits(long rawContactId) {
+        return contains(rawContactId) ? mNameHits.get(rawContactId) : null;
+    }
+
+    public List<Hit> getEmailHits(long rawContactId) {
+        return contains(rawContactId) ? mEmailHits.get(rawContactId) : null;
+    }
+
+    public List<Hit> getPhoneHits(long rawContactId) {
+        return contains(rawContactId) ? mPhoneHits.get(rawContactId) : null;
+    }
+
+    public void addRawContactWithIdentity(long rawContactId) {
+        mRawContactsWithIdentity.add(rawContactId);
+    }
+
+    /**
+     * Returns false only if the raw contact is known to have no identity data row, in which case
+     * it cannot have identity matches either.
+     */
+    public boolean mayHaveIdentityMatches(long rawContactId) {
+        return !contains(rawContactId) || mRawContactsWithIdentity.contains(rawContactId);
+    }
+
+    /**
+     * Records one of the exact names of the raw contact, or an empty name if it has none.
+     */
+    public void addExactName(long rawContactId, boolean empty) {
+        final Boolean previous = mRawContactsWithoutName.put(rawContactId, empty);
+        if (previous != null && previous != empty) {
+            mRawContactsWithAmbiguousName.add(rawContactId);
+        }
+    }
+
+    /**
+     * Returns whether the raw contact is missing a structured name, or null if that is not
+     * known.
+     */
+    public Boolean isWithoutName(long rawContactId) {
+        if (!contains(rawContactId) || mRawContactsWithAmbiguousName.contains(rawContactId)) {
+            return null;
+        }
+        return mRawContactsWithoutName.get(rawContactId);
+    }
+
+    public void putRawContact(long rawContactId, long contactId, long accountId,
+            boolean inDefaultDirectory) {
+        if (!mContactAndAccountIds.containsKey(rawContactId)) {
+            mContactAndAccountIds.put(rawContactId, new long[] {contactId, accountId});
+            mContactsInDefaultDirectory.put(contactId, inDefaultDirectory);
+        }
+    }
+
+    public long getContactId(long rawContactId) {
+        return mContactAndAccountIds.get(rawContactId)[0];
+    }
+
+    public long getAccountId(long rawContactId) {
+        return mContactAndAccountIds.get(rawContactId)[1];
+    }
+
+    /**
+     * Must be called whenever the aggregator moves a raw contact to another contact.
+     */
+    public void setContactId(long rawContactId, long contactId) {
+        final long[] ids = mContactAndAccountIds.get(rawContactId);
+        if (ids != null) {
+            ids[0] = contactId;
+        }
+    }
+
+    /**
+     * Returns whether the contact is in the default directory, or null if that is not known.
+     */
+    public Boolean isContactInDefaultDirectory(long contactId) {
+        return mContactsInDefaultDirectory.get(contactId);
+    }
+
+    public void setContactInDefaultDirectory(long contactId, boolean inDefaultDirectory) {
+        mContactsInDefaultDirectory.put(contactId, inDefaultDirectory);
+    }
+
+    /**
+     * Must be called whenever the default directory membership of a contact is recomputed.
+     */
+    public void invalidateContact(long contactId) {
+        mContactsInDefaultDirectory.remove(contactId);
+    }
+}
@@ -224,12 +224,12 @@ public class ContactMatcher {
                 mNameDistanceConservative : mNameDistanceApproximate;
 
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
         boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
                 || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
         float threshold = emailBased
                 ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
                 : APPROXIMATE_MATCH_THRESHOLD;
+        float distance = nameDistance.getDistance(decodedCandidateName, decodedName, threshold);
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -272,6 +272,17 @@ public class ContactMatcher {
         mScoreCount = 0;
     }
 
+    /**
+     * Adds all the scores of {@code other} to this matcher, in the order they were first
+     * recorded there.
+     */
+    public void merge(ContactMatcher other) {
+        for (int i = 0; i < other.mScoreCount; i++) {
+            final MatchScore score = other.mScoreList.get(i);
+            getMatchingScore(score.getContactId()).merge(score);
+        }
+    }
+
     /**
      * Returns a list of IDs for contacts that are matched on secondary data elements
      * (phone number, email address, nickname). We still need to obtain the approximate
@@ -89,6 +89,21 @@ public class MatchScore implements Comparable<MatchScore> {
         mMatchCount++;
     }
 
+    /**
+     * Adds the matches recorded in {@code other} for the same raw contact or contact.
+     */
+    public void merge(MatchScore other) {
+        if (other.mPrimaryScore > mPrimaryScore) {
+            mPrimaryScore = other.mPrimaryScore;
+        }
+        if (other.mSecondaryScore > mSecondaryScore) {
+            mSecondaryScore = other.mSecondaryScore;
+        }
+        mMatchCount += other.mMatchCount;
+        mKeepIn |= other.mKeepIn;
+        mKeepOut |= other.mKeepOut;
+    }
+
     public void keepIn() {
         mKeepIn = true;
     }
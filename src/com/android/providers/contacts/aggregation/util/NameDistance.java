@@ -31,11 +31,14 @@ public class NameDistance {
 
     private static final float WINKLER_BONUS_THRESHOLD = 0.7f;
     private static final int MIN_EXACT_PREFIX_LENGTH = 3;
+    private static final float EARLY_EXIT_MARGIN = 1e-5f;
 
     private final int mMaxLength;
     private final boolean mPrefixOnly;
-    private final boolean[] mMatchFlags1;
-    private final boolean[] mMatchFlags2;
+
+    // Match flags packed into 64 bit words, one bit per byte of the respective name.
+    private final long[] mMatchFlags1;
+    private final long[] mMatchFlags2;
 
     /**
      * Constructor.
@@ -45,8 +48,8 @@ public class NameDistance {
     public NameDistance(int maxLength) {
         mMaxLength = maxLength;
         mPrefixOnly = false;
-        mMatchFlags1 = new boolean[maxLength];
-        mMatchFlags2 = new boolean[maxLength];
+        mMatchFlags1 = new long[(maxLength + 63) >>> 6];
+        mMatchFlags2 = new long[(maxLength + 63) >>> 6];
     }
 
     /**
@@ -62,6 +65,17 @@ public class NameDistance {
      * Computes a string distance between two normalized strings passed as byte arrays.
      */
     public float getDistance(byte bytes1[], byte bytes2[]) {
+        return getDistance(bytes1, bytes2, -1f);
+    }
+
+    /**
+     * Computes a string distance between two normalized strings passed as byte arrays, for a
+     * caller that only cares about distances greater than {@code threshold}.  The computation
+     * stops as soon as the distance cannot exceed the threshold anymore, in which case 0 is
+     * returned.  Distances above the threshold are exactly the ones returned by
+     * {@link #getDistance(byte[], byte[])}.
+     */
+    public float getDistance(byte bytes1[], byte bytes2[], float threshold) {
         byte[] array1, array2;
 
         if (bytes1.length > bytes2.length) {
@@ -99,8 +113,23 @@ public class NameDistance {
             length2 = mMaxLength;
         }
 
-        Arrays.fill(mMatchFlags1, 0, length1, false);
-        Arrays.fill(mMatchFlags2, 0, length2, false);
+        int prefix = 0;
+        for (int i = 0; i < length1; i++) {
+            if (bytes1[i] != bytes2[i]) {
+                break;
+            }
+            prefix++;
+        }
+        final float bonus = Math.min(0.1f, 1f / length2) * prefix;
+
+        // Even if every byte of the shorter name matched, the distance would be too low.
+        if (isBelowThreshold(length1, length1, length2, bonus, threshold)) {
+            return 0f;
+        }
+
+        final int words = (length2 + 63) >>> 6;
+        Arrays.fill(mMatchFlags1, 0, words, 0L);
+        Arrays.fill(mMatchFlags2, 0, words, 0L);
 
         int range = length2 / 2 - 1;
         if (range < 0) {
@@ -121,13 +150,21 @@ public class NameDistance {
                 to = length2;
             }
 
+            boolean matched = false;
             for (int j = from; j < to; j++) {
-                if (!mMatchFlags2[j] && c1 == array2[j]) {
-                    mMatchFlags1[i] = mMatchFlags2[j] = true;
+                if ((mMatchFlags2[j >>> 6] & (1L << j)) == 0 && c1 == array2[j]) {
+                    mMatchFlags1[i >>> 6] |= 1L << i;
+                    mMatchFlags2[j >>> 6] |= 1L << j;
                     matches++;
+                    matched = true;
                     break;
                 }
             }
+
+            if (!matched && isBelowThreshold(matches + length1 - i - 1, length1, length2, bonus,
+                    threshold)) {
+                return 0f;
+            }
         }
 
         if (matches == 0) {
@@ -136,16 +173,13 @@ public class NameDistance {
 
         int transpositions = 0;
         int j = 0;
-        for (int i = 0; i < length1; i++) {
-            if (mMatchFlags1[i]) {
-                while (!mMatchFlags2[j]) {
-                    j++;
-                }
-                if (array1[i] != array2[j]) {
-                    transpositions++;
-                }
-                j++;
+        for (int i = nextSetBit(mMatchFlags1, 0, words); i >= 0;
+                i = nextSetBit(mMatchFlags1, i + 1, words)) {
+            j = nextSetBit(mMatchFlags2, j, words);
+            if (array1[i] != array2[j]) {
+                transpositions++;
             }
+            j++;
         }
 
         float m = matches;
@@ -156,14 +190,46 @@ public class NameDistance {
         }
 
         // Add Winkler bonus
-        int prefix = 0;
-        for (int i = 0; i < length1; i++) {
-            if (bytes1[i] != bytes2[i]) {
-                break;
-            }
-            prefix++;
+        return jaro + bonus * (1 - jaro);
+    }
+
+    /**
+     * Returns true if the distance of two names with at most {@code maxMatches} matching bytes
+     * is certainly not greater than {@code threshold}.  The bound assumes no transpositions,
+     * and a small margin keeps float rounding from ever discarding a distance above the
+     * threshold.
+     */
+    private static boolean isBelowThreshold(int maxMatches, int length1, int length2,
+            float bonus, float threshold) {
+        if (threshold < 0) {
+            return false;
+        }
+        if (maxMatches == 0) {
+            return true;
+        }
+        float m = maxMatches;
+        float jaro = (m / length1 + m / length2 + 1f) / 3;
+        if (jaro >= WINKLER_BONUS_THRESHOLD) {
+            jaro = jaro + bonus * (1 - jaro);
         }
+        return jaro + EARLY_EXIT_MARGIN <= threshold;
+    }
 
-        return jaro + Math.min(0.1f, 1f / length2) * prefix * (1 - jaro);
+    /**
+     * Returns the index of the first bit set at or after {@code from}, or -1.
+     */
+    private static int nextSetBit(long[] bits, int from, int words) {
+        int word = from >>> 6;
+        if (word >= words) {
+            return -1;
+        }
+        long w = bits[word] & (-1L << from);
+        while (w == 0) {
+            if (++word == words) {
+                return -1;
+            }
+            w = bits[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(w);
     }
 }
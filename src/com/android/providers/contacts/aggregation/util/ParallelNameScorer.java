@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scores rows loaded from the name lookup table against a list of name match candidates on a
+ * fork-join pool.
+ * <p>
+ * Matchers and their {@link NameDistance} buffers are not thread safe, so every task scores
+ * its range of rows into a matcher of its own. The partial matchers are then merged into the
+ * target matcher on the calling thread in row order, which leaves the target in exactly the
+ * state scoring the rows one by one would have.
+ * <p>
+ * Only the scoring runs on the pool; the rows must have been read from the database by the
+ * caller beforehand.
+ * <p>
+ * The scorer is only used for approximate matching, where every comparison computes a
+ * {@link NameDistance}, that is for the aggregation suggestions of both aggregators.  Automatic
+ * aggregation matches names exactly against at most a few primary hits, so it scores them on
+ * the calling thread: each comparison is a string equality check that costs less than a fork.
+ */
+public final class ParallelNameScorer {
+
+    /**
+     * Scores rows into matchers of type {@code M}.
+     */
+    public interface Scorer<M> {
+        /**
+         * Creates an empty matcher for a single task.
+         */
+        M newMatcher();
+
+        /**
+         * Matches the given row against all candidates.
+         */
+        void scoreRow(M matcher, int row);
+
+        /**
+         * Adds the scores of {@code partial} to {@code target}.
+         */
+        void merge(M target, M partial);
+    }
+
+    // Below this many name comparisons, scoring is done on the calling thread.
+    @VisibleForTesting
+    static final int MIN_PARALLEL_COMPARISONS = 512;
+
+    private static final int MIN_COMPARISONS_PER_TASK = 128;
+    private static final int TASKS_PER_THREAD = 4;
+    private static final int MAX_THREADS = 4;
+
+    private static ForkJoinPool sPool;
+
+    private ParallelNameScorer() {
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(
+                    Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+        }
+        return sPool;
+    }
+
+    /**
+     * Scores {@code rowCount} rows against {@code candidateCount} candidates into
+     * {@code target}.
+     */
+    public static <M> void score(M target, int rowCount, int candidateCount, Scorer<M> scorer) {
+        if (rowCount * candidateCount < MIN_PARALLEL_COMPARISONS) {
+            for (int row = 0; row < rowCount; row++) {
+                scorer.scoreRow(target, row);
+            }
+            return;
+        }
+
+        final ForkJoinPool pool = getPool();
+        final int rowsPerTask = Math.max(
+                (MIN_COMPARISONS_PER_TASK + candidateCount - 1) / candidateCount,
+                rowCount / (pool.getParallelism() * TASKS_PER_THREAD));
+        final List<M> partials = pool.invoke(new ScoreTask<>(scorer, 0, rowCount, rowsPerTask));
+        for (M partial : partials) {
+            scorer.merge(target, partial);
+        }
+    }
+
+    private static final class ScoreTask<M> extends RecursiveTask<List<M>> {
+        private final Scorer<M> mScorer;
+        private final int mFrom;
+        private final int mTo;
+        private final int mRowsPerTask;
+
+        ScoreTask(Scorer<M> scorer, int from, int to, int rowsPerTask) {
+            mScorer = scorer;
+            mFrom = from;
+            mTo = to;
+            mRowsPerTask = rowsPerTask;
+        }
+
+        @Override
+        protected List<M> compute() {
+            if (mTo - mFrom <= mRowsPerTask) {
+                final M matcher = mScorer.newMatcher();
+                for (int row = mFrom; row < mTo; row++) {
+                    mScorer.scoreRow(matcher, row);
+                }
+                return Collections.singletonList(matcher);
+            }
+
+            final int middle = (mFrom + mTo) >>> 1;
+            final ScoreTask<M> head = new ScoreTask<>(mScorer, mFrom, middle, mRowsPerTask);
+            final ScoreTask<M> tail = new ScoreTask<>(mScorer, middle, mTo, mRowsPerTask);
+            head.fork();
+            final List<M> tailResult = tail.compute();
+            final List<M> result = new ArrayList<>(head.join());
+            result.addAll(tailResult);
+            return result;
+        }
+    }
+}
@@ -222,12 +222,12 @@ public class RawContactMatcher {
                 mNameDistanceConservative : mNameDistanceApproximate;
 
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
         boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
                 || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
         float threshold = emailBased
                 ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
                 : APPROXIMATE_MATCH_THRESHOLD;
+        float distance = nameDistance.getDistance(decodedCandidateName, decodedName, threshold);
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -274,6 +274,19 @@ public class RawContactMatcher {
         mScores.clear();
         mScoreCount = 0;
     }
+
+    /**
+     * Adds all the scores of {@code other} to this matcher, in the order they were first
+     * recorded there.
+     */
+    public void merge(RawContactMatcher other) {
+        for (int i = 0; i < other.mScoreCount; i++) {
+            final MatchScore score = other.mScoreList.get(i);
+            getMatchingScore(score.getRawContactId(), score.getContactId(),
+                    score.getAccountId()).merge(score);
+        }
+    }
+
     /**
      * Returns a list of IDs for raw contacts that are only matched on secondary data elements
      * (phone number, email address, nickname, identity). We need to check if they are missing
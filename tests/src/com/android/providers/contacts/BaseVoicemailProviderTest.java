@@ -209,6 +209,13 @@ public abstract class BaseVoicemailProviderTest extends BaseContactsProvider2Tes
             return getContext().getPackageName();
         }
 
+        @Override
+        CallLogChangeNotifier createCallLogChangeNotifier(Context context) {
+            // Not the shared instance, which would keep the context of the first test.
+            return new CallLogChangeNotifier(context,
+                    CallLogChangeNotifier.NOTIFY_CHANGE_RATE_LIMIT_DEFAULT);
+        }
+
         @Override
         CallLogInsertionHelper createCallLogInsertionHelper(Context context) {
             return new CallLogInsertionHelper() {
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import static org.mockito.Mockito.mock;
+
+import android.content.ContentResolver;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link CallLogChangeNotifier}.
+ */
+@SmallTest
+public class CallLogChangeNotifierTest extends TestCase {
+    private static final long LONG_RATE_LIMIT = 60 * 1000;
+
+    private final MockContext mContext = new MockContext() {
+        private final ContentResolver mResolver = new MockContentResolver();
+        private final PackageManager mPackageManager = mock(PackageManager.class);
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+
+        @Override
+        public PackageManager getPackageManager() {
+            return mPackageManager;
+        }
+    };
+
+    public void testBatchIsNotifiedOnce() {
+        final CallLogChangeNotifier notifier = new CallLogChangeNotifier(mContext,
+                LONG_RATE_LIMIT);
+
+        notifier.startBatch();
+        notifier.notifyChange();
+        notifier.notifyChange();
+        notifier.startBatch();
+        notifier.notifyChange();
+        notifier.finishBatch();
+        assertEquals(0, notifier.getNotificationCount());
+
+        notifier.finishBatch();
+        assertEquals(1, notifier.getNotificationCount());
+        assertEquals(2, notifier.getCoalescedCount());
+
+        // Nothing left to notify.
+        notifier.startBatch();
+        notifier.finishBatch();
+        assertEquals(1, notifier.getNotificationCount());
+    }
+
+    public void testChangesOutsideOfBatchAreRateLimited() {
+        final CallLogChangeNotifier notifier = new CallLogChangeNotifier(mContext,
+                LONG_RATE_LIMIT);
+
+        notifier.notifyChange();
+        assertEquals(1, notifier.getNotificationCount());
+
+        // Deferred to the end of the rate limit window, together.
+        notifier.notifyChange();
+        notifier.notifyChange();
+        assertEquals(1, notifier.getNotificationCount());
+        assertEquals(1, notifier.getCoalescedCount());
+
+        // A batch sends the pending notification along with its own.
+        notifier.startBatch();
+        notifier.notifyChange();
+        notifier.finishBatch();
+        assertEquals(2, notifier.getNotificationCount());
+    }
+
+    public void testDeferredChangeIsNotified() {
+        final CallLogChangeNotifier notifier = new CallLogChangeNotifier(mContext, 100);
+
+        notifier.notifyChange();
+        notifier.notifyChange();
+        assertEquals(1, notifier.getNotificationCount());
+
+        final long timeout = SystemClock.elapsedRealtime() + 5000;
+        while (notifier.getNotificationCount() < 2 && SystemClock.elapsedRealtime() < timeout) {
+            SystemClock.sleep(10);
+        }
+        assertEquals(2, notifier.getNotificationCount());
+    }
+}
@@ -55,6 +55,45 @@ public class CallLogInsertionHelperTest extends FixedAndroidTestCase {
         checkNormalization("test@sip.org", null);
     }
 
+    /**
+     * Tests that the min match used to filter calls by number is added.
+     */
+    public void testMinMatch() {
+        checkMinMatch("650-555-1212", "2121555");
+        checkMinMatch("+16505551212", "2121555");
+        checkMinMatch("911", "119");
+        checkMinMatch("", "");
+        // Legacy unknown number.
+        checkMinMatch("-1", "");
+    }
+
+    /**
+     * Tests that numbers computed again, from the cache or not, give the same values.
+     */
+    public void testRepeatedNumbers() {
+        for (int i = 0; i < 3; i++) {
+            checkNormalization("650-555-1212", "+16505551212");
+            checkNormalization("663-555-1212", null);
+            checkNormalization("011-81-3-6384-9000", "+81363849000");
+        }
+
+        // Push the first numbers out of the cache.
+        for (int i = 0; i < DefaultCallLogInsertionHelper.NUMBER_CACHE_SIZE * 2; i++) {
+            checkNormalization(String.format("650-555-%04d", i),
+                    String.format("+1650555%04d", i));
+        }
+        checkNormalization("650-555-1212", "+16505551212");
+        checkNormalization("663-555-1212", null);
+    }
+
+    private void checkMinMatch(String number, String expectedMinMatch) {
+        ContentValues values = new ContentValues();
+        values.put(Calls.NUMBER, number);
+        mInsertionHelper.addComputedValues(values);
+        assertEquals(expectedMinMatch,
+                values.getAsString(CallLogDatabaseHelper.CallsColumns.MIN_MATCH));
+    }
+
     /**
      * Runs the DefaultCallLogInsertionHelper to determine if it produces the correct normalized
      * phone number.
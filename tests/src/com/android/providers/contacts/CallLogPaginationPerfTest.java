@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
+
+/**
+ * Benchmark for paging through the call log, with {@link Calls#OFFSET_PARAM_KEY} and with the
+ * keyset pagination of {@link CallLogProvider#BEFORE_DATE_PARAM_KEY}, over 100k calls.  Fails if
+ * they don't return the same calls.
+ *
+ * Suppressed by default; run it like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.CallLogPaginationPerfTest \
+ *         -w com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+@Suppress
+public class CallLogPaginationPerfTest extends BaseContactsProvider2Test {
+    private static final String TAG = "CallLogPaginationPerfTest";
+
+    private static final int CALL_COUNT = 100000;
+    private static final int PAGE_SIZE = 50;
+
+    /** Pages read at each depth, to average out the noise. */
+    private static final int PAGE_READS = 20;
+
+    private static final int[] PAGE_DEPTHS = {0, 100, 1000, 1990};
+
+    private CallLogProviderTestable mCallLogProvider;
+
+    @Override
+    protected Class<? extends ContentProvider> getProviderClass() {
+        return SynchronousContactsProvider2.class;
+    }
+
+    @Override
+    protected String getAuthority() {
+        return ContactsContract.AUTHORITY;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCallLogProvider = addProvider(CallLogProviderTestable.class, CallLog.AUTHORITY);
+        insertCalls();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCallLogProvider.getCallLogDatabaseHelperForTest().wipeForTest();
+        super.tearDown();
+    }
+
+    private void insertCalls() {
+        final SQLiteDatabase db =
+                mCallLogProvider.getCallLogDatabaseHelperForTest().getWritableDatabase();
+        final SQLiteStatement insert = db.compileStatement("INSERT INTO " + Tables.CALLS + "("
+                + Calls.NUMBER + "," + Calls.DATE + "," + Calls.DURATION + "," + Calls.TYPE
+                + ") VALUES (?,?,30," + Calls.INCOMING_TYPE + ")");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < CALL_COUNT; i++) {
+                insert.bindString(1, String.format("650555%04d", i % 10000));
+                // A few calls share each date, so that the ID breaks ties.
+                insert.bindLong(2, 1000000L + i / 3);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    public void testDeepPages() {
+        for (int depth : PAGE_DEPTHS) {
+            // Find where the page starts with an offset query, then read it both ways.
+            final Uri offsetUri = Calls.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(Calls.LIMIT_PARAM_KEY, String.valueOf(PAGE_SIZE))
+                    .appendQueryParameter(Calls.OFFSET_PARAM_KEY,
+                            String.valueOf(depth * PAGE_SIZE))
+                    .build();
+            final Uri keysetUri;
+            if (depth == 0) {
+                keysetUri = Calls.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(Calls.LIMIT_PARAM_KEY, String.valueOf(PAGE_SIZE))
+                        .build();
+            } else {
+                final long[] previousCall = getLastCallBefore(depth * PAGE_SIZE);
+                keysetUri = Calls.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(Calls.LIMIT_PARAM_KEY, String.valueOf(PAGE_SIZE))
+                        .appendQueryParameter(CallLogProvider.BEFORE_DATE_PARAM_KEY,
+                                String.valueOf(previousCall[0]))
+                        .appendQueryParameter(CallLogProvider.BEFORE_ID_PARAM_KEY,
+                                String.valueOf(previousCall[1]))
+                        .build();
+            }
+            assertEquals(readPage(offsetUri), readPage(keysetUri));
+
+            final long offsetNanos = timePageReads(offsetUri);
+            final long keysetNanos = timePageReads(keysetUri);
+            Log.i(TAG, "Page " + depth + " of " + PAGE_SIZE + " calls out of " + CALL_COUNT
+                    + ": offset " + (offsetNanos / PAGE_READS / 1000) + "us, "
+                    + "keyset " + (keysetNanos / PAGE_READS / 1000) + "us");
+        }
+    }
+
+    /**
+     * Returns the date and ID of the call just before the given position.
+     */
+    private long[] getLastCallBefore(int position) {
+        final Uri uri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "1")
+                .appendQueryParameter(Calls.OFFSET_PARAM_KEY, String.valueOf(position - 1))
+                .build();
+        try (Cursor c = mResolver.query(uri, new String[] {Calls.DATE, Calls._ID}, null, null,
+                Calls.DEFAULT_SORT_ORDER + ", " + Calls._ID + " DESC")) {
+            assertTrue(c.moveToFirst());
+            return new long[] {c.getLong(0), c.getLong(1)};
+        }
+    }
+
+    private String readPage(Uri uri) {
+        final StringBuilder sb = new StringBuilder();
+        try (Cursor c = mResolver.query(uri, new String[] {Calls._ID}, null, null,
+                Calls.DEFAULT_SORT_ORDER + ", " + Calls._ID + " DESC")) {
+            assertEquals(PAGE_SIZE, c.getCount());
+            while (c.moveToNext()) {
+                sb.append(c.getLong(0)).append(',');
+            }
+        }
+        return sb.toString();
+    }
+
+    private long timePageReads(Uri uri) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < PAGE_READS; i++) {
+            readPage(uri);
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+}
@@ -33,6 +33,7 @@ import com.android.providers.contacts.util.PhoneAccountHandleMigrationUtils;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
@@ -416,6 +417,40 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         assertEquals(0, getCount(uri, null, null));
     }
 
+    public void testApplyBatchNotifiesOnce() throws Exception {
+        final CallLogChangeNotifier notifier = mCallLogProvider.getCallLogChangeNotifierForTest();
+        final Uri uri = insertCallRecord();
+        final int notificationCount = notifier.getNotificationCount();
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(Calls.CONTENT_URI)
+                .withValues(getDefaultCallValues())
+                .build());
+        operations.add(ContentProviderOperation.newInsert(Calls.CONTENT_URI)
+                .withValues(getDefaultCallValues())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(Calls.CONTENT_URI)
+                .withSelection(Calls._ID + "=" + ContentUris.parseId(uri), null)
+                .withValue(Calls.DURATION, 50)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(Calls.CONTENT_URI)
+                .withSelection(Calls._ID + "=" + ContentUris.parseId(uri), null)
+                .build());
+        mResolver.applyBatch(CallLog.AUTHORITY, operations);
+
+        assertEquals(notificationCount + 1, notifier.getNotificationCount());
+    }
+
+    public void testBulkInsertNotifiesOnce() {
+        final CallLogChangeNotifier notifier = mCallLogProvider.getCallLogChangeNotifierForTest();
+        final int notificationCount = notifier.getNotificationCount();
+
+        assertEquals(3, mResolver.bulkInsert(Calls.CONTENT_URI, new ContentValues[] {
+                getDefaultCallValues(), getDefaultCallValues(), getDefaultCallValues()}));
+
+        assertEquals(notificationCount + 1, notifier.getNotificationCount());
+    }
+
     public void testCallLogFilter() {
         ContentValues values = getDefaultCallValues();
         mResolver.insert(Calls.CONTENT_URI, values);
@@ -433,6 +468,110 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         c.close();
     }
 
+    public void testCallLogFilterUsesMinMatch() {
+        ContentValues values = getDefaultCallValues();
+        Uri uri = mResolver.insert(Calls.CONTENT_URI, values);
+        long callId = ContentUris.parseId(uri);
+        SQLiteDatabase db = mCallLogProvider.getCallLogDatabaseHelperForTest()
+                .getWritableDatabase();
+
+        // Calls that haven't been backfilled are still found.
+        assertNull(getMinMatch(db, callId));
+        assertEquals(1, getFilterCount("1-800-263-7643"));
+
+        mCallLogProvider.performBackgroundTask(
+                CallLogProvider.BACKGROUND_TASK_BACKFILL_MIN_MATCH, null);
+        assertEquals("3467362", getMinMatch(db, callId));
+        assertEquals(1, getFilterCount("1-800-263-7643"));
+        assertEquals(1, getFilterCount("+1 800 263 7643"));
+        assertEquals(0, getFilterCount("1-800-263-7644"));
+
+        // Changing the number changes the min match.
+        values.clear();
+        values.put(Calls.NUMBER, "650-555-1212");
+        assertEquals(1, mResolver.update(uri, values, null, null));
+        assertEquals("2121555", getMinMatch(db, callId));
+        assertEquals(0, getFilterCount("1-800-263-7643"));
+        assertEquals(1, getFilterCount("650-555-1212"));
+    }
+
+    private int getFilterCount(String number) {
+        Cursor c = mResolver.query(Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, number), null,
+                null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String getMinMatch(SQLiteDatabase db, long callId) {
+        return DatabaseUtils.stringForQuery(db, "SELECT "
+                + CallLogDatabaseHelper.CallsColumns.MIN_MATCH + " FROM "
+                + CallLogDatabaseHelper.Tables.CALLS + " WHERE " + Calls._ID + "=" + callId,
+                null);
+    }
+
+    public void testKeysetPagination() {
+        ContentValues values = getDefaultCallValues();
+        long[] dates = {3000, 2000, 2000, 1000};
+        long[] ids = new long[dates.length];
+        for (int i = 0; i < dates.length; i++) {
+            values.put(Calls.DATE, dates[i]);
+            ids[i] = ContentUris.parseId(mResolver.insert(Calls.CONTENT_URI, values));
+        }
+        // Voicemails are still excluded.
+        setUpWithVoicemailPermissions();
+        values = getDefaultVoicemailValues();
+        values.put(Calls.DATE, 2500);
+        mResolver.insert(Calls.CONTENT_URI_WITH_VOICEMAIL, values);
+
+        // Most recent first; the calls with the same date by descending ID.
+        assertPage(Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "2").build(),
+                ids[0], ids[2]);
+        assertPage(Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "2")
+                .appendQueryParameter(CallLogProvider.BEFORE_DATE_PARAM_KEY, "2000")
+                .appendQueryParameter(CallLogProvider.BEFORE_ID_PARAM_KEY,
+                        String.valueOf(ids[2])).build(),
+                ids[1], ids[3]);
+        assertPage(Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(CallLogProvider.BEFORE_DATE_PARAM_KEY, "1000")
+                .appendQueryParameter(CallLogProvider.BEFORE_ID_PARAM_KEY,
+                        String.valueOf(ids[3])).build());
+
+        try {
+            mResolver.query(Calls.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(CallLogProvider.BEFORE_DATE_PARAM_KEY, "1000").build(),
+                    null, null, null, null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mResolver.query(Calls.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(CallLogProvider.BEFORE_DATE_PARAM_KEY, "1000")
+                    .appendQueryParameter(CallLogProvider.BEFORE_ID_PARAM_KEY, "1").build(),
+                    null, null, null, Calls.NUMBER);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void assertPage(Uri uri, long... expectedIds) {
+        Cursor c = mResolver.query(uri, new String[] {Calls._ID}, null, null,
+                Calls.DEFAULT_SORT_ORDER + ", " + Calls._ID + " DESC");
+        try {
+            assertEquals(expectedIds.length, c.getCount());
+            for (long expectedId : expectedIds) {
+                assertTrue(c.moveToNext());
+                assertEquals(expectedId, c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     public void testAddCall() {
         CallerInfo ci = new CallerInfo();
         ci.setName("1-800-GOOG-411");
@@ -738,6 +877,76 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         assertEquals(10, mCallLogProvider.getLastSyncTime(/* forShadow =*/ false));
     }
 
+    public void testCopyEntriesFromCursor_CopiesInChunks() {
+        final int count = CallLogProvider.SYNC_CHUNK_SIZE * 2 + 1;
+        final MatrixCursor cursor = new MatrixCursor(CallLogProvider.CALL_LOG_SYNC_PROJECTION);
+        for (int i = 1; i <= count; i++) {
+            final ContentValues values = getTestCallLogValues(0);
+            values.put(Calls.NUMBER, "650555" + (1000 + i));
+            values.put(Calls.DATE, i);
+            cursor.addRow(CommonDatabaseUtils.getArrayFromContentValues(values,
+                    CallLogProvider.CALL_LOG_SYNC_PROJECTION));
+        }
+        // One of them is already there.
+        final ContentValues existing = getTestCallLogValues(0);
+        existing.put(Calls.NUMBER, "6505551050");
+        existing.put(Calls.DATE, 50);
+        mResolver.insert(Calls.CONTENT_URI, existing);
+        mCallLogProvider.mReadAccessLatch = new CountDownLatch(1);
+        final CallLogChangeNotifier notifier = mCallLogProvider.getCallLogChangeNotifierForTest();
+        final int notificationCount = notifier.getNotificationCount();
+
+        assertEquals(count, mCallLogProvider.copyEntriesFromCursor(cursor, 0,
+                /* forShadow =*/ true));
+
+        assertEquals(0, mCallLogProvider.mReadAccessLatch.getCount());
+        // Once for the chunks copied after read access was released.
+        assertEquals(notificationCount + 1, notifier.getNotificationCount());
+        assertEquals(count, getCount(Calls.CONTENT_URI, null, null));
+        assertEquals(count, mCallLogProvider.getLastSyncTime(/* forShadow =*/ true));
+        // The computed values are added to the synced calls too.
+        assertEquals(count, getCount(Calls.CONTENT_URI,
+                Calls.GEOCODED_LOCATION + "='usa'", null));
+    }
+
+    public void testCopyEntriesFromCursor_SingleChunkIsNotNotified() {
+        mCallLogProvider.mReadAccessLatch = new CountDownLatch(1);
+        final CallLogChangeNotifier notifier = mCallLogProvider.getCallLogChangeNotifierForTest();
+        final int notificationCount = notifier.getNotificationCount();
+
+        assertEquals(10, mCallLogProvider.copyEntriesFromCursor(
+                getTestCallLogCursor(), 5, /* forShadow =*/ true));
+
+        // Nothing could have been queried before the calls were in.
+        assertEquals(0, mCallLogProvider.mReadAccessLatch.getCount());
+        assertEquals(notificationCount, notifier.getNotificationCount());
+    }
+
+    public void testUpdateAndDeleteWaitForSync() throws Exception {
+        final Uri uri = insertCallRecord();
+        mCallLogProvider.mWriteAccessLatch = new CountDownLatch(1);
+
+        final CountDownLatch done = new CountDownLatch(2);
+        new Thread(() -> {
+            final ContentValues values = new ContentValues();
+            values.put(Calls.DURATION, 50);
+            mResolver.update(uri, values, null, null);
+            done.countDown();
+            mResolver.delete(Calls.CONTENT_URI, null, null);
+            done.countDown();
+        }).start();
+
+        // Queries and inserts don't wait.
+        assertEquals(1, getCount(Calls.CONTENT_URI, null, null));
+        insertCallRecord();
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, done.getCount());
+
+        mCallLogProvider.mWriteAccessLatch.countDown();
+        assertTrue(done.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, getCount(Calls.CONTENT_URI, null, null));
+    }
+
     public void testNullSubscriptionInfo() {
         PhoneAccountHandle handle = new PhoneAccountHandle(new ComponentName(
                 TELEPHONY_PACKAGE, TELEPHONY_CLASS), TEST_PHONE_ACCOUNT_HANDLE_SUB_ID);
@@ -41,6 +41,13 @@ public class CallLogProviderTestable extends CallLogProvider {
         return mDbHelper;
     }
 
+    @Override
+    protected CallLogChangeNotifier createCallLogChangeNotifier(Context context) {
+        // Not the shared instance, which would keep the context of the first test, and not rate
+        // limited, so that every notification is counted right away.
+        return new CallLogChangeNotifier(context, /* rateLimitMillis =*/ 0);
+    }
+
     @Override
     protected CallLogInsertionHelper createCallLogInsertionHelper(Context context) {
         return new CallLogInsertionHelper() {
@@ -178,6 +178,36 @@ public class ContactLookupKeyTest extends BaseContactsProvider2Test {
         assertStoredValue(lookupUri, Contacts._ID, largerContactId);
     }
 
+    public void testLookupKeyResolvedAgainAfterAggregationChanges() {
+        long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
+        storeValue(RawContacts.CONTENT_URI, rawContactId1, RawContacts.SOURCE_ID, "1");
+
+        long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Jane", "Roe");
+        storeValue(RawContacts.CONTENT_URI, rawContactId2, RawContacts.SOURCE_ID, "2");
+        assertNotAggregated(rawContactId1, rawContactId2);
+
+        Uri lookupUri = Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI,
+                LOCAL_ACCOUNT_HASH_CODE + "i2");
+        assertStoredValue(lookupUri, Contacts._ID, queryContactId(rawContactId2));
+
+        // Resolved again, possibly from the cache.
+        assertStoredValue(lookupUri, Contacts._ID, queryContactId(rawContactId2));
+
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_TOGETHER, rawContactId1, rawContactId2);
+        assertStoredValue(lookupUri, Contacts._ID, queryContactId(rawContactId2));
+
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_SEPARATE, rawContactId1, rawContactId2);
+        assertNotAggregated(rawContactId1, rawContactId2);
+        assertStoredValue(lookupUri, Contacts._ID, queryContactId(rawContactId2));
+
+        // The raw contact moves to another contact when its source ID is taken over.
+        storeValue(RawContacts.CONTENT_URI, rawContactId2, RawContacts.SOURCE_ID, "3");
+        storeValue(RawContacts.CONTENT_URI, rawContactId1, RawContacts.SOURCE_ID, "2");
+        assertStoredValue(lookupUri, Contacts._ID, queryContactId(rawContactId1));
+    }
+
     public void testGetLookupUri() {
         long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
         storeValue(RawContacts.CONTENT_URI, rawContactId1, RawContacts.SOURCE_ID, "1");
@@ -34,10 +34,15 @@ import android.test.suitebuilder.annotation.SmallTest;
 import com.android.providers.contacts.ContactsDatabaseHelper.MimetypesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.testutil.DataUtil;
+import com.android.providers.contacts.testutil.RawContactUtil;
 
 import com.google.android.collect.Sets;
 
+import java.text.Collator;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -551,4 +556,116 @@ public class ContactsDatabaseHelperTest extends BaseContactsProvider2Test {
             assertEquals(3, cursor.getCount());
         }
     }
+
+    public void testRebuildSortKeys() {
+        final long nameId = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, nameId, "John", "Doe");
+        final long phoneticNameId = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, phoneticNameId, null, null, "Smith");
+        final long organizationId = RawContactUtil.createRawContact(mResolver);
+        final ContentValues values = new ContentValues();
+        values.put(ContactsContract.CommonDataKinds.Organization.COMPANY, "Acme");
+        insertOrganization(organizationId, values);
+        insertEmail(organizationId, "acme@acme.com");
+        final long emailId = RawContactUtil.createRawContact(mResolver);
+        insertEmail(emailId, "zed@acme.com");
+        final long phoneId = RawContactUtil.createRawContact(mResolver);
+        insertPhoneNumber(phoneId, "1-800-466-4411");
+        RawContactUtil.createRawContact(mResolver);
+
+        final String[] columns = {
+                RawContacts._ID,
+                RawContacts.DISPLAY_NAME_SOURCE,
+                RawContacts.DISPLAY_NAME_PRIMARY,
+                RawContacts.DISPLAY_NAME_ALTERNATIVE,
+                RawContacts.PHONETIC_NAME,
+                RawContacts.PHONETIC_NAME_STYLE,
+                RawContacts.SORT_KEY_PRIMARY,
+                RawContactsColumns.PHONEBOOK_LABEL_PRIMARY,
+                RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY,
+                RawContacts.SORT_KEY_ALTERNATIVE,
+                RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE,
+                RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE,
+        };
+        final String expected = dumpRawContacts(columns);
+
+        mDb.execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET "
+                + RawContacts.DISPLAY_NAME_SOURCE + "=0,"
+                + RawContacts.DISPLAY_NAME_PRIMARY + "=NULL,"
+                + RawContacts.DISPLAY_NAME_ALTERNATIVE + "=NULL,"
+                + RawContacts.PHONETIC_NAME + "=NULL,"
+                + RawContacts.SORT_KEY_PRIMARY + "=NULL,"
+                + RawContactsColumns.PHONEBOOK_LABEL_PRIMARY + "=NULL,"
+                + RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY + "=NULL,"
+                + RawContacts.SORT_KEY_ALTERNATIVE + "=NULL,"
+                + RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + "=NULL,"
+                + RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + "=NULL");
+        MoreAsserts.assertNotEqual(expected, dumpRawContacts(columns));
+
+        mDbHelper.rebuildSortKeys(mDb);
+        assertEquals(expected, dumpRawContacts(columns));
+    }
+
+    /**
+     * Rebuilds enough Chinese names for them to be derived on several threads, each of which
+     * transliterates them to find their buckets.
+     */
+    @LargeTest
+    public void testRebuildSortKeys_chineseNamesInParallel() {
+        // Only run this test when Chinese collation is supported
+        if (!Arrays.asList(Collator.getAvailableLocales()).contains(Locale.CHINA)) {
+            return;
+        }
+        ContactLocaleUtils.setLocaleForTest(Locale.SIMPLIFIED_CHINESE);
+        try {
+            final String[] familyNames = {"\u6BB5", "\u695A", "\u674E", "\u738B", "\u5F20"};
+            final String[] givenNames = {"\u5C0F\u6D9B", "\u8FAD", "\u660E", "\u534E\u5F3A",
+                    "\u4F1F", "\u82B3"};
+            for (int i = 0; i < 300; i++) {
+                final long rawContactId = RawContactUtil.createRawContact(mResolver);
+                DataUtil.insertStructuredName(mResolver, rawContactId,
+                        givenNames[i % givenNames.length] + i,
+                        familyNames[i % familyNames.length]);
+            }
+
+            final String[] columns = {
+                    RawContacts._ID,
+                    RawContacts.DISPLAY_NAME_PRIMARY,
+                    RawContacts.SORT_KEY_PRIMARY,
+                    RawContactsColumns.PHONEBOOK_LABEL_PRIMARY,
+                    RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY,
+                    RawContacts.SORT_KEY_ALTERNATIVE,
+                    RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE,
+                    RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE,
+            };
+            final String expected = dumpRawContacts(columns);
+
+            mDb.execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET "
+                    + RawContacts.SORT_KEY_PRIMARY + "=NULL,"
+                    + RawContactsColumns.PHONEBOOK_LABEL_PRIMARY + "=NULL,"
+                    + RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY + "=NULL,"
+                    + RawContacts.SORT_KEY_ALTERNATIVE + "=NULL,"
+                    + RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + "=NULL,"
+                    + RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + "=NULL");
+
+            mDbHelper.rebuildSortKeys(mDb);
+            assertEquals(expected, dumpRawContacts(columns));
+        } finally {
+            ContactLocaleUtils.setLocaleForTest(Locale.getDefault());
+        }
+    }
+
+    private String dumpRawContacts(String[] columns) {
+        final StringBuilder sb = new StringBuilder();
+        try (Cursor cursor = mDb.query(Tables.RAW_CONTACTS, columns, null, null, null, null,
+                RawContacts._ID)) {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns.length; i++) {
+                    sb.append(columns[i]).append('=').append(cursor.getString(i)).append(' ');
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
 }
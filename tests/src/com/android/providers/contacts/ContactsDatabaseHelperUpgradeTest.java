@@ -43,6 +43,8 @@ import android.test.suitebuilder.annotation.LargeTest;
 import com.android.providers.contacts.ContactsDatabaseHelper.AccountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.AggregatedPresenceColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.AggregationExceptionColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.BucketContactsColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.BucketCountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.ContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DataUsageStatColumns;
@@ -56,6 +58,7 @@ import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.PreAuthorizedUris;
 import com.android.providers.contacts.ContactsDatabaseHelper.PresenceColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexDataColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.StatusUpdatesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.util.PropertyUtils;
@@ -622,6 +625,36 @@ public class ContactsDatabaseHelperUpgradeTest extends BaseDatabaseHelperUpgrade
             new TableColumn(DataUsageStatColumns.LR_LAST_TIME_USED, INTEGER, true, "0"),
     };
 
+    private static final TableColumn[] SEARCH_INDEX_DATA_COLUMNS = new TableColumn[] {
+            new TableColumn(SearchIndexDataColumns.DATA_ID, INTEGER, false, null),
+            new TableColumn(SearchIndexDataColumns.RAW_CONTACT_ID, INTEGER, true, null),
+            new TableColumn(SearchIndexDataColumns.CONTENT, TEXT, false, null),
+            new TableColumn(SearchIndexDataColumns.NAME, TEXT, false, null),
+            new TableColumn(SearchIndexDataColumns.TOKENS, TEXT, false, null),
+    };
+
+    private static final TableColumn[] BUCKET_CONTACTS_COLUMNS = new TableColumn[] {
+            new TableColumn(BucketContactsColumns.CONTACT_ID, INTEGER, false, null),
+            new TableColumn(BucketContactsColumns.PHONEBOOK_BUCKET_PRIMARY, INTEGER, false, null),
+            new TableColumn(BucketContactsColumns.PHONEBOOK_LABEL_PRIMARY, TEXT, false, null),
+            new TableColumn(BucketContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE, INTEGER, false,
+                    null),
+            new TableColumn(BucketContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE, TEXT, false, null),
+            new TableColumn(BucketContactsColumns.IN_DEFAULT_DIRECTORY, INTEGER, true, "0"),
+    };
+
+    private static final TableColumn[] BUCKET_CONTACTS_STALE_COLUMNS = new TableColumn[] {
+            new TableColumn(BucketContactsColumns.CONTACT_ID, INTEGER, false, null),
+    };
+
+    private static final TableColumn[] BUCKET_COUNTS_COLUMNS = new TableColumn[] {
+            new TableColumn(BucketCountsColumns.SORT_KEY_TYPE, INTEGER, true, null),
+            new TableColumn(BucketCountsColumns.BUCKET, INTEGER, false, null),
+            new TableColumn(BucketCountsColumns.LABEL, TEXT, false, null),
+            new TableColumn(BucketCountsColumns.CONTACT_COUNT, INTEGER, true, "0"),
+            new TableColumn(BucketCountsColumns.DEFAULT_DIRECTORY_COUNT, INTEGER, true, "0"),
+    };
+
     private static final TableColumn[] PRE_AUTHORIZED_URIS_COLUMNS = new TableColumn[] {
             new TableColumn(PreAuthorizedUris._ID, INTEGER, false, null),
             new TableColumn(PreAuthorizedUris.URI, STRING, true, null),
@@ -669,6 +702,10 @@ public class ContactsDatabaseHelperUpgradeTest extends BaseDatabaseHelperUpgrade
             new TableListEntry(Tables.STATUS_UPDATES, STATUS_UPDATES_COLUMNS),
             new TableListEntry(Tables.DIRECTORIES, DIRECTORIES_COLUMNS),
             new TableListEntry(Tables.DATA_USAGE_STAT, DATA_USAGE_STAT_COLUMNS),
+            new TableListEntry(Tables.SEARCH_INDEX_DATA, SEARCH_INDEX_DATA_COLUMNS),
+            new TableListEntry(Tables.BUCKET_CONTACTS, BUCKET_CONTACTS_COLUMNS),
+            new TableListEntry(Tables.BUCKET_CONTACTS_STALE, BUCKET_CONTACTS_STALE_COLUMNS),
+            new TableListEntry(Tables.BUCKET_COUNTS, BUCKET_COUNTS_COLUMNS),
             new TableListEntry(Tables.PRE_AUTHORIZED_URIS, PRE_AUTHORIZED_URIS_COLUMNS),
             new TableListEntry(Tables.PRESENCE, PRESENCE_COLUMNS),
             new TableListEntry(Tables.AGGREGATED_PRESENCE, AGGREGATED_PRESENCE_COLUMNS)
@@ -89,9 +89,11 @@ import com.android.providers.contacts.ContactsActor.AlteringUserContext;
 import com.android.providers.contacts.ContactsActor.MockUserManager;
 import com.android.providers.contacts.ContactsDatabaseHelper.AccountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.AggregationExceptionColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.BucketCountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.ContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DataUsageStatColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DbProperties;
+import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.PresenceColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
@@ -1873,6 +1875,100 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         );
     }
 
+    public void testPhoneNumbersInBatchUpdateDerivedFields() throws Exception {
+        final long rawContactId = RawContactUtil.createRawContact(mResolver);
+        final long contactId = queryContactId(rawContactId);
+        assertStoredValue(Contacts.CONTENT_URI, contactId, Contacts.HAS_PHONE_NUMBER, 0);
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (String number : new String[] {"555-1234", "555-5678", "555-9012"}) {
+            operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValue(Data.RAW_CONTACT_ID, rawContactId)
+                    .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                    .withValue(Phone.NUMBER, number)
+                    .withValue(Data.IS_PRIMARY, operations.isEmpty() ? 1 : 0)
+                    .build());
+        }
+        mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+
+        assertStoredValue(Contacts.CONTENT_URI, contactId, Contacts.HAS_PHONE_NUMBER, 1);
+        assertStoredValue(RawContacts.CONTENT_URI, rawContactId,
+                RawContacts.DISPLAY_NAME_SOURCE, DisplayNameSources.PHONE);
+        assertStoredValue(RawContacts.CONTENT_URI, rawContactId,
+                RawContacts.DISPLAY_NAME_PRIMARY, "555-1234");
+        assertStoredValue(Contacts.CONTENT_URI, contactId, Contacts.DISPLAY_NAME, "555-1234");
+
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(Data.CONTENT_URI)
+                .withSelection(Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
+                        new String[] {String.valueOf(rawContactId), Phone.CONTENT_ITEM_TYPE})
+                .build());
+        mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+
+        assertStoredValue(Contacts.CONTENT_URI, contactId, Contacts.HAS_PHONE_NUMBER, 0);
+        assertStoredValue(RawContacts.CONTENT_URI, rawContactId,
+                RawContacts.DISPLAY_NAME_SOURCE, DisplayNameSources.UNDEFINED);
+    }
+
+    public void testAssertInBatchSeesDerivedFieldsOfEarlierOperations() throws Exception {
+        final long rawContactId = RawContactUtil.createRawContact(mResolver);
+        final long contactId = queryContactId(rawContactId);
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValue(Data.RAW_CONTACT_ID, rawContactId)
+                .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                .withValue(Phone.NUMBER, "555-1234")
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(
+                ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId))
+                .withValue(Contacts.HAS_PHONE_NUMBER, 1)
+                .withValue(Contacts.DISPLAY_NAME, "555-1234")
+                .build());
+
+        // Throws if the assert sees the values from before the insert.
+        mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+    }
+
+    public void testPhoneLookupRowsKeptWhenNumberUnchanged() {
+        final long rawContactId = RawContactUtil.createRawContact(mResolver);
+        final Uri phoneUri = insertPhoneNumber(rawContactId, "(650) 555-1212");
+        final String phoneLookupRows = dumpPhoneLookupRows(ContentUris.parseId(phoneUri));
+        assertFalse(phoneLookupRows.isEmpty());
+
+        // Same number, different type: the rows are left alone.
+        ContentValues values = new ContentValues();
+        values.put(Phone.NUMBER, "(650) 555-1212");
+        values.put(Phone.TYPE, Phone.TYPE_WORK);
+        mResolver.update(phoneUri, values, null, null);
+        assertEquals(phoneLookupRows, dumpPhoneLookupRows(ContentUris.parseId(phoneUri)));
+
+        values.put(Phone.NUMBER, "(650) 555-3434");
+        mResolver.update(phoneUri, values, null, null);
+        MoreAsserts.assertNotEqual(phoneLookupRows,
+                dumpPhoneLookupRows(ContentUris.parseId(phoneUri)));
+        assertEquals(1, getCount(Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+                "6505553434"), null, null));
+        assertEquals(0, getCount(Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+                "6505551212"), null, null));
+    }
+
+    /**
+     * Returns the phone_lookup rows of a data row, including their row ids.
+     */
+    private String dumpPhoneLookupRows(long dataId) {
+        final SQLiteDatabase db = getContactsProvider().getDatabaseHelper().getReadableDatabase();
+        final StringBuilder sb = new StringBuilder();
+        try (Cursor c = db.rawQuery("SELECT rowid, " + PhoneLookupColumns.NORMALIZED_NUMBER
+                + " FROM " + Tables.PHONE_LOOKUP + " WHERE " + PhoneLookupColumns.DATA_ID + "=?"
+                + " ORDER BY rowid", new String[] {String.valueOf(dataId)})) {
+            while (c.moveToNext()) {
+                sb.append(c.getLong(0)).append(' ').append(c.getString(1)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
     public void testPhoneLookup() {
         ContentValues values = new ContentValues();
         values.put(RawContacts.CUSTOM_RINGTONE, "d");
@@ -8031,6 +8127,93 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         cursor.close();
     }
 
+    public void testContactCountsForAccount() {
+        Uri uri = TestUtil.maybeAddAccountQueryParameters(Contacts.CONTENT_URI, mAccount)
+                .buildUpon()
+                .appendQueryParameter(Contacts.EXTRA_ADDRESS_BOOK_INDEX, "true").build();
+
+        long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "Adam", "Smith",
+                mAccount);
+        long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Bob", "Jones",
+                mAccountTwo);
+
+        Cursor cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME}, null, null,
+                Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "A");
+        assertFirstLetterCounts(cursor,  1);
+        cursor.close();
+
+        // Data changes to the other account and to this account.
+        insertNote(rawContactId2, "note");
+        insertNote(rawContactId1, "note");
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME}, null, null,
+                Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "A");
+        assertFirstLetterCounts(cursor,  1);
+        cursor.close();
+
+        RawContactUtil.createRawContactWithName(mResolver, "Zed", "Smith", mAccount);
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME}, null, null,
+                Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "A", "Z");
+        assertFirstLetterCounts(cursor,  1,   1);
+        cursor.close();
+    }
+
+    public void testContactCountsFromBucketCounts() {
+        final BucketCountsManager manager = getContactsProvider().getBucketCountsManagerForTest();
+        final SQLiteDatabase db = getContactsProvider().getDatabaseHelper().getWritableDatabase();
+        Uri uri = Contacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Contacts.EXTRA_ADDRESS_BOOK_INDEX, "true").build();
+        Uri defaultDirectoryUri = uri.buildUpon()
+                .appendQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY,
+                        String.valueOf(Directory.DEFAULT)).build();
+
+        RawContactUtil.createRawContactWithName(mResolver, "Adam", "Smith");
+        long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Bob", "Jones");
+        long rawContactId3 = RawContactUtil.createRawContactWithName(mResolver, "Bill", "Smith");
+        assertFalse(manager.hasStaleContacts(db));
+        assertTrue(manager.isConsistent(db));
+
+        Cursor cursor = mResolver.query(defaultDirectoryUri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "A", "B");
+        assertFirstLetterCounts(cursor,  1,   2);
+        cursor.close();
+
+        RawContactUtil.delete(mResolver, rawContactId2, true);
+        long rawContactId4 = RawContactUtil.createRawContactWithName(mResolver, "Zed", "Smith");
+        assertTrue(manager.isConsistent(db));
+
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_PRIMARY + " DESC");
+        assertFirstLetterValues(cursor, "Z", "B", "A");
+        assertFirstLetterCounts(cursor,  1,   1,   1);
+        cursor.close();
+
+        // Aggregation changes the name raw contact of the joined contact.
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_TOGETHER, rawContactId3, rawContactId4);
+        assertFalse(manager.hasStaleContacts(db));
+        assertTrue(manager.isConsistent(db));
+
+        db.execSQL("UPDATE " + Tables.BUCKET_COUNTS + " SET "
+                + BucketCountsColumns.CONTACT_COUNT + "="
+                + BucketCountsColumns.CONTACT_COUNT + "+5");
+        assertFalse(manager.isConsistent(db));
+        assertTrue(manager.verify(db));
+        assertTrue(manager.isConsistent(db));
+        assertFalse(manager.verify(db));
+
+        // Counts that can't be right are recounted by the next update.
+        db.execSQL("UPDATE " + Tables.BUCKET_COUNTS + " SET "
+                + BucketCountsColumns.CONTACT_COUNT + "="
+                + BucketCountsColumns.CONTACT_COUNT + "-5");
+        RawContactUtil.createRawContactWithName(mResolver, "Carl", "Smith");
+        assertFalse(manager.hasStaleContacts(db));
+        assertTrue(manager.isConsistent(db));
+    }
+
     private void assertFirstLetterValues(Cursor cursor, String... expected) {
         String[] actual = cursor.getExtras()
                 .getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
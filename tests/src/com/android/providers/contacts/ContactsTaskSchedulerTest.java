@@ -19,6 +19,7 @@ import android.test.suitebuilder.annotation.LargeTest;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -60,6 +61,74 @@ public class ContactsTaskSchedulerTest extends FixedAndroidTestCase {
         assertEquals(1, scheduler.getThreadSequenceNumber());
     }
 
+    private static class LaneContactsTaskScheduler extends ContactsTaskScheduler {
+        static final int TASK_BLOCK = 1;
+        static final int TASK_HIGH_PRIORITY = 9;
+        static final int TASK_OTHER_LANE = 100;
+
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final CountDownLatch latch;
+
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+
+        public LaneContactsTaskScheduler(int numExpectedTasks) {
+            super("Test", SHUTDOWN_SECONDS);
+            latch = new CountDownLatch(numExpectedTasks);
+        }
+
+        @Override
+        public void onPerformTask(int taskId, Object arg) {
+            if (taskId == TASK_BLOCK) {
+                try {
+                    assertTrue(unblock.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            executed.add("" + taskId + "," + arg);
+
+            latch.countDown();
+        }
+
+        @Override
+        protected String getLane(int taskId) {
+            return taskId == TASK_OTHER_LANE ? "other" : DEFAULT_LANE;
+        }
+
+        @Override
+        protected int getPriority(int taskId) {
+            return taskId == TASK_HIGH_PRIORITY ? PRIORITY_HIGH : PRIORITY_DEFAULT;
+        }
+    }
+
+    public void testLanesDeduplicationAndPriority() throws Exception {
+        final LaneContactsTaskScheduler scheduler = new LaneContactsTaskScheduler(6);
+
+        scheduler.scheduleTask(LaneContactsTaskScheduler.TASK_BLOCK);
+        Thread.sleep(500); // Let the blocking task start.
+
+        scheduler.scheduleTask(2);
+        scheduler.scheduleTask(3, "arg");
+        scheduler.scheduleTask(2);
+        scheduler.scheduleTask(3, "other arg");
+        scheduler.scheduleTask(LaneContactsTaskScheduler.TASK_HIGH_PRIORITY);
+
+        // The other lane isn't blocked by the default lane.
+        scheduler.scheduleTask(LaneContactsTaskScheduler.TASK_OTHER_LANE);
+        Thread.sleep(500);
+        assertEquals(Arrays.asList("100,null"), scheduler.executed);
+
+        scheduler.unblock.countDown();
+        assertTrue(scheduler.latch.await(10, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("100,null", "1,null", "9,null", "2,null", "3,arg",
+                "3,other arg"), scheduler.executed);
+
+        // One thread per lane.
+        assertEquals(2, scheduler.getThreadSequenceNumber());
+        scheduler.shutdownForTest();
+    }
+
     public void testAutoShutdown() throws Exception {
         final MyContactsTaskScheduler scheduler = new MyContactsTaskScheduler(7);
 
@@ -23,11 +23,13 @@ import android.provider.ContactsContract.RawContacts;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
-import com.android.providers.contacts.util.MockSharedPreferences;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
 
 @SmallTest
 public class FastScrollingIndexCacheTest extends FixedAndroidTestCase {
-    private MockSharedPreferences mPrefs;
+    private File mFile;
     private FastScrollingIndexCache mCache;
 
     private static final String[] TITLES_0 = new String[] {};
@@ -51,8 +53,15 @@ public class FastScrollingIndexCacheTest extends FixedAndroidTestCase {
     protected void setUp() throws Exception {
         super.setUp();
 
-        mPrefs = new MockSharedPreferences();
-        mCache = FastScrollingIndexCache.getInstanceForTest(mPrefs);
+        mFile = new File(getContext().getCacheDir(), FastScrollingIndexCache.FILE_NAME);
+        mFile.delete();
+        mCache = FastScrollingIndexCache.getInstanceForTest(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
     }
 
     private void assertBundle(String[] expectedTitles, int[] expectedCounts, Bundle actual) {
@@ -63,22 +72,6 @@ public class FastScrollingIndexCacheTest extends FixedAndroidTestCase {
                 actual.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS));
     }
 
-    /**
-     * Test for {@link FastScrollingIndexCache#buildExtraBundleFromValue} and
-     * {@link FastScrollingIndexCache#buildCacheValue}.
-     */
-    public void testBuildCacheValue() {
-        assertBundle(TITLES_0, COUNTS_0,
-                FastScrollingIndexCache.buildExtraBundleFromValue(
-                        FastScrollingIndexCache.buildCacheValue(TITLES_0, COUNTS_0)));
-        assertBundle(TITLES_1, COUNTS_1,
-                FastScrollingIndexCache.buildExtraBundleFromValue(
-                        FastScrollingIndexCache.buildCacheValue(TITLES_1, COUNTS_1)));
-        assertBundle(TITLES_2, COUNTS_2,
-                FastScrollingIndexCache.buildExtraBundleFromValue(
-                        FastScrollingIndexCache.buildCacheValue(TITLES_2, COUNTS_2)));
-    }
-
     private static final Bundle putAndGetBundle(FastScrollingIndexCache cache, Uri queryUri,
             String selection, String[] selectionArgs, String sortOrder, String countExpression,
             String[] titles, int[] counts) {
@@ -136,18 +129,78 @@ public class FastScrollingIndexCacheTest extends FixedAndroidTestCase {
         b = putAndGetBundle(mCache, URI_B, "s", PROJECTION_2, "so", "ce", TITLES_2, COUNTS_2);
         assertBundle(TITLES_2, COUNTS_2, b);
 
-        // Now, create a new cache instance (with the same shared preferences)
-        // It should restore the cache content from the preferences...
+        // Now, create a new cache instance (with the same file)
+        // It should restore the cache content from the file...
 
-        FastScrollingIndexCache cache2 = FastScrollingIndexCache.getInstanceForTest(mPrefs);
+        mCache.flush();
+        FastScrollingIndexCache cache2 = FastScrollingIndexCache.getInstanceForTest(mFile);
         assertBundle(TITLES_0, COUNTS_0, cache2.get(null, null, null, null, null));
         assertBundle(TITLES_1, COUNTS_1, cache2.get(URI_A, "*s*", PROJECTION_0, "*so*", "*ce*"));
         assertBundle(TITLES_2, COUNTS_2, cache2.get(URI_A, "*s*", PROJECTION_1, "*so*", "*ce*"));
         assertBundle(TITLES_2, COUNTS_2, cache2.get(URI_B, "s", PROJECTION_2, "so", "ce"));
     }
 
-    public void testMalformedPreferences() {
-        mPrefs.edit().putString(FastScrollingIndexCache.PREFERENCE_KEY, "123");
+    public void testInvalidateDiscardsSavedContent() {
+        putAndGetBundle(mCache, URI_A, "*s*", PROJECTION_1, "*so*", "*ce*", TITLES_3, COUNTS_3);
+        mCache.flush();
+        mCache.invalidate();
+        mCache.flush();
+
+        FastScrollingIndexCache cache2 = FastScrollingIndexCache.getInstanceForTest(mFile);
+        assertNull(cache2.get(URI_A, "*s*", PROJECTION_1, "*so*", "*ce*"));
+    }
+
+    public void testReturnedBundleIsACopy() {
+        putAndGetBundle(mCache, URI_A, "*s*", PROJECTION_1, "*so*", "*ce*", TITLES_2, COUNTS_2);
+        mCache.get(URI_A, "*s*", PROJECTION_1, "*so*", "*ce*").clear();
+        assertBundle(TITLES_2, COUNTS_2, mCache.get(URI_A, "*s*", PROJECTION_1, "*so*", "*ce*"));
+    }
+
+    public void testLeastRecentlyUsedEntryEvicted() {
+        mCache = FastScrollingIndexCache.getInstanceForTest(mFile, 2);
+        putAndGetBundle(mCache, URI_A, "1", null, null, null, TITLES_1, COUNTS_1);
+        putAndGetBundle(mCache, URI_A, "2", null, null, null, TITLES_2, COUNTS_2);
+
+        // Touch the first entry, so that the second one is the least recently used.
+        assertBundle(TITLES_1, COUNTS_1, mCache.get(URI_A, "1", null, null, null));
+        putAndGetBundle(mCache, URI_A, "3", null, null, null, TITLES_3, COUNTS_3);
+
+        assertBundle(TITLES_1, COUNTS_1, mCache.get(URI_A, "1", null, null, null));
+        assertNull(mCache.get(URI_A, "2", null, null, null));
+        assertBundle(TITLES_3, COUNTS_3, mCache.get(URI_A, "3", null, null, null));
+    }
+
+    public void testInvalidateAccounts() {
+        mCache.put(URI_A, "all", null, null, null,
+                FastScrollingIndexCache.buildExtraBundle(TITLES_1, COUNTS_1),
+                FastScrollingIndexCache.ALL_ACCOUNTS);
+        mCache.put(URI_A, "account1", null, null, null,
+                FastScrollingIndexCache.buildExtraBundle(TITLES_2, COUNTS_2), 1);
+        mCache.put(URI_A, "account2", null, null, null,
+                FastScrollingIndexCache.buildExtraBundle(TITLES_3, COUNTS_3), 2);
+
+        mCache.invalidateAccounts(Collections.singleton(1L));
+
+        assertNull(mCache.get(URI_A, "all", null, null, null));
+        assertNull(mCache.get(URI_A, "account1", null, null, null));
+        assertBundle(TITLES_3, COUNTS_3, mCache.get(URI_A, "account2", null, null, null));
+
+        // The account of the remaining entry is persisted too.
+        mCache.flush();
+        FastScrollingIndexCache cache2 = FastScrollingIndexCache.getInstanceForTest(mFile);
+        assertBundle(TITLES_3, COUNTS_3, cache2.get(URI_A, "account2", null, null, null));
+        cache2.invalidateAccounts(Collections.singleton(2L));
+        assertNull(cache2.get(URI_A, "account2", null, null, null));
+
+        // Nothing is left to save, so the file goes away.
+        cache2.flush();
+        assertFalse(mFile.exists());
+    }
+
+    public void testMalformedFile() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[] {'1', '2', '3'});
+        }
         // get() shouldn't crash
         assertNull(mCache.get(null, null, null, null, null));
     }
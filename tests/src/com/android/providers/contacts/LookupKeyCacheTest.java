@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArrayMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LookupKeyCache}.
+ */
+@SmallTest
+public class LookupKeyCacheTest extends TestCase {
+    private static final String KEY_1 = "0r1-2E4C4A";
+    private static final String KEY_2 = "0r2-2E4C4B";
+    private static final String KEY_3 = "0r3-2E4C4C";
+
+    private LookupKeyCache mCache;
+
+    /** Map from contact ID to version; contacts that aren't in it don't exist. */
+    private final ArrayMap<Long, Long> mVersions = new ArrayMap<>();
+    private final LookupKeyCache.ContactVersionReader mVersionReader = contactId -> {
+        final Long version = mVersions.get(contactId);
+        return version == null ? LookupKeyCache.NOT_FOUND : version;
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new LookupKeyCache(2);
+        mVersions.put(1L, 100L);
+        mVersions.put(2L, 200L);
+    }
+
+    private void put(String lookupKey, long contactId) {
+        mCache.put(lookupKey, mCache.getGeneration(), contactId, mVersions.get(contactId));
+    }
+
+    private long get(String lookupKey) {
+        return mCache.get(lookupKey, mVersionReader);
+    }
+
+    public void testGetAndPut() {
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_1));
+
+        put(KEY_1, 1);
+        assertEquals(1, get(KEY_1));
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_2));
+    }
+
+    public void testEviction() {
+        put(KEY_1, 1);
+        put(KEY_2, 2);
+
+        // Touch KEY_1 so that KEY_2 is the least recently used entry.
+        assertEquals(1, get(KEY_1));
+        put(KEY_3, 1);
+
+        assertEquals(1, get(KEY_1));
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_2));
+        assertEquals(1, get(KEY_3));
+    }
+
+    public void testChangedContactIsNotReturned() {
+        put(KEY_1, 1);
+        put(KEY_2, 2);
+
+        mVersions.put(1L, 101L);
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_1));
+        assertEquals(2, get(KEY_2));
+
+        // The stale entry is gone even if the contact goes back to the cached version.
+        mVersions.put(1L, 100L);
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_1));
+    }
+
+    public void testDeletedContactIsNotReturned() {
+        put(KEY_1, 1);
+
+        mVersions.remove(1L);
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_1));
+    }
+
+    public void testInvalidateAll() {
+        put(KEY_1, 1);
+        put(KEY_2, 2);
+
+        mCache.invalidateAll();
+
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_1));
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_2));
+    }
+
+    public void testNotCachedWhileTransactionIsFinishing() {
+        // Resolved before the invalidation, put after it.
+        int generation = mCache.getGeneration();
+        mCache.invalidateInTransaction();
+        mCache.put(KEY_1, generation, 1, 100);
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_1));
+
+        // Resolved before the transaction finished, put after it.
+        generation = mCache.getGeneration();
+        mCache.onTransactionFinished();
+        mCache.put(KEY_1, generation, 1, 100);
+        assertEquals(LookupKeyCache.NOT_FOUND, get(KEY_1));
+
+        put(KEY_1, 1);
+        assertEquals(1, get(KEY_1));
+    }
+}
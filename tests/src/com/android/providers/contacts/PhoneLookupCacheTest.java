@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract.PhoneLookup;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link PhoneLookupCache}.
+ */
+@SmallTest
+public class PhoneLookupCacheTest extends TestCase {
+    private static final String MIN_MATCH_1 = "1144664";
+    private static final String MIN_MATCH_2 = "6957330";
+
+    private static final String[] COLUMNS = {PhoneLookup.DISPLAY_NAME, PhoneLookup.NUMBER};
+
+    private static final Set<String> NO_MIN_MATCHES = Collections.emptySet();
+    private static final Set<Long> NO_CONTACTS = Collections.emptySet();
+
+    private PhoneLookupCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new PhoneLookupCache(2);
+    }
+
+    private static String buildKey(String minMatch, String number) {
+        return PhoneLookupCache.buildCacheKey(minMatch,
+                Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, number), null, null, "US",
+                "0", "7");
+    }
+
+    private static Cursor newResult(long contactId, String displayName, String number) {
+        final MatrixCursor cursor = new MatrixCursor(new String[] {
+                PhoneLookup._ID, PhoneLookup.DISPLAY_NAME, PhoneLookup.NUMBER});
+        cursor.addRow(new Object[] {contactId, displayName, number});
+        return cursor;
+    }
+
+    private String put(String minMatch, String number, long contactId, String displayName) {
+        final String key = buildKey(minMatch, number);
+        final Cursor cursor = mCache.put(key, minMatch, mCache.getGeneration(),
+                newResult(contactId, displayName, number), COLUMNS);
+        assertResult(displayName, number, cursor);
+        return key;
+    }
+
+    private static void assertResult(String displayName, String number, Cursor cursor) {
+        assertNotNull(cursor);
+        try {
+            MoreAsserts.assertEquals(COLUMNS, cursor.getColumnNames());
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(displayName, cursor.getString(0));
+            assertEquals(number, cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testGetAndPut() {
+        final String key = buildKey(MIN_MATCH_1, "18004664411");
+        assertNull(mCache.get(key));
+
+        put(MIN_MATCH_1, "18004664411", 1, "Hot Tamale");
+        assertResult("Hot Tamale", "18004664411", mCache.get(key));
+
+        // Other numbers with the same min match have their own entries.
+        assertNull(mCache.get(buildKey(MIN_MATCH_1, "8004664411")));
+    }
+
+    public void testEviction() {
+        final String key1 = put(MIN_MATCH_1, "18004664411", 1, "A");
+        final String key2 = put(MIN_MATCH_2, "5103337596", 2, "B");
+
+        // Touch key1 so that key2 is the least recently used entry.
+        assertResult("A", "18004664411", mCache.get(key1));
+        final String key3 = put(MIN_MATCH_1, "8004664411", 1, "A");
+
+        assertNotNull(mCache.get(key1));
+        assertNull(mCache.get(key2));
+        assertNotNull(mCache.get(key3));
+    }
+
+    public void testInvalidateByMinMatch() {
+        final String key1 = put(MIN_MATCH_1, "18004664411", 1, "A");
+        final String key2 = put(MIN_MATCH_2, "5103337596", 2, "B");
+
+        mCache.invalidateInTransaction(Collections.singleton(MIN_MATCH_1), NO_CONTACTS, false);
+        mCache.onTransactionFinished();
+
+        assertNull(mCache.get(key1));
+        assertNotNull(mCache.get(key2));
+    }
+
+    public void testInvalidateByContact() {
+        final String key1 = put(MIN_MATCH_1, "18004664411", 1, "A");
+        final String key2 = put(MIN_MATCH_2, "5103337596", 2, "B");
+
+        mCache.invalidateInTransaction(NO_MIN_MATCHES, Collections.singleton(2L), false);
+        mCache.onTransactionFinished();
+
+        assertNotNull(mCache.get(key1));
+        assertNull(mCache.get(key2));
+    }
+
+    public void testInvalidateAll() {
+        final String key1 = put(MIN_MATCH_1, "18004664411", 1, "A");
+        final String key2 = put(MIN_MATCH_2, "5103337596", 2, "B");
+
+        mCache.invalidateAll();
+
+        assertNull(mCache.get(key1));
+        assertNull(mCache.get(key2));
+    }
+
+    public void testNotCachedWhileTransactionIsFinishing() {
+        final String key = buildKey(MIN_MATCH_1, "18004664411");
+
+        // Queried before the invalidation, put after it.
+        int generation = mCache.getGeneration();
+        mCache.invalidateInTransaction(NO_MIN_MATCHES, NO_CONTACTS, false);
+        mCache.put(key, MIN_MATCH_1, generation, newResult(1, "A", "18004664411"), COLUMNS)
+                .close();
+        assertNull(mCache.get(key));
+
+        // Queried before the transaction finished, put after it.
+        generation = mCache.getGeneration();
+        mCache.onTransactionFinished();
+        mCache.put(key, MIN_MATCH_1, generation, newResult(1, "A", "18004664411"), COLUMNS)
+                .close();
+        assertNull(mCache.get(key));
+
+        put(MIN_MATCH_1, "18004664411", 1, "A");
+        assertNotNull(mCache.get(key));
+    }
+
+    public void testLargeResultsAreNotCached() {
+        final String key = buildKey(MIN_MATCH_1, "18004664411");
+        final MatrixCursor result = new MatrixCursor(new String[] {
+                PhoneLookup._ID, PhoneLookup.DISPLAY_NAME, PhoneLookup.NUMBER});
+        for (int i = 0; i <= PhoneLookupCache.MAX_ROWS; i++) {
+            result.addRow(new Object[] {i, "A", "18004664411"});
+        }
+
+        final Cursor cursor = mCache.put(key, MIN_MATCH_1, mCache.getGeneration(), result,
+                COLUMNS);
+        assertEquals(PhoneLookupCache.MAX_ROWS + 1, cursor.getCount());
+        cursor.close();
+        assertTrue(result.isClosed());
+        assertNull(mCache.get(key));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+
+/**
+ * Benchmark for phone_lookup maintenance.  Compares the previous per-row implementation, which
+ * deleted and inserted the rows of every phone data row with {@link ContentValues} as soon as
+ * it was written, with the batched updates applied by
+ * {@link DataRowHandlerForPhoneNumber#flushPhoneLookupUpdates}, for 10k phone numbers.  Fails if
+ * they don't produce the same rows.
+ *
+ * Suppressed by default; run it like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.PhoneLookupUpdatePerfTest \
+ *         -w com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+@Suppress
+public class PhoneLookupUpdatePerfTest extends BaseContactsProvider2Test {
+    private static final String TAG = "PhoneLookupUpdatePerfTest";
+
+    private static final int NUMBER_COUNT = 10000;
+    private static final long FIRST_DATA_ID = 1000000;
+    private static final long RAW_CONTACT_ID = 1000000;
+
+    private SQLiteDatabase mDb;
+    private DataRowHandlerForPhoneNumber mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = getContactsProvider().getDatabaseHelper().getWritableDatabase();
+        mHandler = (DataRowHandlerForPhoneNumber) getContactsProvider()
+                .getDataRowHandler(Phone.CONTENT_ITEM_TYPE);
+    }
+
+    public void testBulkInsert() {
+        final String[] numbers = new String[NUMBER_COUNT];
+        final String[] numbersE164 = new String[NUMBER_COUNT];
+        for (int i = 0; i < NUMBER_COUNT; i++) {
+            numbers[i] = String.format("(650) 555-%04d", i);
+            numbersE164[i] = String.format("+1650555%04d", i);
+        }
+
+        // Insert, then write the same numbers again.
+        final long legacyInsertNanos = runLegacy(numbers, numbersE164);
+        final long legacyUnchangedNanos = runLegacy(numbers, numbersE164);
+        final String expected = dumpPhoneLookup();
+        mDb.delete(Tables.PHONE_LOOKUP, null, null);
+
+        final long batchedInsertNanos = runBatched(numbers, numbersE164, true);
+        final long batchedUnchangedNanos = runBatched(numbers, numbersE164, false);
+        assertEquals(expected, dumpPhoneLookup());
+
+        Log.i(TAG, NUMBER_COUNT + " phone numbers inserted: "
+                + "per row " + (legacyInsertNanos / 1000000) + "ms, "
+                + "batched " + (batchedInsertNanos / 1000000) + "ms");
+        Log.i(TAG, NUMBER_COUNT + " phone numbers written again: "
+                + "per row " + (legacyUnchangedNanos / 1000000) + "ms, "
+                + "batched " + (batchedUnchangedNanos / 1000000) + "ms");
+    }
+
+    private long runLegacy(String[] numbers, String[] numbersE164) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < numbers.length; i++) {
+                legacyUpdatePhoneLookup(mDb, RAW_CONTACT_ID, FIRST_DATA_ID + i, numbers[i],
+                        numbersE164[i]);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private long runBatched(String[] numbers, String[] numbersE164, boolean newDataRows) {
+        final TransactionContext txContext = new TransactionContext(false);
+        final long start = SystemClock.elapsedRealtimeNanos();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < numbers.length; i++) {
+                txContext.updatePhoneLookup(FIRST_DATA_ID + i, RAW_CONTACT_ID, numbers[i],
+                        numbersE164[i], newDataRows);
+            }
+            mHandler.flushPhoneLookupUpdates(mDb, txContext);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private String dumpPhoneLookup() {
+        final StringBuilder sb = new StringBuilder();
+        try (Cursor c = mDb.query(Tables.PHONE_LOOKUP, new String[] {
+                PhoneLookupColumns.RAW_CONTACT_ID, PhoneLookupColumns.DATA_ID,
+                PhoneLookupColumns.NORMALIZED_NUMBER, PhoneLookupColumns.MIN_MATCH},
+                null, null, null, null,
+                PhoneLookupColumns.DATA_ID + "," + PhoneLookupColumns.NORMALIZED_NUMBER)) {
+            while (c.moveToNext()) {
+                sb.append(c.getLong(0)).append(' ').append(c.getLong(1)).append(' ')
+                        .append(c.getString(2)).append(' ').append(c.getString(3)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The implementation of phone_lookup maintenance before it was batched, kept as the
+     * reference for the rows.
+     */
+    private static void legacyUpdatePhoneLookup(SQLiteDatabase db, long rawContactId,
+            long dataId, String number, String numberE164) {
+        final String[] selectionArgs = {String.valueOf(dataId)};
+        final Cursor c = db.query(Tables.PHONE_LOOKUP,
+                new String[] {PhoneLookupColumns.MIN_MATCH},
+                PhoneLookupColumns.DATA_ID + "=?", selectionArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                c.getString(0);
+            }
+        } finally {
+            c.close();
+        }
+        db.delete(Tables.PHONE_LOOKUP, PhoneLookupColumns.DATA_ID + "=?", selectionArgs);
+        if (number != null) {
+            String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+            if (!TextUtils.isEmpty(normalizedNumber)) {
+                ContentValues phoneValues = new ContentValues();
+                phoneValues.put(PhoneLookupColumns.RAW_CONTACT_ID, rawContactId);
+                phoneValues.put(PhoneLookupColumns.DATA_ID, dataId);
+                phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, normalizedNumber);
+                phoneValues.put(PhoneLookupColumns.MIN_MATCH,
+                        PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
+                db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
+
+                if (numberE164 != null && !numberE164.equals(normalizedNumber)) {
+                    phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, numberE164);
+                    phoneValues.put(PhoneLookupColumns.MIN_MATCH,
+                            PhoneNumberUtils.toCallerIDMinMatch(numberE164));
+                    db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
+                }
+            }
+        }
+    }
+}
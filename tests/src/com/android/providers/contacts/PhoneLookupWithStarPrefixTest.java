@@ -16,6 +16,9 @@
 
 package com.android.providers.contacts;
 
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.PhoneLookup;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
@@ -37,4 +40,51 @@ public class PhoneLookupWithStarPrefixTest extends FixedAndroidTestCase {
         assertEquals("*123", PhoneLookupWithStarPrefix.normalizeNumberWithStar("*+1-23"));
     }
 
+    @SmallTest
+    public void testRemoveNonStarMatchesFromCursor() {
+        Cursor cursor = PhoneLookupWithStarPrefix.removeNonStarMatchesFromCursor("*1-23",
+                newCursor("*123", "123", "*+1 23", "*456"));
+        assertNumbers(cursor, "*123", "*+1 23");
+        assertTrue(cursor instanceof FilteringCursorWrapper);
+        cursor.close();
+
+        cursor = PhoneLookupWithStarPrefix.removeNonStarMatchesFromCursor("123",
+                newCursor("*123", "123", "1-23"));
+        assertNumbers(cursor, "123", "1-23");
+        cursor.close();
+
+        // Nothing to remove, so the cursor is returned as is.
+        final Cursor unfiltered = newCursor("123", "1-23");
+        cursor = PhoneLookupWithStarPrefix.removeNonStarMatchesFromCursor("123", unfiltered);
+        assertSame(unfiltered, cursor);
+        assertNumbers(cursor, "123", "1-23");
+        cursor.close();
+    }
+
+    @SmallTest
+    public void testRemoveNoMatchPhoneNumber() {
+        final Cursor cursor = PhoneLookupWithStarPrefix.removeNoMatchPhoneNumber("6502910000",
+                newCursor("650-291-0000", "6502910001", "+1 650 291 0000"), "US");
+        assertNumbers(cursor, "650-291-0000", "+1 650 291 0000");
+        cursor.close();
+    }
+
+    private static Cursor newCursor(String... numbers) {
+        final MatrixCursor cursor = new MatrixCursor(
+                new String[] {PhoneLookup._ID, PhoneLookup.NUMBER});
+        for (int i = 0; i < numbers.length; i++) {
+            cursor.addRow(new Object[] {i, numbers[i]});
+        }
+        return cursor;
+    }
+
+    private static void assertNumbers(Cursor cursor, String... expected) {
+        assertEquals(expected.length, cursor.getCount());
+        assertEquals(-1, cursor.getPosition());
+        for (String number : expected) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(number, cursor.getString(cursor.getColumnIndex(PhoneLookup.NUMBER)));
+        }
+        assertFalse(cursor.moveToNext());
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Unit tests for {@link PhotoIndex}.
+ */
+@SmallTest
+public class PhotoIndexTest extends AndroidTestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "photo_index_test.index");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private PhotoIndex newLoadedIndex(boolean expectValid) {
+        final PhotoIndex index = new PhotoIndex(mFile);
+        assertEquals(expectValid, index.load());
+        return index;
+    }
+
+    private static void assertIds(PhotoIndex index, long... expected) {
+        final long[] ids = index.getIds();
+        assertEquals(expected.length, ids.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], ids[i]);
+        }
+        assertEquals(expected.length, index.getCount());
+    }
+
+    public void testPutAndRemove() {
+        final PhotoIndex index = newLoadedIndex(false);
+        index.put(1, 100, 256, 256);
+        index.put(3, 300, 256, 256);
+        // Out of order, as if an ID was reused.
+        index.put(2, 200, 256, 256);
+
+        assertIds(index, 1, 2, 3);
+        assertEquals(200, index.getFileSize(2));
+        assertEquals(600, index.getTotalSize());
+        assertEquals(3, index.getMaxId());
+
+        // Replacing a photo doesn't add a record.
+        index.put(2, 250, 256, 256);
+        assertIds(index, 1, 2, 3);
+        assertEquals(650, index.getTotalSize());
+
+        assertTrue(index.remove(3));
+        assertFalse(index.remove(3));
+        assertFalse(index.remove(4));
+        assertIds(index, 1, 2);
+        assertEquals(-1, index.getFileSize(3));
+        assertEquals(350, index.getTotalSize());
+        assertEquals(2, index.getMaxId());
+    }
+
+    public void testReload() {
+        final PhotoIndex index = newLoadedIndex(false);
+        index.put(1, 100, 256, 256);
+        index.put(2, 200, 256, 256);
+        index.put(3, 300, 256, 256);
+        index.remove(2);
+
+        final PhotoIndex reloaded = newLoadedIndex(true);
+        assertIds(reloaded, 1, 3);
+        assertEquals(400, reloaded.getTotalSize());
+    }
+
+    public void testGrowAndCompact() {
+        final PhotoIndex index = newLoadedIndex(false);
+        final int count = 2000;
+        for (int id = 1; id <= count; id++) {
+            index.put(id, id, 256, 256);
+        }
+        for (int id = 1; id < count; id++) {
+            assertTrue(index.remove(id));
+        }
+        assertIds(index, count);
+        assertEquals(count, index.getFileSize(count));
+
+        final PhotoIndex reloaded = newLoadedIndex(true);
+        assertIds(reloaded, count);
+        assertEquals(count, reloaded.getTotalSize());
+    }
+
+    public void testCorruptIndexIsReplaced() throws IOException {
+        final PhotoIndex index = newLoadedIndex(false);
+        index.put(1, 100, 256, 256);
+        index.put(2, 200, 256, 256);
+
+        // Swap the two IDs, breaking the order.
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(PhotoIndex.HEADER_SIZE);
+            file.writeLong(2);
+            file.seek(PhotoIndex.HEADER_SIZE + PhotoIndex.RECORD_LENGTH);
+            file.writeLong(1);
+        } finally {
+            file.close();
+        }
+
+        final PhotoIndex reloaded = newLoadedIndex(false);
+        assertIds(reloaded);
+        assertEquals(0, reloaded.getTotalSize());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link PhotoProcessingExecutor}.
+ */
+@SmallTest
+public class PhotoProcessingExecutorTest extends TestCase {
+
+    public void testPendingTasksAreBounded() throws InterruptedException {
+        final PhotoProcessingExecutor executor = new PhotoProcessingExecutor(1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final Runnable task = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        };
+
+        // One running, one queued.
+        assertTrue(executor.execute(task));
+        assertTrue(executor.execute(task));
+
+        // No room left.
+        assertFalse(executor.execute(task));
+
+        release.countDown();
+
+        // Room is made as tasks complete.
+        assertTrue(executor.execute(task));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
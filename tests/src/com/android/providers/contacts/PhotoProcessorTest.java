@@ -49,4 +49,22 @@ public class PhotoProcessorTest extends FixedAndroidTestCase {
         // Make sure the transparent pixel is now 100% white.
         assertEquals(Color.argb(255, 255, 255, 255), normalized.getPixel(0, 0));
     }
+
+    public void testGetSampleSize() {
+        // Not subsampled below the maximum dimension.
+        assertEquals(1, PhotoProcessor.getSampleSize(200, 200, 256, false));
+        assertEquals(1, PhotoProcessor.getSampleSize(511, 511, 256, false));
+        assertEquals(2, PhotoProcessor.getSampleSize(512, 512, 256, false));
+        assertEquals(4, PhotoProcessor.getSampleSize(1024, 1024, 256, false));
+
+        // The longer side is scaled down to the maximum dimension...
+        assertEquals(4, PhotoProcessor.getSampleSize(1024, 300, 256, false));
+
+        // ...unless the image is cropped to a square.
+        assertEquals(1, PhotoProcessor.getSampleSize(1024, 300, 256, true));
+        assertEquals(2, PhotoProcessor.getSampleSize(1024, 600, 256, true));
+
+        // Bounds that couldn't be decoded.
+        assertEquals(1, PhotoProcessor.getSampleSize(-1, -1, 256, false));
+    }
 }
@@ -18,6 +18,7 @@ package com.android.providers.contacts;
 
 import static com.android.providers.contacts.ContactsActor.PACKAGE_GREY;
 
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.provider.ContactsContract;
@@ -30,6 +31,8 @@ import com.android.providers.contacts.tests.R;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -193,6 +196,139 @@ public class PhotoStoreTest extends PhotoLoadingTestCase {
         }
     }
 
+    public void testInsertWritesFileBeforeReturning() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+
+        // The row is in the caller's transaction, so the file must already be complete.
+        PhotoStore.Entry entry = mPhotoStore.get(photoFileId);
+        assertNotNull(entry);
+        File storedFile = new File(entry.path);
+        assertEquals(entry.size, storedFile.length());
+        assertFalse(new File(entry.path + ".tmp").exists());
+    }
+
+    public void testInitializeReconcilesFilesAndRows() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        File storedFile = new File(mPhotoStore.get(photoFileId).path);
+        File directory = storedFile.getParentFile();
+
+        // A write interrupted before its rename.
+        File tempFile = new File(directory, (photoFileId + 1) + ".tmp");
+        assertTrue(tempFile.createNewFile());
+
+        // A file whose photo_files row was rolled back.
+        File fileWithoutRow = new File(directory, String.valueOf(photoFileId + 2));
+        assertTrue(fileWithoutRow.createNewFile());
+
+        // A row whose file was never written.
+        ContentValues values = new ContentValues();
+        values.put(PhotoFiles.HEIGHT, 256);
+        values.put(PhotoFiles.WIDTH, 256);
+        values.put(PhotoFiles.FILESIZE, 1000);
+        long rowWithoutFileId = mProvider.getDatabaseHelper().getWritableDatabase()
+                .insert(Tables.PHOTO_FILES, null, values);
+
+        mPhotoStore.initialize();
+
+        assertTrue(storedFile.exists());
+        assertNotNull(mPhotoStore.get(photoFileId));
+        assertFalse(tempFile.exists());
+        assertFalse(fileWithoutRow.exists());
+        assertNull(mPhotoStore.get(photoFileId + 2));
+        assertNull(mPhotoStore.get(rowWithoutFileId));
+        Cursor c = mDb.query(Tables.PHOTO_FILES, new String[]{PhotoFiles._ID},
+                PhotoFiles._ID + "=?", new String[]{String.valueOf(rowWithoutFileId)},
+                null, null, null);
+        try {
+            assertEquals(0, c.getCount());
+        } finally {
+            c.close();
+        }
+        assertEquals(storedFile.length(), mPhotoStore.getTotalSize());
+    }
+
+    public void testInitializeRemovesFilesNotInValidIndex() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        File storedFile = new File(mPhotoStore.get(photoFileId).path);
+        File directory = storedFile.getParentFile();
+
+        // Neither file has a photo_files row, so the index still matches the table.
+        File tempFile = new File(directory, (photoFileId + 1) + ".tmp");
+        assertTrue(tempFile.createNewFile());
+        File fileWithoutRow = new File(directory, String.valueOf(photoFileId + 2));
+        assertTrue(fileWithoutRow.createNewFile());
+
+        // The files were left behind by a process that didn't sync its changes.
+        PhotoStore.flush();
+        setIndexDirty(new File(directory.getParentFile(), "photos.index"));
+
+        mPhotoStore.initialize();
+
+        assertTrue(storedFile.exists());
+        assertNotNull(mPhotoStore.get(photoFileId));
+        assertFalse(tempFile.exists());
+        assertFalse(fileWithoutRow.exists());
+        assertNull(mPhotoStore.get(photoFileId + 2));
+        assertEquals(storedFile.length(), mPhotoStore.getTotalSize());
+    }
+
+    public void testInitializeRemovesTruncatedPhotosOfDirtyIndex() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        File storedFile = new File(mPhotoStore.get(photoFileId).path);
+        File directory = storedFile.getParentFile();
+
+        // The photo was lost with the page cache.
+        PhotoStore.flush();
+        try (RandomAccessFile file = new RandomAccessFile(storedFile, "rw")) {
+            file.setLength(0);
+        }
+        setIndexDirty(new File(directory.getParentFile(), "photos.index"));
+
+        mPhotoStore.initialize();
+
+        assertNull(mPhotoStore.get(photoFileId));
+        assertFalse(storedFile.exists());
+        assertEquals(0, mPhotoStore.getTotalSize());
+    }
+
+    public void testCleanRestartDoesNotListDirectory() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        mPhotoStore.remove(mPhotoStore.insert(newPhotoProcessor(photo, false)));
+
+        final int listCount = mPhotoStore.getDirectoryListCountForTest();
+        mPhotoStore.initialize();
+
+        assertEquals(listCount, mPhotoStore.getDirectoryListCountForTest());
+        assertNotNull(mPhotoStore.get(photoFileId));
+    }
+
+    public void testInitializeRebuildsMissingIndex() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        File storedFile = new File(mPhotoStore.get(photoFileId).path);
+
+        File indexFile = new File(storedFile.getParentFile().getParentFile(), "photos.index");
+        assertTrue(indexFile.delete());
+
+        mPhotoStore.initialize();
+
+        assertTrue(indexFile.exists());
+        assertEquals(storedFile.getPath(), mPhotoStore.get(photoFileId).path);
+        assertEquals(storedFile.length(), mPhotoStore.getTotalSize());
+    }
+
+    private static void setIndexDirty(File indexFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            file.seek(PhotoIndex.HEADER_FLAGS);
+            file.writeInt(PhotoIndex.HEADER_FLAG_DIRTY);
+        }
+    }
+
     public void testCleanup() throws IOException {
         // Load some photos into the store.
         Set<Long> photoFileIds = new HashSet<Long>();
@@ -213,16 +349,22 @@ public class PhotoStoreTest extends PhotoLoadingTestCase {
         // Run cleanup with the indication that only the large and huge photos are in use, along
         // with a bogus photo file ID that isn't in the photo store.
         long bogusPhotoFileId = 123456789;
-        Set<Long> photoFileIdsInUse = new HashSet<Long>();
-        photoFileIdsInUse.add(resourceIdToPhotoMap.get(R.drawable.earth_large));
-        photoFileIdsInUse.add(resourceIdToPhotoMap.get(R.drawable.earth_huge));
-        photoFileIdsInUse.add(bogusPhotoFileId);
+        long[] photoFileIdsInUse = new long[] {
+                resourceIdToPhotoMap.get(R.drawable.earth_large),
+                resourceIdToPhotoMap.get(R.drawable.earth_huge),
+                bogusPhotoFileId
+        };
+        Arrays.sort(photoFileIdsInUse);
+
+        long[] photoIdsToCleanup = mPhotoStore.cleanup(photoFileIdsInUse);
 
-        Set<Long> photoIdsToCleanup = mPhotoStore.cleanup(photoFileIdsInUse);
+        // The photo IDs to clean up should consist of the bogus photo file ID.
+        assertEquals(1, photoIdsToCleanup.length);
+        assertEquals(bogusPhotoFileId, photoIdsToCleanup[0]);
 
-        // The set of photo IDs to clean up should consist of the bogus photo file ID.
-        assertEquals(1, photoIdsToCleanup.size());
-        assertTrue(photoIdsToCleanup.contains(bogusPhotoFileId));
+        // The photos in use should have been kept.
+        assertNotNull(mPhotoStore.get(resourceIdToPhotoMap.get(R.drawable.earth_large)));
+        assertNotNull(mPhotoStore.get(resourceIdToPhotoMap.get(R.drawable.earth_huge)));
 
         // The entry for the normal-sized photo should have been cleaned up, since it isn't being
         // used.
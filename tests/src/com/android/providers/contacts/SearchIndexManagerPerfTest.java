@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.contacts;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import com.android.providers.contacts.testutil.RawContactUtil;
+
+/**
+ * Benchmarks for {@link SearchIndexManager}.  Measures the cost of editing a single phone
+ * number on contacts of growing size in a 50k contact database, and the time a full rebuild of
+ * that database takes with different numbers of tokenizing threads.
+ *
+ * Suppressed by default; run it like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.SearchIndexManagerPerfTest \
+ *         -w com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+@Suppress
+public class SearchIndexManagerPerfTest extends BaseContactsProvider2Test {
+    private static final String TAG = "SearchIndexManagerPerfTest";
+
+    private static final int CONTACT_COUNT = 50000;
+    private static final int[] CONTACT_SIZES = {1, 5, 10, 20, 40};
+    private static final int EDIT_COUNT = 50;
+    private static final int[] REBUILD_THREAD_COUNTS = {1, 2, 4, 8};
+
+    public void testPerEditCostByContactSize() {
+        populateSyntheticContacts(CONTACT_COUNT);
+
+        for (int size : CONTACT_SIZES) {
+            long rawContactId = RawContactUtil.createRawContact(mResolver);
+            Uri phoneUri = null;
+            for (int i = 0; i < size; i++) {
+                phoneUri = insertPhoneNumber(rawContactId, String.format("650555%04d", i));
+            }
+
+            ContentValues values = new ContentValues();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < EDIT_COUNT; i++) {
+                values.put(Phone.NUMBER, String.format("415555%04d", i));
+                mResolver.update(phoneUri, values, null, null);
+            }
+            final long end = SystemClock.elapsedRealtimeNanos();
+
+            Log.i(TAG, "Contact with " + size + " data rows: "
+                    + ((end - start) / EDIT_COUNT / 1000) + "us per edit");
+        }
+    }
+
+    public void testFullRebuildByThreadCount() {
+        populateSyntheticContacts(CONTACT_COUNT);
+
+        final SearchIndexManager searchIndexManager =
+                getContactsProvider().getSearchIndexManagerForTest();
+        for (int threads : REBUILD_THREAD_COUNTS) {
+            searchIndexManager.setMaxRebuildThreadsForTest(threads);
+            final long start = SystemClock.elapsedRealtime();
+            searchIndexManager.updateIndex(true);
+            Log.i(TAG, "Full rebuild with up to " + threads + " threads: "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+    }
+
+    /**
+     * Inserts {@code count} contacts with a name and two phone numbers each straight into the
+     * database, then rebuilds the search index for them.
+     */
+    private void populateSyntheticContacts(int count) {
+        final ContactsDatabaseHelper dbHelper =
+                (ContactsDatabaseHelper) getContactsProvider().getDatabaseHelper();
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final long phoneMimetypeId = dbHelper.getMimeTypeIdForPhone();
+        final long nameMimetypeId = dbHelper.getMimeTypeIdForStructuredName();
+
+        db.beginTransaction();
+        try {
+            final long accountId = dbHelper.getOrCreateAccountIdInTransaction(
+                    AccountWithDataSet.get("perf", "perf.type", null));
+            final SQLiteStatement insertContact = db.compileStatement(
+                    "INSERT INTO contacts (_id, name_raw_contact_id) VALUES (?, ?)");
+            final SQLiteStatement insertRawContact = db.compileStatement(
+                    "INSERT INTO raw_contacts (_id, contact_id, account_id, display_name,"
+                    + " aggregation_needed) VALUES (?, ?, ?, ?, 0)");
+            final SQLiteStatement insertData = db.compileStatement(
+                    "INSERT INTO data (raw_contact_id, mimetype_id, data1) VALUES (?, ?, ?)");
+            final long firstId = 1000000;
+            for (int i = 0; i < count; i++) {
+                final long id = firstId + i;
+                final String name = "Synthetic Contact " + i;
+                insertContact.bindLong(1, id);
+                insertContact.bindLong(2, id);
+                insertContact.executeInsert();
+                insertRawContact.bindLong(1, id);
+                insertRawContact.bindLong(2, id);
+                insertRawContact.bindLong(3, accountId);
+                insertRawContact.bindString(4, name);
+                insertRawContact.executeInsert();
+                insertData.bindLong(1, id);
+                insertData.bindLong(2, nameMimetypeId);
+                insertData.bindString(3, name);
+                insertData.executeInsert();
+                for (int j = 0; j < 2; j++) {
+                    insertData.bindLong(1, id);
+                    insertData.bindLong(2, phoneMimetypeId);
+                    insertData.bindString(3, String.format("555%03d%04d", j, i % 10000));
+                    insertData.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        getContactsProvider().getSearchIndexManagerForTest().updateIndex(true);
+        Log.i(TAG, "Full rebuild of " + count + " contacts: "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+}
@@ -17,10 +17,14 @@
 package com.android.providers.contacts;
 
 import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.net.Uri.Builder;
+import android.provider.ContactsContract.AggregationExceptions;
 import android.provider.ContactsContract.CommonDataKinds.Im;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.Contacts;
@@ -221,6 +225,189 @@ public class SearchIndexManagerTest extends BaseContactsProvider2Test {
         assertSearchIndex(contactId, null, null, "8005554664 +18005554664 8005551234 +18005551234");
     }
 
+    public void testSearchIndexUpdatedForModifiedDataRow() {
+        long rawContactId = RawContactUtil.createRawContact(mResolver);
+        long contactId = queryContactId(rawContactId);
+        insertEmail(rawContactId, "bob_parr@android.com");
+        Uri phoneUri = insertPhoneNumber(rawContactId, "800555GOOG");
+        insertPhoneNumber(rawContactId, "8005551234");
+
+        ContentValues values = new ContentValues();
+        values.put(Phone.NUMBER, "8005550000");
+        mResolver.update(phoneUri, values, null, null);
+
+        assertSearchIndex(contactId, "bob_parr@android.com", null,
+                "8005550000 +18005550000 8005551234 +18005551234");
+
+        mResolver.delete(phoneUri, null, null);
+
+        assertSearchIndex(contactId, "bob_parr@android.com", null,
+                "8005551234 +18005551234");
+    }
+
+    public void testSearchIndexIncrementalUpdateMatchesRebuild() {
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        long contactId = queryContactId(rawContactId1);
+        insertEmail(rawContactId1, "bob_parr@android.com");
+        insertNickname(rawContactId1, "Mr. Incredible");
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_TOGETHER, rawContactId1, rawContactId2);
+        insertEmail(rawContactId2, "bob_parr@android.com");
+        insertPhoneNumber(rawContactId2, "8005551234");
+        insertNote(rawContactId2, "Dash's dad");
+
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        String content = dbHelper.querySearchIndexContentForTest(contactId);
+        String tokens = dbHelper.querySearchIndexTokensForTest(contactId);
+
+        getContactsProvider().getSearchIndexManagerForTest().updateIndex(true);
+
+        assertSearchIndex(contactId, content, null, tokens);
+    }
+
+    public void testRebuildIndexResumesFromCursor() {
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        long contactId1 = queryContactId(rawContactId1);
+        insertEmail(rawContactId1, "bob_parr@android.com");
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        long contactId2 = queryContactId(rawContactId2);
+        insertEmail(rawContactId2, "helen_parr@android.com");
+
+        // Simulate a rebuild that was interrupted after indexing the first contact.
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        dbHelper.getWritableDatabase().execSQL(
+                "DELETE FROM search_index WHERE rowid=" + contactId2);
+        dbHelper.setProperty(SearchIndexManager.PROPERTY_SEARCH_INDEX_VERSION, "0");
+        dbHelper.setProperty(SearchIndexManager.PROPERTY_SEARCH_INDEX_REBUILD_CURSOR,
+                String.valueOf(contactId1));
+
+        SearchIndexManager searchIndexManager =
+                getContactsProvider().getSearchIndexManagerForTest();
+        searchIndexManager.updateIndex(false);
+
+        assertSearchIndex(contactId1, "bob_parr@android.com", null, null);
+        assertSearchIndex(contactId2, "helen_parr@android.com", null, null);
+        assertFalse(searchIndexManager.isRebuildInProgress());
+        assertEquals("-1", dbHelper.getProperty(
+                SearchIndexManager.PROPERTY_SEARCH_INDEX_REBUILD_CURSOR, null));
+    }
+
+    public void testRebuildIndexIncludesRawContactAggregatedAcrossCursor() {
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        long contactId1 = queryContactId(rawContactId1);
+        insertEmail(rawContactId1, "bob_parr@android.com");
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        long contactId2 = queryContactId(rawContactId2);
+        insertEmail(rawContactId2, "helen_parr@android.com");
+
+        // Simulate a rebuild that has indexed the first contact but not the second one yet.
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        dbHelper.getWritableDatabase().execSQL(
+                "DELETE FROM search_index WHERE rowid=" + contactId2);
+        dbHelper.getWritableDatabase().execSQL(
+                "DELETE FROM search_index_data WHERE raw_contact_id=" + rawContactId2);
+        dbHelper.setProperty(SearchIndexManager.PROPERTY_SEARCH_INDEX_VERSION, "0");
+        dbHelper.setProperty(SearchIndexManager.PROPERTY_SEARCH_INDEX_REBUILD_CURSOR,
+                String.valueOf(contactId1));
+        getContactsProvider().getSearchIndexManagerForTest().reloadRebuildStateForTest();
+
+        // Merge the raw contact the rebuild hasn't reached into the contact it has indexed.
+        setAggregationException(
+                AggregationExceptions.TYPE_KEEP_TOGETHER, rawContactId1, rawContactId2);
+        long contactId = queryContactId(rawContactId1);
+        assertEquals(contactId, queryContactId(rawContactId2));
+
+        String content = dbHelper.querySearchIndexContentForTest(contactId);
+        MoreAsserts.assertContainsRegex("bob_parr@android\\.com", content);
+        MoreAsserts.assertContainsRegex("helen_parr@android\\.com", content);
+
+        getContactsProvider().getSearchIndexManagerForTest().updateIndex(false);
+
+        assertSearchIndex(contactId, content, null, null);
+    }
+
+    public void testRebuildIndexIsIndependentOfThreadCount() {
+        assertRebuildIndexIsIndependentOfThreadCount(
+                new String[] {"Given"}, new String[] {"Family"});
+    }
+
+    public void testRebuildIndexIsIndependentOfThreadCount_chineseNames() {
+        // Only run this test when Chinese collation is supported
+        if (!Arrays.asList(Collator.getAvailableLocales()).contains(Locale.CHINA)) {
+            return;
+        }
+        ContactLocaleUtils.setLocaleForTest(Locale.SIMPLIFIED_CHINESE);
+        try {
+            assertRebuildIndexIsIndependentOfThreadCount(
+                    new String[] {"\u5C0F\u6D9B", "\u8FAD", "\u660E"},
+                    new String[] {"\u6BB5", "\u695A", "\u674E"});
+        } finally {
+            ContactLocaleUtils.setLocaleForTest(Locale.getDefault());
+        }
+    }
+
+    public void testRebuildIndexIsIndependentOfThreadCount_japaneseNames() {
+        // Only run this test when Japanese collation is supported
+        if (!Arrays.asList(Collator.getAvailableLocales()).contains(Locale.JAPAN)) {
+            return;
+        }
+        ContactLocaleUtils.setLocaleForTest(Locale.JAPAN);
+        try {
+            // Hiragana and katakana names, which get romaji lookup keys.
+            assertRebuildIndexIsIndependentOfThreadCount(
+                    new String[] {"\u305F\u308D\u3046", "\u30CF\u30CA\u30B3"},
+                    new String[] {"\u3084\u307E\u3060", "\u30B9\u30BA\u30AD"});
+        } finally {
+            ContactLocaleUtils.setLocaleForTest(Locale.getDefault());
+        }
+    }
+
+    /**
+     * Checks that a rebuild on several threads produces the same search index as a rebuild on
+     * a single thread, for contacts named after the given names.
+     */
+    private void assertRebuildIndexIsIndependentOfThreadCount(String[] givenNames,
+            String[] familyNames) {
+        // Enough contacts for the rebuild to tokenize several batches at once.
+        final int contactCount = 60;
+        for (int i = 0; i < contactCount; i++) {
+            long rawContactId = RawContactUtil.createRawContact(mResolver);
+            DataUtil.insertStructuredName(mResolver, rawContactId,
+                    givenNames[i % givenNames.length] + i, familyNames[i % familyNames.length]);
+            insertEmail(rawContactId, "contact" + i + "@android.com");
+            insertPhoneNumber(rawContactId, String.format("650555%04d", i));
+        }
+
+        SearchIndexManager searchIndexManager =
+                getContactsProvider().getSearchIndexManagerForTest();
+        searchIndexManager.setMaxRebuildThreadsForTest(1);
+        searchIndexManager.updateIndex(true);
+        final String expected = dumpSearchIndex();
+
+        searchIndexManager.setMaxRebuildThreadsForTest(4);
+        searchIndexManager.updateIndex(true);
+        assertEquals(expected, dumpSearchIndex());
+    }
+
+    private String dumpSearchIndex() {
+        final SQLiteDatabase db = getContactsProvider().getDatabaseHelper().getReadableDatabase();
+        final StringBuilder sb = new StringBuilder();
+        try (Cursor cursor = db.rawQuery(
+                "SELECT contact_id, content, name, tokens FROM search_index ORDER BY rowid",
+                null)) {
+            while (cursor.moveToNext()) {
+                sb.append(cursor.getLong(0)).append(": ").append(cursor.getString(1))
+                        .append(" / ").append(cursor.getString(2))
+                        .append(" / ").append(cursor.getString(3)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
     public void testSearchIndexForEmail() {
         long rawContactId = RawContactUtil.createRawContact(mResolver);
         long contactId = queryContactId(rawContactId);
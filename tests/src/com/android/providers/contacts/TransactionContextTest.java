@@ -94,4 +94,24 @@ public class TransactionContextTest extends TestCase {
         assertEquals(2, context.getChangedRawContactIds().size());
         assertTrue(context.getChangedRawContactIds().contains(5L));
     }
+
+    public void testInvalidateDerivedFields_mergesFieldsPerRawContact() {
+        TransactionContext context = new TransactionContext(false);
+        assertTrue(context.getStaleDerivedFields().isEmpty());
+
+        context.invalidateDerivedFields(1L, TransactionContext.DERIVED_FIELD_HAS_PHONE_NUMBER);
+        context.invalidateDerivedFields(1L, TransactionContext.DERIVED_FIELD_DISPLAY_NAME);
+        context.invalidateDerivedFields(1L, TransactionContext.DERIVED_FIELD_HAS_PHONE_NUMBER);
+        context.invalidateDerivedFields(2L, TransactionContext.DERIVED_FIELD_AGGREGATION);
+
+        assertEquals(2, context.getStaleDerivedFields().size());
+        assertEquals(TransactionContext.DERIVED_FIELD_HAS_PHONE_NUMBER
+                | TransactionContext.DERIVED_FIELD_DISPLAY_NAME,
+                (int) context.getStaleDerivedFields().get(1L));
+        assertEquals(TransactionContext.DERIVED_FIELD_AGGREGATION,
+                (int) context.getStaleDerivedFields().get(2L));
+
+        context.clearExceptSearchIndexUpdates();
+        assertTrue(context.getStaleDerivedFields().isEmpty());
+    }
 }
@@ -19,6 +19,7 @@ package com.android.providers.contacts;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -41,6 +42,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -152,6 +154,29 @@ public class VoicemailProviderTest extends BaseVoicemailProviderTest {
         verify(notifier, Mockito.times(1)).sendNotification();
     }
 
+    public void testBulkInsertNotifiesCallLogOnce() {
+        final CallLogChangeNotifier notifier =
+                ((VoicemailContentProvider) getProvider()).getCallLogChangeNotifierForTest();
+        final int notificationCount = notifier.getNotificationCount();
+        mResolver.bulkInsert(voicemailUri(), new ContentValues[] {
+                getTestVoicemailValues(), getTestVoicemailValues(), getTestVoicemailValues()});
+        assertEquals(notificationCount + 1, notifier.getNotificationCount());
+    }
+
+    public void testApplyBatchNotifiesCallLogOnce() throws Exception {
+        final CallLogChangeNotifier notifier =
+                ((VoicemailContentProvider) getProvider()).getCallLogChangeNotifierForTest();
+        final int notificationCount = notifier.getNotificationCount();
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            operations.add(ContentProviderOperation.newInsert(voicemailUri())
+                    .withValues(getTestVoicemailValues())
+                    .build());
+        }
+        mResolver.applyBatch(VoicemailContract.AUTHORITY, operations);
+        assertEquals(notificationCount + 1, notifier.getNotificationCount());
+    }
+
     // Test to ensure that media content can be written and read back.
     public void testFileContent() throws Exception {
         Uri uri = insertVoicemail();
@@ -26,7 +26,9 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.AggregationExceptions;
+import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.AggregationSuggestions;
@@ -42,12 +44,20 @@ import com.android.providers.contacts.BaseContactsProvider2Test;
 import com.android.providers.contacts.ContactsDatabaseHelper;
 import com.android.providers.contacts.ContactsProvider2;
 import com.android.providers.contacts.TestUtils;
+import com.android.providers.contacts.aggregation.util.CandidateHitCache;
 import com.android.providers.contacts.tests.R;
 import com.android.providers.contacts.testutil.DataUtil;
 import com.android.providers.contacts.testutil.RawContactUtil;
 
 import com.google.android.collect.Lists;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
 /**
  * Unit tests for {@link ContactAggregator2}.
  *
@@ -1732,6 +1742,142 @@ public class ContactAggregator2Test extends BaseContactsProvider2Test {
         assertNotAggregated(rawContactId4, rawContactId5);
     }
 
+    public void testBatchedAggregationMatchesPerContactAggregation() throws Exception {
+        assertBatchedAggregationMatchesPerContactAggregation(
+                this::insertRawContactsForBatchedAggregation);
+    }
+
+    public void testBatchedAggregationWithTooManyNameHits() throws Exception {
+        // More raw contacts with the same name than the prefetched hits of one raw contact can
+        // hold, so that the aggregator has to fall back to the per-contact name query.
+        assertBatchedAggregationMatchesPerContactAggregation(() -> {
+            final int count = CandidateHitCache.MAX_HITS_PER_RAW_CONTACT + 5;
+            final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+            final int[] rawContactOps = new int[count];
+            for (int i = 0; i < count; i++) {
+                rawContactOps[i] = ops.size();
+                ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                        .withValue(RawContacts.ACCOUNT_NAME, ACCOUNT_1.name)
+                        .withValue(RawContacts.ACCOUNT_TYPE, ACCOUNT_1.type)
+                        .build());
+                ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValueBackReference(Data.RAW_CONTACT_ID, rawContactOps[i])
+                        .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                        .withValue(StructuredName.GIVEN_NAME, "John")
+                        .withValue(StructuredName.FAMILY_NAME, "Doe")
+                        .build());
+            }
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+            final long[] rawContactIds = new long[count];
+            for (int i = 0; i < count; i++) {
+                rawContactIds[i] = ContentUris.parseId(results[rawContactOps[i]].uri);
+            }
+            return rawContactIds;
+        });
+    }
+
+    /**
+     * Inserts raw contacts with the given inserter once with per-contact aggregation and once
+     * with batched aggregation, and checks that they are aggregated the same way.
+     */
+    private void assertBatchedAggregationMatchesPerContactAggregation(
+            Callable<long[]> inserter) throws Exception {
+        final ContactsProvider2 cp = (ContactsProvider2) getProvider();
+        final AbstractContactAggregator aggregator = cp.getContactAggregatorForTest();
+
+        long[] rawContactIds = inserter.call();
+        final Set<Set<Integer>> expected = getAggregatedIndexes(rawContactIds);
+
+        final StringBuilder ids = new StringBuilder();
+        for (long rawContactId : rawContactIds) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(rawContactId);
+        }
+        mResolver.delete(RawContacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build(),
+                RawContacts._ID + " IN (" + ids + ")", null);
+
+        aggregator.setBatchAggregationThresholdForTest(1);
+        try {
+            rawContactIds = inserter.call();
+            assertEquals(expected, getAggregatedIndexes(rawContactIds));
+        } finally {
+            aggregator.setBatchAggregationThresholdForTest(
+                    AbstractContactAggregator.BATCH_AGGREGATION_THRESHOLD);
+        }
+    }
+
+    /**
+     * Inserts raw contacts sharing names, phone numbers and email addresses in various
+     * combinations in a single transaction.
+     */
+    private long[] insertRawContactsForBatchedAggregation() throws Exception {
+        final String[] givenNames = {"John", "Jane", "Bob"};
+        final String[] familyNames = {"Doe", "Smith"};
+        final int count = 24;
+
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        final int[] rawContactOps = new int[count];
+        for (int i = 0; i < count; i++) {
+            final Account account = i % 3 == 0 ? ACCOUNT_2 : ACCOUNT_1;
+            rawContactOps[i] = ops.size();
+            ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                    .withValue(RawContacts.ACCOUNT_NAME, account.name)
+                    .withValue(RawContacts.ACCOUNT_TYPE, account.type)
+                    .build());
+            if (i % 4 != 3) {
+                ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValueBackReference(Data.RAW_CONTACT_ID, rawContactOps[i])
+                        .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                        .withValue(StructuredName.GIVEN_NAME, givenNames[i % 3])
+                        .withValue(StructuredName.FAMILY_NAME, familyNames[i % 2])
+                        .build());
+            }
+            if (i % 2 == 1) {
+                ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValueBackReference(Data.RAW_CONTACT_ID, rawContactOps[i])
+                        .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                        .withValue(Phone.NUMBER, "555010" + (i % 4))
+                        .build());
+            }
+            if (i % 3 == 1) {
+                ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValueBackReference(Data.RAW_CONTACT_ID, rawContactOps[i])
+                        .withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE)
+                        .withValue(Email.DATA, "person" + (i % 2) + "@android.com")
+                        .build());
+            }
+        }
+
+        final ContentProviderResult[] results =
+                mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        final long[] rawContactIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            rawContactIds[i] = ContentUris.parseId(results[rawContactOps[i]].uri);
+        }
+        return rawContactIds;
+    }
+
+    /**
+     * Returns the aggregation of the given raw contacts as sets of indexes into the array.
+     */
+    private Set<Set<Integer>> getAggregatedIndexes(long[] rawContactIds) {
+        final Map<Long, Set<Integer>> contacts = new HashMap<>();
+        for (int i = 0; i < rawContactIds.length; i++) {
+            final long contactId = queryContactId(rawContactIds[i]);
+            Set<Integer> indexes = contacts.get(contactId);
+            if (indexes == null) {
+                indexes = new HashSet<>();
+                contacts.put(contactId, indexes);
+            }
+            indexes.add(i);
+        }
+        return new HashSet<>(contacts.values());
+    }
+
     public void testFamilyMembersWithSimilarNameAndSameHomePhone() {
         long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John", "Smith",
                 ACCOUNT_1);
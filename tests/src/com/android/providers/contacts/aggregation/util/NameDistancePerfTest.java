@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import com.android.providers.contacts.NameNormalizer;
+import com.android.providers.contacts.util.Hex;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Benchmark for {@link NameDistance}.  Compares the previous implementation, which used
+ * {@code boolean[]} match flags and always computed the full distance, with the bitset based
+ * implementation with and without an early-exit threshold, over all pairs of a list of common
+ * names.  Fails if any of them disagree on a score.
+ *
+ * Suppressed by default; run it like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.aggregation.util.NameDistancePerfTest \
+ *         -w com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+@Suppress
+public class NameDistancePerfTest extends TestCase {
+    private static final String TAG = "NameDistancePerfTest";
+
+    private static final int MAX_MATCHED_NAME_LENGTH = 30;
+    private static final int ITERATIONS = 20;
+
+    private static final String[] FIRST_NAMES = {
+            "James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda",
+            "William", "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica",
+            "Thomas", "Sarah", "Charles", "Karen", "Christopher", "Nancy", "Daniel", "Lisa",
+            "Matthew", "Margaret", "Anthony", "Betty", "Donald", "Sandra", "Mark", "Ashley",
+            "Steven", "Dorothy", "Paul", "Kimberly", "Andrew", "Emily", "Joshua", "Donna",
+            "Dwayne", "Duane", "Jon", "Jonathan", "Marhta", "Martha", "Dixon", "Dickson",
+    };
+
+    private static final String[] LAST_NAMES = {
+            "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis",
+            "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson",
+            "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee", "Perez", "Thompson",
+    };
+
+    public void testDistanceOverCommonNames() {
+        final byte[][] names = buildNames();
+        final float[] thresholds = {
+                RawContactMatcher.APPROXIMATE_MATCH_THRESHOLD,
+                RawContactMatcher.APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL,
+        };
+
+        final LegacyNameDistance legacy = new LegacyNameDistance(MAX_MATCHED_NAME_LENGTH);
+        final NameDistance current = new NameDistance(MAX_MATCHED_NAME_LENGTH);
+
+        final int pairs = names.length * names.length;
+        final float[] expected = new float[pairs];
+        for (int i = 0; i < names.length; i++) {
+            for (int j = 0; j < names.length; j++) {
+                final int pair = i * names.length + j;
+                expected[pair] = legacy.getDistance(names[i], names[j]);
+                assertEquals(expected[pair], current.getDistance(names[i], names[j]));
+                for (float threshold : thresholds) {
+                    final float actual = current.getDistance(names[i], names[j], threshold);
+                    if (expected[pair] > threshold) {
+                        assertEquals(expected[pair], actual);
+                    } else {
+                        assertTrue(actual <= threshold);
+                    }
+                }
+            }
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int k = 0; k < ITERATIONS; k++) {
+            for (byte[] name1 : names) {
+                for (byte[] name2 : names) {
+                    legacy.getDistance(name1, name2);
+                }
+            }
+        }
+        final long legacyNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int k = 0; k < ITERATIONS; k++) {
+            for (byte[] name1 : names) {
+                for (byte[] name2 : names) {
+                    current.getDistance(name1, name2);
+                }
+            }
+        }
+        final long bitsetNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int k = 0; k < ITERATIONS; k++) {
+            for (byte[] name1 : names) {
+                for (byte[] name2 : names) {
+                    current.getDistance(name1, name2, thresholds[0]);
+                }
+            }
+        }
+        final long thresholdNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        final long comparisons = (long) pairs * ITERATIONS;
+        Log.i(TAG, comparisons + " comparisons of " + names.length + " names: "
+                + "boolean[] flags " + (legacyNanos / comparisons) + "ns, "
+                + "bitset flags " + (bitsetNanos / comparisons) + "ns, "
+                + "bitset flags with threshold " + (thresholdNanos / comparisons) + "ns");
+    }
+
+    private static byte[][] buildNames() {
+        final byte[][] names =
+                new byte[FIRST_NAMES.length + FIRST_NAMES.length * LAST_NAMES.length][];
+        int index = 0;
+        for (String first : FIRST_NAMES) {
+            names[index++] = Hex.decodeHex(NameNormalizer.normalize(first));
+        }
+        for (String first : FIRST_NAMES) {
+            for (String last : LAST_NAMES) {
+                names[index++] = Hex.decodeHex(NameNormalizer.normalize(first + last));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The implementation of {@link NameDistance#getDistance} before match flags were packed
+     * into bitsets, kept as the reference for the scores.
+     */
+    private static class LegacyNameDistance {
+        private static final float WINKLER_BONUS_THRESHOLD = 0.7f;
+        private static final int MIN_EXACT_PREFIX_LENGTH = 3;
+
+        private final int mMaxLength;
+        private final boolean[] mMatchFlags1;
+        private final boolean[] mMatchFlags2;
+
+        LegacyNameDistance(int maxLength) {
+            mMaxLength = maxLength;
+            mMatchFlags1 = new boolean[maxLength];
+            mMatchFlags2 = new boolean[maxLength];
+        }
+
+        float getDistance(byte bytes1[], byte bytes2[]) {
+            byte[] array1, array2;
+
+            if (bytes1.length > bytes2.length) {
+                array2 = bytes1;
+                array1 = bytes2;
+            } else {
+                array2 = bytes2;
+                array1 = bytes1;
+            }
+
+            int length1 = array1.length;
+            if (length1 >= MIN_EXACT_PREFIX_LENGTH) {
+                boolean prefix = true;
+                for (int i = 0; i < array1.length; i++) {
+                    if (array1[i] != array2[i]) {
+                        prefix = false;
+                        break;
+                    }
+                }
+                if (prefix) {
+                    return 1.0f;
+                }
+            }
+
+            if (length1 > mMaxLength) {
+                length1 = mMaxLength;
+            }
+
+            int length2 = array2.length;
+            if (length2 > mMaxLength) {
+                length2 = mMaxLength;
+            }
+
+            Arrays.fill(mMatchFlags1, 0, length1, false);
+            Arrays.fill(mMatchFlags2, 0, length2, false);
+
+            int range = length2 / 2 - 1;
+            if (range < 0) {
+                range = 0;
+            }
+
+            int matches = 0;
+            for (int i = 0; i < length1; i++) {
+                byte c1 = array1[i];
+
+                int from = i - range;
+                if (from < 0) {
+                    from = 0;
+                }
+
+                int to = i + range + 1;
+                if (to > length2) {
+                    to = length2;
+                }
+
+                for (int j = from; j < to; j++) {
+                    if (!mMatchFlags2[j] && c1 == array2[j]) {
+                        mMatchFlags1[i] = mMatchFlags2[j] = true;
+                        matches++;
+                        break;
+                    }
+                }
+            }
+
+            if (matches == 0) {
+                return 0f;
+            }
+
+            int transpositions = 0;
+            int j = 0;
+            for (int i = 0; i < length1; i++) {
+                if (mMatchFlags1[i]) {
+                    while (!mMatchFlags2[j]) {
+                        j++;
+                    }
+                    if (array1[i] != array2[j]) {
+                        transpositions++;
+                    }
+                    j++;
+                }
+            }
+
+            float m = matches;
+            float jaro = ((m / length1 + m / length2 + (m - (transpositions / 2f)) / m)) / 3;
+
+            if (jaro < WINKLER_BONUS_THRESHOLD) {
+                return jaro;
+            }
+
+            int prefix = 0;
+            for (int i = 0; i < length1; i++) {
+                if (bytes1[i] != bytes2[i]) {
+                    break;
+                }
+                prefix++;
+            }
+
+            return jaro + Math.min(0.1f, 1f / length2) * prefix * (1 - jaro);
+        }
+    }
+}
@@ -66,6 +66,30 @@ public class NameDistanceTest extends TestCase {
         assertFloat(0, "Abcd", "Efgh");
     }
 
+    public void testThreshold() {
+        assertThresholdedDistance("Martha", "Marhta", 0.82f);
+        assertThresholdedDistance("Dwayne", "Duane", 0.82f);
+        assertThresholdedDistance("Dwayne", "Duane", 0.95f);
+        assertThresholdedDistance("Donny", "Duane", 0.82f);
+        assertThresholdedDistance("Johny", "Duane", 0.5f);
+        assertThresholdedDistance("Abcd", "Efgh", 0.82f);
+        assertThresholdedDistance("Alexander", "Al", 0.82f);
+    }
+
+    private void assertThresholdedDistance(String name1, String name2, float threshold) {
+        byte[] s1 = Hex.decodeHex(NameNormalizer.normalize(name1));
+        byte[] s2 = Hex.decodeHex(NameNormalizer.normalize(name2));
+
+        float expected = mNameDistance.getDistance(s1, s2);
+        float actual = mNameDistance.getDistance(s1, s2, threshold);
+        if (expected > threshold) {
+            assertEquals(expected, actual);
+        } else {
+            assertTrue("Expected at most " + threshold + ", actual: " + actual,
+                    actual <= threshold);
+        }
+    }
+
     private void assertFloat(float expected, String name1, String name2) {
         byte[] s1 = Hex.decodeHex(NameNormalizer.normalize(name1));
         byte[] s2 = Hex.decodeHex(NameNormalizer.normalize(name2));
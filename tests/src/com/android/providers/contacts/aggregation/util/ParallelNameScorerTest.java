@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+import com.android.providers.contacts.NameNormalizer;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Unit tests for {@link ParallelNameScorer}.
+ */
+@SmallTest
+public class ParallelNameScorerTest extends TestCase {
+
+    private static final String[] CANDIDATES = {"john", "jon", "jonathan", "joan", "jane"};
+
+    private String[] mCandidates;
+    private String[] mNames;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCandidates = new String[CANDIDATES.length];
+        for (int i = 0; i < CANDIDATES.length; i++) {
+            mCandidates[i] = NameNormalizer.normalize(CANDIDATES[i]);
+        }
+
+        // Enough rows to get past MIN_PARALLEL_COMPARISONS, with some of them pointing at the
+        // same raw contact.
+        mNames = new String[ParallelNameScorer.MIN_PARALLEL_COMPARISONS];
+        for (int i = 0; i < mNames.length; i++) {
+            mNames[i] = NameNormalizer.normalize(
+                    CANDIDATES[i % CANDIDATES.length] + (char) ('a' + i % 26));
+        }
+    }
+
+    public void testParallelScoringMatchesSerialScoring() {
+        final RawContactMatcher serial = new RawContactMatcher();
+        final ParallelNameScorer.Scorer<RawContactMatcher> scorer = newScorer();
+        for (int row = 0; row < mNames.length; row++) {
+            scorer.scoreRow(serial, row);
+        }
+
+        final RawContactMatcher parallel = new RawContactMatcher();
+        ParallelNameScorer.score(parallel, mNames.length, mCandidates.length, scorer);
+
+        final List<MatchScore> expected = serial.pickBestMatches(0);
+        final List<MatchScore> actual = parallel.pickBestMatches(0);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getRawContactId(), actual.get(i).getRawContactId());
+            assertEquals(expected.get(i).getScore(), actual.get(i).getScore());
+        }
+    }
+
+    private ParallelNameScorer.Scorer<RawContactMatcher> newScorer() {
+        return new ParallelNameScorer.Scorer<RawContactMatcher>() {
+            @Override
+            public RawContactMatcher newMatcher() {
+                return new RawContactMatcher();
+            }
+
+            @Override
+            public void scoreRow(RawContactMatcher matcher, int row) {
+                final long rawContactId = row % 97;
+                for (String candidate : mCandidates) {
+                    matcher.matchName(rawContactId, rawContactId, 1,
+                            NameLookupType.NAME_COLLATION_KEY, candidate,
+                            NameLookupType.NAME_COLLATION_KEY, mNames[row],
+                            RawContactMatcher.MATCHING_ALGORITHM_APPROXIMATE);
+                }
+            }
+
+            @Override
+            public void merge(RawContactMatcher target, RawContactMatcher partial) {
+                target.merge(partial);
+            }
+        };
+    }
+}